@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.location.Location;
 import android.os.AsyncTask;
 import android.os.RemoteException;
@@ -14,8 +13,9 @@ import android.util.Log;
 import com.mapscloud.track.R;
 import com.mapscloud.track.android.interfaces.TowerListener;
 import com.mapscloud.track.services.basic.BasicRecordBean;
+import com.mapscloud.track.services.content.CachedTrackPoints;
 import com.mapscloud.track.services.content.Track;
-import com.mapscloud.track.services.content.TrackPointsColumns;
+import com.mapscloud.track.services.content.TrackCache;
 import com.mapscloud.track.services.content.TripStatistics;
 import com.mapscloud.track.services.model.ITrackRecordingService;
 import com.mapscloud.track.services.model.TrackRecordingServiceConnectionUtils;
@@ -68,6 +68,7 @@ public class TracksServiceUtils {
 
     private static TracksServiceUtils mTrackServiceUtils;
     private MyTracksProviderUtils myTracksProviderUtils;
+    private TrackCache trackCache;
     private String appId = "";
     private String appName = "";
 
@@ -79,6 +80,7 @@ public class TracksServiceUtils {
         serviceMgr = new ControlTower(context);
 
         myTracksProviderUtils = MyTracksProviderUtils.Factory.get(context);
+        trackCache = TrackCache.get(context);
 
         mITrackRecordingService = serviceMgr.getTrackServices(); // 首次创建该Util得到的ITrackRecordingService必然为空
         if (null != mITrackRecordingService) {
@@ -357,7 +359,7 @@ public class TracksServiceUtils {
      * 根据轨迹id获取轨迹对象
      */
     public Track getTrackWithId(long trackId) {
-        return myTracksProviderUtils.getTrack(trackId);
+        return trackCache.getTrack(trackId);
     }
 
     /**
@@ -479,19 +481,17 @@ public class TracksServiceUtils {
      * @return
      */
     public ArrayList<Location> getTrackPoints(long trackId, long startTrackPointId) {
-        Cursor cursor = myTracksProviderUtils.getTrackPointCursor(trackId, -1, -1, false);
         ArrayList<Location> locations = new ArrayList<Location>();
-        // ArrayList<Location> locations = mTrack.getLocations();
-        while (cursor.moveToNext()) {
-            // int trackId =
-            // cursor.getInt(cursor.getColumnIndex(TrackPointsColumns.TRACKID));
-            int lat = cursor.getInt(cursor.getColumnIndex(TrackPointsColumns.LATITUDE));
-            int lon = cursor.getInt(cursor.getColumnIndex(TrackPointsColumns.LONGITUDE));
-            int time = cursor.getInt(cursor.getColumnIndex(TrackPointsColumns.TIME));
+        // 解码后的轨迹点在进程内缓存，再次打开同一条轨迹不再查询数据库
+        CachedTrackPoints trackPoints = trackCache.getTrackPoints(trackId);
+        if (trackPoints == null) {
+            return locations;
+        }
+        int start = startTrackPointId < 0 ? 0 : trackPoints.indexOf(startTrackPointId);
+        locations.ensureCapacity(trackPoints.size() - start);
+        for (int i = start; i < trackPoints.size(); i++) {
             Location location = new Location("gps");
-            location.setLatitude(lat / 1E6D);
-            location.setLongitude(lon / 1E6D);
-            location.setTime(time);
+            trackPoints.fill(i, location);
             locations.add(location);
         }
         return locations;
@@ -0,0 +1,82 @@
+package com.mapscloud.track.services.chart;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling (Sveinn Steinarsson, 2013). Keeps
+ * the visual shape of a series, peaks included, with a fixed number of points.
+ */
+public class Lttb {
+
+    private Lttb() {
+    }
+
+    /**
+     * Downsamples a series. The first and last points are always kept. Returns
+     * the number of points written to the output arrays, which must hold at
+     * least min(count, threshold) values.
+     *
+     * @param x         the x values, ascending
+     * @param y         the y values
+     * @param count     the number of input points
+     * @param threshold the number of output points, at least 3
+     * @param outX      the output x values
+     * @param outY      the output y values
+     */
+    public static int downsample(double[] x, double[] y, int count, int threshold, double[] outX, double[] outY) {
+        if (threshold >= count || threshold < 3) {
+            System.arraycopy(x, 0, outX, 0, count);
+            System.arraycopy(y, 0, outY, 0, count);
+            return count;
+        }
+
+        // Bucket size, leaving room for the first and last points
+        double every = (double) (count - 2) / (threshold - 2);
+        int selected = 0;
+        outX[0] = x[0];
+        outY[0] = y[0];
+        int out = 1;
+
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            // Average of the next bucket, the third triangle point
+            int nextStart = (int) ((bucket + 1) * every) + 1;
+            int nextEnd = Math.min((int) ((bucket + 2) * every) + 1, count);
+            double averageX = 0;
+            double averageY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                averageX += x[i];
+                averageY += y[i];
+            }
+            int nextLength = nextEnd - nextStart;
+            if (nextLength > 0) {
+                averageX /= nextLength;
+                averageY /= nextLength;
+            } else {
+                averageX = x[count - 1];
+                averageY = y[count - 1];
+            }
+
+            // Pick the point of this bucket forming the largest triangle
+            int start = (int) (bucket * every) + 1;
+            int end = (int) ((bucket + 1) * every) + 1;
+            double selectedX = x[selected];
+            double selectedY = y[selected];
+            double maxArea = -1;
+            int maxIndex = start;
+            for (int i = start; i < end; i++) {
+                double area = Math.abs((selectedX - averageX) * (y[i] - selectedY)
+                        - (selectedX - x[i]) * (averageY - selectedY));
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxIndex = i;
+                }
+            }
+            outX[out] = x[maxIndex];
+            outY[out] = y[maxIndex];
+            out++;
+            selected = maxIndex;
+        }
+
+        outX[out] = x[count - 1];
+        outY[out] = y[count - 1];
+        return out + 1;
+    }
+}
@@ -0,0 +1,154 @@
+package com.mapscloud.track.services.chart;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.LruCache;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.metrics.Counter;
+import com.mapscloud.track.services.metrics.MetricsRegistry;
+import com.mapscloud.track.services.model.MyTracksLocation;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+
+/**
+ * Builds track profiles offline, replacing the network based
+ * {@link com.mapscloud.track.services.content.ChartURLGenerator}.
+ * <p>
+ * A track is read once into a {@link ProfileSeries}, then each profile is
+ * downsampled with {@link Lttb} to the requested pixel width. Both the series
+ * and the profiles are cached, keyed by track and width, and are rebuilt when
+ * the track changes (new points, a new stop id or a longer dwell of the last
+ * point). Thread safe, but building
+ * a series reads the whole track, do not call from the UI thread for long
+ * tracks not yet cached.
+ */
+public class ProfileEngine {
+
+    private static final int DEFAULT_PROFILE_CACHE_BYTES = 1024 * 1024;
+
+    // Series are large and only needed to build profiles
+    private static final int SERIES_CACHE_BYTES = 8 * 1024 * 1024;
+
+    private static final Counter PROFILE_HITS = MetricsRegistry.get().counter("cache.profile.hit");
+    private static final Counter PROFILE_MISSES = MetricsRegistry.get().counter("cache.profile.miss");
+    private static final Counter SERIES_HITS = MetricsRegistry.get().counter("cache.series.hit");
+    private static final Counter SERIES_MISSES = MetricsRegistry.get().counter("cache.series.miss");
+
+    private final MyTracksProviderUtils myTracksProviderUtils;
+    private final LruCache<String, TrackProfile> profileCache;
+    private final LruCache<Long, ProfileSeries> seriesCache;
+
+    public ProfileEngine(Context context) {
+        this(MyTracksProviderUtils.Factory.get(context), DEFAULT_PROFILE_CACHE_BYTES);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param myTracksProviderUtils the provider utils
+     * @param profileCacheBytes     the maximum size of the cached profiles
+     */
+    public ProfileEngine(MyTracksProviderUtils myTracksProviderUtils, int profileCacheBytes) {
+        this.myTracksProviderUtils = myTracksProviderUtils;
+        profileCache = new LruCache<String, TrackProfile>(profileCacheBytes) {
+            @Override
+            protected int sizeOf(String key, TrackProfile value) {
+                return value.getSizeInBytes();
+            }
+        };
+        seriesCache = new LruCache<Long, ProfileSeries>(SERIES_CACHE_BYTES) {
+            @Override
+            protected int sizeOf(Long key, ProfileSeries value) {
+                return value.getSizeInBytes();
+            }
+        };
+    }
+
+    /**
+     * Gets the profile of a track. Returns null if the track doesn't exist.
+     *
+     * @param trackId the track id
+     * @param type    the profile type
+     * @param width   the number of points, usually the chart width in pixels
+     */
+    public TrackProfile getProfile(long trackId, ProfileType type, int width) {
+        if (width < 3) {
+            throw new IllegalArgumentException("Width must be at least 3: " + width);
+        }
+        Track track = myTracksProviderUtils.getTrack(trackId);
+        if (track == null) {
+            return null;
+        }
+        long version = getVersion(track, myTracksProviderUtils.getLastValidTrackPoint(trackId));
+        String key = trackId + ":" + type.ordinal() + ":" + width + ":" + version;
+        TrackProfile profile = profileCache.get(key);
+        if (profile != null) {
+            PROFILE_HITS.increment();
+            return profile;
+        }
+        PROFILE_MISSES.increment();
+
+        ProfileSeries series = seriesCache.get(trackId);
+        if (series == null || series.version != version) {
+            SERIES_MISSES.increment();
+            series = ProfileSeries.build(myTracksProviderUtils, trackId, version);
+            seriesCache.put(trackId, series);
+        } else {
+            SERIES_HITS.increment();
+        }
+        profile = downsample(series, type, width);
+        profileCache.put(key, profile);
+        return profile;
+    }
+
+    /**
+     * Drops the cached profiles of all tracks.
+     */
+    public void clear() {
+        profileCache.evictAll();
+        seriesCache.evictAll();
+    }
+
+    /**
+     * Drops the cached series of a track. Cached profiles of older versions
+     * are never hit again and age out of the cache.
+     *
+     * @param trackId the track id
+     */
+    public void invalidate(long trackId) {
+        seriesCache.remove(trackId);
+    }
+
+    private static long getVersion(Track track, Location lastValidTrackPoint) {
+        // A recording track grows its stop id, an edited one its number of points
+        long version = track.stopId * 31 + track.numberOfPoints;
+        // 静止时只延长最后一个有效点的停留，轨迹id和点数不变
+        if (lastValidTrackPoint instanceof MyTracksLocation) {
+            MyTracksLocation location = (MyTracksLocation) lastValidTrackPoint;
+            version = version * 31 + location.getDwellEndTime();
+            version = version * 31 + location.getDwellCount();
+        }
+        return version;
+    }
+
+    private static TrackProfile downsample(ProfileSeries series, ProfileType type, int width) {
+        double[] values = series.getValues(type);
+
+        // Drop the points without a value, Lttb needs defined values
+        double[] x = new double[series.size];
+        double[] y = new double[series.size];
+        int count = 0;
+        for (int i = 0; i < series.size; i++) {
+            if (!Double.isNaN(values[i])) {
+                x[count] = series.distance[i];
+                y[count] = values[i];
+                count++;
+            }
+        }
+        int size = Math.min(count, width);
+        double[] outX = new double[size];
+        double[] outY = new double[size];
+        size = Lttb.downsample(x, y, count, width, outX, outY);
+        return new TrackProfile(type, outX, outY, size);
+    }
+}
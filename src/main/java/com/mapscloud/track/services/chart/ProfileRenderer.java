@@ -0,0 +1,117 @@
+package com.mapscloud.track.services.chart;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+
+/**
+ * Renders a {@link TrackProfile} locally, as a vector {@link Path} or a
+ * {@link Bitmap}. The x axis is the distance, the y axis spans the profile
+ * min and max values.
+ */
+public class ProfileRenderer {
+
+    private final Paint linePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint fillPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private boolean fill = true;
+
+    public ProfileRenderer() {
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(2f);
+        linePaint.setColor(Color.rgb(0x33, 0x66, 0xcc));
+        fillPaint.setStyle(Paint.Style.FILL);
+        fillPaint.setColor(Color.argb(0x40, 0x33, 0x66, 0xcc));
+    }
+
+    /**
+     * Sets the line color. The fill color is the line color, mostly transparent.
+     */
+    public ProfileRenderer setColor(int color) {
+        linePaint.setColor(color);
+        fillPaint.setColor(Color.argb(0x40, Color.red(color), Color.green(color), Color.blue(color)));
+        return this;
+    }
+
+    public ProfileRenderer setStrokeWidth(float strokeWidth) {
+        linePaint.setStrokeWidth(strokeWidth);
+        return this;
+    }
+
+    /**
+     * Sets whether to fill the area under the line.
+     */
+    public ProfileRenderer setFill(boolean fill) {
+        this.fill = fill;
+        return this;
+    }
+
+    /**
+     * Gets the profile line as a path, scaled to a width and a height in pixels.
+     *
+     * @param profile the profile
+     * @param width   the width
+     * @param height  the height
+     */
+    public Path getPath(TrackProfile profile, float width, float height) {
+        Path path = new Path();
+        int size = profile.size();
+        if (size == 0) {
+            return path;
+        }
+        double maxDistance = profile.getMaxDistance();
+        double minValue = profile.getMinValue();
+        double range = profile.getMaxValue() - minValue;
+        double xScale = maxDistance > 0 ? width / maxDistance : 0;
+        double yScale = range > 0 ? height / range : 0;
+        for (int i = 0; i < size; i++) {
+            float x = (float) (profile.getDistance(i) * xScale);
+            // 值为常数时画在中间
+            float y = range > 0 ? (float) (height - (profile.getValue(i) - minValue) * yScale) : height / 2f;
+            if (i == 0) {
+                path.moveTo(x, y);
+            } else {
+                path.lineTo(x, y);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Draws a profile on a canvas.
+     *
+     * @param canvas  the canvas
+     * @param profile the profile
+     * @param width   the width
+     * @param height  the height
+     */
+    public void draw(Canvas canvas, TrackProfile profile, float width, float height) {
+        Path path = getPath(profile, width, height);
+        if (path.isEmpty()) {
+            return;
+        }
+        if (fill) {
+            Path area = new Path(path);
+            float lastX = profile.getMaxDistance() > 0 ? width : 0;
+            area.lineTo(lastX, height);
+            area.lineTo(0, height);
+            area.close();
+            canvas.drawPath(area, fillPaint);
+        }
+        canvas.drawPath(path, linePaint);
+    }
+
+    /**
+     * Renders a profile to a new bitmap.
+     *
+     * @param profile the profile
+     * @param width   the width in pixels
+     * @param height  the height in pixels
+     */
+    public Bitmap render(TrackProfile profile, int width, int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        draw(new Canvas(bitmap), profile, width, height);
+        return bitmap;
+    }
+}
@@ -0,0 +1,192 @@
+package com.mapscloud.track.services.chart;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+import com.mapscloud.track.services.model.MyTracksLocation;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils.LocationFactory;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils.LocationIterator;
+import com.mapscloud.track.services.tracks.DoubleBuffer;
+import com.mapscloud.track.services.tracks.Sensor;
+import com.mapscloud.track.services.tracks.SensorFrame;
+import com.mapscloud.track.services.utils.Constant;
+import com.mapscloud.track.services.utils.LocationUtils;
+
+import java.util.Arrays;
+
+/**
+ * Full resolution series of a track, built in one pass over its track points
+ * into primitive arrays. Values that are not available for a point, like the
+ * heart rate without a connected sensor, are NaN.
+ */
+class ProfileSeries {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /*
+     * With the error in the altitude measurement it is dangerous to divide by
+     * anything less than 5, same as TripStatisticsUpdater.
+     */
+    private static final double MIN_GRADE_DISTANCE = 5.0;
+
+    final long version;
+    int size;
+    double[] distance = new double[INITIAL_CAPACITY];
+    double[] elevation = new double[INITIAL_CAPACITY];
+    double[] speed = new double[INITIAL_CAPACITY];
+    double[] grade = new double[INITIAL_CAPACITY];
+    double[] heartRate = new double[INITIAL_CAPACITY];
+    double[] cadence = new double[INITIAL_CAPACITY];
+    double[] power = new double[INITIAL_CAPACITY];
+
+    private ProfileSeries(long version) {
+        this.version = version;
+    }
+
+    /**
+     * Reads the series of a track.
+     *
+     * @param myTracksProviderUtils the provider utils
+     * @param trackId               the track id
+     * @param version               the track version the series is built from
+     */
+    static ProfileSeries build(MyTracksProviderUtils myTracksProviderUtils, long trackId, long version) {
+        ProfileSeries series = new ProfileSeries(version);
+        final MyTracksLocation reused = new MyTracksLocation(LocationManager.GPS_PROVIDER);
+        LocationIterator iterator = myTracksProviderUtils.getTrackPointLocationIterator(trackId, -1L, false,
+                new LocationFactory() {
+                    @Override
+                    public Location createLocation() {
+                        return reused;
+                    }
+                });
+
+        DoubleBuffer elevationBuffer = new DoubleBuffer(Constant.ELEVATION_SMOOTHING_FACTOR);
+        DoubleBuffer gradeBuffer = new DoubleBuffer(Constant.GRADE_SMOOTHING_FACTOR);
+        Location last = new Location(LocationManager.GPS_PROVIDER);
+        boolean hasLast = false;
+        double totalDistance = 0;
+        double lastElevation = 0;
+        double gradeDistance = 0;
+        double grade = Double.NaN;
+        try {
+            while (iterator.hasNext()) {
+                Location location = iterator.next();
+                if (!LocationUtils.isValidLocation(location)) {
+                    // Pause/resume separator, no distance across the gap
+                    hasLast = false;
+                    continue;
+                }
+                double speed = location.hasSpeed() ? location.getSpeed() : Double.NaN;
+                if (hasLast) {
+                    double moved = last.distanceTo(location);
+                    totalDistance += moved;
+                    gradeDistance += moved;
+                    if (!location.hasSpeed()) {
+                        long dt = location.getTime() - last.getTime();
+                        speed = dt > 0 ? moved * 1000.0 / dt : Double.NaN;
+                    }
+                } else {
+                    elevationBuffer.reset();
+                    gradeBuffer.reset();
+                    gradeDistance = 0;
+                    grade = Double.NaN;
+                }
+
+                double elevation = Double.NaN;
+                if (location.hasAltitude()) {
+                    elevationBuffer.setNext(location.getAltitude());
+                    elevation = elevationBuffer.getAverage();
+                    if (!elevationBuffer.isFull()) {
+                        lastElevation = elevation;
+                    } else if (gradeDistance >= MIN_GRADE_DISTANCE) {
+                        gradeBuffer.setNext((elevation - lastElevation) / gradeDistance);
+                        grade = gradeBuffer.getAverage();
+                        lastElevation = elevation;
+                        gradeDistance = 0;
+                    }
+                }
+
+                double heartRate = Double.NaN;
+                double cadence = Double.NaN;
+                double power = Double.NaN;
+                SensorFrame sensorFrame = reused.getSensorFrame();
+                if (sensorFrame != null) {
+                    heartRate = getValue(sensorFrame, SensorFrame.HEART_RATE);
+                    cadence = getValue(sensorFrame, SensorFrame.CADENCE);
+                    power = getValue(sensorFrame, SensorFrame.POWER);
+                }
+
+                series.add(totalDistance, elevation, speed, grade, heartRate, cadence, power);
+                last.set(location);
+                if (reused.hasDwell()) {
+                    // 停留到结束时间才离开，下一个点的速度从那时算起
+                    last.setTime(reused.getDwellEndTime());
+                }
+                hasLast = true;
+            }
+        } finally {
+            iterator.close();
+        }
+        return series;
+    }
+
+    private static double getValue(SensorFrame sensorFrame, int sensor) {
+        if (sensorFrame.getState(sensor) == Sensor.SensorState.SENDING && sensorFrame.hasValue(sensor)) {
+            return sensorFrame.getValue(sensor);
+        }
+        return Double.NaN;
+    }
+
+    private void add(double distanceValue, double elevationValue, double speedValue, double gradeValue,
+                     double heartRateValue, double cadenceValue, double powerValue) {
+        if (size == distance.length) {
+            int capacity = size * 2;
+            distance = Arrays.copyOf(distance, capacity);
+            elevation = Arrays.copyOf(elevation, capacity);
+            speed = Arrays.copyOf(speed, capacity);
+            grade = Arrays.copyOf(grade, capacity);
+            heartRate = Arrays.copyOf(heartRate, capacity);
+            cadence = Arrays.copyOf(cadence, capacity);
+            power = Arrays.copyOf(power, capacity);
+        }
+        distance[size] = distanceValue;
+        elevation[size] = elevationValue;
+        speed[size] = speedValue;
+        grade[size] = gradeValue;
+        heartRate[size] = heartRateValue;
+        cadence[size] = cadenceValue;
+        power[size] = powerValue;
+        size++;
+    }
+
+    /**
+     * Gets the values of a profile type.
+     */
+    double[] getValues(ProfileType type) {
+        switch (type) {
+            case ELEVATION:
+                return elevation;
+            case SPEED:
+                return speed;
+            case GRADE:
+                return grade;
+            case HEART_RATE:
+                return heartRate;
+            case CADENCE:
+                return cadence;
+            case POWER:
+                return power;
+            default:
+                throw new IllegalArgumentException("Unknown profile type " + type);
+        }
+    }
+
+    /**
+     * Approximate heap size, for the series cache.
+     */
+    int getSizeInBytes() {
+        return 64 + 7 * 8 * distance.length;
+    }
+}
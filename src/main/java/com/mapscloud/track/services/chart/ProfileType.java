@@ -0,0 +1,38 @@
+package com.mapscloud.track.services.chart;
+
+/**
+ * The profiles {@link ProfileEngine} can produce. All profiles are plotted
+ * against the distance from the track start, in meters.
+ */
+public enum ProfileType {
+
+    /**
+     * Smoothed elevation in meters.
+     */
+    ELEVATION,
+
+    /**
+     * Speed in meters per second.
+     */
+    SPEED,
+
+    /**
+     * Smoothed grade, as a ratio (0.1 is 10%).
+     */
+    GRADE,
+
+    /**
+     * Heart rate in beats per minute.
+     */
+    HEART_RATE,
+
+    /**
+     * Cadence in revolutions per minute.
+     */
+    CADENCE,
+
+    /**
+     * Power in watts.
+     */
+    POWER
+}
@@ -0,0 +1,107 @@
+package com.mapscloud.track.services.chart;
+
+/**
+ * A downsampled profile of a track: y values against the distance from the
+ * track start. Immutable once built.
+ */
+public class TrackProfile {
+
+    private final ProfileType type;
+    private final double[] distances;
+    private final double[] values;
+    private final int size;
+    private final double minValue;
+    private final double maxValue;
+
+    TrackProfile(ProfileType type, double[] distances, double[] values, int size) {
+        this.type = type;
+        this.distances = distances;
+        this.values = values;
+        this.size = size;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        minValue = size == 0 ? 0 : min;
+        maxValue = size == 0 ? 0 : max;
+    }
+
+    /**
+     * Creates a profile from values against distances, not from a stored
+     * track, downsampled to a width. The points without a value are dropped.
+     *
+     * @param type      the type
+     * @param distances the distances, ascending
+     * @param values    the values, NaN for no value
+     * @param width     the width in pixels, the number of points kept
+     */
+    public static TrackProfile create(ProfileType type, double[] distances, double[] values, int width) {
+        if (distances.length != values.length) {
+            throw new IllegalArgumentException("distances and values differ in length");
+        }
+        double[] x = new double[distances.length];
+        double[] y = new double[distances.length];
+        int count = 0;
+        for (int i = 0; i < distances.length; i++) {
+            if (!Double.isNaN(values[i])) {
+                x[count] = distances[i];
+                y[count] = values[i];
+                count++;
+            }
+        }
+        int size = Math.min(count, width);
+        double[] outX = new double[size];
+        double[] outY = new double[size];
+        size = Lttb.downsample(x, y, count, width, outX, outY);
+        return new TrackProfile(type, outX, outY, size);
+    }
+
+    public ProfileType getType() {
+        return type;
+    }
+
+    /**
+     * Gets the number of points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the distance of a point from the track start, in meters.
+     */
+    public double getDistance(int index) {
+        return distances[index];
+    }
+
+    /**
+     * Gets the value of a point, in the unit of the {@link ProfileType}.
+     */
+    public double getValue(int index) {
+        return values[index];
+    }
+
+    public double getMinValue() {
+        return minValue;
+    }
+
+    public double getMaxValue() {
+        return maxValue;
+    }
+
+    /**
+     * Gets the distance of the last point, in meters.
+     */
+    public double getMaxDistance() {
+        return size == 0 ? 0 : distances[size - 1];
+    }
+
+    /**
+     * Approximate heap size, for the profile cache.
+     */
+    int getSizeInBytes() {
+        return 64 + 16 * distances.length;
+    }
+}
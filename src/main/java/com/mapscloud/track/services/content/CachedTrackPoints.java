@@ -0,0 +1,290 @@
+package com.mapscloud.track.services.content;
+
+import android.database.Cursor;
+import android.location.Location;
+import android.util.Log;
+
+import com.mapscloud.track.services.model.MyTracksLocation;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils.LocationFactory;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils.LocationIterator;
+
+import java.util.NoSuchElementException;
+
+/**
+ * The decoded track points of a track, held by {@link TrackCache}. The
+ * columns of {@link TrackPointsColumns} in parallel arrays, by ascending id,
+ * about 60 bytes a point. Immutable.
+ */
+public class CachedTrackPoints {
+
+    private static final String TAG = CachedTrackPoints.class.getSimpleName();
+
+    // Bits of the non null columns
+    private static final int HAS_LONGITUDE = 1;
+    private static final int HAS_LATITUDE = 1 << 1;
+    private static final int HAS_TIME = 1 << 2;
+    private static final int HAS_ALTITUDE = 1 << 3;
+    private static final int HAS_ACCURACY = 1 << 4;
+    private static final int HAS_SPEED = 1 << 5;
+    private static final int HAS_BEARING = 1 << 6;
+
+    // Array headers and the object
+    private static final int OVERHEAD_BYTES = 16 * 12;
+
+    private final int size;
+    private final long[] ids;
+    private final long[] times;
+    private final long[] dwellEndTimes;
+    private final int[] latitudes;
+    private final int[] longitudes;
+    private final float[] altitudes;
+    private final float[] accuracies;
+    private final float[] speeds;
+    private final float[] bearings;
+    private final int[] dwellCounts;
+    private final byte[] flags;
+    private final byte[][] sensors;
+    private final int byteCount;
+
+    /**
+     * Reads all the track points of a cursor.
+     *
+     * @param cursor the track points cursor, by ascending id
+     */
+    CachedTrackPoints(Cursor cursor) {
+        size = cursor.getCount();
+        ids = new long[size];
+        times = new long[size];
+        dwellEndTimes = new long[size];
+        latitudes = new int[size];
+        longitudes = new int[size];
+        altitudes = new float[size];
+        accuracies = new float[size];
+        speeds = new float[size];
+        bearings = new float[size];
+        dwellCounts = new int[size];
+        flags = new byte[size];
+        sensors = new byte[size][];
+
+        int idIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns._ID);
+        int longitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.LONGITUDE);
+        int latitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.LATITUDE);
+        int timeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.TIME);
+        int altitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.ALTITUDE);
+        int accuracyIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.ACCURACY);
+        int speedIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.SPEED);
+        int bearingIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.BEARING);
+        int sensorIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.SENSOR);
+        int dwellEndTimeIndex = cursor.getColumnIndex(TrackPointsColumns.DWELL_END_TIME);
+        int dwellCountIndex = cursor.getColumnIndex(TrackPointsColumns.DWELL_COUNT);
+
+        int sensorBytes = 0;
+        int i = 0;
+        while (i < size && cursor.moveToNext()) {
+            int flag = 0;
+            ids[i] = cursor.getLong(idIndex);
+            if (!cursor.isNull(longitudeIndex)) {
+                longitudes[i] = cursor.getInt(longitudeIndex);
+                flag |= HAS_LONGITUDE;
+            }
+            if (!cursor.isNull(latitudeIndex)) {
+                latitudes[i] = cursor.getInt(latitudeIndex);
+                flag |= HAS_LATITUDE;
+            }
+            if (!cursor.isNull(timeIndex)) {
+                times[i] = cursor.getLong(timeIndex);
+                flag |= HAS_TIME;
+            }
+            if (!cursor.isNull(altitudeIndex)) {
+                altitudes[i] = cursor.getFloat(altitudeIndex);
+                flag |= HAS_ALTITUDE;
+            }
+            if (!cursor.isNull(accuracyIndex)) {
+                accuracies[i] = cursor.getFloat(accuracyIndex);
+                flag |= HAS_ACCURACY;
+            }
+            if (!cursor.isNull(speedIndex)) {
+                speeds[i] = cursor.getFloat(speedIndex);
+                flag |= HAS_SPEED;
+            }
+            if (!cursor.isNull(bearingIndex)) {
+                bearings[i] = cursor.getFloat(bearingIndex);
+                flag |= HAS_BEARING;
+            }
+            if (!cursor.isNull(sensorIndex)) {
+                sensors[i] = cursor.getBlob(sensorIndex);
+                sensorBytes += sensors[i].length + 16;
+            }
+            if (dwellEndTimeIndex != -1 && !cursor.isNull(dwellEndTimeIndex)) {
+                dwellEndTimes[i] = cursor.getLong(dwellEndTimeIndex);
+            }
+            if (dwellCountIndex != -1 && !cursor.isNull(dwellCountIndex)) {
+                dwellCounts[i] = cursor.getInt(dwellCountIndex);
+            }
+            flags[i] = (byte) flag;
+            i++;
+        }
+        if (i != size) {
+            throw new IllegalStateException("Read " + i + " of " + size + " track points");
+        }
+        // 8 * 3 + 4 * 7 + 1 + 4 (sensor reference)
+        byteCount = OVERHEAD_BYTES + size * 57 + sensorBytes;
+    }
+
+    /**
+     * Gets the number of track points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the approximate heap size, in bytes.
+     */
+    public int getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Gets the id of a track point.
+     *
+     * @param index the index
+     */
+    public long getId(int index) {
+        return ids[index];
+    }
+
+    /**
+     * Gets the last track point id, -1 if none.
+     */
+    public long getLastId() {
+        return size > 0 ? ids[size - 1] : -1L;
+    }
+
+    /**
+     * Gets the index of the first track point with an id >= trackPointId,
+     * {@link #size()} if none.
+     *
+     * @param trackPointId the track point id
+     */
+    public int indexOf(long trackPointId) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ids[middle] < trackPointId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Fills a location with a track point, like
+     * {@link com.mapscloud.track.services.provider.MyTracksProviderUtils#createTrackPoint(Cursor)}.
+     *
+     * @param index    the index
+     * @param location the location
+     */
+    public void fill(int index, Location location) {
+        location.reset();
+        int flag = flags[index];
+        if ((flag & HAS_LONGITUDE) != 0) {
+            location.setLongitude(((double) longitudes[index]) / 1E6);
+        }
+        if ((flag & HAS_LATITUDE) != 0) {
+            location.setLatitude(((double) latitudes[index]) / 1E6);
+        }
+        if ((flag & HAS_TIME) != 0) {
+            location.setTime(times[index]);
+        }
+        if ((flag & HAS_ALTITUDE) != 0) {
+            location.setAltitude(altitudes[index]);
+        }
+        if ((flag & HAS_ACCURACY) != 0) {
+            location.setAccuracy(accuracies[index]);
+        }
+        if ((flag & HAS_SPEED) != 0) {
+            location.setSpeed(speeds[index]);
+        }
+        if ((flag & HAS_BEARING) != 0) {
+            location.setBearing(bearings[index]);
+        }
+        if (location instanceof MyTracksLocation) {
+            MyTracksLocation myTracksLocation = (MyTracksLocation) location;
+            byte[] sensorData = sensors[index];
+            if (sensorData != null && !myTracksLocation.readSensorData(sensorData, 0, sensorData.length)) {
+                Log.w(TAG, "Failed to parse sensor data.");
+            }
+            myTracksLocation.setDwell(dwellEndTimes[index], dwellCounts[index]);
+        }
+    }
+
+    /**
+     * Gets an iterator over the track points, ascending, like
+     * {@link com.mapscloud.track.services.provider.MyTracksProviderUtils#getTrackPointLocationIterator(long, long, boolean, LocationFactory)}:
+     * a dwell is returned as its start then its end.
+     *
+     * @param startTrackPointId the starting track point id, -1 for the first
+     * @param locationFactory   the location factory
+     */
+    public LocationIterator iterator(long startTrackPointId, final LocationFactory locationFactory) {
+        if (locationFactory == null) {
+            throw new IllegalArgumentException("locationFactory is null");
+        }
+        final int start = startTrackPointId < 0 ? 0 : indexOf(startTrackPointId);
+        return new LocationIterator() {
+            private int index = start;
+            private long locationId = -1L;
+            // The end of a dwell, still to return
+            private boolean dwellPending = false;
+
+            @Override
+            public long getLocationId() {
+                return locationId;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return dwellPending || index < size;
+            }
+
+            @Override
+            public Location next() {
+                Location location;
+                if (dwellPending) {
+                    dwellPending = false;
+                    location = locationFactory.createLocation();
+                    fill(index - 1, location);
+                    location.setTime(dwellEndTimes[index - 1]);
+                    if (location instanceof MyTracksLocation) {
+                        ((MyTracksLocation) location).setDwell(0L, 0);
+                    }
+                    return location;
+                }
+                if (index >= size) {
+                    throw new NoSuchElementException();
+                }
+                locationId = ids[index];
+                location = locationFactory.createLocation();
+                fill(index, location);
+                dwellPending = dwellEndTimes[index] > location.getTime();
+                index++;
+                return location;
+            }
+
+            @Override
+            public void close() {
+                index = size;
+                dwellPending = false;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
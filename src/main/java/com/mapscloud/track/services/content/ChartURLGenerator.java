@@ -29,7 +29,11 @@ import java.util.Vector;
  * This class will generate google chart server url's.
  * 
  * @author Sandor Dornbush
+ * @deprecated depends on the network and a retired service, use
+ *             {@link com.mapscloud.track.services.chart.ProfileEngine} and
+ *             {@link com.mapscloud.track.services.chart.ProfileRenderer}
  */
+@Deprecated
 public class ChartURLGenerator {
 
     private static final String CHARTS_BASE_URL = "http://chart.apis.google.com/chart?";
@@ -26,20 +26,32 @@ import java.util.Vector;
 public interface DescriptionGenerator {
 
     /**
-     * Generates a track description.
+     * Generates a track description. The elevation chart is not part of it,
+     * see {@link #generateElevationChart(Vector, Vector)}.
      * 
      * @param track
      *            the track
      * @param distances
-     *            a vector of distances to generate the elevation chart
+     *            a vector of distances, unused
      * @param elevations
-     *            a vector of elevations to generate the elevation chart
+     *            a vector of elevations, unused
      * @param html
      *            true to output html, false to output plain text
      */
     String generateTrackDescription(Track track, Vector<Double> distances, Vector<Double> elevations,
                                     boolean html);
 
+    /**
+     * Generates the elevation chart of a track, rendered locally, as a PNG
+     * data URI. Returns null if there is nothing to draw.
+     * 
+     * @param distances
+     *            a vector of distances
+     * @param elevations
+     *            a vector of elevations
+     */
+    String generateElevationChart(Vector<Double> distances, Vector<Double> elevations);
+
     /**
      * Generate a waypoint description from a trip statistics.
      * 
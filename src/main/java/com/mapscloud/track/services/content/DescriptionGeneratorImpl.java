@@ -17,12 +17,18 @@
 package com.mapscloud.track.services.content;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Base64;
 import android.util.Pair;
 
 import com.mapscloud.track.R;
+import com.mapscloud.track.services.chart.ProfileRenderer;
+import com.mapscloud.track.services.chart.ProfileType;
+import com.mapscloud.track.services.chart.TrackProfile;
 import com.mapscloud.track.services.tracks.UnitConversions;
 import com.mapscloud.track.services.utils.StringUtils;
 
+import java.io.ByteArrayOutputStream;
 import java.util.Vector;
 
 /**
@@ -37,6 +43,10 @@ public class DescriptionGeneratorImpl implements DescriptionGenerator {
     private static final String TEXT_LINE_BREAK = "\n";
     private static final String TEXT_PARAGRAPH_SEPARATOR = "\n\n";
 
+    // 与原Google Chart图表一致
+    private static final int CHART_WIDTH = 600;
+    private static final int CHART_HEIGHT = 350;
+
     private Context context;
 
     public DescriptionGeneratorImpl(Context context) {
@@ -60,14 +70,30 @@ public class DescriptionGeneratorImpl implements DescriptionGenerator {
         writeString(track.category, builder, R.string.description_activity_type, lineBreak);
         writeString(track.description, builder, R.string.generic_description_line, lineBreak);
         builder.append(generateTripStatisticsDescription(track.getTripStatistics(), html));
+        return builder.toString();
+    }
 
-        // Elevation chart
-        if (html && distances != null && elevations != null) {
-            builder.append("<img border=\"0\" src=\""
-                    + ChartURLGenerator.getChartUrl(distances, elevations, track, context) + "\"/>");
-            builder.append(HTML_LINE_BREAK);
+    @Override
+    public String generateElevationChart(Vector<Double> distances, Vector<Double> elevations) {
+        if (distances == null || elevations == null) {
+            return null;
         }
-        return builder.toString();
+        int size = Math.min(distances.size(), elevations.size());
+        if (size < 2) {
+            return null;
+        }
+        double[] x = new double[size];
+        double[] y = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = distances.get(i);
+            y[i] = elevations.get(i);
+        }
+        TrackProfile profile = TrackProfile.create(ProfileType.ELEVATION, x, y, CHART_WIDTH);
+        Bitmap bitmap = new ProfileRenderer().render(profile, CHART_WIDTH, CHART_HEIGHT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bitmap.recycle();
+        return "data:image/png;base64," + Base64.encodeToString(out.toByteArray(), Base64.NO_WRAP);
     }
 
     @Override
@@ -0,0 +1,45 @@
+package com.mapscloud.track.services.content;
+
+/**
+ * The totals of the tracks started in a period, see {@link RollupsColumns}.
+ */
+public class Rollup {
+
+    // The app id, null for all the apps
+    public String appId;
+    // RollupsColumns.PERIOD_DAY, PERIOD_WEEK or PERIOD_MONTH, -1 for a summary
+    public int period = -1;
+    public long startTime = -1L;
+    public int trackCount;
+    public double totalDistance;
+    public long totalTime;
+    public long movingTime;
+    public double elevationGain;
+
+    /**
+     * Adds the totals of another rollup.
+     *
+     * @param rollup the rollup
+     */
+    public void add(Rollup rollup) {
+        trackCount += rollup.trackCount;
+        totalDistance += rollup.totalDistance;
+        totalTime += rollup.totalTime;
+        movingTime += rollup.movingTime;
+        elevationGain += rollup.elevationGain;
+    }
+
+    @Override
+    public String toString() {
+        return "Rollup{" +
+                "appId='" + appId + '\'' +
+                ", period=" + period +
+                ", startTime=" + startTime +
+                ", trackCount=" + trackCount +
+                ", totalDistance=" + totalDistance +
+                ", totalTime=" + totalTime +
+                ", movingTime=" + movingTime +
+                ", elevationGain=" + elevationGain +
+                '}';
+    }
+}
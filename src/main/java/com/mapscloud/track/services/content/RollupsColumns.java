@@ -0,0 +1,62 @@
+package com.mapscloud.track.services.content;
+
+import android.provider.BaseColumns;
+
+import static com.mapscloud.track.services.content.ContentTypeIds.FLOAT_TYPE_ID;
+import static com.mapscloud.track.services.content.ContentTypeIds.INT_TYPE_ID;
+import static com.mapscloud.track.services.content.ContentTypeIds.LONG_TYPE_ID;
+import static com.mapscloud.track.services.content.ContentTypeIds.STRING_TYPE_ID;
+
+/**
+ * Constants for the rollups table.
+ * <p>
+ * A rollup holds the totals of the tracks of an app started in a day, a week
+ * or a month, local time, built again when the time zone changes. Maintained
+ * by the provider from the tracks table when a track ends, is edited or is
+ * deleted, read only for the clients.
+ */
+public interface RollupsColumns extends BaseColumns {
+
+    String TABLE_NAME         = "rollups";
+    String CONTENT_TYPE       = "vnd.android.cursor.dir/vnd.google.rollup";
+    String DEFAULT_SORT_ORDER = "periodstart";
+
+    // Periods
+    int PERIOD_DAY   = 0;
+    int PERIOD_WEEK  = 1;
+    int PERIOD_MONTH = 2;
+
+    // Columns
+    String APPID         = "appid"; // app id, empty for the tracks without
+    String PERIOD        = "period"; // PERIOD_DAY, PERIOD_WEEK or PERIOD_MONTH
+    String PERIODSTART   = "periodstart"; // start time of the period
+    String TRACKCOUNT    = "trackcount"; // number of tracks
+    String TOTALDISTANCE = "totaldistance"; // total distance
+    String TOTALTIME     = "totaltime"; // total time
+    String MOVINGTIME    = "movingtime"; // moving time
+    String ELEVATIONGAIN = "elevationgain"; // elevation gain
+
+    String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" + _ID
+            + " INTEGER PRIMARY KEY AUTOINCREMENT, " + APPID + " STRING, " + PERIOD + " INTEGER, " + PERIODSTART
+            + " INTEGER, " + TRACKCOUNT + " INTEGER, " + TOTALDISTANCE + " FLOAT, " + TOTALTIME + " INTEGER, "
+            + MOVINGTIME + " INTEGER, " + ELEVATIONGAIN + " FLOAT, UNIQUE (" + APPID + ", " + PERIOD + ", "
+            + PERIODSTART + "));";
+
+    // 按周期、时间范围查询
+    String CREATE_PERIOD_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_period_index ON " + TABLE_NAME
+            + " (" + PERIOD + ", " + PERIODSTART + ");";
+
+    String[] COLUMNS = {_ID, APPID, PERIOD, PERIODSTART, TRACKCOUNT, TOTALDISTANCE, TOTALTIME, MOVINGTIME,
+            ELEVATIONGAIN};
+
+    byte[] COLUMN_TYPES = {LONG_TYPE_ID, // id
+            STRING_TYPE_ID, // app id
+            INT_TYPE_ID, // period
+            LONG_TYPE_ID, // period start
+            INT_TYPE_ID, // track count
+            FLOAT_TYPE_ID, // total distance
+            LONG_TYPE_ID, // total time
+            LONG_TYPE_ID, // moving time
+            FLOAT_TYPE_ID // elevation gain
+    };
+}
@@ -0,0 +1,50 @@
+package com.mapscloud.track.services.content;
+
+import android.provider.BaseColumns;
+
+import static com.mapscloud.track.services.content.ContentTypeIds.BLOB_TYPE_ID;
+import static com.mapscloud.track.services.content.ContentTypeIds.INT_TYPE_ID;
+import static com.mapscloud.track.services.content.ContentTypeIds.LONG_TYPE_ID;
+
+/**
+ * Constants for the sensor blocks table.
+ * <p>
+ * A block holds the samples of one sensor type of a track over a time range,
+ * at the native rate of the sensor, delta encoded by {@link SensorSeries}.
+ * Sensor data is recorded here instead of in the {@link TrackPointsColumns#SENSOR}
+ * column of each track point.
+ */
+public interface SensorBlocksColumns extends BaseColumns {
+
+    String TABLE_NAME         = "sensorblocks";
+    String CONTENT_TYPE       = "vnd.android.cursor.dir/vnd.google.sensorblock";
+    String CONTENT_ITEMTYPE   = "vnd.android.cursor.item/vnd.google.sensorblock";
+    String DEFAULT_SORT_ORDER = "starttime";
+
+    // Columns
+    String TRACKID   = "trackid"; // track id
+    String TYPE      = "type"; // sensor type, see SensorSeries
+    String STARTTIME = "starttime"; // time of the first sample
+    String ENDTIME   = "endtime"; // time of the last sample
+    String COUNT     = "count"; // number of samples
+    String DATA      = "data"; // encoded samples
+
+    String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" + _ID
+            + " INTEGER PRIMARY KEY AUTOINCREMENT, " + TRACKID + " INTEGER, " + TYPE + " INTEGER, " + STARTTIME
+            + " INTEGER, " + ENDTIME + " INTEGER, " + COUNT + " INTEGER, " + DATA + " BLOB" + ");";
+
+    // 按轨迹、类型、时间范围查询
+    String CREATE_TIME_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_time_index ON " + TABLE_NAME
+            + " (" + TRACKID + ", " + TYPE + ", " + STARTTIME + ");";
+
+    String[] COLUMNS = {_ID, TRACKID, TYPE, STARTTIME, ENDTIME, COUNT, DATA};
+
+    byte[] COLUMN_TYPES = {LONG_TYPE_ID, // id
+            LONG_TYPE_ID, // track id
+            INT_TYPE_ID, // type
+            LONG_TYPE_ID, // start time
+            LONG_TYPE_ID, // end time
+            INT_TYPE_ID, // count
+            BLOB_TYPE_ID // data
+    };
+}
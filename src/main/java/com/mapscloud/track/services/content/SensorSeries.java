@@ -0,0 +1,219 @@
+package com.mapscloud.track.services.content;
+
+import java.util.Arrays;
+
+/**
+ * The samples of one sensor type over time, like the heart rate, at the
+ * native rate of the sensor.
+ * <p>
+ * Encoded for {@link SensorBlocksColumns#DATA} as a varint count, then the
+ * time and value of the first sample, then the time and value deltas of each
+ * following sample as zigzag varints. A 4 Hz heart rate costs about 2 bytes
+ * per sample. Not thread safe.
+ */
+public class SensorSeries {
+
+    public static final int HEART_RATE = 1;
+    public static final int CADENCE = 2;
+    public static final int POWER = 3;
+    public static final int BATTERY = 4;
+
+    /**
+     * Returned by {@link #getValueAt(long, long)} when there is no sample.
+     */
+    public static final int NO_VALUE = Integer.MIN_VALUE;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] times;
+    private int[] values;
+    private int size;
+
+    public SensorSeries() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public SensorSeries(int capacity) {
+        times = new long[Math.max(capacity, 1)];
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    /**
+     * Adds a sample.
+     *
+     * @param time  the time, not before the last sample
+     * @param value the value
+     */
+    public void add(long time, int value) {
+        if (size > 0 && time < times[size - 1]) {
+            throw new IllegalArgumentException("Sample time " + time + " before " + times[size - 1]);
+        }
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        times[size] = time;
+        values[size] = value;
+        size++;
+    }
+
+    /**
+     * Adds the samples of another series in a time range.
+     *
+     * @param series    the series
+     * @param startTime the start time, inclusive
+     * @param endTime   the end time, inclusive
+     */
+    public void addAll(SensorSeries series, long startTime, long endTime) {
+        for (int i = 0; i < series.size; i++) {
+            if (series.times[i] >= startTime && series.times[i] <= endTime) {
+                add(series.times[i], series.values[i]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long getTime(int index) {
+        checkIndex(index);
+        return times[index];
+    }
+
+    public int getValue(int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    /**
+     * Gets the time of the first sample, -1 if empty.
+     */
+    public long getStartTime() {
+        return size > 0 ? times[0] : -1L;
+    }
+
+    /**
+     * Gets the time of the last sample, -1 if empty.
+     */
+    public long getEndTime() {
+        return size > 0 ? times[size - 1] : -1L;
+    }
+
+    /**
+     * Gets the index of the last sample at or before a time, -1 if none.
+     *
+     * @param time the time
+     */
+    public int indexAtOrBefore(long time) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] <= time) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Gets the value of the sensor at a time, like the time of a track point.
+     *
+     * @param time   the time
+     * @param maxAge the maximum age of the sample in milliseconds
+     * @return the value of the last sample at or before the time, or
+     * {@link #NO_VALUE} if none is recent enough
+     */
+    public int getValueAt(long time, long maxAge) {
+        int index = indexAtOrBefore(time);
+        if (index < 0 || time - times[index] > maxAge) {
+            return NO_VALUE;
+        }
+        return values[index];
+    }
+
+    /**
+     * Encodes the samples.
+     */
+    public byte[] encode() {
+        // 每个样本最多两个 varint，时间最多 10 字节，数值最多 5 字节
+        byte[] buffer = new byte[5 + size * 15];
+        int position = writeVarint(buffer, 0, size);
+        long lastTime = 0L;
+        int lastValue = 0;
+        for (int i = 0; i < size; i++) {
+            position = writeVarint(buffer, position, zigzag(times[i] - lastTime));
+            position = writeVarint(buffer, position, zigzag((long) values[i] - lastValue));
+            lastTime = times[i];
+            lastValue = values[i];
+        }
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * Decodes samples encoded by {@link #encode()}.
+     *
+     * @param data the encoded samples
+     */
+    public static SensorSeries decode(byte[] data) {
+        int[] position = new int[1];
+        long count = readVarint(data, position);
+        if (count < 0 || count > data.length) {
+            throw new IllegalArgumentException("Invalid sample count: " + count);
+        }
+        SensorSeries series = new SensorSeries((int) count);
+        long time = 0L;
+        long value = 0L;
+        for (int i = 0; i < count; i++) {
+            time += unzigzag(readVarint(data, position));
+            value += unzigzag(readVarint(data, position));
+            series.add(time, (int) value);
+        }
+        return series;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static long readVarint(byte[] data, int[] position) {
+        long value = 0L;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= data.length) {
+                throw new IllegalArgumentException("Truncated sensor series");
+            }
+            byte b = data[position[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
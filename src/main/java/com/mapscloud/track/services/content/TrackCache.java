@@ -0,0 +1,290 @@
+package com.mapscloud.track.services.content;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.mapscloud.track.services.provider.MyTracksProvider;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A process wide cache of the decoded tracks and their track points, so
+ * switching back to a recently viewed track doesn't query the database.
+ * <p>
+ * Bounded by bytes, 1/16 of the heap, least recently used first out. A
+ * track is kept as its row, {@link #getTrack(long)} returns a new
+ * {@link Track} each time, the track points as {@link CachedTrackPoints}.
+ * <p>
+ * Any change of the tracks or the track points tables, as notified by the
+ * provider, makes every entry stale. A stale track is read again, one row,
+ * and its track points are kept if the start id, the stop id, the number of
+ * points and the modified time of the track didn't change, as every change
+ * of the track points updates the track. Shrinks on
+ * {@link ComponentCallbacks2#onTrimMemory(int)}. Thread safe.
+ */
+public class TrackCache implements ComponentCallbacks2 {
+
+    private static final String TAG = TrackCache.class.getSimpleName();
+
+    private static TrackCache instance;
+
+    private final MyTracksProviderUtils myTracksProviderUtils;
+    private final int maxBytes;
+    private final LruCache<Long, Entry> entries;
+
+    // Incremented on every change of the tables
+    private final AtomicInteger generation = new AtomicInteger();
+
+    /**
+     * Gets the cache of the process.
+     *
+     * @param context the context
+     */
+    public static synchronized TrackCache get(Context context) {
+        if (instance == null) {
+            Context applicationContext = context.getApplicationContext();
+            instance = new TrackCache(MyTracksProviderUtils.Factory.get(applicationContext),
+                    (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE));
+            applicationContext.getContentResolver().registerContentObserver(
+                    MyTracksProvider.TRACKS_CONTENT_URI, true, instance.observer);
+            applicationContext.getContentResolver().registerContentObserver(
+                    MyTracksProvider.TRACKPOINTS_CONTENT_URI, true, instance.observer);
+            applicationContext.registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    private final ContentObserver observer = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            invalidate();
+        }
+    };
+
+    TrackCache(MyTracksProviderUtils myTracksProviderUtils, int maxBytes) {
+        this.myTracksProviderUtils = myTracksProviderUtils;
+        this.maxBytes = maxBytes;
+        entries = new LruCache<Long, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, Entry entry) {
+                return entry.byteCount;
+            }
+        };
+    }
+
+    /**
+     * Gets a track, like {@link MyTracksProviderUtils#getTrack(long)}.
+     *
+     * @param trackId the track id
+     * @return a new track, null if not found
+     */
+    public Track getTrack(long trackId) {
+        Entry entry = getEntry(trackId);
+        return entry != null ? entry.createTrack(myTracksProviderUtils) : null;
+    }
+
+    /**
+     * Gets all the track points of a track. Blocking, not to be called on the
+     * main thread. The points of the recording track change at every fix, so
+     * are better read from the provider.
+     *
+     * @param trackId the track id
+     * @return the track points, null if the track is not found
+     */
+    public CachedTrackPoints getTrackPoints(long trackId) {
+        Entry entry = getEntry(trackId);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.trackPoints != null) {
+            return entry.trackPoints;
+        }
+        CachedTrackPoints trackPoints;
+        Cursor cursor = myTracksProviderUtils.getTrackPointCursor(trackId, -1L, -1, false);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            trackPoints = new CachedTrackPoints(cursor);
+        } finally {
+            cursor.close();
+        }
+        put(trackId, new Entry(entry, trackPoints));
+        return trackPoints;
+    }
+
+    /**
+     * Makes every entry stale. Called on the changes notified by the
+     * provider, callers notified of a change before the cache call it too.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Removes a track.
+     *
+     * @param trackId the track id
+     */
+    public void remove(long trackId) {
+        entries.remove(trackId);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            entries.evictAll();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            entries.trimToSize(maxBytes / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        entries.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /*
+     * Gets the entry of a track, read again if stale.
+     */
+    private Entry getEntry(long trackId) {
+        if (trackId < 0) {
+            return null;
+        }
+        int currentGeneration = generation.get();
+        Entry entry = entries.get(trackId);
+        if (entry != null && entry.generation == currentGeneration) {
+            return entry;
+        }
+        Entry newEntry = readTrack(trackId, currentGeneration);
+        if (newEntry == null) {
+            entries.remove(trackId);
+            return null;
+        }
+        if (entry != null && entry.trackPoints != null && newEntry.isSameTrackPoints(entry)) {
+            newEntry = new Entry(newEntry, entry.trackPoints);
+        }
+        put(trackId, newEntry);
+        return newEntry;
+    }
+
+    private Entry readTrack(long trackId, int readGeneration) {
+        Cursor cursor = myTracksProviderUtils.getTrackCursor(TracksColumns._ID + "=?",
+                new String[]{Long.toString(trackId)}, TracksColumns._ID);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? new Entry(cursor, readGeneration) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void put(long trackId, Entry entry) {
+        // 期间有变化时不缓存，下次再读
+        if (entry.generation == generation.get()) {
+            entries.put(trackId, entry);
+        } else {
+            Log.d(TAG, "Not caching stale track " + trackId);
+        }
+    }
+
+    /**
+     * A track row and its track points, if read.
+     */
+    private static class Entry {
+
+        final String[] columnNames;
+        final Object[] row;
+        final long startId;
+        final long stopId;
+        final int numberOfPoints;
+        final long modifiedTime;
+        final int generation;
+        final CachedTrackPoints trackPoints;
+        final int byteCount;
+
+        Entry(Cursor cursor, int generation) {
+            columnNames = cursor.getColumnNames();
+            row = new Object[columnNames.length];
+            int rowBytes = 16 + 4 * row.length;
+            for (int i = 0; i < row.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        rowBytes += 16;
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        rowBytes += 16;
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        String string = cursor.getString(i);
+                        row[i] = string;
+                        rowBytes += 40 + 2 * string.length();
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        byte[] blob = cursor.getBlob(i);
+                        row[i] = blob;
+                        rowBytes += 16 + blob.length;
+                        break;
+                    default:
+                        row[i] = null;
+                        break;
+                }
+            }
+            startId = getLong(cursor, TracksColumns.STARTID);
+            stopId = getLong(cursor, TracksColumns.STOPID);
+            numberOfPoints = (int) getLong(cursor, TracksColumns.NUMPOINTS);
+            modifiedTime = getLong(cursor, TracksColumns.MODIFIEDTIME);
+            this.generation = generation;
+            trackPoints = null;
+            byteCount = rowBytes;
+        }
+
+        Entry(Entry entry, CachedTrackPoints trackPoints) {
+            columnNames = entry.columnNames;
+            row = entry.row;
+            startId = entry.startId;
+            stopId = entry.stopId;
+            numberOfPoints = entry.numberOfPoints;
+            modifiedTime = entry.modifiedTime;
+            generation = entry.generation;
+            this.trackPoints = trackPoints;
+            byteCount = entry.byteCount + trackPoints.getByteCount();
+        }
+
+        boolean isSameTrackPoints(Entry entry) {
+            return startId == entry.startId && stopId == entry.stopId && numberOfPoints == entry.numberOfPoints
+                    && modifiedTime == entry.modifiedTime;
+        }
+
+        Track createTrack(MyTracksProviderUtils myTracksProviderUtils) {
+            MatrixCursor cursor = new MatrixCursor(columnNames, 1);
+            cursor.addRow(row);
+            try {
+                cursor.moveToFirst();
+                return myTracksProviderUtils.createTrack(cursor);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        private static long getLong(Cursor cursor, String column) {
+            int index = cursor.getColumnIndex(column);
+            return index != -1 && !cursor.isNull(index) ? cursor.getLong(index) : -1L;
+        }
+    }
+}
@@ -61,6 +61,7 @@ public class TrackDataHub implements DataSourceListener {
     private final Context context;
     private final TrackDataManager trackDataManager;
     private final MyTracksProviderUtils myTracksProviderUtils;
+    private final TrackCache trackCache;
     private final int targetNumPoints;
     private final String appId;
     private final String commomTrackId;
@@ -102,7 +103,7 @@ public class TrackDataHub implements DataSourceListener {
      */
     public synchronized static TrackDataHub newInstance(Context context) {
         return new TrackDataHub(context, new TrackDataManager(), MyTracksProviderUtils.Factory.get(context),
-                TARGET_DISPLAYED_TRACK_POINTS);
+                TrackCache.get(context), TARGET_DISPLAYED_TRACK_POINTS);
     }
 
     /**
@@ -114,18 +115,21 @@ public class TrackDataHub implements DataSourceListener {
      *            the track data manager
      * @param myTracksProviderUtils
      *            the my tracks provider utils
+     * @param trackCache
+     *            the track cache
      * @param targetNumPoints
      *            the target number of points
      */
 
     TrackDataHub(Context context, TrackDataManager trackDataManager, MyTracksProviderUtils myTracksProviderUtils,
-                 int targetNumPoints) {
+                 TrackCache trackCache, int targetNumPoints) {
         this.context = context;
         this.appId = context.getPackageName();
         this.commomTrackId = context.getResources().getString(R.string.recording_track_id_key);
         this.commonTrackPaused = context.getResources().getString(R.string.recording_track_paused_key);
         this.trackDataManager = trackDataManager;
         this.myTracksProviderUtils = myTracksProviderUtils;
+        this.trackCache = trackCache;
         this.targetNumPoints = targetNumPoints;
         resetSamplingState();
     }
@@ -280,6 +284,8 @@ public class TrackDataHub implements DataSourceListener {
 
     @Override
     public void notifyTracksTableUpdated() {
+        // The cache may not have been notified yet
+        trackCache.invalidate();
         runInHanderThread(new Runnable() {
             @Override
             public void run() {
@@ -300,6 +306,7 @@ public class TrackDataHub implements DataSourceListener {
 
     @Override
     public void notifyTrackPointsTableUpdated() {
+        trackCache.invalidate();
         runInHanderThread(new Runnable() {
             @Override
             public void run() {
@@ -546,7 +553,7 @@ public class TrackDataHub implements DataSourceListener {
         if (trackDataListeners.isEmpty()) {
             return;
         }
-        Track track = myTracksProviderUtils.getTrack(selectedTrackId);
+        Track track = trackCache.getTrack(selectedTrackId);
         for (TrackDataListener trackDataListener : trackDataListeners) {
             trackDataListener.onSelectedTrackChanged(track);
         }
@@ -562,7 +569,7 @@ public class TrackDataHub implements DataSourceListener {
         if (trackDataListeners.isEmpty()) {
             return;
         }
-        Track track = myTracksProviderUtils.getTrack(selectedTrackId);
+        Track track = trackCache.getTrack(selectedTrackId);
         for (TrackDataListener trackDataListener : trackDataListeners) {
             trackDataListener.onTrackUpdated(track);
         }
@@ -640,10 +647,20 @@ public class TrackDataHub implements DataSourceListener {
         long localLastSeenLocationId = updateSamplingState ? lastSeenLocationId : -1L;
         long maxPointId = updateSamplingState ? -1L : lastSeenLocationId;
 
-        long lastTrackPointId = myTracksProviderUtils.getLastTrackPointId(selectedTrackId);
+        long lastTrackPointId;
+        LocationIterator iterator;
+        // The recording track changes at every fix, read from the provider
+        CachedTrackPoints trackPoints = isSelectedTrackRecording() ? null
+                : trackCache.getTrackPoints(selectedTrackId);
+        if (trackPoints != null) {
+            lastTrackPointId = trackPoints.getLastId();
+            iterator = trackPoints.iterator(localLastSeenLocationId + 1, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY);
+        } else {
+            lastTrackPointId = myTracksProviderUtils.getLastTrackPointId(selectedTrackId);
+            iterator = myTracksProviderUtils.getTrackPointLocationIterator(selectedTrackId,
+                    localLastSeenLocationId + 1, false, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY);
+        }
         int samplingFrequency = -1;
-        LocationIterator iterator = myTracksProviderUtils.getTrackPointLocationIterator(selectedTrackId,
-                localLastSeenLocationId + 1, false, MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY);
         boolean includeNextPoint = false;
         while (iterator.hasNext()) {
             Location location = iterator.next();
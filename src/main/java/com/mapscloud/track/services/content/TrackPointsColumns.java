@@ -48,14 +48,18 @@ public interface TrackPointsColumns extends BaseColumns {
     String SPEED     = "speed"; // speed
     String BEARING   = "bearing"; // bearing
     String SENSOR    = "sensor"; // sensor
+    // 静止停留：一个点代表从time到dwell_end_time的dwell_count个定位点
+    String DWELL_END_TIME = "dwell_end_time"; // dwell end time
+    String DWELL_COUNT    = "dwell_count"; // dwell sample count
 
     String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" + _ID
             + " INTEGER PRIMARY KEY AUTOINCREMENT, " + TRACKID + " INTEGER, " + LONGITUDE + " INTEGER, " + LATITUDE
             + " INTEGER, " + TIME + " INTEGER, " + ALTITUDE + " FLOAT, " + ACCURACY + " FLOAT, " + SPEED + " FLOAT, "
-            + BEARING + " FLOAT, " + SENSOR + " BLOB" + ");";
+            + BEARING + " FLOAT, " + SENSOR + " BLOB, " + DWELL_END_TIME + " INTEGER, " + DWELL_COUNT
+            + " INTEGER" + ");";
 
     String[] COLUMNS = {_ID, TRACKID, LONGITUDE, LATITUDE, TIME, ALTITUDE, ACCURACY, SPEED,
-            BEARING, SENSOR};
+            BEARING, SENSOR, DWELL_END_TIME, DWELL_COUNT};
 
     byte[] COLUMN_TYPES = {LONG_TYPE_ID, // id
             LONG_TYPE_ID, // track id
@@ -66,6 +70,13 @@ public interface TrackPointsColumns extends BaseColumns {
             FLOAT_TYPE_ID, // accuracy
             FLOAT_TYPE_ID, // speed
             FLOAT_TYPE_ID, // bearing
-            BLOB_TYPE_ID // sensor
+            BLOB_TYPE_ID, // sensor
+            LONG_TYPE_ID, // dwell end time
+            INT_TYPE_ID // dwell count
     };
+
+    String ADD_DWELL_END_TIME_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + DWELL_END_TIME + " INTEGER;";
+    String ADD_DWELL_COUNT_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + DWELL_COUNT + " INTEGER;";
 }
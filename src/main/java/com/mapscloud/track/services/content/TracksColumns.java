@@ -105,6 +105,18 @@ public interface TracksColumns extends BaseColumns {
     String COLUMN_APP_ID       = "app_id";
     String COLUMN_APP_NAME     = "app_name";
 
+    // 增量同步的水位：服务器已确认的最大轨迹点id，已同步的轨迹和标注修改时间
+    String SYNC_POINT_ID      = "sync_point_id";
+    String SYNC_MODIFIED_TIME = "sync_modified_time";
+    String SYNC_WAYPOINT_TIME = "sync_waypoint_time";
+
+    // 轨迹点所在的层：0 在 trackpoints 表，1 在冷文件；冷轨迹最后一个有效点的id，-1 表示没有
+    String TIER               = "tier";
+    String COLD_LAST_POINT_ID = "cold_last_point_id";
+
+    int TIER_HOT  = 0;
+    int TIER_COLD = 1;
+
 
     String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" // table
             + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " // id
@@ -148,7 +160,12 @@ public interface TracksColumns extends BaseColumns {
             + COLUMN_SHARE_SCOPE + " INTEGER,"
             + COLUMN_SHARE_KEY + " TEXT,"
             + COLUMN_APP_ID + " TEXT,"
-            + COLUMN_APP_NAME + " TEXT"
+            + COLUMN_APP_NAME + " TEXT,"
+            + SYNC_POINT_ID + " INTEGER DEFAULT -1,"
+            + SYNC_MODIFIED_TIME + " INTEGER DEFAULT -1,"
+            + SYNC_WAYPOINT_TIME + " INTEGER DEFAULT -1,"
+            + TIER + " INTEGER DEFAULT 0,"
+            + COLD_LAST_POINT_ID + " INTEGER DEFAULT -1"
             + ");"; // shared
     // owner
 
@@ -230,4 +247,34 @@ public interface TracksColumns extends BaseColumns {
     String ADD_APP_NAME_COLUMN = "ALTER TABLE " + TABLE_NAME
             + " ADD COLUMN " + COLUMN_APP_NAME + " varchar(100) default '';";
 
+    /**
+     * 轨迹表增加增量同步水位字段语句
+     */
+    String ADD_SYNC_POINT_ID_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + SYNC_POINT_ID + " INTEGER DEFAULT -1;";
+    String ADD_SYNC_MODIFIED_TIME_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + SYNC_MODIFIED_TIME + " INTEGER DEFAULT -1;";
+    String ADD_SYNC_WAYPOINT_TIME_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + SYNC_WAYPOINT_TIME + " INTEGER DEFAULT -1;";
+
+    /**
+     * 轨迹表增加冷热分层字段语句
+     */
+    String ADD_TIER_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + TIER + " INTEGER DEFAULT 0;";
+    String ADD_COLD_LAST_POINT_ID_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + COLD_LAST_POINT_ID + " INTEGER DEFAULT -1;";
+
+    /**
+     * 按冷轨迹最后有效点取最新冷轨迹的索引
+     */
+    String CREATE_COLD_LAST_POINT_ID_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME
+            + "_cold_last_point_id_index ON " + TABLE_NAME + " (" + COLD_LAST_POINT_ID + ");";
+
+    /**
+     * 按app和开始时间汇总统计的索引，见RollupsColumns
+     */
+    String CREATE_APP_ID_START_TIME_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_NAME
+            + "_app_id_start_time_index ON " + TABLE_NAME + " (" + COLUMN_APP_ID + ", " + STARTTIME + ");";
+
 }
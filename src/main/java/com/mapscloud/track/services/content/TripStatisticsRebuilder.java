@@ -0,0 +1,312 @@
+package com.mapscloud.track.services.content;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.Cursor;
+import android.location.Location;
+import android.os.Build;
+import android.util.Log;
+
+import com.mapscloud.track.R;
+import com.mapscloud.track.services.model.MyTracksLocation;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.utils.Constant;
+import com.mapscloud.track.services.utils.LocationUtils;
+import com.mapscloud.track.services.utils.PreferencesUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Recomputes the {@link TripStatistics}, bounds, point count and start/stop
+ * track point ids of stored tracks from their track points. Used after a
+ * statistics fix or a change of the smoothing constants in {@link Constant}.
+ * <p>
+ * Tracks are processed in parallel on a fork/join pool. A long track is split
+ * into track point id ranges read and decoded in parallel, then replayed in
+ * order through one {@link TripStatisticsUpdater}, so the speed, elevation and
+ * grade smoothing carries across the ranges and the statistics are the same
+ * as a sequential pass. Results are written back in batched transactions
+ * through {@link MyTracksProviderUtils#updateTracks(List)}.
+ * <p>
+ * The tracks being recorded, of any app, are never rebuilt, the recording
+ * updates them. {@link #rebuild(String, String[])} blocks, call it off the
+ * main thread. Needs the fork/join pool of Lollipop, see
+ * {@link #create(Context)}.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class TripStatisticsRebuilder {
+
+    private static final String TAG = TripStatisticsRebuilder.class.getSimpleName();
+
+    // 单个分片最多覆盖的轨迹点id范围
+    private static final long DEFAULT_CHUNK_SIZE = 5000L;
+
+    // 每批写回的轨迹数，一批一个事务
+    private static final int DEFAULT_WRITE_BATCH_SIZE = 200;
+
+    /**
+     * Progress listener, called on the thread calling
+     * {@link TripStatisticsRebuilder#rebuild(String, String[])}.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called after each written batch.
+         *
+         * @param done  the number of tracks rebuilt so far
+         * @param total the total number of tracks to rebuild
+         */
+        void onProgress(int done, int total);
+    }
+
+    private final Context context;
+    private final MyTracksProviderUtils myTracksProviderUtils;
+    private final ForkJoinPool pool;
+    private final int minRecordingDistance;
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+    private int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+    private ProgressListener progressListener;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a rebuilder with its own pool.
+     *
+     * @param context the context
+     * @return the rebuilder, null before Lollipop
+     */
+    public static TripStatisticsRebuilder create(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        return new TripStatisticsRebuilder(context, MyTracksProviderUtils.Factory.get(context), new ForkJoinPool(),
+                PreferencesUtils.getInt(context, R.string.min_recording_distance_key,
+                        PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT));
+    }
+
+    public TripStatisticsRebuilder(Context context, MyTracksProviderUtils myTracksProviderUtils, ForkJoinPool pool,
+                                   int minRecordingDistance) {
+        this.context = context;
+        this.myTracksProviderUtils = myTracksProviderUtils;
+        this.pool = pool;
+        this.minRecordingDistance = minRecordingDistance;
+    }
+
+    public void setChunkSize(long chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be positive");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public void setWriteBatchSize(int writeBatchSize) {
+        if (writeBatchSize <= 0) {
+            throw new IllegalArgumentException("writeBatchSize must be positive");
+        }
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Stops the rebuild after the batch in progress has been written.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Rebuilds the tracks matching the selection, but the recording tracks.
+     * Returns the number of tracks rebuilt.
+     *
+     * @param selection     the track selection. Null for all tracks
+     * @param selectionArgs the selection arguments. Can be null
+     */
+    public int rebuild(String selection, String[] selectionArgs) {
+        cancelled = false;
+        Set<Long> recordingTrackIds = PreferencesUtils.getRecordingTrackIds(context);
+        List<Track> tracks = new ArrayList<Track>();
+        for (Track track : myTracksProviderUtils.getTracks(selection, selectionArgs)) {
+            if (!recordingTrackIds.contains(track.id)) {
+                tracks.add(track);
+            }
+        }
+        int total = tracks.size();
+        int done = 0;
+        int written = 0;
+        long start = System.currentTimeMillis();
+        for (int from = 0; from < total && !cancelled; from += writeBatchSize) {
+            final List<Track> batch = tracks.subList(from, Math.min(total, from + writeBatchSize));
+            pool.invoke(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    List<TrackTask> tasks = new ArrayList<TrackTask>(batch.size());
+                    for (Track track : batch) {
+                        tasks.add(new TrackTask(track));
+                    }
+                    ForkJoinTask.invokeAll(tasks);
+                }
+            });
+            // 重建期间继续记录的轨迹不写回，以记录的统计为准
+            recordingTrackIds = PreferencesUtils.getRecordingTrackIds(context);
+            List<Track> updated = new ArrayList<Track>(batch.size());
+            for (Track track : batch) {
+                if (!recordingTrackIds.contains(track.id)) {
+                    updated.add(track);
+                }
+            }
+            myTracksProviderUtils.updateTracks(updated);
+            written += updated.size();
+            done += batch.size();
+            if (progressListener != null) {
+                progressListener.onProgress(done, total);
+            }
+        }
+        Log.i(TAG, "Rebuilt " + written + " of " + total + " tracks in " + (System.currentTimeMillis() - start)
+                + " ms");
+        return written;
+    }
+
+    /**
+     * Rebuilds one track in place. The ranges are read in parallel, a window
+     * of the pool's parallelism at a time, and replayed in order, each range
+     * is dropped once replayed.
+     */
+    private class TrackTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Track track;
+
+        TrackTask(Track track) {
+            this.track = track;
+        }
+
+        @Override
+        protected void compute() {
+            if (track.startId < 0 || track.stopId < track.startId) {
+                return;
+            }
+            // 最多同时读 window 个分片，合并最早的一个再读下一个，内存不随轨迹长度增长
+            int window = Math.max(1, pool.getParallelism());
+            Deque<ChunkTask> chunks = new ArrayDeque<ChunkTask>(window);
+            long nextId = track.startId;
+            long storedStartTime = track.getTripStatistics().getStartTime();
+            long storedStopTime = track.getTripStatistics().getStopTime();
+            TripStatisticsUpdater updater = null;
+            int numberOfPoints = 0;
+            long firstId = -1L;
+            long lastId = -1L;
+            long lastTime = -1L;
+            while (true) {
+                while (chunks.size() < window && nextId <= track.stopId) {
+                    ChunkTask chunk = new ChunkTask(track.id, nextId, Math.min(track.stopId, nextId + chunkSize - 1));
+                    chunk.fork();
+                    chunks.addLast(chunk);
+                    nextId += chunkSize;
+                }
+                if (chunks.isEmpty()) {
+                    break;
+                }
+                Chunk result = chunks.pollFirst().join();
+                for (Location location : result.locations) {
+                    if (updater == null) {
+                        updater = new TripStatisticsUpdater(storedStartTime > 0 ? storedStartTime
+                                : location.getTime());
+                    }
+                    updater.addLocation(location, minRecordingDistance);
+                    if (location instanceof MyTracksLocation && ((MyTracksLocation) location).hasDwell()) {
+                        // 停留点的结束时间
+                        location = ((MyTracksLocation) location).createDwellEndLocation();
+                        updater.addLocation(location, minRecordingDistance);
+                    }
+                    if (LocationUtils.isValidLocation(location)) {
+                        numberOfPoints++;
+                    }
+                    lastTime = location.getTime();
+                }
+                if (result.firstId != -1L) {
+                    if (firstId == -1L) {
+                        firstId = result.firstId;
+                    }
+                    lastId = result.lastId;
+                }
+            }
+            if (updater == null) {
+                return;
+            }
+            // 轨迹结束时间可能晚于最后一个点(结束记录时会更新到当前时间)
+            if (storedStopTime > lastTime) {
+                updater.updateTime(storedStopTime);
+            }
+            track.setTripStatistics(updater.getTripStatistics());
+            track.numberOfPoints = numberOfPoints;
+            track.startId = firstId;
+            track.stopId = lastId;
+        }
+    }
+
+    /**
+     * The decoded track points of a track point id range.
+     */
+    private static class Chunk {
+        final List<Location> locations = new ArrayList<Location>();
+        long firstId = -1L;
+        long lastId = -1L;
+    }
+
+    /**
+     * Reads and decodes the track points in [minId, maxId].
+     */
+    private class ChunkTask extends RecursiveTask<Chunk> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long trackId;
+        private final long minId;
+        private final long maxId;
+
+        ChunkTask(long trackId, long minId, long maxId) {
+            this.trackId = trackId;
+            this.minId = minId;
+            this.maxId = maxId;
+        }
+
+        @Override
+        protected Chunk compute() {
+            Chunk chunk = new Chunk();
+            Cursor cursor = null;
+            try {
+                cursor = myTracksProviderUtils.getTrackPointCursor(trackId, minId, maxId);
+                if (cursor == null || !cursor.moveToFirst()) {
+                    return chunk;
+                }
+                int idIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns._ID);
+                do {
+                    chunk.locations.add(myTracksProviderUtils.createTrackPoint(cursor));
+                    long id = cursor.getLong(idIndex);
+                    if (chunk.firstId == -1L) {
+                        chunk.firstId = id;
+                    }
+                    chunk.lastId = id;
+                } while (cursor.moveToNext());
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            return chunk;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.mapscloud.track.services.heatmap;
+
+import android.annotation.TargetApi;
+import android.database.Cursor;
+import android.os.Build;
+
+import com.mapscloud.track.services.content.TrackPointsColumns;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Accumulates the track points of tracks into the cell counts of the tiles
+ * of every zoom, splitting the tracks in halves on the fork/join pool. The
+ * result maps the {@link #getKey(int, int, int)} of the tiles to their
+ * counts.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class HeatmapAccumulator extends RecursiveTask<Map<Long, int[]>> {
+
+    private static final long serialVersionUID = 1L;
+
+    // Tracks read by one task
+    private static final int LEAF_TRACKS = 2;
+
+    // Web mercator
+    private static final double MAX_LATITUDE = 85.05112878;
+
+    private final MyTracksProviderUtils myTracksProviderUtils;
+    private final long[] trackIds;
+    private final int from;
+    private final int to;
+    private final int maxZoom;
+
+    /**
+     * Constructor.
+     *
+     * @param myTracksProviderUtils the my tracks provider utils
+     * @param trackIds              the track ids
+     * @param from                  the first track index
+     * @param to                    the end track index, exclusive
+     * @param maxZoom               the maximum zoom
+     */
+    HeatmapAccumulator(MyTracksProviderUtils myTracksProviderUtils, long[] trackIds, int from, int to,
+                       int maxZoom) {
+        this.myTracksProviderUtils = myTracksProviderUtils;
+        this.trackIds = trackIds;
+        this.from = from;
+        this.to = to;
+        this.maxZoom = maxZoom;
+    }
+
+    @Override
+    protected Map<Long, int[]> compute() {
+        if (to - from <= LEAF_TRACKS) {
+            Map<Long, int[]> tiles = new HashMap<Long, int[]>();
+            for (int i = from; i < to; i++) {
+                accumulate(trackIds[i], tiles);
+            }
+            return tiles;
+        }
+        int middle = (from + to) >>> 1;
+        HeatmapAccumulator left = new HeatmapAccumulator(myTracksProviderUtils, trackIds, from, middle, maxZoom);
+        HeatmapAccumulator right = new HeatmapAccumulator(myTracksProviderUtils, trackIds, middle, to, maxZoom);
+        left.fork();
+        Map<Long, int[]> rightTiles = right.compute();
+        Map<Long, int[]> leftTiles = left.join();
+        // 小的并入大的
+        return leftTiles.size() >= rightTiles.size() ? merge(rightTiles, leftTiles) : merge(leftTiles, rightTiles);
+    }
+
+    /**
+     * Gets the key of a tile.
+     *
+     * @param zoom the zoom, up to 20
+     * @param x    the x
+     * @param y    the y
+     */
+    static long getKey(int zoom, int x, int y) {
+        return ((long) zoom << 40) | ((long) x << 20) | y;
+    }
+
+    static int getZoom(long key) {
+        return (int) (key >>> 40);
+    }
+
+    static int getX(long key) {
+        return (int) ((key >>> 20) & 0xfffff);
+    }
+
+    static int getY(long key) {
+        return (int) (key & 0xfffff);
+    }
+
+    private void accumulate(long trackId, Map<Long, int[]> tiles) {
+        Cursor cursor = myTracksProviderUtils.getTrackPointCursor(trackId, -1L, -1, false);
+        if (cursor == null) {
+            return;
+        }
+        // The last tile of each zoom, consecutive points mostly share it
+        long[] lastKeys = new long[maxZoom + 1];
+        int[][] lastCounts = new int[maxZoom + 1][];
+        int scale = 1 << (maxZoom + HeatmapTile.GRID_SHIFT);
+        try {
+            int latitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.LATITUDE);
+            int longitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.LONGITUDE);
+            while (cursor.moveToNext()) {
+                if (cursor.isNull(latitudeIndex) || cursor.isNull(longitudeIndex)) {
+                    continue;
+                }
+                double latitude = cursor.getInt(latitudeIndex) / 1E6;
+                double longitude = cursor.getInt(longitudeIndex) / 1E6;
+                // 分段标记点的纬度超过90
+                if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180) {
+                    continue;
+                }
+                latitude = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+                double sinLatitude = Math.sin(Math.toRadians(latitude));
+                double fx = (longitude + 180) / 360;
+                double fy = 0.5 - Math.log((1 + sinLatitude) / (1 - sinLatitude)) / (4 * Math.PI);
+                int cellX = Math.max(0, Math.min(scale - 1, (int) (fx * scale)));
+                int cellY = Math.max(0, Math.min(scale - 1, (int) (fy * scale)));
+                for (int zoom = 0; zoom <= maxZoom; zoom++) {
+                    int shift = maxZoom - zoom;
+                    int zoomCellX = cellX >> shift;
+                    int zoomCellY = cellY >> shift;
+                    long key = getKey(zoom, zoomCellX >> HeatmapTile.GRID_SHIFT, zoomCellY >> HeatmapTile.GRID_SHIFT);
+                    int[] counts = lastCounts[zoom];
+                    if (counts == null || lastKeys[zoom] != key) {
+                        counts = tiles.get(key);
+                        if (counts == null) {
+                            counts = new int[HeatmapTile.GRID * HeatmapTile.GRID];
+                            tiles.put(key, counts);
+                        }
+                        lastKeys[zoom] = key;
+                        lastCounts[zoom] = counts;
+                    }
+                    counts[(zoomCellY & (HeatmapTile.GRID - 1)) * HeatmapTile.GRID
+                            + (zoomCellX & (HeatmapTile.GRID - 1))]++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Adds the counts of the tiles of from into to, returns to.
+     *
+     * @param from the counts added
+     * @param to   the counts added to
+     */
+    static Map<Long, int[]> merge(Map<Long, int[]> from, Map<Long, int[]> to) {
+        for (Map.Entry<Long, int[]> entry : from.entrySet()) {
+            int[] counts = to.get(entry.getKey());
+            if (counts == null) {
+                to.put(entry.getKey(), entry.getValue());
+            } else {
+                int[] added = entry.getValue();
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += added[i];
+                }
+            }
+        }
+        return to;
+    }
+}
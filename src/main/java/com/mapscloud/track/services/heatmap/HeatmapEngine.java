@@ -0,0 +1,406 @@
+package com.mapscloud.track.services.heatmap;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.database.Cursor;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.mapscloud.track.services.content.TracksColumns;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Builds heatmap tiles, the point density of all the recorded tracks, so a
+ * viewport is rendered from a few {@link HeatmapTile}s instead of the raw
+ * track points.
+ * <p>
+ * Every track point is counted in the tile of each zoom from 0 to
+ * {@link #MAX_ZOOM}, the larger zooms are rendered by scaling the tiles of
+ * {@link #MAX_ZOOM}. The tracks are read in batches of {@link #BATCH_TRACKS},
+ * accumulated in parallel on a {@link ForkJoinPool}, and the counts of the
+ * batches are added to the tiles on disk once they reach
+ * {@link #MAX_PENDING_TILES} tiles, one deflated file per tile under
+ * files/heatmap/zoom/x_y. The ids of the added tracks are appended to
+ * files/heatmap/tracks after each write, so an interrupted build resumes at
+ * the next track not written and an ended track is added once, see
+ * {@link #addTrack(long)}.
+ * <p>
+ * The tiles read are kept in a least recently used cache of 1/32 of the
+ * heap, shrunk on {@link ComponentCallbacks2#onTrimMemory(int)}. A deleted
+ * track stays in the tiles until the next {@link #update(Set)}, which builds
+ * the tiles again when a track in them is gone. Needs the fork/join pool of
+ * Lollipop, see {@link #get(Context)}.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class HeatmapEngine implements ComponentCallbacks2 {
+
+    private static final String TAG = HeatmapEngine.class.getSimpleName();
+
+    public static final int MAX_ZOOM = 16;
+
+    private static final String DIRECTORY = "heatmap";
+    private static final String TRACKS_FILE = "tracks";
+    private static final int BATCH_TRACKS = 16;
+    // 攒到这么多瓦片(每个16KB)就写盘，不随轨迹数增长
+    private static final int MAX_PENDING_TILES = 1024;
+
+    private static HeatmapEngine instance;
+
+    private final MyTracksProviderUtils myTracksProviderUtils;
+    private final File directory;
+    private final LruCache<Long, HeatmapTile> tiles;
+    private final ForkJoinPool pool;
+    // 读库、写瓦片都在这个线程，瓦片文件只有一个写者
+    private final ExecutorService executor;
+
+    // The ids of the tracks in the tiles, only accessed by the executor
+    private Set<Long> trackIds;
+
+    /**
+     * Gets the engine of the process.
+     *
+     * @param context the context
+     * @return the engine, null before Lollipop
+     */
+    public static synchronized HeatmapEngine get(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return null;
+        }
+        if (instance == null) {
+            Context applicationContext = context.getApplicationContext();
+            instance = new HeatmapEngine(MyTracksProviderUtils.Factory.get(applicationContext),
+                    new File(applicationContext.getFilesDir(), DIRECTORY),
+                    (int) Math.min(Runtime.getRuntime().maxMemory() / 32, Integer.MAX_VALUE));
+            applicationContext.registerComponentCallbacks(instance);
+        }
+        return instance;
+    }
+
+    HeatmapEngine(MyTracksProviderUtils myTracksProviderUtils, File directory, int maxBytes) {
+        this.myTracksProviderUtils = myTracksProviderUtils;
+        this.directory = directory;
+        tiles = new LruCache<Long, HeatmapTile>(maxBytes) {
+            @Override
+            protected int sizeOf(Long key, HeatmapTile tile) {
+                return HeatmapTile.BYTE_COUNT;
+            }
+        };
+        // 留一个核给记录轨迹
+        pool = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "HeatmapEngine");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds an ended track to the tiles, in the background. Ignored if the
+     * track is already in the tiles.
+     *
+     * @param trackId the track id
+     */
+    public void addTrack(final long trackId) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                addTracks(new long[]{trackId});
+            }
+        });
+    }
+
+    /**
+     * Adds all the tracks not yet in the tiles, in the background. For the
+     * tracks recorded before the heatmap and the tracks whose addition was
+     * interrupted. If a track in the tiles has been deleted, builds the tiles
+     * again instead, like {@link #rebuild(Set)}.
+     *
+     * @param recordingTrackIds the ids of the recording tracks, not added
+     */
+    public void update(final Set<Long> recordingTrackIds) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long[] ids = getTrackIds();
+                loadTrackIds();
+                Set<Long> existing = new HashSet<Long>(ids.length * 2);
+                for (long id : ids) {
+                    existing.add(id);
+                }
+                if (existing.containsAll(trackIds)) {
+                    addTracks(filter(ids, recordingTrackIds));
+                } else {
+                    Log.i(TAG, "Rebuilding the heatmap without the deleted tracks");
+                    rebuildTiles(filter(ids, recordingTrackIds));
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the tiles and builds them again from all the tracks, in the
+     * background. To remove the deleted tracks.
+     *
+     * @param recordingTrackIds the ids of the recording tracks, not added
+     */
+    public void rebuild(final Set<Long> recordingTrackIds) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                rebuildTiles(filter(getTrackIds(), recordingTrackIds));
+            }
+        });
+    }
+
+    /**
+     * Gets a tile. Blocking on a cache miss, one small file read, not to be
+     * called on the main thread.
+     *
+     * @param zoom the zoom, 0 to {@link #MAX_ZOOM}
+     * @param x    the x of the tile
+     * @param y    the y of the tile
+     * @return the tile, null if no point in the tile
+     */
+    public HeatmapTile getTile(int zoom, int x, int y) {
+        if (zoom < 0 || zoom > MAX_ZOOM) {
+            throw new IllegalArgumentException("Invalid zoom: " + zoom);
+        }
+        int size = 1 << zoom;
+        if (x < 0 || x >= size || y < 0 || y >= size) {
+            return null;
+        }
+        return loadTile(HeatmapAccumulator.getKey(zoom, x, y));
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            tiles.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND || level == TRIM_MEMORY_RUNNING_LOW) {
+            tiles.trimToSize(tiles.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        tiles.evictAll();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    /*
+     * Deletes the tiles and adds the tracks again. Runs on the executor.
+     */
+    private void rebuildTiles(long[] ids) {
+        tiles.evictAll();
+        deleteAll(directory);
+        trackIds = new HashSet<Long>();
+        addTracks(ids);
+    }
+
+    /*
+     * Adds tracks to the tiles, batch by batch. Runs on the executor.
+     */
+    private void addTracks(long[] ids) {
+        loadTrackIds();
+        List<Long> added = new ArrayList<Long>();
+        for (long id : ids) {
+            if (!trackIds.contains(id)) {
+                added.add(id);
+            }
+        }
+        long start = System.currentTimeMillis();
+        Map<Long, int[]> pending = null;
+        int pendingFrom = 0;
+        for (int from = 0; from < added.size(); from += BATCH_TRACKS) {
+            int to = Math.min(added.size(), from + BATCH_TRACKS);
+            long[] batch = new long[to - from];
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = added.get(from + i);
+            }
+            Map<Long, int[]> counts = pool.invoke(
+                    new HeatmapAccumulator(myTracksProviderUtils, batch, 0, batch.length, MAX_ZOOM));
+            pending = pending == null ? counts : HeatmapAccumulator.merge(counts, pending);
+            if (pending.size() < MAX_PENDING_TILES && to < added.size()) {
+                continue;
+            }
+            try {
+                for (Map.Entry<Long, int[]> entry : pending.entrySet()) {
+                    writeTile(entry.getKey(), entry.getValue());
+                }
+                appendTrackIds(added.subList(pendingFrom, to));
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to write the heatmap tiles", e);
+                return;
+            }
+            pending = null;
+            pendingFrom = to;
+        }
+        if (!added.isEmpty()) {
+            Log.i(TAG, "Added " + added.size() + " tracks to the heatmap in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /*
+     * Gets the ids of all the tracks.
+     */
+    private long[] getTrackIds() {
+        Cursor cursor = myTracksProviderUtils.getTrackCursor(null, null, TracksColumns._ID);
+        if (cursor == null) {
+            return new long[0];
+        }
+        try {
+            long[] ids = new long[cursor.getCount()];
+            int count = 0;
+            int idIndex = cursor.getColumnIndexOrThrow(TracksColumns._ID);
+            while (cursor.moveToNext()) {
+                ids[count++] = cursor.getLong(idIndex);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Gets the ids but the recording track ids.
+     */
+    private static long[] filter(long[] ids, Set<Long> recordingTrackIds) {
+        long[] result = new long[ids.length];
+        int count = 0;
+        for (long id : ids) {
+            if (!recordingTrackIds.contains(id)) {
+                result[count++] = id;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private HeatmapTile loadTile(long key) {
+        HeatmapTile tile = tiles.get(key);
+        if (tile != null) {
+            return tile;
+        }
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            tile = HeatmapTile.read(file);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file, e);
+            return null;
+        }
+        tiles.put(key, tile);
+        return tile;
+    }
+
+    /*
+     * Adds counts to a tile on disk and in the cache. Runs on the executor.
+     */
+    private void writeTile(long key, int[] counts) throws IOException {
+        HeatmapTile tile = loadTile(key);
+        tile = tile != null ? tile.plus(counts) : new HeatmapTile(HeatmapAccumulator.getZoom(key),
+                HeatmapAccumulator.getX(key), HeatmapAccumulator.getY(key), counts);
+        File file = getFile(key);
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+        tile.write(file);
+        tiles.put(key, tile);
+    }
+
+    private File getFile(long key) {
+        return new File(new File(directory, Integer.toString(HeatmapAccumulator.getZoom(key))),
+                HeatmapAccumulator.getX(key) + "_" + HeatmapAccumulator.getY(key));
+    }
+
+    /*
+     * Loads the ids of the tracks in the tiles, once. Runs on the executor.
+     */
+    private void loadTrackIds() {
+        if (trackIds != null) {
+            return;
+        }
+        trackIds = new HashSet<Long>();
+        File file = new File(directory, TRACKS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                trackIds.add(in.readLong());
+            }
+        } catch (EOFException e) {
+            // 读完，写了一半的id被忽略
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close " + file, e);
+                }
+            }
+        }
+    }
+
+    private void appendTrackIds(List<Long> ids) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(directory, TRACKS_FILE), true));
+        try {
+            for (long id : ids) {
+                out.writeLong(id);
+            }
+        } finally {
+            out.close();
+        }
+        for (long id : ids) {
+            trackIds.add(id);
+        }
+    }
+
+    private static void deleteAll(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+}
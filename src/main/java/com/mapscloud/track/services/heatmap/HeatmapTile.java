@@ -0,0 +1,145 @@
+package com.mapscloud.track.services.heatmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The point density of a web mercator tile: the number of track points in
+ * each cell of a {@link #GRID} x {@link #GRID} grid, row by row from the
+ * north west corner. A cell is 4 x 4 pixels of a 256 pixels tile.
+ * <p>
+ * Stored deflated, mostly empty cells compress to a few hundred bytes.
+ */
+public class HeatmapTile {
+
+    static final int GRID_SHIFT = 6;
+    public static final int GRID = 1 << GRID_SHIFT;
+
+    private static final int MAGIC = 0x484d5450;
+    private static final int VERSION = 1;
+
+    // The counts and the object
+    static final int BYTE_COUNT = GRID * GRID * 4 + 64;
+
+    private final int zoom;
+    private final int x;
+    private final int y;
+    private final int[] counts;
+    private int maxCount;
+
+    HeatmapTile(int zoom, int x, int y, int[] counts) {
+        if (counts.length != GRID * GRID) {
+            throw new IllegalArgumentException("Invalid grid size: " + counts.length);
+        }
+        this.zoom = zoom;
+        this.x = x;
+        this.y = y;
+        this.counts = counts;
+        for (int count : counts) {
+            maxCount = Math.max(maxCount, count);
+        }
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Gets the number of points in a cell.
+     *
+     * @param column the column, from the west
+     * @param row    the row, from the north
+     */
+    public int getCount(int column, int row) {
+        return counts[row * GRID + column];
+    }
+
+    /**
+     * Gets the largest count of the cells, to scale the colors.
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * Returns a tile with the counts of this tile and other counts added.
+     * This tile is not changed, the cached tiles are read by the renderers.
+     *
+     * @param added the counts to add
+     */
+    HeatmapTile plus(int[] added) {
+        int[] sum = counts.clone();
+        for (int i = 0; i < sum.length; i++) {
+            sum[i] += added[i];
+        }
+        return new HeatmapTile(zoom, x, y, sum);
+    }
+
+    /**
+     * Writes the tile to a file, through a temporary file.
+     *
+     * @param file the file
+     */
+    void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(new BufferedOutputStream(
+                new FileOutputStream(temp))));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(zoom);
+            out.writeInt(x);
+            out.writeInt(y);
+            for (int count : counts) {
+                out.writeInt(count);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp);
+        }
+    }
+
+    /**
+     * Reads a tile from a file.
+     *
+     * @param file the file
+     */
+    static HeatmapTile read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new BufferedInputStream(
+                new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Invalid heatmap tile " + file);
+            }
+            int zoom = in.readInt();
+            int x = in.readInt();
+            int y = in.readInt();
+            int[] counts = new int[GRID * GRID];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = in.readInt();
+            }
+            return new HeatmapTile(zoom, x, y, counts);
+        } finally {
+            in.close();
+        }
+    }
+}
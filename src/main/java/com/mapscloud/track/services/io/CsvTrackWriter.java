@@ -0,0 +1,73 @@
+package com.mapscloud.track.services.io;
+
+import android.location.Location;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.model.Waypoint;
+
+import java.io.IOException;
+
+/**
+ * Writes a track as CSV, one row per track point. Waypoints are not written.
+ */
+public class CsvTrackWriter implements TrackFormatWriter {
+
+    private int segmentIndex;
+    private int pointIndex;
+
+    @Override
+    public void writeHeader(ExportOutput out, Track track) throws IOException {
+        out.write("Segment,Point,Latitude (deg),Longitude (deg),Altitude (m),Bearing (deg),Accuracy (m),"
+                + "Speed (m/s),Time\n");
+    }
+
+    @Override
+    public void writeWaypoint(ExportOutput out, Waypoint waypoint) throws IOException {
+    }
+
+    @Override
+    public void writeBeginTrack(ExportOutput out, Track track, Location firstLocation) throws IOException {
+    }
+
+    @Override
+    public void writeOpenSegment(ExportOutput out) throws IOException {
+        segmentIndex++;
+        pointIndex = 0;
+    }
+
+    @Override
+    public void writeLocation(ExportOutput out, Location location) throws IOException {
+        pointIndex++;
+        out.write(segmentIndex).write(',').write(pointIndex).write(',')
+                .writeDegrees(location.getLatitude()).write(',')
+                .writeDegrees(location.getLongitude()).write(',');
+        if (location.hasAltitude()) {
+            out.write(location.getAltitude(), 1);
+        }
+        out.write(',');
+        if (location.hasBearing()) {
+            out.write(location.getBearing(), 1);
+        }
+        out.write(',');
+        if (location.hasAccuracy()) {
+            out.write(location.getAccuracy(), 1);
+        }
+        out.write(',');
+        if (location.hasSpeed()) {
+            out.write(location.getSpeed(), 2);
+        }
+        out.write(',').writeIso8601(location.getTime()).write('\n');
+    }
+
+    @Override
+    public void writeCloseSegment(ExportOutput out) throws IOException {
+    }
+
+    @Override
+    public void writeEndTrack(ExportOutput out, Track track, Location lastLocation) throws IOException {
+    }
+
+    @Override
+    public void writeFooter(ExportOutput out) throws IOException {
+    }
+}
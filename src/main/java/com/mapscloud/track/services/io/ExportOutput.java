@@ -0,0 +1,258 @@
+package com.mapscloud.track.services.io;
+
+import com.mapscloud.track.services.utils.StringUtils;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+/**
+ * Buffered UTF-8 text output used by the {@link TrackFormatWriter}s. Numbers
+ * and times are formatted into a reusable scratch buffer, so writing a track
+ * point does not allocate.
+ * <p>
+ * Not thread safe, each export owns its own instance.
+ */
+public final class ExportOutput implements Flushable, Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final long[] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+            100000000L};
+
+    private final Writer writer;
+    private final char[] scratch = new char[32];
+
+    public ExportOutput(OutputStream outputStream) {
+        writer = new BufferedWriter(new OutputStreamWriter(outputStream, UTF_8), BUFFER_SIZE);
+    }
+
+    public ExportOutput write(String text) throws IOException {
+        writer.write(text);
+        return this;
+    }
+
+    public ExportOutput write(char c) throws IOException {
+        writer.write(c);
+        return this;
+    }
+
+    /**
+     * Writes a long in decimal.
+     */
+    public ExportOutput write(long value) throws IOException {
+        int length = formatLong(value, scratch.length);
+        writer.write(scratch, scratch.length - length, length);
+        return this;
+    }
+
+    /**
+     * Writes a value with a fixed number of fraction digits, rounded half up.
+     * NaN and infinities are written as 0.
+     *
+     * @param value
+     *            the value
+     * @param fractionDigits
+     *            the number of fraction digits, 0 to 8
+     */
+    public ExportOutput write(double value, int fractionDigits) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            value = 0;
+        }
+        long scaled = Math.round(value * POWERS_OF_TEN[fractionDigits]);
+        return writeScaled(scaled, fractionDigits);
+    }
+
+    /**
+     * Writes degrees with 6 fraction digits, matching the E6 precision of the
+     * track points table.
+     */
+    public ExportOutput writeDegrees(double degrees) throws IOException {
+        return write(degrees, 6);
+    }
+
+    /**
+     * Writes the time in ISO 8601 format, UTC time zone.
+     */
+    public ExportOutput writeIso8601(long time) throws IOException {
+        int length = StringUtils.formatDateTimeIso8601(time, scratch, 0);
+        writer.write(scratch, 0, length);
+        return this;
+    }
+
+    /**
+     * Writes text escaped for XML character data or attribute values. Null is
+     * written as an empty string.
+     */
+    public ExportOutput writeXmlEscaped(String text) throws IOException {
+        if (text == null) {
+            return this;
+        }
+        int start = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            String replacement;
+            switch (text.charAt(i)) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                case '\'':
+                    replacement = "&apos;";
+                    break;
+                default:
+                    continue;
+            }
+            writer.write(text, start, i - start);
+            writer.write(replacement);
+            start = i + 1;
+        }
+        writer.write(text, start, length - start);
+        return this;
+    }
+
+    /**
+     * Writes text as a quoted JSON string. Null is written as null.
+     */
+    public ExportOutput writeJsonString(String text) throws IOException {
+        if (text == null) {
+            writer.write("null");
+            return this;
+        }
+        writer.write('"');
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write("\\u00");
+                        writer.write(Character.forDigit(c >> 4, 16));
+                        writer.write(Character.forDigit(c & 0xf, 16));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+        return this;
+    }
+
+    /**
+     * Writes a CSV field, quoted only if needed. Null is written as an empty
+     * field.
+     */
+    public ExportOutput writeCsvField(String text) throws IOException {
+        if (text == null) {
+            return this;
+        }
+        boolean quote = false;
+        int length = text.length();
+        for (int i = 0; i < length && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            writer.write(text);
+            return this;
+        }
+        writer.write('"');
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /**
+     * Flushes and closes the output, including the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private ExportOutput writeScaled(long scaled, int fractionDigits) throws IOException {
+        boolean negative = scaled < 0;
+        long abs = negative ? -scaled : scaled;
+        int end = scratch.length;
+        int i = end;
+        for (int digit = 0; digit < fractionDigits; digit++) {
+            scratch[--i] = (char) ('0' + abs % 10);
+            abs /= 10;
+        }
+        if (fractionDigits > 0) {
+            scratch[--i] = '.';
+        }
+        do {
+            scratch[--i] = (char) ('0' + abs % 10);
+            abs /= 10;
+        } while (abs != 0);
+        if (negative) {
+            scratch[--i] = '-';
+        }
+        writer.write(scratch, i, end - i);
+        return this;
+    }
+
+    /**
+     * Formats a long right aligned at the end of the scratch buffer. Returns
+     * its length.
+     */
+    private int formatLong(long value, int end) {
+        if (value == Long.MIN_VALUE) {
+            String text = Long.toString(value);
+            text.getChars(0, text.length(), scratch, end - text.length());
+            return text.length();
+        }
+        boolean negative = value < 0;
+        long abs = negative ? -value : value;
+        int i = end;
+        do {
+            scratch[--i] = (char) ('0' + abs % 10);
+            abs /= 10;
+        } while (abs != 0);
+        if (negative) {
+            scratch[--i] = '-';
+        }
+        return end - i;
+    }
+}
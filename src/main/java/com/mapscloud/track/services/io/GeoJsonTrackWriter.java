@@ -0,0 +1,98 @@
+package com.mapscloud.track.services.io;
+
+import android.location.Location;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.model.Waypoint;
+
+import java.io.IOException;
+
+/**
+ * Writes a track as a GeoJSON FeatureCollection: a Point feature per waypoint
+ * and a MultiLineString feature for the track, one line per segment.
+ */
+public class GeoJsonTrackWriter implements TrackFormatWriter {
+
+    private boolean firstFeature = true;
+    private boolean firstSegment = true;
+    private boolean firstLocation = true;
+
+    @Override
+    public void writeHeader(ExportOutput out, Track track) throws IOException {
+        out.write("{\"type\":\"FeatureCollection\",\"features\":[");
+    }
+
+    @Override
+    public void writeWaypoint(ExportOutput out, Waypoint waypoint) throws IOException {
+        Location location = waypoint.location;
+        if (location == null) {
+            return;
+        }
+        beginFeature(out);
+        out.write("\"geometry\":{\"type\":\"Point\",\"coordinates\":");
+        writePosition(out, location);
+        out.write("},\"properties\":{\"name\":").writeJsonString(waypoint.name)
+                .write(",\"description\":").writeJsonString(waypoint.description)
+                .write(",\"time\":\"").writeIso8601(location.getTime()).write("\"}}");
+    }
+
+    @Override
+    public void writeBeginTrack(ExportOutput out, Track track, Location firstLocation) throws IOException {
+        beginFeature(out);
+        out.write("\"properties\":{\"name\":").writeJsonString(track.name)
+                .write(",\"description\":").writeJsonString(track.description)
+                .write(",\"category\":").writeJsonString(track.category)
+                .write(",\"startTime\":\"").writeIso8601(firstLocation.getTime()).write('"')
+                .write("},\"geometry\":{\"type\":\"MultiLineString\",\"coordinates\":[");
+    }
+
+    @Override
+    public void writeOpenSegment(ExportOutput out) throws IOException {
+        if (!firstSegment) {
+            out.write(',');
+        }
+        firstSegment = false;
+        firstLocation = true;
+        out.write("\n[");
+    }
+
+    @Override
+    public void writeLocation(ExportOutput out, Location location) throws IOException {
+        if (!firstLocation) {
+            out.write(',');
+        }
+        firstLocation = false;
+        writePosition(out, location);
+    }
+
+    @Override
+    public void writeCloseSegment(ExportOutput out) throws IOException {
+        out.write(']');
+    }
+
+    @Override
+    public void writeEndTrack(ExportOutput out, Track track, Location lastLocation) throws IOException {
+        out.write("]}}");
+    }
+
+    @Override
+    public void writeFooter(ExportOutput out) throws IOException {
+        out.write("\n]}\n");
+    }
+
+    private void beginFeature(ExportOutput out) throws IOException {
+        if (!firstFeature) {
+            out.write(',');
+        }
+        firstFeature = false;
+        out.write("\n{\"type\":\"Feature\",");
+    }
+
+    private void writePosition(ExportOutput out, Location location) throws IOException {
+        out.write('[').writeDegrees(location.getLongitude()).write(',').writeDegrees(location.getLatitude());
+        if (location.hasAltitude()) {
+            out.write(',').write(location.getAltitude(), 1);
+        }
+        out.write(']');
+    }
+}
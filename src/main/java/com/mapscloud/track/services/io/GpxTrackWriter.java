@@ -0,0 +1,95 @@
+package com.mapscloud.track.services.io;
+
+import android.location.Location;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.model.Waypoint;
+
+import java.io.IOException;
+
+/**
+ * Writes a track as GPX 1.1.
+ */
+public class GpxTrackWriter implements TrackFormatWriter {
+
+    private static final String CREATOR = "TrackClientLib";
+
+    @Override
+    public void writeHeader(ExportOutput out, Track track) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n")
+                .write("<gpx version=\"1.1\" creator=\"").write(CREATOR).write("\"\n")
+                .write("xmlns=\"http://www.topografix.com/GPX/1/1\"\n")
+                .write("xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n")
+                .write("xsi:schemaLocation=\"http://www.topografix.com/GPX/1/1"
+                        + " http://www.topografix.com/GPX/1/1/gpx.xsd\">\n")
+                .write("<metadata>\n")
+                .write("<name>").writeXmlEscaped(track.name).write("</name>\n")
+                .write("<desc>").writeXmlEscaped(track.description).write("</desc>\n")
+                .write("</metadata>\n");
+    }
+
+    @Override
+    public void writeWaypoint(ExportOutput out, Waypoint waypoint) throws IOException {
+        Location location = waypoint.location;
+        if (location == null) {
+            return;
+        }
+        out.write("<wpt ");
+        writeLatLon(out, location);
+        out.write(">\n");
+        writeElevationAndTime(out, location);
+        out.write("<name>").writeXmlEscaped(waypoint.name).write("</name>\n")
+                .write("<desc>").writeXmlEscaped(waypoint.description).write("</desc>\n")
+                .write("<type>").writeXmlEscaped(waypoint.category).write("</type>\n")
+                .write("</wpt>\n");
+    }
+
+    @Override
+    public void writeBeginTrack(ExportOutput out, Track track, Location firstLocation) throws IOException {
+        out.write("<trk>\n")
+                .write("<name>").writeXmlEscaped(track.name).write("</name>\n")
+                .write("<desc>").writeXmlEscaped(track.description).write("</desc>\n")
+                .write("<type>").writeXmlEscaped(track.category).write("</type>\n");
+    }
+
+    @Override
+    public void writeOpenSegment(ExportOutput out) throws IOException {
+        out.write("<trkseg>\n");
+    }
+
+    @Override
+    public void writeLocation(ExportOutput out, Location location) throws IOException {
+        out.write("<trkpt ");
+        writeLatLon(out, location);
+        out.write(">");
+        writeElevationAndTime(out, location);
+        out.write("</trkpt>\n");
+    }
+
+    @Override
+    public void writeCloseSegment(ExportOutput out) throws IOException {
+        out.write("</trkseg>\n");
+    }
+
+    @Override
+    public void writeEndTrack(ExportOutput out, Track track, Location lastLocation) throws IOException {
+        out.write("</trk>\n");
+    }
+
+    @Override
+    public void writeFooter(ExportOutput out) throws IOException {
+        out.write("</gpx>\n");
+    }
+
+    private void writeLatLon(ExportOutput out, Location location) throws IOException {
+        out.write("lat=\"").writeDegrees(location.getLatitude())
+                .write("\" lon=\"").writeDegrees(location.getLongitude()).write('"');
+    }
+
+    private void writeElevationAndTime(ExportOutput out, Location location) throws IOException {
+        if (location.hasAltitude()) {
+            out.write("<ele>").write(location.getAltitude(), 1).write("</ele>");
+        }
+        out.write("<time>").writeIso8601(location.getTime()).write("</time>");
+    }
+}
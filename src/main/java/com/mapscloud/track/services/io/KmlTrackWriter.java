@@ -0,0 +1,89 @@
+package com.mapscloud.track.services.io;
+
+import android.location.Location;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.model.Waypoint;
+
+import java.io.IOException;
+
+/**
+ * Writes a track as KML 2.2, using a gx:MultiTrack with one gx:Track per
+ * segment so the times are kept.
+ */
+public class KmlTrackWriter implements TrackFormatWriter {
+
+    @Override
+    public void writeHeader(ExportOutput out, Track track) throws IOException {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .write("<kml xmlns=\"http://www.opengis.net/kml/2.2\"")
+                .write(" xmlns:gx=\"http://www.google.com/kml/ext/2.2\">\n")
+                .write("<Document>\n")
+                .write("<open>1</open>\n")
+                .write("<visibility>1</visibility>\n")
+                .write("<name>").writeXmlEscaped(track.name).write("</name>\n")
+                .write("<description>").writeXmlEscaped(track.description).write("</description>\n");
+    }
+
+    @Override
+    public void writeWaypoint(ExportOutput out, Waypoint waypoint) throws IOException {
+        Location location = waypoint.location;
+        if (location == null) {
+            return;
+        }
+        out.write("<Placemark>\n")
+                .write("<name>").writeXmlEscaped(waypoint.name).write("</name>\n")
+                .write("<description>").writeXmlEscaped(waypoint.description).write("</description>\n")
+                .write("<TimeStamp><when>").writeIso8601(location.getTime()).write("</when></TimeStamp>\n")
+                .write("<Point><coordinates>");
+        writeCoordinates(out, location, ',');
+        out.write("</coordinates></Point>\n")
+                .write("</Placemark>\n");
+    }
+
+    @Override
+    public void writeBeginTrack(ExportOutput out, Track track, Location firstLocation) throws IOException {
+        out.write("<Placemark>\n")
+                .write("<name>").writeXmlEscaped(track.name).write("</name>\n")
+                .write("<description>").writeXmlEscaped(track.description).write("</description>\n")
+                .write("<gx:MultiTrack>\n")
+                .write("<altitudeMode>absolute</altitudeMode>\n")
+                .write("<gx:interpolate>1</gx:interpolate>\n");
+    }
+
+    @Override
+    public void writeOpenSegment(ExportOutput out) throws IOException {
+        out.write("<gx:Track>\n");
+    }
+
+    @Override
+    public void writeLocation(ExportOutput out, Location location) throws IOException {
+        out.write("<when>").writeIso8601(location.getTime()).write("</when>\n<gx:coord>");
+        writeCoordinates(out, location, ' ');
+        out.write("</gx:coord>\n");
+    }
+
+    @Override
+    public void writeCloseSegment(ExportOutput out) throws IOException {
+        out.write("</gx:Track>\n");
+    }
+
+    @Override
+    public void writeEndTrack(ExportOutput out, Track track, Location lastLocation) throws IOException {
+        out.write("</gx:MultiTrack>\n")
+                .write("</Placemark>\n");
+    }
+
+    @Override
+    public void writeFooter(ExportOutput out) throws IOException {
+        out.write("</Document>\n")
+                .write("</kml>\n");
+    }
+
+    private void writeCoordinates(ExportOutput out, Location location, char separator) throws IOException {
+        out.writeDegrees(location.getLongitude()).write(separator).writeDegrees(location.getLatitude());
+        if (location.hasAltitude()) {
+            out.write(separator).write(location.getAltitude(), 1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.mapscloud.track.services.io;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.location.Location;
+import android.location.LocationManager;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.model.MyTracksLocation;
+import com.mapscloud.track.services.model.Waypoint;
+import com.mapscloud.track.services.model.Waypoint.WaypointType;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils.LocationFactory;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils.LocationIterator;
+import com.mapscloud.track.services.utils.LocationUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streams a track to an {@link OutputStream} in a {@link TrackFileFormat}.
+ * <p>
+ * Track points are read through
+ * {@link MyTracksProviderUtils#getTrackPointLocationIterator} into a single
+ * reused {@link Location}, so memory use does not depend on the track length.
+ * An exporter keeps no state between calls, several exports can run
+ * concurrently on different threads.
+ */
+public class TrackExporter {
+
+    private final MyTracksProviderUtils myTracksProviderUtils;
+
+    public TrackExporter(Context context) {
+        this(MyTracksProviderUtils.Factory.get(context));
+    }
+
+    public TrackExporter(MyTracksProviderUtils myTracksProviderUtils) {
+        this.myTracksProviderUtils = myTracksProviderUtils;
+    }
+
+    /**
+     * Exports a track. The output stream is closed when done. Returns false if
+     * the track doesn't exist.
+     *
+     * @param trackId      the track id
+     * @param format       the file format
+     * @param outputStream the output stream
+     */
+    public boolean export(long trackId, TrackFileFormat format, OutputStream outputStream) throws IOException {
+        return export(trackId, format.newFormatWriter(), outputStream);
+    }
+
+    /**
+     * Exports a track with a custom format writer. The output stream is closed
+     * when done. Returns false if the track doesn't exist.
+     *
+     * @param trackId      the track id
+     * @param formatWriter the format writer, not shared with other exports
+     * @param outputStream the output stream
+     */
+    public boolean export(long trackId, TrackFormatWriter formatWriter, OutputStream outputStream)
+            throws IOException {
+        ExportOutput out = new ExportOutput(outputStream);
+        try {
+            Track track = myTracksProviderUtils.getTrack(trackId);
+            if (track == null) {
+                return false;
+            }
+            formatWriter.writeHeader(out, track);
+            writeWaypoints(out, formatWriter, trackId);
+            writeLocations(out, formatWriter, track);
+            formatWriter.writeFooter(out);
+            return true;
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeWaypoints(ExportOutput out, TrackFormatWriter formatWriter, long trackId)
+            throws IOException {
+        Cursor cursor = null;
+        try {
+            cursor = myTracksProviderUtils.getWaypointCursor(trackId, -1L, -1);
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    Waypoint waypoint = myTracksProviderUtils.createWaypoint(cursor);
+                    if (waypoint.type == WaypointType.WAYPOINT) {
+                        formatWriter.writeWaypoint(out, waypoint);
+                    }
+                } while (cursor.moveToNext());
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    private void writeLocations(ExportOutput out, TrackFormatWriter formatWriter, Track track)
+            throws IOException {
+        final MyTracksLocation reused = new MyTracksLocation(LocationManager.GPS_PROVIDER);
+        Location lastLocation = null;
+        boolean segmentOpen = false;
+        LocationIterator iterator = myTracksProviderUtils.getTrackPointLocationIterator(track.id, -1L, false,
+                new LocationFactory() {
+                    @Override
+                    public Location createLocation() {
+                        return reused;
+                    }
+                });
+        try {
+            while (iterator.hasNext()) {
+                Location location = iterator.next();
+                if (!LocationUtils.isValidLocation(location)) {
+                    // Pause/resume separator
+                    if (segmentOpen) {
+                        formatWriter.writeCloseSegment(out);
+                        segmentOpen = false;
+                    }
+                    continue;
+                }
+                if (lastLocation == null) {
+                    formatWriter.writeBeginTrack(out, track, location);
+                    lastLocation = new Location(location);
+                }
+                if (!segmentOpen) {
+                    formatWriter.writeOpenSegment(out);
+                    segmentOpen = true;
+                }
+                formatWriter.writeLocation(out, location);
+                lastLocation.set(location);
+            }
+        } finally {
+            iterator.close();
+        }
+        if (segmentOpen) {
+            formatWriter.writeCloseSegment(out);
+        }
+        if (lastLocation != null) {
+            formatWriter.writeEndTrack(out, track, lastLocation);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.mapscloud.track.services.io;
+
+/**
+ * Track file formats supported by {@link TrackExporter}.
+ */
+public enum TrackFileFormat {
+
+    GPX("gpx", "application/gpx+xml") {
+        @Override
+        public TrackFormatWriter newFormatWriter() {
+            return new GpxTrackWriter();
+        }
+    },
+    KML("kml", "application/vnd.google-earth.kml+xml") {
+        @Override
+        public TrackFormatWriter newFormatWriter() {
+            return new KmlTrackWriter();
+        }
+    },
+    GEOJSON("geojson", "application/geo+json") {
+        @Override
+        public TrackFormatWriter newFormatWriter() {
+            return new GeoJsonTrackWriter();
+        }
+    },
+    CSV("csv", "text/csv") {
+        @Override
+        public TrackFormatWriter newFormatWriter() {
+            return new CsvTrackWriter();
+        }
+    };
+
+    private final String extension;
+    private final String mimeType;
+
+    TrackFileFormat(String extension, String mimeType) {
+        this.extension = extension;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Creates a new writer for this format.
+     */
+    public abstract TrackFormatWriter newFormatWriter();
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+}
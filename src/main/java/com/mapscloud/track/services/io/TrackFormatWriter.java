@@ -0,0 +1,44 @@
+package com.mapscloud.track.services.io;
+
+import android.location.Location;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.model.Waypoint;
+
+import java.io.IOException;
+
+/**
+ * Interface for writing a track in a file format. {@link TrackExporter} calls
+ * the methods in this order:
+ * <ul>
+ * <li>{@link #writeHeader(ExportOutput, Track)}</li>
+ * <li>{@link #writeWaypoint(ExportOutput, Waypoint)} for each waypoint</li>
+ * <li>{@link #writeBeginTrack(ExportOutput, Track, Location)}, if the track has
+ * valid locations</li>
+ * <li>{@link #writeOpenSegment(ExportOutput)},
+ * {@link #writeLocation(ExportOutput, Location)} for each location of the
+ * segment, {@link #writeCloseSegment(ExportOutput)} for each segment</li>
+ * <li>{@link #writeEndTrack(ExportOutput, Track, Location)}</li>
+ * <li>{@link #writeFooter(ExportOutput)}</li>
+ * </ul>
+ * The locations passed in are reused by the exporter, implementations must not
+ * keep references to them. A writer instance is used for a single export.
+ */
+public interface TrackFormatWriter {
+
+    void writeHeader(ExportOutput out, Track track) throws IOException;
+
+    void writeWaypoint(ExportOutput out, Waypoint waypoint) throws IOException;
+
+    void writeBeginTrack(ExportOutput out, Track track, Location firstLocation) throws IOException;
+
+    void writeOpenSegment(ExportOutput out) throws IOException;
+
+    void writeLocation(ExportOutput out, Location location) throws IOException;
+
+    void writeCloseSegment(ExportOutput out) throws IOException;
+
+    void writeEndTrack(ExportOutput out, Track track, Location lastLocation) throws IOException;
+
+    void writeFooter(ExportOutput out) throws IOException;
+}
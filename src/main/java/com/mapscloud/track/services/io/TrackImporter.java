@@ -0,0 +1,488 @@
+package com.mapscloud.track.services.io;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+import android.net.Uri;
+import android.util.Log;
+import android.util.Xml;
+
+import com.mapscloud.track.R;
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.content.TripStatisticsUpdater;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.utils.Constant;
+import com.mapscloud.track.services.utils.PreferencesUtils;
+import com.mapscloud.track.services.utils.StringUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Imports GPX and KML files as new tracks.
+ * <p>
+ * Files are read with a pull parser and track points are written through
+ * {@link MyTracksProviderUtils#bulkInsertTrackPoint(Location[], int, long)} in
+ * large batches, one transaction per batch. The track statistics are computed
+ * in the same pass with a {@link TripStatisticsUpdater}. Track segments are
+ * separated by pause/resume points like a recorded track.
+ * <p>
+ * GPX: trkpt and rtept with ele and time. KML: gx:Track with when and gx:coord,
+ * interleaved or not. Points without a time are skipped.
+ */
+public class TrackImporter {
+
+    private static final String TAG = TrackImporter.class.getSimpleName();
+
+    // 每批插入的轨迹点数，一批一个事务
+    private static final int BATCH_SIZE = 2000;
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final MyTracksProviderUtils myTracksProviderUtils;
+    private final int minRecordingDistance;
+
+    public TrackImporter(Context context) {
+        this(MyTracksProviderUtils.Factory.get(context), PreferencesUtils.getInt(context,
+                R.string.min_recording_distance_key, PreferencesUtils.MIN_RECORDING_DISTANCE_DEFAULT));
+    }
+
+    public TrackImporter(MyTracksProviderUtils myTracksProviderUtils, int minRecordingDistance) {
+        this.myTracksProviderUtils = myTracksProviderUtils;
+        this.minRecordingDistance = minRecordingDistance;
+    }
+
+    /**
+     * Imports files one after the other, choosing the format by extension.
+     * Files that fail are logged and skipped. Returns the ids of the imported
+     * tracks.
+     *
+     * @param files   the .gpx or .kml files
+     * @param appId   the app id of the new tracks. Can be null
+     * @param appName the app name of the new tracks. Can be null
+     */
+    public List<Long> importFiles(List<File> files, String appId, String appName) {
+        return importFiles(files, appId, appName, null);
+    }
+
+    /**
+     * Imports files one after the other, choosing the format by extension.
+     * A file that fails to read or to parse, including a malformed number or
+     * time, is logged, added to failedFiles and skipped, the next files are
+     * still imported. Returns the ids of the imported tracks.
+     *
+     * @param files       the .gpx or .kml files
+     * @param appId       the app id of the new tracks. Can be null
+     * @param appName     the app name of the new tracks. Can be null
+     * @param failedFiles the list to add the failed files to. Can be null
+     */
+    public List<Long> importFiles(List<File> files, String appId, String appName, List<File> failedFiles) {
+        List<Long> trackIds = new ArrayList<Long>(files.size());
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.US);
+            TrackFileFormat format;
+            if (name.endsWith("." + TrackFileFormat.GPX.getExtension())) {
+                format = TrackFileFormat.GPX;
+            } else if (name.endsWith("." + TrackFileFormat.KML.getExtension())) {
+                format = TrackFileFormat.KML;
+            } else {
+                Log.w(TAG, "Skipping unsupported file " + file);
+                continue;
+            }
+            try {
+                long trackId = importTrack(new FileInputStream(file), format, appId, appName);
+                if (trackId != -1L) {
+                    trackIds.add(trackId);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to import " + file, e);
+                if (failedFiles != null) {
+                    failedFiles.add(file);
+                }
+            } catch (RuntimeException e) {
+                // 解析器的NumberFormatException、IllegalArgumentException等，一个文件坏了不影响其他文件
+                Log.e(TAG, "Unable to import " + file, e);
+                if (failedFiles != null) {
+                    failedFiles.add(file);
+                }
+            }
+        }
+        return trackIds;
+    }
+
+    /**
+     * Imports a track. The input stream is closed when done. Returns the new
+     * track id, or -1L if the file has no track points.
+     *
+     * @param inputStream the input stream
+     * @param format      {@link TrackFileFormat#GPX} or {@link TrackFileFormat#KML}
+     * @param appId       the app id of the new track. Can be null
+     * @param appName     the app name of the new track. Can be null
+     */
+    public long importTrack(InputStream inputStream, TrackFileFormat format, String appId, String appName)
+            throws IOException {
+        if (format != TrackFileFormat.GPX && format != TrackFileFormat.KML) {
+            inputStream.close();
+            throw new IllegalArgumentException("Unsupported import format " + format);
+        }
+        Session session = new Session(appId, appName);
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new BufferedInputStream(inputStream, INPUT_BUFFER_SIZE), null);
+            if (format == TrackFileFormat.GPX) {
+                parseGpx(parser, session);
+            } else {
+                parseKml(parser, session);
+            }
+            return session.finish();
+        } catch (XmlPullParserException e) {
+            session.abort();
+            throw new IOException("Unable to parse " + format + ": " + e.getMessage());
+        } catch (IOException e) {
+            session.abort();
+            throw e;
+        } catch (RuntimeException e) {
+            session.abort();
+            throw e;
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void parseGpx(XmlPullParser parser, Session session) throws XmlPullParserException, IOException {
+        // Current point, valid while inside trkpt/rtept
+        boolean inPoint = false;
+        double latitude = 0;
+        double longitude = 0;
+        double elevation = Double.NaN;
+        long time = -1L;
+        int depth = 0;
+        int trackDepth = -1;
+
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                depth++;
+                String name = localName(parser.getName());
+                if (name.equals("trkpt") || name.equals("rtept")) {
+                    inPoint = true;
+                    latitude = parseDouble(parser.getAttributeValue(null, "lat"));
+                    longitude = parseDouble(parser.getAttributeValue(null, "lon"));
+                    elevation = Double.NaN;
+                    time = -1L;
+                } else if (inPoint && name.equals("ele")) {
+                    elevation = parseDouble(readText(parser));
+                    depth--;
+                } else if (inPoint && name.equals("time")) {
+                    time = parseTime(readText(parser));
+                    depth--;
+                } else if (name.equals("trk") || name.equals("rte")) {
+                    trackDepth = depth;
+                } else if (!inPoint && name.equals("name") && depth == trackDepth + 1) {
+                    session.setName(readText(parser));
+                    depth--;
+                } else if (!inPoint && name.equals("desc") && depth == trackDepth + 1) {
+                    session.setDescription(readText(parser));
+                    depth--;
+                } else if (!inPoint && name.equals("type") && depth == trackDepth + 1) {
+                    session.setCategory(readText(parser));
+                    depth--;
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                depth--;
+                String name = localName(parser.getName());
+                if (name.equals("trkpt") || name.equals("rtept")) {
+                    inPoint = false;
+                    session.addPoint(latitude, longitude, elevation, time);
+                } else if (name.equals("trkseg") || name.equals("rte")) {
+                    session.endSegment();
+                } else if (name.equals("trk")) {
+                    trackDepth = -1;
+                }
+            }
+        }
+    }
+
+    private void parseKml(XmlPullParser parser, Session session) throws XmlPullParserException, IOException {
+        // whens and coords of the current gx:Track, paired in order
+        KmlTrackBuffer buffer = new KmlTrackBuffer();
+        boolean inTrack = false;
+        int placemarkDepth = -1;
+        String placemarkName = null;
+        String placemarkDescription = null;
+        int depth = 0;
+
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            if (event == XmlPullParser.START_TAG) {
+                depth++;
+                String name = localName(parser.getName());
+                if (name.equals("Placemark")) {
+                    placemarkDepth = depth;
+                    placemarkName = null;
+                    placemarkDescription = null;
+                } else if (name.equals("Track")) {
+                    inTrack = true;
+                    buffer.clear();
+                    session.setName(placemarkName);
+                    session.setDescription(placemarkDescription);
+                } else if (inTrack && name.equals("when")) {
+                    buffer.addWhen(parseTime(readText(parser)));
+                    buffer.drain(session);
+                    depth--;
+                } else if (inTrack && name.equals("coord")) {
+                    buffer.addCoord(readText(parser));
+                    buffer.drain(session);
+                    depth--;
+                } else if (name.equals("name") && depth == placemarkDepth + 1) {
+                    placemarkName = readText(parser);
+                    depth--;
+                } else if (name.equals("description") && depth == placemarkDepth + 1) {
+                    placemarkDescription = readText(parser);
+                    depth--;
+                }
+            } else if (event == XmlPullParser.END_TAG) {
+                depth--;
+                String name = localName(parser.getName());
+                if (name.equals("Track")) {
+                    inTrack = false;
+                    session.endSegment();
+                } else if (name.equals("Placemark")) {
+                    placemarkDepth = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the text of the current element and moves to its end tag.
+     */
+    private static String readText(XmlPullParser parser) throws XmlPullParserException, IOException {
+        return parser.nextText().trim();
+    }
+
+    private static String localName(String name) {
+        int colon = name.indexOf(':');
+        return colon == -1 ? name : name.substring(colon + 1);
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null || value.length() == 0) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static long parseTime(String value) {
+        if (value.length() == 0) {
+            return -1L;
+        }
+        try {
+            return StringUtils.getTime(value);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid time " + value);
+            return -1L;
+        }
+    }
+
+    /**
+     * Pairs the when and gx:coord elements of a KML gx:Track, which may come
+     * interleaved or as two lists. Only the unpaired tail is buffered.
+     */
+    private static class KmlTrackBuffer {
+        private long[] whens = new long[64];
+        private double[] coords = new double[64 * 3];
+        private int whenCount;
+        private int coordCount;
+        private int drained;
+
+        void clear() {
+            whenCount = 0;
+            coordCount = 0;
+            drained = 0;
+        }
+
+        void addWhen(long when) {
+            if (whenCount == whens.length) {
+                whens = grow(whens);
+            }
+            whens[whenCount++] = when;
+        }
+
+        void addCoord(String text) {
+            if ((coordCount + 1) * 3 > coords.length) {
+                coords = grow(coords);
+            }
+            // "lon lat alt"
+            String[] parts = text.split("\\s+");
+            coords[coordCount * 3] = parts.length > 0 ? parseDouble(parts[0]) : Double.NaN;
+            coords[coordCount * 3 + 1] = parts.length > 1 ? parseDouble(parts[1]) : Double.NaN;
+            coords[coordCount * 3 + 2] = parts.length > 2 ? parseDouble(parts[2]) : Double.NaN;
+            coordCount++;
+        }
+
+        void drain(Session session) {
+            int paired = Math.min(whenCount, coordCount);
+            for (; drained < paired; drained++) {
+                session.addPoint(coords[drained * 3 + 1], coords[drained * 3], coords[drained * 3 + 2],
+                        whens[drained]);
+            }
+            if (drained == whenCount && drained == coordCount) {
+                clear();
+            }
+        }
+
+        private static long[] grow(long[] array) {
+            long[] copy = new long[array.length * 2];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            return copy;
+        }
+
+        private static double[] grow(double[] array) {
+            double[] copy = new double[array.length * 2];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            return copy;
+        }
+    }
+
+    /**
+     * State of one import: the track, the pending batch and the statistics.
+     */
+    private class Session {
+        private final Track track = new Track();
+        private final Location[] batch = new Location[BATCH_SIZE];
+        private int batchSize;
+        private TripStatisticsUpdater tripStatisticsUpdater;
+        private int numberOfPoints;
+        private boolean segmentOpen;
+        private boolean segmentEnded;
+        private long lastTime = -1L;
+
+        Session(String appId, String appName) {
+            track.appId = appId;
+            track.appName = appName;
+        }
+
+        void setName(String name) {
+            if (track.name == null || track.name.length() == 0) {
+                track.name = name;
+            }
+        }
+
+        void setDescription(String description) {
+            if (track.description == null || track.description.length() == 0) {
+                track.description = description;
+            }
+        }
+
+        void setCategory(String category) {
+            if (track.category == null || track.category.length() == 0) {
+                track.category = category;
+            }
+        }
+
+        void addPoint(double latitude, double longitude, double elevation, long time) {
+            if (time < 0 || Double.isNaN(latitude) || Double.isNaN(longitude) || Math.abs(latitude) > 90
+                    || Math.abs(longitude) > 180) {
+                return;
+            }
+            if (tripStatisticsUpdater == null) {
+                tripStatisticsUpdater = new TripStatisticsUpdater(time);
+                track.getTripStatistics().setStartTime(time);
+                Uri uri = myTracksProviderUtils.insertTrack(track);
+                if (uri == null) {
+                    throw new IllegalStateException("Unable to insert track");
+                }
+                track.id = Long.parseLong(uri.getLastPathSegment());
+            } else if (segmentEnded) {
+                // New segment, mark it like a pause/resume of a recording
+                add(createMarker(Constant.PAUSE_LATITUDE, lastTime));
+                add(createMarker(Constant.RESUME_LATITUDE, time));
+            }
+            segmentOpen = true;
+            segmentEnded = false;
+
+            Location location = new Location(LocationManager.GPS_PROVIDER);
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            if (!Double.isNaN(elevation)) {
+                location.setAltitude(elevation);
+            }
+            location.setTime(time);
+            add(location);
+            numberOfPoints++;
+            lastTime = time;
+        }
+
+        void endSegment() {
+            if (segmentOpen) {
+                segmentOpen = false;
+                segmentEnded = true;
+            }
+        }
+
+        /**
+         * Flushes the last batch and updates the track. Returns the track id,
+         * or -1L if there were no points.
+         */
+        long finish() {
+            if (tripStatisticsUpdater == null) {
+                return -1L;
+            }
+            flush();
+            tripStatisticsUpdater.updateTime(lastTime);
+            track.setTripStatistics(tripStatisticsUpdater.getTripStatistics());
+            track.numberOfPoints = numberOfPoints;
+            track.startId = myTracksProviderUtils.getFirstTrackPointId(track.id);
+            track.stopId = myTracksProviderUtils.getLastTrackPointId(track.id);
+            if (track.name == null || track.name.length() == 0) {
+                track.name = myTracksProviderUtils.getDefaultTitle(null);
+            }
+            myTracksProviderUtils.updateTrack(track);
+            myTracksProviderUtils.updateRollups(track.appId, track.getTripStatistics().getStartTime());
+            return track.id;
+        }
+
+        void abort() {
+            if (track.id >= 0) {
+                myTracksProviderUtils.deleteTrack(track.id);
+            }
+        }
+
+        private void add(Location location) {
+            tripStatisticsUpdater.addLocation(location, minRecordingDistance);
+            batch[batchSize++] = location;
+            if (batchSize == BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batchSize > 0) {
+                myTracksProviderUtils.bulkInsertTrackPoint(batch, batchSize, track.id);
+                for (int i = 0; i < batchSize; i++) {
+                    batch[i] = null;
+                }
+                batchSize = 0;
+            }
+        }
+
+        private Location createMarker(double latitude, long time) {
+            Location marker = new Location(LocationManager.GPS_PROVIDER);
+            marker.setLongitude(0);
+            marker.setLatitude(latitude);
+            marker.setTime(time);
+            return marker;
+        }
+    }
+}
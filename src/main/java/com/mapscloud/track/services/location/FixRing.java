@@ -0,0 +1,294 @@
+package com.mapscloud.track.services.location;
+
+import android.location.Location;
+import android.os.Build;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A preallocated ring of fix slots between the location callbacks and the
+ * recording worker thread.
+ * <p>
+ * {@link #offer(Location, long)} copies the fields of a fix into the
+ * primitive arrays of a slot and allocates nothing. The worker waits in
+ * {@link #await()} and takes all the available fixes at once with
+ * {@link #drain(Sink)}, a new {@link Location} per fix. Extras and subclass
+ * fields of the offered fixes are not kept.
+ * <p>
+ * Each slot has a version, odd while written, so the worker never blocks on
+ * the callbacks and detects a slot rewritten while read (a seqlock). When
+ * the ring is full, {@link OverflowPolicy} decides which fix is lost. The
+ * slot fields are atomic array elements, the doubles and floats as their
+ * raw bits: written with lazySet between the two version writes and read
+ * with volatile gets between the two version reads, so neither side can
+ * move a field access past a version access, as plain fields could.
+ * <p>
+ * Single consumer. Offers from several threads (arbiter, binder) are
+ * serialized between themselves, the consumer takes no lock.
+ */
+public class FixRing {
+
+    /**
+     * What to do with a fix offered to a full ring.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Overwrite the oldest fix not taken yet.
+         */
+        DROP_OLDEST,
+        /**
+         * Overwrite the newest fix not taken yet, a burst collapses into its
+         * last fix.
+         */
+        COALESCE
+    }
+
+    /**
+     * Receives the fixes taken from the ring.
+     */
+    public interface Sink {
+
+        /**
+         * Called on the consumer thread, oldest fix first.
+         *
+         * @param location     the fix, owned by the sink
+         * @param arrivalNanos the {@link System#nanoTime()} the fix was offered at
+         */
+        void onFix(Location location, long arrivalNanos);
+    }
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private static final int HAS_ALTITUDE = 1;
+    private static final int HAS_SPEED = 2;
+    private static final int HAS_BEARING = 4;
+    private static final int HAS_ACCURACY = 8;
+
+    // The fields of a slot in data
+    private static final int POSITION = 0;
+    private static final int ARRIVAL_NANOS = 1;
+    private static final int TIME = 2;
+    private static final int ELAPSED_REALTIME_NANOS = 3;
+    private static final int LATITUDE = 4;
+    private static final int LONGITUDE = 5;
+    private static final int ALTITUDE = 6;
+    private static final int SPEED = 7;
+    private static final int BEARING = 8;
+    private static final int ACCURACY = 9;
+    private static final int FLAGS = 10;
+    private static final int FIELDS = 11;
+
+    private final int mask;
+
+    // Slot fields, FIELDS per slot
+    private final AtomicLongArray data;
+    private final AtomicReferenceArray<String> providers;
+    private final AtomicLongArray versions;
+
+    // The next position to write, and to read
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private volatile Thread waiter;
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    // Consumer state, the version and arrival of the last slot read
+    private long readVersion;
+    private long readArrivalNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of slots, a power of two of at least 2
+     */
+    public FixRing(int capacity) {
+        if (capacity < 2 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        data = new AtomicLongArray(capacity * FIELDS);
+        providers = new AtomicReferenceArray<String>(capacity);
+        versions = new AtomicLongArray(capacity);
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Offers a fix, never blocks on the consumer.
+     *
+     * @param location the fix, copied
+     * @param arrival  the {@link System#nanoTime()} the fix arrived at
+     */
+    public synchronized void offer(Location location, long arrival) {
+        long next = tail.get();
+        boolean full = next - head.get() > mask;
+        long position = next;
+        if (full && overflowPolicy == OverflowPolicy.COALESCE) {
+            position = next - 1;
+            coalescedCount.incrementAndGet();
+        } else if (full) {
+            droppedCount.incrementAndGet();
+        }
+
+        int slot = (int) position & mask;
+        long version = versions.get(slot);
+        versions.set(slot, version + 1);
+        int base = slot * FIELDS;
+        data.lazySet(base + POSITION, position);
+        data.lazySet(base + ARRIVAL_NANOS, arrival);
+        data.lazySet(base + TIME, location.getTime());
+        data.lazySet(base + ELAPSED_REALTIME_NANOS, Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                ? location.getElapsedRealtimeNanos() : 0L);
+        data.lazySet(base + LATITUDE, Double.doubleToRawLongBits(location.getLatitude()));
+        data.lazySet(base + LONGITUDE, Double.doubleToRawLongBits(location.getLongitude()));
+        data.lazySet(base + ALTITUDE, Double.doubleToRawLongBits(location.getAltitude()));
+        data.lazySet(base + SPEED, Float.floatToRawIntBits(location.getSpeed()));
+        data.lazySet(base + BEARING, Float.floatToRawIntBits(location.getBearing()));
+        data.lazySet(base + ACCURACY, Float.floatToRawIntBits(location.getAccuracy()));
+        data.lazySet(base + FLAGS, (location.hasAltitude() ? HAS_ALTITUDE : 0)
+                | (location.hasSpeed() ? HAS_SPEED : 0) | (location.hasBearing() ? HAS_BEARING : 0)
+                | (location.hasAccuracy() ? HAS_ACCURACY : 0));
+        providers.lazySet(slot, location.getProvider());
+        versions.set(slot, version + 2);
+        if (position == next) {
+            tail.set(next + 1);
+        }
+
+        Thread thread = waiter;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Waits until the ring has a fix. Consumer only.
+     */
+    public void await() throws InterruptedException {
+        waiter = Thread.currentThread();
+        try {
+            while (head.get() == tail.get()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                LockSupport.park(this);
+            }
+        } finally {
+            waiter = null;
+        }
+    }
+
+    /**
+     * Takes all the available fixes. Consumer only.
+     *
+     * @param sink the sink
+     * @return the number of fixes taken
+     */
+    public int drain(Sink sink) {
+        int count = 0;
+        long position = head.get();
+        long end = tail.get();
+        while (position < end) {
+            if (end - position > mask + 1) {
+                // Overwritten, already counted as dropped by the producer
+                position = end - mask - 1;
+            }
+            int slot = (int) position & mask;
+            Location location = read(slot, position);
+            head.set(position + 1);
+            while (location != null) {
+                long version = readVersion;
+                count++;
+                sink.onFix(location, readArrivalNanos);
+                // A fix coalesced into the slot between its read and the head update
+                if (versions.get(slot) == version) {
+                    break;
+                }
+                location = read(slot, position);
+            }
+            position++;
+            if (position == end) {
+                end = tail.get();
+            }
+        }
+        return count;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Gets the number of fixes not taken yet.
+     */
+    public int size() {
+        return (int) Math.min(tail.get() - head.get(), mask + 1);
+    }
+
+    /*
+     * Reads a slot, retrying while it is written. Returns null if it was
+     * overwritten by a later position.
+     */
+    private Location read(int slot, long position) {
+        while (true) {
+            long version = versions.get(slot);
+            if ((version & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            int base = slot * FIELDS;
+            long slotPosition = data.get(base + POSITION);
+            long arrival = data.get(base + ARRIVAL_NANOS);
+            long time = data.get(base + TIME);
+            long elapsed = data.get(base + ELAPSED_REALTIME_NANOS);
+            double latitude = Double.longBitsToDouble(data.get(base + LATITUDE));
+            double longitude = Double.longBitsToDouble(data.get(base + LONGITUDE));
+            double altitude = Double.longBitsToDouble(data.get(base + ALTITUDE));
+            float speed = Float.intBitsToFloat((int) data.get(base + SPEED));
+            float bearing = Float.intBitsToFloat((int) data.get(base + BEARING));
+            float accuracy = Float.intBitsToFloat((int) data.get(base + ACCURACY));
+            int slotFlags = (int) data.get(base + FLAGS);
+            String provider = providers.get(slot);
+            if (versions.get(slot) != version) {
+                continue;
+            }
+            readVersion = version;
+            if (slotPosition != position) {
+                return null;
+            }
+
+            Location location = new Location(provider);
+            location.setTime(time);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                location.setElapsedRealtimeNanos(elapsed);
+            }
+            location.setLatitude(latitude);
+            location.setLongitude(longitude);
+            if ((slotFlags & HAS_ALTITUDE) != 0) {
+                location.setAltitude(altitude);
+            }
+            if ((slotFlags & HAS_SPEED) != 0) {
+                location.setSpeed(speed);
+            }
+            if ((slotFlags & HAS_BEARING) != 0) {
+                location.setBearing(bearing);
+            }
+            if ((slotFlags & HAS_ACCURACY) != 0) {
+                location.setAccuracy(accuracy);
+            }
+            readArrivalNanos = arrival;
+            return location;
+        }
+    }
+}
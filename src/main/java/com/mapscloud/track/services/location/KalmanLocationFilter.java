@@ -0,0 +1,276 @@
+package com.mapscloud.track.services.location;
+
+import android.location.Location;
+import android.os.Build;
+
+import java.util.Locale;
+
+/**
+ * A constant velocity Kalman filter smoothing the fixes of one recording
+ * session. The state is the position and the velocity along the east and north
+ * axes, in meters from the first fix of the session, filtered independently.
+ * The measurement noise is the fix accuracy, the process noise is the
+ * acceleration the {@link ActivityType} is expected to have.
+ * <p>
+ * {@link #filter(Location)} smooths a fix in place. The accuracy of the
+ * smoothed fix is the standard deviation of the filtered position, and, from
+ * Oreo, its speed accuracy the standard deviation of the filtered velocity.
+ * The full covariances are available from {@link #getEastCovariance(double[])}
+ * and {@link #getNorthCovariance(double[])}. Nothing is allocated per fix.
+ * Not thread safe, use one filter per session.
+ */
+public class KalmanLocationFilter {
+
+    /**
+     * Activity types, with the standard deviation of their acceleration.
+     */
+    public enum ActivityType {
+        WALKING(1.0),
+        RUNNING(2.0),
+        CYCLING(3.0),
+        DRIVING(5.0);
+
+        // In meters per second squared
+        final double acceleration;
+
+        ActivityType(double acceleration) {
+            this.acceleration = acceleration;
+        }
+
+        /**
+         * Guesses the activity type from a track category, walking if unknown.
+         *
+         * @param category the track category, can be null
+         */
+        public static ActivityType fromCategory(String category) {
+            if (category == null) {
+                return WALKING;
+            }
+            String lower = category.toLowerCase(Locale.US);
+            if (lower.contains("run") || category.contains("跑")) {
+                return RUNNING;
+            }
+            if (lower.contains("bik") || lower.contains("cycl") || category.contains("骑")) {
+                return CYCLING;
+            }
+            if (lower.contains("driv") || lower.contains("car") || category.contains("驾") || category.contains("车")) {
+                return DRIVING;
+            }
+            return WALKING;
+        }
+    }
+
+    // Restart the filter after a gap longer than this, in milliseconds
+    private static final long MAX_GAP = 60 * 1000L;
+
+    // The accuracy assumed for fixes without one, in meters
+    private static final float UNKNOWN_ACCURACY = 30f;
+
+    // Meters per degree of latitude
+    private static final double METERS_PER_DEGREE = 111320.0;
+
+    private double processNoise;
+
+    private boolean initialized;
+    private double originLatitude;
+    private double originLongitude;
+    private double metersPerDegreeLongitude;
+    private long lastTime;
+
+    // East axis: position, velocity and covariance
+    private double x;
+    private double vx;
+    private double px00;
+    private double px01;
+    private double px11;
+
+    // North axis: position, velocity and covariance
+    private double y;
+    private double vy;
+    private double py00;
+    private double py01;
+    private double py11;
+
+    // The filtered copies, reused alternately
+    private final Location[] copies = new Location[2];
+    private int nextCopy;
+
+    public KalmanLocationFilter(ActivityType activityType) {
+        setActivityType(activityType);
+    }
+
+    /**
+     * Sets the activity type, tuning the process noise. Takes effect at the
+     * next fix, the state is kept.
+     */
+    public void setActivityType(ActivityType activityType) {
+        setProcessNoise(activityType.acceleration);
+    }
+
+    /**
+     * Sets the process noise directly.
+     *
+     * @param acceleration the standard deviation of the acceleration, in
+     *                     meters per second squared
+     */
+    public void setProcessNoise(double acceleration) {
+        if (acceleration <= 0) {
+            throw new IllegalArgumentException("Acceleration must be positive: " + acceleration);
+        }
+        processNoise = acceleration * acceleration;
+    }
+
+    /**
+     * Resets the filter, the next fix starts a new state. Call at a segment
+     * start.
+     */
+    public void reset() {
+        initialized = false;
+    }
+
+    /**
+     * Smooths a copy of a fix, the fix is left untouched for the other
+     * sessions. The copy is one of two locations owned by the filter, used
+     * alternately: a copy stays valid until the second call after it, long
+     * enough for the previous fix the service keeps.
+     *
+     * @param location the fix
+     * @return the smoothed copy
+     */
+    public Location filterCopy(Location location) {
+        Location copy = copies[nextCopy];
+        if (copy == null) {
+            copy = new Location(location);
+            copies[nextCopy] = copy;
+        } else {
+            copy.set(location);
+        }
+        nextCopy = 1 - nextCopy;
+        filter(copy);
+        return copy;
+    }
+
+    /**
+     * Smooths a fix in place: latitude, longitude, accuracy, and the speed if
+     * the fix has none.
+     *
+     * @param location the fix
+     */
+    public void filter(Location location) {
+        long time = location.getTime();
+        double accuracy = location.hasAccuracy() ? location.getAccuracy() : UNKNOWN_ACCURACY;
+        double variance = accuracy * accuracy;
+        if (!initialized || time - lastTime > MAX_GAP || time < lastTime) {
+            init(location, variance);
+            setSpeedAccuracy(location);
+            return;
+        }
+
+        double dt = (time - lastTime) / 1000.0;
+        lastTime = time;
+        double mx = (location.getLongitude() - originLongitude) * metersPerDegreeLongitude;
+        double my = (location.getLatitude() - originLatitude) * METERS_PER_DEGREE;
+
+        // Predict, then update, east axis
+        double dt2 = dt * dt;
+        double q = processNoise;
+        x += vx * dt;
+        px00 += dt * (2 * px01 + dt * px11) + q * dt2 * dt2 / 4;
+        px01 += dt * px11 + q * dt2 * dt / 2;
+        px11 += q * dt2;
+        double s = px00 + variance;
+        double k0 = px00 / s;
+        double k1 = px01 / s;
+        double innovation = mx - x;
+        x += k0 * innovation;
+        vx += k1 * innovation;
+        px11 -= k1 * px01;
+        px00 -= k0 * px00;
+        px01 -= k0 * px01;
+
+        // North axis
+        y += vy * dt;
+        py00 += dt * (2 * py01 + dt * py11) + q * dt2 * dt2 / 4;
+        py01 += dt * py11 + q * dt2 * dt / 2;
+        py11 += q * dt2;
+        s = py00 + variance;
+        k0 = py00 / s;
+        k1 = py01 / s;
+        innovation = my - y;
+        y += k0 * innovation;
+        vy += k1 * innovation;
+        py11 -= k1 * py01;
+        py00 -= k0 * py00;
+        py01 -= k0 * py01;
+
+        location.setLongitude(originLongitude + x / metersPerDegreeLongitude);
+        location.setLatitude(originLatitude + y / METERS_PER_DEGREE);
+        location.setAccuracy((float) Math.sqrt(getPositionVariance()));
+        if (!location.hasSpeed()) {
+            location.setSpeed((float) Math.sqrt(vx * vx + vy * vy));
+        }
+        setSpeedAccuracy(location);
+    }
+
+    /**
+     * Gets the variance of the filtered position, the larger of the two axes,
+     * in square meters.
+     */
+    public double getPositionVariance() {
+        return Math.max(px00, py00);
+    }
+
+    /**
+     * Gets the variance of the filtered velocity, the larger of the two axes,
+     * in square meters per second squared.
+     */
+    public double getVelocityVariance() {
+        return Math.max(px11, py11);
+    }
+
+    /**
+     * Gets the covariance matrix of the east axis state, [position, velocity],
+     * into an array of 3 values: position variance, covariance and velocity
+     * variance.
+     */
+    public void getEastCovariance(double[] covariance) {
+        covariance[0] = px00;
+        covariance[1] = px01;
+        covariance[2] = px11;
+    }
+
+    /**
+     * Gets the covariance matrix of the north axis state, same layout as
+     * {@link #getEastCovariance(double[])}.
+     */
+    public void getNorthCovariance(double[] covariance) {
+        covariance[0] = py00;
+        covariance[1] = py01;
+        covariance[2] = py11;
+    }
+
+    private void setSpeedAccuracy(Location location) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            location.setSpeedAccuracyMetersPerSecond((float) Math.sqrt(getVelocityVariance()));
+        }
+    }
+
+    private void init(Location location, double variance) {
+        initialized = true;
+        lastTime = location.getTime();
+        originLatitude = location.getLatitude();
+        originLongitude = location.getLongitude();
+        metersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(originLatitude));
+        x = 0;
+        y = 0;
+        vx = 0;
+        vy = 0;
+        px00 = variance;
+        py00 = variance;
+        px01 = 0;
+        py01 = 0;
+        // Unknown velocity, a walking to driving range
+        px11 = 100;
+        py11 = 100;
+    }
+}
@@ -0,0 +1,237 @@
+package com.mapscloud.track.services.location;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Build;
+import android.os.Handler;
+
+import com.mapscloud.track.services.utils.Clock;
+
+/**
+ * Picks the best fix per time window out of several {@link LocationSource}s, so
+ * the recording pipeline runs once per window instead of once per provider.
+ * <p>
+ * Fixes are scored by accuracy, provider priority (gps, then fused, then
+ * network) and staleness, lower is better. A window opens with the first fix
+ * and the best fix is delivered when it closes. An accurate fix from the top
+ * priority provider is delivered at once and closes the window. Fixes older
+ * than the last delivered one, too old, or from a lower priority provider
+ * right after a delivery are dropped.
+ * <p>
+ * Ages and order are measured on the elapsed realtime of the fixes, not on
+ * their UTC times, which differ between the GPS and the network providers.
+ * A fix without elapsed realtime is taken as fresh.
+ */
+public class LocationArbiter implements LocationSource.Listener {
+
+    /**
+     * Receives the arbitrated fixes.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the arbiter handler thread, or on the source thread for
+         * fixes delivered at once.
+         *
+         * @param location the best fix of the window
+         */
+        void onLocationChanged(Location location);
+    }
+
+    public static final long DEFAULT_WINDOW = 1000L;
+
+    // Fixes older than this are dropped, in milliseconds
+    private static final long MAX_AGE = 10 * 1000L;
+
+    // A top priority fix at least this accurate is delivered at once, in meters
+    private static final float GOOD_ACCURACY = 10f;
+
+    // The accuracy assumed for fixes without one, in meters
+    private static final float UNKNOWN_ACCURACY = 100f;
+
+    // The score penalty per second of age, in meters
+    private static final double STALENESS_PER_SECOND = 5.0;
+
+    // The score penalty per provider rank, as a factor of the accuracy
+    private static final double RANK_FACTOR = 0.5;
+
+    private final Handler handler;
+    private final Callback callback;
+    private final long window;
+    private final Clock clock;
+
+    private Location pending;
+    private double pendingScore;
+    private Location lastDelivered;
+    private long deliveredCount;
+    private long droppedCount;
+
+    private final Runnable closeWindow = new Runnable() {
+        @Override
+        public void run() {
+            Location location;
+            synchronized (LocationArbiter.this) {
+                location = takePending();
+            }
+            if (location != null) {
+                callback.onLocationChanged(location);
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param handler  the handler closing the windows
+     * @param callback the callback
+     * @param window   the window length in milliseconds
+     */
+    public LocationArbiter(Handler handler, Callback callback, long window) {
+        this(handler, callback, window, Clock.SYSTEM);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param handler  the handler closing the windows
+     * @param callback the callback
+     * @param window   the window length in milliseconds
+     * @param clock    the clock the fix ages are measured with, on its
+     *                 elapsed realtime
+     */
+    public LocationArbiter(Handler handler, Callback callback, long window, Clock clock) {
+        this.handler = handler;
+        this.callback = callback;
+        this.window = window;
+        this.clock = clock;
+    }
+
+    @Override
+    public void onLocationChanged(LocationSource source, Location location) {
+        Location deliver = null;
+        synchronized (this) {
+            long nanos = getElapsedRealtimeNanos(location);
+            long age = nanos == 0L ? 0L : (clock.elapsedRealtimeNanos() - nanos) / 1000000L;
+            if (age > MAX_AGE || isSuperseded(location)) {
+                droppedCount++;
+                return;
+            }
+
+            double score = getScore(location, Math.max(0L, age));
+            if (pending == null) {
+                if (isGoodEnough(location)) {
+                    deliver = location;
+                    lastDelivered = location;
+                    deliveredCount++;
+                } else {
+                    pending = location;
+                    pendingScore = score;
+                    handler.postDelayed(closeWindow, window);
+                }
+            } else {
+                droppedCount++;
+                if (score < pendingScore) {
+                    pending = location;
+                    pendingScore = score;
+                }
+                if (isGoodEnough(location)) {
+                    handler.removeCallbacks(closeWindow);
+                    deliver = takePending();
+                }
+            }
+        }
+        if (deliver != null) {
+            callback.onLocationChanged(deliver);
+        }
+    }
+
+    /**
+     * Drops the pending fix, if any. Call when the sources are stopped.
+     */
+    public synchronized void reset() {
+        handler.removeCallbacks(closeWindow);
+        pending = null;
+        lastDelivered = null;
+    }
+
+    /**
+     * Gets the number of fixes delivered.
+     */
+    public synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    /**
+     * Gets the number of fixes dropped, stale or not the best of their window.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private Location takePending() {
+        Location location = pending;
+        pending = null;
+        if (location != null) {
+            lastDelivered = location;
+            deliveredCount++;
+        }
+        return location;
+    }
+
+    /*
+     * Returns true if the fix is not newer than the last delivered one, or is
+     * from a lower priority provider within a window of it.
+     */
+    private boolean isSuperseded(Location location) {
+        if (lastDelivered == null) {
+            return false;
+        }
+        long nanos = getElapsedRealtimeNanos(location);
+        long lastNanos = getElapsedRealtimeNanos(lastDelivered);
+        long delta;
+        if (nanos != 0L && lastNanos != 0L) {
+            delta = (nanos - lastNanos) / 1000000L;
+        } else if (nanos == 0L && lastNanos == 0L) {
+            delta = location.getTime() - lastDelivered.getTime();
+        } else {
+            // 无法比较，不丢弃
+            return false;
+        }
+        if (delta <= 0) {
+            return true;
+        }
+        return delta < window && getRank(location.getProvider()) > getRank(lastDelivered.getProvider());
+    }
+
+    /*
+     * Gets the elapsed realtime of a fix in nanoseconds, 0 if unknown.
+     */
+    private static long getElapsedRealtimeNanos(Location location) {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 ? location.getElapsedRealtimeNanos()
+                : 0L;
+    }
+
+    private static boolean isGoodEnough(Location location) {
+        return getRank(location.getProvider()) == 0
+                && location.hasAccuracy() && location.getAccuracy() <= GOOD_ACCURACY;
+    }
+
+    private static double getScore(Location location, long age) {
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : UNKNOWN_ACCURACY;
+        return accuracy * (1.0 + RANK_FACTOR * getRank(location.getProvider()))
+                + STALENESS_PER_SECOND * age / 1000.0;
+    }
+
+    /*
+     * Provider priority, 0 is the best. AMap fixes report "gps" or "lbs".
+     */
+    private static int getRank(String provider) {
+        if (LocationManager.GPS_PROVIDER.equals(provider)) {
+            return 0;
+        }
+        if ("fused".equals(provider)) {
+            return 1;
+        }
+        return 2;
+    }
+}
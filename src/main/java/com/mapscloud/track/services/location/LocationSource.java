@@ -0,0 +1,62 @@
+package com.mapscloud.track.services.location;
+
+import android.location.Location;
+
+import java.util.List;
+
+/**
+ * A source of location fixes for the recording service, like the system
+ * {@link android.location.LocationManager} or the SignalManager. Fixes of all
+ * the sources go through a {@link LocationArbiter} before being recorded.
+ */
+public interface LocationSource {
+
+    /**
+     * Receives the fixes of a source.
+     */
+    interface Listener {
+
+        /**
+         * Called for each new fix, on any thread.
+         *
+         * @param source   the source
+         * @param location the fix, not reused by the source
+         */
+        void onLocationChanged(LocationSource source, Location location);
+    }
+
+    /**
+     * Receives the fixes of a batching source as a whole batch.
+     */
+    interface BatchListener extends Listener {
+
+        /**
+         * Called for each batch of fixes buffered by the hardware, on any
+         * thread.
+         *
+         * @param source    the source
+         * @param locations the fixes, oldest first, not reused by the source
+         */
+        void onLocationsChanged(LocationSource source, List<Location> locations);
+    }
+
+    /**
+     * Gets the name of the source, for logging.
+     */
+    String getName();
+
+    /**
+     * Starts the location updates. Starting a started source restarts it
+     * with the new interval.
+     *
+     * @param listener    the listener
+     * @param interval    the desired interval in milliseconds
+     * @param minDistance the minimum distance in meters
+     */
+    void start(Listener listener, long interval, float minDistance);
+
+    /**
+     * Stops the location updates.
+     */
+    void stop();
+}
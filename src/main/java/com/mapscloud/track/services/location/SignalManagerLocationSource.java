@@ -0,0 +1,94 @@
+package com.mapscloud.track.services.location;
+
+import android.location.Location;
+import android.os.SystemClock;
+
+import com.dtt.signal.SignalManager1;
+
+/**
+ * A {@link LocationSource} over {@link SignalManager1}, which provides GPS and
+ * AMap fixes. The SignalManager has its own rate and takes no interval nor
+ * distance, by default the interval passed to {@link #start} is ignored.
+ * <p>
+ * Once {@link #setThrottled(boolean)}, the interval and the minimum distance
+ * are applied here, like the system location manager: a fix is delivered
+ * once the interval has elapsed since the last delivered fix and it is at
+ * least the minimum distance away. This saves the recording work while
+ * stationary, but not the GPS power, only {@link #stop()} does.
+ */
+public class SignalManagerLocationSource implements LocationSource {
+
+    // 硬件定位间隔的抖动
+    private static final long INTERVAL_SLACK = 100L;
+
+    private volatile Listener listener;
+    private volatile boolean throttled;
+    private volatile long interval;
+    private volatile float minDistance;
+
+    // The last delivered fix and its elapsed realtime, on the SignalManager thread
+    private Location lastLocation;
+    private long lastTime;
+
+    private final SignalManager1.LocationChangedObserver locationObserver = new SignalManager1.LocationChangedObserver() {
+        @Override
+        public void onLocationChanged(Location location) {
+            Listener current = listener;
+            if (current == null || location == null) {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (throttled && lastLocation != null) {
+                if (now - lastTime < interval - INTERVAL_SLACK) {
+                    return;
+                }
+                if (minDistance > 0 && location.distanceTo(lastLocation) < minDistance) {
+                    return;
+                }
+            }
+            lastLocation = location;
+            lastTime = now;
+            current.onLocationChanged(SignalManagerLocationSource.this, location);
+        }
+
+        @Override
+        public void onError(Location prelocation) {
+            // Do nothing
+        }
+
+        @Override
+        public void onInvalid() {
+            // Do nothing
+        }
+    };
+
+    /**
+     * Sets whether the interval and the minimum distance passed to
+     * {@link #start} are applied, from the next fix.
+     *
+     * @param throttled true to apply them
+     */
+    public void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+    }
+
+    @Override
+    public String getName() {
+        return "signal";
+    }
+
+    @Override
+    public void start(Listener listener, long interval, float minDistance) {
+        this.interval = interval;
+        this.minDistance = minDistance;
+        this.listener = listener;
+        SignalManager1.getInstance().removeLocationChangedObserver(locationObserver);
+        SignalManager1.getInstance().registerLocationChangedObserver(locationObserver);
+    }
+
+    @Override
+    public void stop() {
+        SignalManager1.getInstance().removeLocationChangedObserver(locationObserver);
+        listener = null;
+    }
+}
@@ -0,0 +1,123 @@
+package com.mapscloud.track.services.location;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Looper;
+
+import com.mapscloud.track.services.model.MyTracksLocationManager;
+
+import java.util.List;
+
+/**
+ * A {@link LocationSource} over {@link MyTracksLocationManager}, which
+ * requests the GPS provider and, when useful, the network provider on the
+ * same listener.
+ * <p>
+ * With a max update delay, the GPS fixes are requested in hardware batches
+ * where supported, and delivered to a {@link BatchListener} as a whole.
+ */
+public class SystemLocationSource implements LocationSource {
+
+    private final MyTracksLocationManager myTracksLocationManager;
+    private final Looper looper;
+    private final long maxUpdateDelay;
+    private volatile Listener listener;
+    private volatile boolean batched;
+
+    private final LocationListener locationListener = new LocationListener() {
+        @Override
+        public void onProviderDisabled(String provider) {
+            // Do nothing
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+            // Do nothing
+        }
+
+        // Deprecated since API 29, still abstract and called before
+        @SuppressWarnings("deprecation")
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+            // Do nothing
+        }
+
+        @Override
+        public void onLocationChanged(Location location) {
+            Listener current = listener;
+            if (current != null) {
+                current.onLocationChanged(SystemLocationSource.this, location);
+            }
+        }
+
+        // Since API 31, for batched updates
+        public void onLocationChanged(List<Location> locations) {
+            Listener current = listener;
+            if (current instanceof BatchListener) {
+                ((BatchListener) current).onLocationsChanged(SystemLocationSource.this, locations);
+            } else if (current != null) {
+                for (Location location : locations) {
+                    current.onLocationChanged(SystemLocationSource.this, location);
+                }
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param myTracksLocationManager the location manager
+     * @param looper                  the looper of the location callbacks
+     */
+    public SystemLocationSource(MyTracksLocationManager myTracksLocationManager, Looper looper) {
+        this(myTracksLocationManager, looper, 0L);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param myTracksLocationManager the location manager
+     * @param looper                  the looper of the location callbacks
+     * @param maxUpdateDelay          the maximum batching delay in milliseconds,
+     *                                0 for no batching
+     */
+    public SystemLocationSource(MyTracksLocationManager myTracksLocationManager, Looper looper,
+                                long maxUpdateDelay) {
+        this.myTracksLocationManager = myTracksLocationManager;
+        this.looper = looper;
+        this.maxUpdateDelay = maxUpdateDelay;
+    }
+
+    /**
+     * Returns true if the fixes are delivered in hardware batches.
+     */
+    public boolean isBatched() {
+        return batched;
+    }
+
+    @Override
+    public String getName() {
+        return "system";
+    }
+
+    @Override
+    public void start(Listener listener, long interval, float minDistance) {
+        this.listener = listener;
+        myTracksLocationManager.removeUpdates(locationListener);
+        batched = maxUpdateDelay > 0 && myTracksLocationManager.requestBatchedLocationUpdates(
+                LocationManager.GPS_PROVIDER, interval, maxUpdateDelay, minDistance, locationListener, looper);
+        if (!batched) {
+            myTracksLocationManager.requestLocationUpdates(LocationManager.GPS_PROVIDER, interval, minDistance,
+                    locationListener, looper);
+        }
+    }
+
+    @Override
+    public void stop() {
+        myTracksLocationManager.removeUpdates(locationListener);
+        listener = null;
+        batched = false;
+    }
+}
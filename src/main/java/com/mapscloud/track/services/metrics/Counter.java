@@ -0,0 +1,26 @@
+package com.mapscloud.track.services.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free counter, safe to increment from any thread.
+ */
+public final class Counter {
+
+    private final AtomicLong count = new AtomicLong();
+
+    Counter() {
+    }
+
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        count.addAndGet(delta);
+    }
+
+    public long get() {
+        return count.get();
+    }
+}
@@ -0,0 +1,194 @@
+package com.mapscloud.track.services.metrics;
+
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A binary ring buffer of the recording events, replacing the formatted log
+ * calls on the per fix path.
+ * <p>
+ * A record has a fixed schema: the time, the event type, two strings, a long
+ * and three doubles. The strings are references to existing objects, like
+ * the app id or the provider, so {@link #log} copies a few primitives into
+ * preallocated arrays and allocates nothing. Records are decoded to text with
+ * the format of their event type only when dumped, see
+ * {@link #dump(PrintWriter)}, or as they are written when the {@link #TAG}
+ * tag is loggable at DEBUG level:
+ * <pre>
+ * adb shell setprop log.tag.TrackEventLog DEBUG
+ * </pre>
+ * The oldest records are overwritten. Writers never block, a record being
+ * overwritten while dumped is skipped: its fields are atomic array elements,
+ * written with lazySet after the slot is marked and read with volatile gets
+ * before its sequence is checked again, so no field access moves past the
+ * sequence accesses.
+ */
+public final class EventLog {
+
+    public static final String TAG = "TrackEventLog";
+
+    // Event types, the index of their format
+    public static final int FIX_ARRIVED = 0;
+    public static final int FIX_NOT_RECORDING = 1;
+    public static final int FIX_NO_TRACK = 2;
+    public static final int FIX_INVALID = 3;
+    public static final int FIX_POOR_ACCURACY = 4;
+    public static final int FIX_IDLE = 5;
+    public static final int POLLING_CHANGED = 6;
+    public static final int FIX_FIRST_IN_SEGMENT = 7;
+    public static final int FIX_NO_LAST_VALID = 8;
+    public static final int AMAP_ERROR = 9;
+    public static final int FIX_DISTANCE = 10;
+    public static final int FIX_TOO_CLOSE = 11;
+    public static final int FIX_TOO_FAR = 12;
+    public static final int FIX_DUPLICATE = 13;
+
+    /*
+     * Formats of the event types. Arguments: 1 tag, 2 second tag, 3 long value,
+     * 4 to 6 double values.
+     */
+    private static final String[] FORMATS = {
+            "fix from %2$s (%4$.6f, %5$.6f) accuracy %6$.1f",
+            "%1$s not recording or paused, fix dropped",
+            "%1$s track %3$d not found, fix dropped",
+            "%1$s invalid fix (%4$.6f, %5$.6f) dropped",
+            "%1$s accuracy %6$.1f > %3$d, fix dropped",
+            "%1$s idle %3$d ms since the last track point (%4$.6f, %5$.6f)",
+            "polling interval changed, re-registering at %3$d ms",
+            "%1$s first fix of the segment (%4$.6f, %5$.6f)",
+            "%1$s no valid last track point, fix inserted",
+            "amap error %3$d: %2$s",
+            "%1$s fix from %2$s (%4$.6f, %5$.6f), %6$.1f m from the last track point",
+            "%1$s %6$.1f m < %3$d m, fix dropped",
+            "%1$s %6$.1f m > %3$d m, new segment",
+            "fix time %3$d already recorded, ignored",
+    };
+
+    private static final int DEFAULT_CAPACITY = 2048;
+
+    // Longs per record: time, event, long value, 3 doubles
+    private static final int RECORD_LONGS = 6;
+
+    private static final EventLog INSTANCE = new EventLog(DEFAULT_CAPACITY);
+
+    private final int mask;
+    private final AtomicLongArray values;
+    private final AtomicReferenceArray<String> tags;
+    // The sequence number + 1 of the record in each slot, 0 if empty
+    private final AtomicLongArray sequences;
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of records, a power of two
+     */
+    EventLog(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        }
+        mask = capacity - 1;
+        values = new AtomicLongArray(capacity * RECORD_LONGS);
+        tags = new AtomicReferenceArray<String>(capacity * 2);
+        sequences = new AtomicLongArray(capacity);
+    }
+
+    public static EventLog get() {
+        return INSTANCE;
+    }
+
+    public void log(int event, String tag) {
+        log(event, tag, null, 0L, 0.0, 0.0, 0.0);
+    }
+
+    public void log(int event, String tag, long value) {
+        log(event, tag, null, value, 0.0, 0.0, 0.0);
+    }
+
+    /**
+     * Writes a record.
+     *
+     * @param event  the event type
+     * @param tag    the first string, usually the app id. Can be null
+     * @param tag2   the second string. Can be null
+     * @param value  the long value
+     * @param value1 the first double value
+     * @param value2 the second double value
+     * @param value3 the third double value
+     */
+    public void log(int event, String tag, String tag2, long value, double value1, double value2,
+                    double value3) {
+        long sequence = next.getAndIncrement();
+        int slot = (int) sequence & mask;
+        // Mark the slot as being written
+        sequences.set(slot, 0L);
+        int base = slot * RECORD_LONGS;
+        long time = System.currentTimeMillis();
+        values.lazySet(base, time);
+        values.lazySet(base + 1, event);
+        values.lazySet(base + 2, value);
+        values.lazySet(base + 3, Double.doubleToRawLongBits(value1));
+        values.lazySet(base + 4, Double.doubleToRawLongBits(value2));
+        values.lazySet(base + 5, Double.doubleToRawLongBits(value3));
+        tags.lazySet(slot * 2, tag);
+        tags.lazySet(slot * 2 + 1, tag2);
+        sequences.lazySet(slot, sequence + 1);
+
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, format(event, tag, tag2, value, value1, value2, value3));
+        }
+    }
+
+    /**
+     * Decodes the records to text, oldest first.
+     *
+     * @param writer the writer
+     */
+    public void dump(PrintWriter writer) {
+        long end = next.get();
+        int capacity = mask + 1;
+        long start = Math.max(0L, end - capacity);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        Date date = new Date();
+        writer.println("Events, " + (end - start) + " of " + end);
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) sequence & mask;
+            if (sequences.get(slot) != sequence + 1) {
+                continue;
+            }
+            int base = slot * RECORD_LONGS;
+            long time = values.get(base);
+            int event = (int) values.get(base + 1);
+            long value = values.get(base + 2);
+            double value1 = Double.longBitsToDouble(values.get(base + 3));
+            double value2 = Double.longBitsToDouble(values.get(base + 4));
+            double value3 = Double.longBitsToDouble(values.get(base + 5));
+            String tag = tags.get(slot * 2);
+            String tag2 = tags.get(slot * 2 + 1);
+            // Overwritten while decoding
+            if (sequences.get(slot) != sequence + 1) {
+                continue;
+            }
+            date.setTime(time);
+            writer.print("  ");
+            writer.print(dateFormat.format(date));
+            writer.print(' ');
+            writer.println(format(event, tag, tag2, value, value1, value2, value3));
+        }
+    }
+
+    private static String format(int event, String tag, String tag2, long value, double value1,
+                                 double value2, double value3) {
+        if (event < 0 || event >= FORMATS.length) {
+            return "unknown event " + event;
+        }
+        return String.format(Locale.US, FORMATS[event], tag, tag2, value, value1, value2, value3);
+    }
+}
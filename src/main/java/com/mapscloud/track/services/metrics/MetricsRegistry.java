@@ -0,0 +1,141 @@
+package com.mapscloud.track.services.metrics;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The process wide registry of the hot path metrics.
+ * <p>
+ * Look a metric up once and keep it in a field, the lookup is a map access
+ * while {@link Counter#increment()} and {@link Histogram#record(long)} are
+ * lock free and allocate nothing. Names are dot separated, latencies end
+ * with ".latency" and are in nanoseconds, the other histograms are created
+ * with their {@link Histogram.Unit}.
+ * <p>
+ * {@link #snapshot()} copies the metrics into a {@link Bundle} for the
+ * recording service AIDL, {@link #dump(PrintWriter)} prints them for dumpsys.
+ */
+public final class MetricsRegistry {
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+    public static final String KEY_UPTIME = "uptime";
+
+    private final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final long startTime = SystemClock.elapsedRealtime();
+
+    private MetricsRegistry() {
+    }
+
+    public static MetricsRegistry get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Gets or creates a counter.
+     */
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Gets or creates a histogram of latencies in nanoseconds.
+     */
+    public Histogram histogram(String name) {
+        return histogram(name, Histogram.Unit.NANOSECONDS);
+    }
+
+    /**
+     * Gets or creates a histogram.
+     *
+     * @param name the name
+     * @param unit the unit of the values
+     */
+    public Histogram histogram(String name, Histogram.Unit unit) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(unit);
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        if (histogram.getUnit() != unit) {
+            throw new IllegalArgumentException("Histogram " + name + " is in " + histogram.getUnit());
+        }
+        return histogram;
+    }
+
+    /**
+     * Gets a snapshot of the metrics. Counters are longs under their names,
+     * histograms are longs under their names suffixed with ".count", ".mean",
+     * ".p50", ".p90", ".p99" and ".max", in the unit named by the string
+     * under their name suffixed with ".unit". {@link #KEY_UPTIME} is the time since
+     * the registry was created in milliseconds, to turn counters into rates.
+     */
+    public Bundle snapshot() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(KEY_UPTIME, SystemClock.elapsedRealtime() - startTime);
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            bundle.putLong(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            String name = entry.getKey();
+            Histogram histogram = entry.getValue();
+            bundle.putLong(name + ".count", histogram.getCount());
+            bundle.putLong(name + ".mean", histogram.getMean());
+            bundle.putLong(name + ".p50", histogram.getPercentile(50));
+            bundle.putLong(name + ".p90", histogram.getPercentile(90));
+            bundle.putLong(name + ".p99", histogram.getPercentile(99));
+            bundle.putLong(name + ".max", histogram.getMax());
+            bundle.putString(name + ".unit", histogram.getUnit().name().toLowerCase(Locale.US));
+        }
+        return bundle;
+    }
+
+    /**
+     * Prints the metrics sorted by name, counters with their rate per minute
+     * and histograms of latencies in milliseconds.
+     *
+     * @param writer the writer
+     */
+    public void dump(PrintWriter writer) {
+        long uptime = SystemClock.elapsedRealtime() - startTime;
+        writer.printf(Locale.US, "Metrics, uptime %d s%n", uptime / 1000);
+        for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(counters).entrySet()) {
+            long count = entry.getValue().get();
+            writer.printf(Locale.US, "  %s: %d (%.2f/min)%n", entry.getKey(), count,
+                    uptime == 0 ? 0.0 : count * 60000.0 / uptime);
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (histogram.getUnit() == Histogram.Unit.NANOSECONDS) {
+                writer.printf(Locale.US, "  %s: n=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms%n",
+                        entry.getKey(), histogram.getCount(), histogram.getMean() / 1e6,
+                        histogram.getPercentile(50) / 1e6, histogram.getPercentile(90) / 1e6,
+                        histogram.getPercentile(99) / 1e6, histogram.getMax() / 1e6);
+            } else {
+                writer.printf(Locale.US, "  %s: n=%d mean=%d p50=%d p90=%d p99=%d max=%d%n",
+                        entry.getKey(), histogram.getCount(), histogram.getMean(),
+                        histogram.getPercentile(50), histogram.getPercentile(90),
+                        histogram.getPercentile(99), histogram.getMax());
+            }
+        }
+    }
+}
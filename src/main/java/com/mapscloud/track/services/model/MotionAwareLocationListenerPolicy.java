@@ -0,0 +1,285 @@
+package com.mapscloud.track.services.model;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.location.Location;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * A {@link LocationListenerPolicy} driven by stationary detection instead of
+ * the idle time alone.
+ * <p>
+ * The policy has three states:
+ * <ul>
+ * <li>MOVING: polls at the min interval.</li>
+ * <li>STATIONARY: the speed trend stayed low and the fixes stayed inside the
+ * accuracy radius of an anchor for a while. The interval backs off to half of
+ * the stationary time, bounded by the max interval.</li>
+ * <li>PARKED: stationary for a long time. If the device has a significant
+ * motion sensor the updates are suspended until it fires, otherwise the
+ * policy polls at the max interval.</li>
+ * </ul>
+ * Entering and leaving the stationary states use different thresholds
+ * (hysteresis) so a noisy fix does not flip the state back and forth. Any sign
+ * of motion ramps up to the min interval at once.
+ * <p>
+ * Use {@link #isMaterialChange(long, long)} before re-registering the location
+ * listener, small interval changes are not worth the GPS restart.
+ */
+public class MotionAwareLocationListenerPolicy implements LocationListenerPolicy {
+
+    private static final String TAG = MotionAwareLocationListenerPolicy.class.getSimpleName();
+
+    private enum State {
+        MOVING, STATIONARY, PARKED
+    }
+
+    // Below this smoothed speed, in meters per second, the user may be stopped
+    private static final double STATIONARY_SPEED = 0.5;
+
+    // Above this smoothed speed, in meters per second, the user moves again
+    private static final double MOVING_SPEED = 1.5;
+
+    // The min radius of the anchor circle, in meters
+    private static final double MIN_ANCHOR_RADIUS = 20.0;
+
+    // Weight of a new speed in the speed trend
+    private static final double SPEED_WEIGHT = 0.3;
+
+    // Time below the stationary speed before becoming stationary
+    private static final long STATIONARY_DELAY = 60 * 1000L;
+
+    // Time stationary before becoming parked
+    private static final long PARKED_DELAY = 5 * 60 * 1000L;
+
+    // Relative and absolute interval changes worth re-registering for
+    private static final double MATERIAL_RATIO = 0.25;
+    private static final long MATERIAL_DELTA = 2 * 1000L;
+
+    private final long minInterval;
+    private final long maxInterval;
+    private final int minDistance;
+
+    private State state = State.MOVING;
+    private double speedTrend = Double.NaN;
+    private Location anchor;
+    private long anchorTime;
+    private long idleTime;
+
+    private SensorManager sensorManager;
+    private Sensor significantMotionSensor;
+    private boolean triggerRequested;
+    private Runnable motionCallback;
+
+    private final TriggerEventListener triggerEventListener = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            Runnable callback;
+            synchronized (MotionAwareLocationListenerPolicy.this) {
+                // One shot sensor, disarmed once triggered
+                triggerRequested = false;
+                callback = state != State.MOVING ? motionCallback : null;
+                setMoving();
+            }
+            Log.d(TAG, "Significant motion");
+            if (callback != null) {
+                callback.run();
+            }
+        }
+    };
+
+    /**
+     * Creates a policy bounded by the given minInterval and maxInterval.
+     *
+     * @param minInterval the interval while moving, in milliseconds
+     * @param maxInterval the largest interval while stationary, in milliseconds
+     * @param minDistance the minimum distance in meters
+     */
+    public MotionAwareLocationListenerPolicy(long minInterval, long maxInterval, int minDistance) {
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.minDistance = minDistance;
+    }
+
+    /**
+     * Starts listening to the significant motion sensor, if the device has
+     * one. Without it the policy never suspends the updates.
+     *
+     * @param context        the context
+     * @param motionCallback called when motion is detected while stationary or
+     *                       parked, to re-register the location listener
+     */
+    public synchronized void start(Context context, Runnable motionCallback) {
+        this.motionCallback = motionCallback;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return;
+        }
+        sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        if (sensorManager != null) {
+            significantMotionSensor = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        }
+        if (significantMotionSensor == null) {
+            Log.i(TAG, "No significant motion sensor");
+        }
+    }
+
+    /**
+     * Stops listening to the significant motion sensor.
+     */
+    public synchronized void stop() {
+        if (triggerRequested) {
+            sensorManager.cancelTriggerSensor(triggerEventListener, significantMotionSensor);
+            triggerRequested = false;
+        }
+        motionCallback = null;
+    }
+
+    /**
+     * Resets the motion state to moving, without an anchor nor a speed
+     * trend, for a started or resumed track. Keeps the significant motion
+     * sensor, disarmed.
+     */
+    public synchronized void reset() {
+        if (triggerRequested) {
+            sensorManager.cancelTriggerSensor(triggerEventListener, significantMotionSensor);
+            triggerRequested = false;
+        }
+        setMoving();
+        speedTrend = Double.NaN;
+        anchor = null;
+        anchorTime = 0L;
+    }
+
+    /**
+     * Updates the motion state with a new fix.
+     *
+     * @param location the location
+     */
+    public synchronized void onLocation(Location location) {
+        double speed = location.hasSpeed() ? location.getSpeed() : Double.NaN;
+        if (anchor != null && Double.isNaN(speed) && location.getTime() > anchorTime) {
+            speed = anchor.distanceTo(location) * 1000.0 / (location.getTime() - anchorTime);
+        }
+        if (!Double.isNaN(speed)) {
+            speedTrend = Double.isNaN(speedTrend) ? speed : speedTrend + SPEED_WEIGHT * (speed - speedTrend);
+        }
+
+        if (anchor == null) {
+            setAnchor(location);
+            return;
+        }
+
+        double radius = Math.max(MIN_ANCHOR_RADIUS, 1.5 * Math.max(anchor.getAccuracy(), location.getAccuracy()));
+        boolean left = anchor.distanceTo(location) > radius;
+        boolean moving = left || (!Double.isNaN(speedTrend) && speedTrend > MOVING_SPEED);
+        boolean slow = Double.isNaN(speedTrend) || speedTrend < STATIONARY_SPEED;
+
+        if (moving) {
+            setMoving();
+            setAnchor(location);
+            return;
+        }
+        if (state == State.MOVING && !slow) {
+            // Between the two thresholds, keep moving from a fresh anchor
+            setAnchor(location);
+            return;
+        }
+
+        long stationaryTime = location.getTime() - anchorTime;
+        if (state == State.MOVING && stationaryTime >= STATIONARY_DELAY) {
+            state = State.STATIONARY;
+        }
+        if (state == State.STATIONARY && stationaryTime >= STATIONARY_DELAY + PARKED_DELAY) {
+            state = State.PARKED;
+            requestTrigger();
+        }
+        idleTime = stationaryTime;
+    }
+
+    /**
+     * Returns true if the location updates can be suspended until the
+     * significant motion sensor fires.
+     */
+    public synchronized boolean isSuspended() {
+        return state == State.PARKED && triggerRequested;
+    }
+
+    /*
+     * Moving polls at minInterval, stationary backs off to half of the
+     * stationary time and parked polls at maxInterval.
+     */
+    @Override
+    public synchronized long getDesiredPollingInterval() {
+        switch (state) {
+            case PARKED:
+                return maxInterval;
+            case STATIONARY:
+                // Round to second to avoid setting the interval too often
+                long desiredInterval = (idleTime / 2 / 1000) * 1000;
+                return Math.max(Math.min(maxInterval, desiredInterval), minInterval);
+            default:
+                return minInterval;
+        }
+    }
+
+    @Override
+    public int getMinDistance() {
+        return minDistance;
+    }
+
+    /*
+     * The service idle time only counts valid track points, the stationary
+     * time comes from onLocation instead.
+     */
+    @Override
+    public void updateIdleTime(long newIdleTime) {
+        // Do nothing
+    }
+
+    /**
+     * Returns true if changing the polling interval from current to desired is
+     * worth re-registering the location listener. Ramping up to the min
+     * interval always is.
+     *
+     * @param currentInterval the current interval
+     * @param desiredInterval the desired interval
+     */
+    public boolean isMaterialChange(long currentInterval, long desiredInterval) {
+        if (desiredInterval == currentInterval) {
+            return false;
+        }
+        if (desiredInterval == minInterval) {
+            return true;
+        }
+        long delta = Math.abs(desiredInterval - currentInterval);
+        return delta >= MATERIAL_DELTA && delta >= currentInterval * MATERIAL_RATIO;
+    }
+
+    private void setMoving() {
+        if (state != State.MOVING) {
+            Log.d(TAG, "Moving after " + state);
+        }
+        state = State.MOVING;
+        idleTime = 0L;
+    }
+
+    private void setAnchor(Location location) {
+        if (anchor == null) {
+            anchor = new Location(location);
+        } else {
+            anchor.set(location);
+        }
+        anchorTime = location.getTime();
+    }
+
+    private void requestTrigger() {
+        if (significantMotionSensor == null || triggerRequested) {
+            return;
+        }
+        triggerRequested = sensorManager.requestTriggerSensor(triggerEventListener, significantMotionSensor);
+    }
+}
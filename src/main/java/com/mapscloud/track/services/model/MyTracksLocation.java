@@ -18,6 +18,8 @@ package com.mapscloud.track.services.model;
 import android.location.Location;
 
 import com.mapscloud.track.services.tracks.Sensor.SensorDataSet;
+import com.mapscloud.track.services.tracks.SensorFrame;
+import com.mapscloud.track.services.tracks.SensorFrameCodec;
 
 /**
  * This class extends the standard Android location with extra information.
@@ -28,11 +30,29 @@ public class MyTracksLocation extends Location {
 
     private SensorDataSet sensorDataSet = null;
 
+    /**
+     * The sensor data decoded in place, reused across {@link #reset()}. When
+     * set, {@link #sensorDataSet} is only built on demand.
+     */
+    private SensorFrame sensorFrame;
+    private boolean hasSensorFrame;
+
     /**
      * The id of this location from the provider.
      */
     private int id = -1;
 
+    /**
+     * The end time of a dwell, a stationary run collapsed into this location.
+     * 0 if this location is not a dwell.
+     */
+    private long dwellEndTime = 0L;
+
+    /**
+     * The number of fixes in the dwell.
+     */
+    private int dwellCount = 0;
+
     public MyTracksLocation(Location location, SensorDataSet sd) {
         super(location);
         this.sensorDataSet = sd;
@@ -43,11 +63,73 @@ public class MyTracksLocation extends Location {
     }
 
     public SensorDataSet getSensorDataSet() {
+        if (sensorDataSet == null && hasSensorFrame) {
+            sensorDataSet = sensorFrame.toSensorDataSet();
+        }
         return sensorDataSet;
     }
 
     public void setSensorDataSet(SensorDataSet sensorDataSet) {
         this.sensorDataSet = sensorDataSet;
+        hasSensorFrame = false;
+    }
+
+    /**
+     * Returns true if this location has sensor data.
+     */
+    public boolean hasSensorData() {
+        return sensorDataSet != null || hasSensorFrame;
+    }
+
+    /**
+     * Gets the sensor data as a reusable frame, null if none. Valid until the
+     * sensor data of this location changes.
+     */
+    public SensorFrame getSensorFrame() {
+        if (!hasSensorFrame) {
+            if (sensorDataSet == null) {
+                return null;
+            }
+            obtainSensorFrame().copyFrom(sensorDataSet);
+            hasSensorFrame = true;
+        }
+        return sensorFrame;
+    }
+
+    /**
+     * Decodes the sensor data from the bytes of a {@link SensorDataSet}, into
+     * the frame of this location.
+     *
+     * @param data   the bytes
+     * @param offset the offset
+     * @param length the length
+     * @return false if the bytes are not a valid sensor data set, the
+     * location then has no sensor data
+     */
+    public boolean readSensorData(byte[] data, int offset, int length) {
+        sensorDataSet = null;
+        hasSensorFrame = SensorFrameCodec.decode(data, offset, length, obtainSensorFrame());
+        return hasSensorFrame;
+    }
+
+    /**
+     * Copies the sensor data of another location.
+     *
+     * @param location the location
+     */
+    public void copySensorData(MyTracksLocation location) {
+        sensorDataSet = location.sensorDataSet;
+        hasSensorFrame = location.hasSensorFrame;
+        if (hasSensorFrame) {
+            obtainSensorFrame().copyFrom(location.sensorFrame);
+        }
+    }
+
+    private SensorFrame obtainSensorFrame() {
+        if (sensorFrame == null) {
+            sensorFrame = new SensorFrame();
+        }
+        return sensorFrame;
     }
 
     public int getId() {
@@ -58,9 +140,63 @@ public class MyTracksLocation extends Location {
         this.id = id;
     }
 
+    /**
+     * Returns true if this location is a dwell, stationary from its time to
+     * {@link #getDwellEndTime()}.
+     */
+    public boolean hasDwell() {
+        return dwellEndTime > getTime();
+    }
+
+    public long getDwellEndTime() {
+        return dwellEndTime;
+    }
+
+    public int getDwellCount() {
+        return dwellCount;
+    }
+
+    /**
+     * Sets the dwell.
+     *
+     * @param dwellEndTime the end time, 0 for no dwell
+     * @param dwellCount   the number of fixes
+     */
+    public void setDwell(long dwellEndTime, int dwellCount) {
+        this.dwellEndTime = dwellEndTime;
+        this.dwellCount = dwellCount;
+    }
+
+    /**
+     * Creates a copy of this location at the end of its dwell, without dwell.
+     */
+    public MyTracksLocation createDwellEndLocation() {
+        MyTracksLocation location = new MyTracksLocation(this, null);
+        location.copySensorData(this);
+        location.setTime(dwellEndTime);
+        location.setId(id);
+        return location;
+    }
+
+    /**
+     * Gets the end time of a location: the dwell end time for a dwell, else
+     * the location time.
+     *
+     * @param location the location
+     */
+    public static long getEndTime(Location location) {
+        if (location instanceof MyTracksLocation && ((MyTracksLocation) location).hasDwell()) {
+            return ((MyTracksLocation) location).dwellEndTime;
+        }
+        return location.getTime();
+    }
+
     public void reset() {
         super.reset();
         sensorDataSet = null;
+        hasSensorFrame = false;
         id = -1;
+        dwellEndTime = 0L;
+        dwellCount = 0;
     }
 }
@@ -27,6 +27,7 @@ import android.location.LocationListener;
 import android.location.LocationManager;
 import android.location.LocationProvider;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
@@ -35,6 +36,9 @@ import androidx.annotation.VisibleForTesting;
 
 import com.mapscloud.track.services.utils.GoogleLocationUtils;
 
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.Executor;
+
 import timber.log.Timber;
 
 /**
@@ -165,6 +169,54 @@ public class MyTracksLocationManager {
         }
     }
 
+    /**
+     * Requests batched location updates: the fixes are buffered by the GNSS
+     * hardware and delivered as a list, through
+     * LocationListener#onLocationChanged(List), up to maxUpdateDelay late.
+     * Uses the API 31 LocationRequest, by reflection. Returns false if not
+     * supported, request regular updates then.
+     *
+     * @param provider       the provider
+     * @param minTime        the interval between the fixes in milliseconds
+     * @param maxUpdateDelay the maximum delivery delay in milliseconds
+     * @param minDistance    the minimum distance between the fixes in meters
+     * @param listener       the listener
+     * @param looper         the looper of the listener, null for the main one
+     */
+    @SuppressLint("MissingPermission")
+    public boolean requestBatchedLocationUpdates(String provider, long minTime, long maxUpdateDelay,
+                                                 float minDistance, LocationListener listener, Looper looper) {
+        if (Build.VERSION.SDK_INT < 31) {
+            return false;
+        }
+        final Handler handler = new Handler(looper == null ? Looper.getMainLooper() : looper);
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+        try {
+            Class<?> requestClass = Class.forName("android.location.LocationRequest");
+            Class<?> builderClass = Class.forName("android.location.LocationRequest$Builder");
+            Object builder = builderClass.getConstructor(long.class).newInstance(minTime);
+            builderClass.getMethod("setMinUpdateDistanceMeters", float.class).invoke(builder, minDistance);
+            builderClass.getMethod("setMaxUpdateDelayMillis", long.class).invoke(builder, maxUpdateDelay);
+            Object request = builderClass.getMethod("build").invoke(builder);
+            LocationManager.class.getMethod("requestLocationUpdates", String.class, requestClass,
+                    Executor.class, LocationListener.class)
+                    .invoke(locationManager, provider, request, executor, listener);
+            currentProvider = provider;
+            return true;
+        } catch (InvocationTargetException e) {
+            Log.e(TAG, "Unable to request batched location updates", e.getCause());
+            return false;
+        } catch (Exception e) {
+            Log.e(TAG, "Batched location updates not available", e);
+            return false;
+        }
+    }
+
     /**
      * @param listener
      * @see LocationManager#removeUpdates(LocationListener)
@@ -0,0 +1,468 @@
+package com.mapscloud.track.services.model;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mapscloud.track.services.tracks.SensorFrame;
+import com.mapscloud.track.services.tracks.SensorFrameCodec;
+import com.mapscloud.track.services.utils.LocationUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An append only, memory mapped journal of the track points of one recording
+ * session, so points are durable as soon as accepted and written to SQLite in
+ * large batches.
+ * <p>
+ * The file has a header (magic, version, track id, epoch, committed offset)
+ * followed by records: length, epoch, CRC32 of the payload, payload. A record
+ * is valid if its epoch is the header epoch and its checksum matches, so a
+ * record torn by a crash ends the journal. The records after the committed
+ * offset are the pending points, not yet in SQLite. A record flagged as a
+ * dwell update replaces the last pending point, so a stationary run extends
+ * a pending point without committing it. Once committed, the
+ * journal rewinds by bumping the epoch, which invalidates the old records
+ * without clearing the file.
+ * <p>
+ * Writes to the mapping reach the page cache at once and survive the death
+ * of the process. {@link #force()} also flushes them to the storage, call it
+ * at pauses and ends. Thread safe.
+ */
+class PointJournal {
+
+    private static final String TAG = PointJournal.class.getSimpleName();
+
+    private static final String EXTENSION = ".journal";
+    private static final int MAGIC = 0x4a524e4c;
+    private static final int VERSION = 2;
+    private static final int DEFAULT_CAPACITY = 256 * 1024;
+
+    // Header: magic, version, track id, epoch, committed offset
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int TRACK_ID_OFFSET = 8;
+    private static final int EPOCH_OFFSET = 16;
+    private static final int COMMITTED_OFFSET = 20;
+    private static final int HEADER_SIZE = 32;
+
+    // Record header: length, epoch, checksum
+    private static final int RECORD_HEADER_SIZE = 12;
+    // The flags in the payload
+    private static final int FLAGS_OFFSET = 8 + 8 + 8 + 8 + 4 + 4 + 4;
+
+    // Payload: time, latitude, longitude, altitude, speed, bearing, accuracy,
+    // flags, dwell end time, dwell count, sensor data length, then the sensor
+    // data
+    private static final int FIXED_PAYLOAD_SIZE = 8 + 8 + 8 + 8 + 4 + 4 + 4 + 1 + 8 + 4 + 2;
+
+    private static final int HAS_ALTITUDE = 1;
+    private static final int HAS_SPEED = 2;
+    private static final int HAS_BEARING = 4;
+    private static final int HAS_ACCURACY = 8;
+    private static final int DWELL_UPDATE = 16;
+
+    // Rewind once committed past this, leaving room for a full batch
+    private static final int REWIND_THRESHOLD = DEFAULT_CAPACITY / 2;
+
+    private final File file;
+    private final long trackId;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final CRC32 crc32 = new CRC32();
+    private byte[] payload = new byte[256];
+
+    private int epoch;
+    private int writeOffset;
+    private final List<Location> pending = new ArrayList<Location>();
+    // The end offset of the last record of each pending point
+    private int[] pendingEnds = new int[64];
+    private int pendingValidCount;
+    private long firstPendingTime;
+
+    private PointJournal(File file, long trackId) throws IOException {
+        this.file = file;
+        this.trackId = trackId;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < DEFAULT_CAPACITY) {
+                randomAccessFile.setLength(DEFAULT_CAPACITY);
+            }
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DEFAULT_CAPACITY);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the journal of a track, reading back its pending points if any.
+     *
+     * @param directory the journal directory
+     * @param trackId   the track id
+     */
+    static PointJournal open(File directory, long trackId) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        PointJournal journal = new PointJournal(new File(directory, trackId + EXTENSION), trackId);
+        journal.load();
+        return journal;
+    }
+
+    /**
+     * Gets the ids of the tracks with a journal in a directory.
+     */
+    static List<Long> getTrackIds(File directory) {
+        List<Long> trackIds = new ArrayList<Long>();
+        String[] names = directory.list();
+        if (names == null) {
+            return trackIds;
+        }
+        for (String name : names) {
+            if (name.endsWith(EXTENSION)) {
+                try {
+                    trackIds.add(Long.parseLong(name.substring(0, name.length() - EXTENSION.length())));
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Unexpected journal file " + name);
+                }
+            }
+        }
+        return trackIds;
+    }
+
+    /**
+     * Appends a point. Returns false if the journal is full, commit the
+     * pending points and retry.
+     *
+     * @param location the point, kept as pending until committed
+     */
+    synchronized boolean append(Location location) {
+        if (!write(location, 0)) {
+            return false;
+        }
+        addPending(copy(location));
+        return true;
+    }
+
+    /**
+     * Sets the dwell of the last pending point. Returns false if the last
+     * pending point is not a valid location, or if the journal is full.
+     *
+     * @param dwellEndTime the dwell end time
+     * @param dwellCount   the number of fixes in the dwell
+     */
+    synchronized boolean setLastDwell(long dwellEndTime, int dwellCount) {
+        if (pending.isEmpty()) {
+            return false;
+        }
+        MyTracksLocation last = (MyTracksLocation) pending.get(pending.size() - 1);
+        if (!LocationUtils.isValidLocation(last)) {
+            return false;
+        }
+        long oldDwellEndTime = last.getDwellEndTime();
+        int oldDwellCount = last.getDwellCount();
+        last.setDwell(dwellEndTime, dwellCount);
+        if (!write(last, DWELL_UPDATE)) {
+            last.setDwell(oldDwellEndTime, oldDwellCount);
+            return false;
+        }
+        pendingEnds[pending.size() - 1] = writeOffset;
+        return true;
+    }
+
+    /**
+     * Gets the pending points, oldest first.
+     */
+    synchronized Location[] getPending() {
+        return pending.toArray(new Location[pending.size()]);
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Gets the number of pending points that are valid locations, not
+     * pause or resume separators.
+     */
+    synchronized int getPendingValidCount() {
+        return pendingValidCount;
+    }
+
+    /**
+     * Gets the {@link SystemClock#elapsedRealtime()} the oldest pending point
+     * was appended at, 0 if none.
+     */
+    synchronized long getFirstPendingTime() {
+        return firstPendingTime;
+    }
+
+    /**
+     * Gets a copy of the last pending valid point, null if none.
+     */
+    synchronized MyTracksLocation getLastValidPending() {
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            Location location = pending.get(i);
+            if (LocationUtils.isValidLocation(location)) {
+                return copy(location);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks the pending points as committed to SQLite.
+     *
+     * @param count the number of pending points committed, from the oldest
+     */
+    synchronized void commit(int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (count < pending.size()) {
+            // Only happens when recovering, skip the committed records
+            buffer.putInt(COMMITTED_OFFSET, pendingEnds[count - 1]);
+            List<Location> rest = new ArrayList<Location>(pending.subList(count, pending.size()));
+            int[] restEnds = new int[rest.size()];
+            System.arraycopy(pendingEnds, count, restEnds, 0, restEnds.length);
+            clearPending();
+            for (int i = 0; i < restEnds.length; i++) {
+                addPending(rest.get(i));
+                pendingEnds[i] = restEnds[i];
+            }
+            return;
+        }
+        buffer.putInt(COMMITTED_OFFSET, writeOffset);
+        clearPending();
+        if (writeOffset > REWIND_THRESHOLD) {
+            epoch++;
+            buffer.putInt(EPOCH_OFFSET, epoch);
+            buffer.putInt(COMMITTED_OFFSET, HEADER_SIZE);
+            writeOffset = HEADER_SIZE;
+        }
+    }
+
+    /**
+     * Flushes the journal to the storage.
+     */
+    synchronized void force() {
+        buffer.force();
+    }
+
+    /**
+     * Closes the journal, keeping the file.
+     */
+    synchronized void close() {
+        try {
+            randomAccessFile.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close " + file, e);
+        }
+    }
+
+    /**
+     * Closes and deletes the journal. Pending points are lost.
+     */
+    synchronized void delete() {
+        close();
+        if (!file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    /*
+     * Reads the header and the pending records, or initializes a new journal.
+     */
+    private void load() {
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(VERSION_OFFSET) != VERSION
+                || buffer.getLong(TRACK_ID_OFFSET) != trackId) {
+            epoch = 1;
+            writeOffset = HEADER_SIZE;
+            buffer.putLong(TRACK_ID_OFFSET, trackId);
+            buffer.putInt(EPOCH_OFFSET, epoch);
+            buffer.putInt(COMMITTED_OFFSET, HEADER_SIZE);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            return;
+        }
+        epoch = buffer.getInt(EPOCH_OFFSET);
+        int offset = buffer.getInt(COMMITTED_OFFSET);
+        if (offset < HEADER_SIZE || offset > buffer.capacity()) {
+            offset = HEADER_SIZE;
+        }
+        while (offset + RECORD_HEADER_SIZE <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length < FIXED_PAYLOAD_SIZE || offset + RECORD_HEADER_SIZE + length > buffer.capacity()
+                    || buffer.getInt(offset + 4) != epoch) {
+                break;
+            }
+            ensurePayload(length);
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            buffer.get(payload, 0, length);
+            crc32.reset();
+            crc32.update(payload, 0, length);
+            if (buffer.getInt(offset + 8) != (int) crc32.getValue()) {
+                break;
+            }
+            offset += RECORD_HEADER_SIZE + length;
+            MyTracksLocation location = decode(length);
+            if ((payload[FLAGS_OFFSET] & DWELL_UPDATE) != 0) {
+                if (!pending.isEmpty()) {
+                    pending.set(pending.size() - 1, location);
+                    pendingEnds[pending.size() - 1] = offset;
+                }
+            } else {
+                addPending(location);
+                pendingEnds[pending.size() - 1] = offset;
+            }
+        }
+        writeOffset = offset;
+        if (!pending.isEmpty()) {
+            Log.i(TAG, "Track " + trackId + " journal has " + pending.size() + " pending points");
+        }
+    }
+
+    /*
+     * Writes a record of a location at the write offset. Returns false if
+     * the journal is full.
+     */
+    private boolean write(Location location, int extraFlags) {
+        int length = encode(location, extraFlags);
+        if (writeOffset + RECORD_HEADER_SIZE + length > buffer.capacity()) {
+            return false;
+        }
+        crc32.reset();
+        crc32.update(payload, 0, length);
+
+        // The length last, a record torn before it is invalid
+        buffer.position(writeOffset + RECORD_HEADER_SIZE);
+        buffer.put(payload, 0, length);
+        buffer.putInt(writeOffset + 8, (int) crc32.getValue());
+        buffer.putInt(writeOffset + 4, epoch);
+        buffer.putInt(writeOffset, length);
+        writeOffset += RECORD_HEADER_SIZE + length;
+        return true;
+    }
+
+    private int encode(Location location, int extraFlags) {
+        SensorFrame sensorFrame = location instanceof MyTracksLocation
+                ? ((MyTracksLocation) location).getSensorFrame() : null;
+        int sensorLength = sensorFrame != null ? SensorFrameCodec.getEncodedSize(sensorFrame) : 0;
+        if (sensorLength > 0xffff) {
+            Log.w(TAG, "Sensor data too large for the journal: " + sensorLength);
+            sensorLength = 0;
+        }
+        int length = FIXED_PAYLOAD_SIZE + sensorLength;
+        ensurePayload(length);
+        ByteBuffer out = ByteBuffer.wrap(payload);
+        int flags = (location.hasAltitude() ? HAS_ALTITUDE : 0) | (location.hasSpeed() ? HAS_SPEED : 0)
+                | (location.hasBearing() ? HAS_BEARING : 0) | (location.hasAccuracy() ? HAS_ACCURACY : 0)
+                | extraFlags;
+        MyTracksLocation myTracksLocation = location instanceof MyTracksLocation
+                ? (MyTracksLocation) location : null;
+        out.putLong(location.getTime());
+        out.putDouble(location.getLatitude());
+        out.putDouble(location.getLongitude());
+        out.putDouble(location.getAltitude());
+        out.putFloat(location.getSpeed());
+        out.putFloat(location.getBearing());
+        out.putFloat(location.getAccuracy());
+        out.put((byte) flags);
+        out.putLong(myTracksLocation != null && myTracksLocation.hasDwell() ? myTracksLocation.getDwellEndTime() : 0L);
+        out.putInt(myTracksLocation != null && myTracksLocation.hasDwell() ? myTracksLocation.getDwellCount() : 0);
+        out.putShort((short) sensorLength);
+        if (sensorLength > 0) {
+            SensorFrameCodec.encode(sensorFrame, payload, out.position());
+        }
+        return length;
+    }
+
+    private MyTracksLocation decode(int length) {
+        ByteBuffer in = ByteBuffer.wrap(payload, 0, length);
+        MyTracksLocation location = new MyTracksLocation(LocationManager.GPS_PROVIDER);
+        location.setTime(in.getLong());
+        location.setLatitude(in.getDouble());
+        location.setLongitude(in.getDouble());
+        double altitude = in.getDouble();
+        float speed = in.getFloat();
+        float bearing = in.getFloat();
+        float accuracy = in.getFloat();
+        int flags = in.get();
+        long dwellEndTime = in.getLong();
+        int dwellCount = in.getInt();
+        if (dwellEndTime > location.getTime()) {
+            location.setDwell(dwellEndTime, dwellCount);
+        }
+        if ((flags & HAS_ALTITUDE) != 0) {
+            location.setAltitude(altitude);
+        }
+        if ((flags & HAS_SPEED) != 0) {
+            location.setSpeed(speed);
+        }
+        if ((flags & HAS_BEARING) != 0) {
+            location.setBearing(bearing);
+        }
+        if ((flags & HAS_ACCURACY) != 0) {
+            location.setAccuracy(accuracy);
+        }
+        int sensorLength = in.getShort() & 0xffff;
+        if (sensorLength > 0 && (sensorLength > in.remaining()
+                || !location.readSensorData(payload, in.position(), sensorLength))) {
+            Log.w(TAG, "Unable to parse the sensor data of a journal point");
+        }
+        return location;
+    }
+
+    /*
+     * Copies a point so later changes to the original do not alter the
+     * pending one.
+     */
+    private static MyTracksLocation copy(Location location) {
+        MyTracksLocation copy = new MyTracksLocation(location, null);
+        if (location instanceof MyTracksLocation) {
+            MyTracksLocation myTracksLocation = (MyTracksLocation) location;
+            copy.copySensorData(myTracksLocation);
+            if (myTracksLocation.hasDwell()) {
+                copy.setDwell(myTracksLocation.getDwellEndTime(), myTracksLocation.getDwellCount());
+            }
+        }
+        return copy;
+    }
+
+    private void addPending(Location location) {
+        if (pending.isEmpty()) {
+            firstPendingTime = SystemClock.elapsedRealtime();
+        }
+        pending.add(location);
+        if (pendingEnds.length < pending.size()) {
+            int[] ends = new int[pendingEnds.length * 2];
+            System.arraycopy(pendingEnds, 0, ends, 0, pendingEnds.length);
+            pendingEnds = ends;
+        }
+        if (LocationUtils.isValidLocation(location)) {
+            pendingValidCount++;
+        }
+    }
+
+    private void clearPending() {
+        pending.clear();
+        pendingValidCount = 0;
+        firstPendingTime = 0L;
+    }
+
+    private void ensurePayload(int length) {
+        if (payload.length < length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.mapscloud.track.services.model;
+
+import android.location.Location;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.location.LocationSource;
+import com.mapscloud.track.services.utils.Clock;
+
+/**
+ * Hooks replacing the clock and the location source of
+ * {@link TrackRecordingService}, and observing the recorded fixes. Used by
+ * the replay harness to drive the real recording pipeline without a GPS. Set
+ * them before the service is created, they are read in its onCreate.
+ */
+public final class RecordingHooks {
+
+    /**
+     * Observes the fixes committed to the database by the recording pipeline.
+     */
+    public interface PipelineObserver {
+
+        /**
+         * Called on the recording thread after a fix is inserted, or folded into
+         * the dwell of the last track point.
+         *
+         * @param track    the track
+         * @param location the fix
+         */
+        void onLocationCommitted(Track track, Location location);
+    }
+
+    private static volatile Clock clock;
+    private static volatile LocationSource locationSource;
+    private static volatile PipelineObserver pipelineObserver;
+
+    private RecordingHooks() {
+    }
+
+    /**
+     * Installs the hooks.
+     *
+     * @param clock            the clock, null for the system clock
+     * @param locationSource   the only location source, null for the defaults
+     * @param pipelineObserver the observer, can be null
+     */
+    public static void install(Clock clock, LocationSource locationSource, PipelineObserver pipelineObserver) {
+        RecordingHooks.clock = clock;
+        RecordingHooks.locationSource = locationSource;
+        RecordingHooks.pipelineObserver = pipelineObserver;
+    }
+
+    /**
+     * Removes the hooks. A service already created keeps its clock and source.
+     */
+    public static void clear() {
+        install(null, null, null);
+    }
+
+    static Clock getClock() {
+        Clock current = clock;
+        return current != null ? current : Clock.SYSTEM;
+    }
+
+    static LocationSource getLocationSource() {
+        return locationSource;
+    }
+
+    static PipelineObserver getPipelineObserver() {
+        return pipelineObserver;
+    }
+}
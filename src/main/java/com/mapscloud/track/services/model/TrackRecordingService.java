@@ -30,7 +30,6 @@ import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.location.Location;
-import android.location.LocationListener;
 import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Build;
@@ -39,6 +38,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -52,16 +52,33 @@ import com.mapscloud.track.services.content.DescriptionGeneratorImpl;
 import com.mapscloud.track.services.content.Track;
 import com.mapscloud.track.services.content.TripStatistics;
 import com.mapscloud.track.services.content.TripStatisticsUpdater;
+import com.mapscloud.track.services.heatmap.HeatmapEngine;
+import com.mapscloud.track.services.location.FixRing;
+import com.mapscloud.track.services.location.KalmanLocationFilter;
+import com.mapscloud.track.services.location.LocationArbiter;
+import com.mapscloud.track.services.location.LocationSource;
+import com.mapscloud.track.services.location.SignalManagerLocationSource;
+import com.mapscloud.track.services.location.SystemLocationSource;
+import com.mapscloud.track.services.metrics.Counter;
+import com.mapscloud.track.services.metrics.EventLog;
+import com.mapscloud.track.services.metrics.Histogram;
+import com.mapscloud.track.services.metrics.MetricsRegistry;
 import com.mapscloud.track.services.model.Waypoint.WaypointType;
+import com.mapscloud.track.services.provider.DatabaseMaintenanceJobService;
 import com.mapscloud.track.services.provider.MyTracksProvider;
 import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.sync.TrackSyncEngine;
+import com.mapscloud.track.services.telemetry.TelemetryUplink;
 import com.mapscloud.track.services.tracks.AnnouncementPeriodicTaskFactory;
 import com.mapscloud.track.services.tracks.PeriodicTaskExecutor;
 import com.mapscloud.track.services.tracks.Sensor;
 import com.mapscloud.track.services.tracks.Sensor.SensorDataSet;
 import com.mapscloud.track.services.tracks.SensorManager;
 import com.mapscloud.track.services.tracks.SensorManagerFactory;
+import com.mapscloud.track.services.tracks.SensorRecorder;
 import com.mapscloud.track.services.tracks.SplitPeriodicTaskFactory;
+import com.mapscloud.track.services.utils.Clock;
+import com.mapscloud.track.services.utils.CoalescingScheduler;
 import com.mapscloud.track.services.utils.Constant;
 import com.mapscloud.track.services.utils.LocationUtils;
 import com.mapscloud.track.services.utils.PreferencesUtils;
@@ -69,24 +86,20 @@ import com.mapscloud.track.services.utils.TrackNameUtils;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
-import okhttp3.WebSocket;
-import okhttp3.WebSocketListener;
+import java.util.concurrent.ConcurrentHashMap;
+
 import timber.log.Timber;
 
 
@@ -109,13 +122,59 @@ public class TrackRecordingService extends Service {
 
     static final int MAX_AUTO_RESUME_TRACK_RETRY_ATTEMPTS = 3;
 
+    // Dwell: stationary fixes are collapsed into the last track point
+    private static final float MAX_DWELL_RADIUS = 25f;
+    private static final float DWELL_MAX_SPEED = 1.0f;
+    // Min time between two dwell updates while stationary, the last one is
+    // written when leaving
+    private static final long DWELL_UPDATE_INTERVAL = 30 * ONE_SECOND;
+
+    // 热路径指标，见 MetricsRegistry
+    private static final Counter FIXES_ARRIVED = MetricsRegistry.get().counter("location.fix.arrived");
+    private static final Counter REJECTED_NOT_RECORDING = MetricsRegistry.get().counter(
+            "location.rejected.not_recording");
+    private static final Counter REJECTED_INVALID = MetricsRegistry.get().counter("location.rejected.invalid");
+    private static final Counter REJECTED_ACCURACY = MetricsRegistry.get().counter("location.rejected.accuracy");
+    private static final Counter REJECTED_DISTANCE = MetricsRegistry.get().counter("location.rejected.distance");
+    private static final Counter DWELL_FIXES = MetricsRegistry.get().counter("location.dwell");
+    private static final Histogram COMMIT_LATENCY = MetricsRegistry.get().histogram("location.commit.latency");
+    private static final Counter BROADCASTS = MetricsRegistry.get().counter("service.broadcast");
+    private static final Histogram RING_BATCH_SIZE = MetricsRegistry.get().histogram("location.ring.batch",
+            Histogram.Unit.COUNT);
+    private static final Counter JOURNAL_APPENDS = MetricsRegistry.get().counter("journal.append");
+    private static final Counter JOURNAL_COMMITTED = MetricsRegistry.get().counter("journal.commit.points");
+    private static final Histogram JOURNAL_COMMIT_LATENCY = MetricsRegistry.get().histogram(
+            "journal.commit.latency");
+
+    // The batching delay of the batched recording mode, in milliseconds
+    private static final long BATCH_MAX_UPDATE_DELAY = 2 * ONE_MINUTE;
+
+    // How long a batch may hold the wake lock, in milliseconds
+    private static final long BATCH_WAKE_LOCK_TIMEOUT = 30 * 1000L;
+
+    // Commit the point journal to the database at this many points
+    private static final int JOURNAL_BATCH_SIZE = 100;
+
+    // Commit the point journal to the database when its oldest point is this old
+    private static final long JOURNAL_MAX_AGE = 30 * 1000L;
+
+    // The directory of the telemetry offline queue, in the files directory
+    private static final String TELEMETRY_DIRECTORY = "telemetry";
+
+    // 每个定位点的诊断日志，不格式化字符串
+    private static final EventLog EVENT_LOG = EventLog.get();
+    // The event log tag of the single track recording path
+    private static final String LEGACY_TAG = "default";
+
     // The following variables are set in onCreate:
     private Context context;
     private MyTracksProviderUtils myTracksProviderUtils;
     private MyTracksLocationManager myTracksLocationManager;
     private PeriodicTaskExecutor voiceExecutor;
     private PeriodicTaskExecutor splitExecutor;
-    private ExecutorService executorService;
+    // 定位回调只把定位点拷贝进环形缓冲区，由记录线程批量处理
+    private final FixRing fixRing = new FixRing(FixRing.DEFAULT_CAPACITY);
+    private Thread recordingWorker;
     private SharedPreferences sharedPreferences;
     /**
      * 原轨迹数据库开启后只能记录的一条的id
@@ -129,20 +188,34 @@ public class TrackRecordingService extends Service {
     private int maxRecordingDistance;
     private int minRequiredAccuracy;
     private int autoResumeTrackTimeout;
+    private boolean smoothingFilter;
+    private boolean batchedRecording;
+    private Clock clock = Clock.SYSTEM;
+    private RecordingHooks.PipelineObserver pipelineObserver;
     private long currentRecordingInterval;
 
     // The following variables are set when recording:
     private TripStatisticsUpdater trackTripStatisticsUpdater;
     private TripStatisticsUpdater markerTripStatisticsUpdater;
     private WakeLock wakeLock;
+    private WakeLock batchWakeLock;
     private SensorManager sensorManager;
+    // 以传感器原生频率记录传感器数据，不再写入每个轨迹点
+    private SensorRecorder sensorRecorder;
     private Location lastLocation;
     private boolean currentSegmentHasLocation;
 
-    // Timer to periodically invoke checkLocationListener
-    private final Timer timer = new Timer();
-
-    // Handler for the timer to post a runnable to the main thread
+    // 所有定时任务共用一个线程，相近的唤醒合并为一次
+    private CoalescingScheduler scheduler;
+    private CoalescingScheduler.ScheduledTask checkLocationListenerTask;
+    // 实时上报记录的轨迹点
+    private TelemetryUplink telemetryUplink;
+    // 轨迹暂停或结束后增量上传到同步服务器
+    private TrackSyncEngine trackSyncEngine;
+    // 结束的轨迹计入热力图，Lollipop之前为null
+    private HeatmapEngine heatmapEngine;
+
+    // Handler to post a runnable to the main thread
     private final Handler handler = new Handler();
 
     /* it is a aidl for third part app use */
@@ -151,7 +224,14 @@ public class TrackRecordingService extends Service {
     // 记录开启轨迹的应用集合，键为applicationId，值为当前开启的轨迹id
     private HashSet<String> appIds = new HashSet<>();
     private HashMap<String, Long> trackIds = new HashMap<>();
+    // 每个app一个定位滤波器，暂停或结束时移除
+    private final ConcurrentHashMap<String, KalmanLocationFilter> locationFilters = new ConcurrentHashMap<>();
     private HashMap<String, Boolean> trackPauseds = new HashMap<>();
+    // 每条轨迹一个点日志，定位点先写入日志，再批量写入数据库
+    private final ConcurrentHashMap<Long, PointJournal> journals = new ConcurrentHashMap<>();
+    // 每条轨迹当前停留的定位次数，数据库只每隔DWELL_UPDATE_INTERVAL写一次
+    private final ConcurrentHashMap<Long, DwellCounter> dwellCounters = new ConcurrentHashMap<>();
+    private File journalDirectory;
     private String common_id;
     private String common_paused;
 
@@ -176,6 +256,7 @@ public class TrackRecordingService extends Service {
                                 PreferencesUtils.RECORDING_TRACK_PAUSED_DEFAULT);
                         trackIds.put(appId, trackId);
                         trackPauseds.put(appId, trackPaused);
+                        trackSyncEngine.setRecording(trackId, true);
                         Timber.e("OnSharedPreferenceChangeListener 上次保存结果" +
                                         " = {appId : %s, trackId : %d, paused : %b }",
                                 appId, trackId, trackPaused);
@@ -263,6 +344,7 @@ public class TrackRecordingService extends Service {
                 int minRecordingInterval = PreferencesUtils.getInt(context,
                         R.string.min_recording_interval_key,
                         PreferencesUtils.MIN_RECORDING_INTERVAL_DEFAULT);
+                stopMotionAwarePolicy();
                 switch (minRecordingInterval) {
                     case PreferencesUtils.MIN_RECORDING_INTERVAL_ADAPT_BATTERY_LIFE:
                         // Choose battery life over moving time accuracy.
@@ -274,6 +356,21 @@ public class TrackRecordingService extends Service {
                         locationListenerPolicy = new AdaptiveLocationListenerPolicy(
                                 ONE_SECOND, 30 * ONE_SECOND, 0);
                         break;
+                    case PreferencesUtils.MIN_RECORDING_INTERVAL_ADAPT_MOTION:
+                        // Full rate while moving, suspended while parked.
+                        MotionAwareLocationListenerPolicy motionAwarePolicy = new MotionAwareLocationListenerPolicy(
+                                ONE_SECOND, 2 * ONE_MINUTE, 0);
+                        motionAwarePolicy.start(context, new Runnable() {
+                            @Override
+                            public void run() {
+                                if (isRecordingAnyApp()) {
+                                    Timber.e("重新注册定位 检测到运动");
+                                    registerLocationListener();
+                                }
+                            }
+                        });
+                        locationListenerPolicy = motionAwarePolicy;
+                        break;
                     default:
                         locationListenerPolicy = new AbsoluteLocationListenerPolicy(
                                 minRecordingInterval * ONE_SECOND);
@@ -312,77 +409,155 @@ public class TrackRecordingService extends Service {
                         PreferencesUtils.AUTO_RESUME_TRACK_TIMEOUT_DEFAULT);
                 Timber.e("OnSharedPreferenceChangeListener autoResumeTrackTimeout = %d", autoResumeTrackTimeout);
             }
+            if (key == null
+                    || key.equals(PreferencesUtils.getKey(context,
+                    R.string.smoothing_filter_key))) {
+                smoothingFilter = PreferencesUtils.getBoolean(context,
+                        R.string.smoothing_filter_key,
+                        PreferencesUtils.SMOOTHING_FILTER_DEFAULT);
+                Timber.e("OnSharedPreferenceChangeListener smoothingFilter = %b", smoothingFilter);
+            }
+            if (key == null
+                    || key.equals(PreferencesUtils.getKey(context,
+                    R.string.batched_recording_key))) {
+                batchedRecording = PreferencesUtils.getBoolean(context,
+                        R.string.batched_recording_key,
+                        PreferencesUtils.BATCHED_RECORDING_DEFAULT);
+                if (key != null && isRecordingAnyApp()) {
+                    acquireWakeLock();
+                    registerLocationListener();
+                }
+            }
+            if (key == null
+                    || key.equals(PreferencesUtils.getKey(context,
+                    R.string.fix_overflow_policy_key))) {
+                String policy = PreferencesUtils.getString(context,
+                        R.string.fix_overflow_policy_key,
+                        PreferencesUtils.FIX_OVERFLOW_POLICY_DEFAULT);
+                try {
+                    fixRing.setOverflowPolicy(FixRing.OverflowPolicy.valueOf(policy));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Invalid fix overflow policy " + policy, e);
+                    fixRing.setOverflowPolicy(FixRing.OverflowPolicy.DROP_OLDEST);
+                }
+            }
+            if (key == null
+                    || key.equals(PreferencesUtils.getKey(context,
+                    R.string.alarm_aligned_scheduling_key))) {
+                scheduler.setAlarmAligned(context, PreferencesUtils.getBoolean(context,
+                        R.string.alarm_aligned_scheduling_key,
+                        PreferencesUtils.ALARM_ALIGNED_SCHEDULING_DEFAULT));
+            }
+            if (key == null
+                    || key.equals(PreferencesUtils.getKey(context,
+                    R.string.telemetry_deflate_key))) {
+                telemetryUplink.setDeflate(PreferencesUtils.getBoolean(context,
+                        R.string.telemetry_deflate_key,
+                        PreferencesUtils.TELEMETRY_DEFLATE_DEFAULT));
+            }
+            if (key == null
+                    || key.equals(PreferencesUtils.getKey(context,
+                    R.string.telemetry_endpoint_key))) {
+                telemetryUplink.setEndpoint(PreferencesUtils.getString(context,
+                        R.string.telemetry_endpoint_key,
+                        PreferencesUtils.TELEMETRY_ENDPOINT_DEFAULT));
+            }
+            if (key == null
+                    || key.equals(PreferencesUtils.getKey(context,
+                    R.string.sync_endpoint_key))) {
+                trackSyncEngine.setEndpoint(PreferencesUtils.getString(context,
+                        R.string.sync_endpoint_key,
+                        PreferencesUtils.SYNC_ENDPOINT_DEFAULT));
+                // 上传之前没有同步完的轨迹
+                trackSyncEngine.requestSyncAll();
+            }
         }
     };
 
     /**
-     * SignalManager1 定位监听
+     * 定位源，所有定位点先经过仲裁再进入记录流程
      */
-    private SignalManager1.LocationChangedObserver locationObeserver = new SignalManager1.LocationChangedObserver() {
-        @Override
-        public void onLocationChanged(Location location) {
-            locationHandle(location);
-        }
+    private final List<LocationSource> locationSources = new ArrayList<>();
+    private LocationArbiter locationArbiter;
+    // 批量定位模式的定位源，定位点由GNSS芯片缓存后成批送达
+    private SystemLocationSource batchedLocationSource;
 
+    // 批量送达的定位点已经过时，不经过仲裁
+    private final LocationSource.BatchListener batchListener = new LocationSource.BatchListener() {
         @Override
-        public void onError(Location prelocation) {
-
+        public void onLocationChanged(LocationSource source, Location location) {
+            locationHandle(location);
         }
 
         @Override
-        public void onInvalid() {
-
+        public void onLocationsChanged(LocationSource source, List<Location> locations) {
+            // Held until the recording worker has drained the batch
+            acquireBatchWakeLock();
+            for (Location location : locations) {
+                locationHandle(location);
+            }
         }
     };
 
     private void locationHandle(Location location) {
-        Timber.e("TrackRecordingService onLocationChanged()");
-        if (myTracksLocationManager == null || executorService == null
-                || !myTracksLocationManager.isAllowed()
-                || executorService.isShutdown()
-                || executorService.isTerminated()) {
+        FIXES_ARRIVED.increment();
+        EVENT_LOG.log(EventLog.FIX_ARRIVED, null, location.getProvider(), 0L, location.getLatitude(),
+                location.getLongitude(), location.getAccuracy());
+        long arrivalNanos = System.nanoTime();
+        if (myTracksLocationManager == null || recordingWorker == null
+                || !myTracksLocationManager.isAllowed()) {
             return;
         }
-        executorService.submit(new Runnable() {
-            @Override
-            public void run() {
-//                    onLocationChangedAsync(location);
-                onLocationChangedAllApp(location);
-            }
-        });
+        fixRing.offer(location, arrivalNanos);
     }
 
+    private final FixRing.Sink fixSink = new FixRing.Sink() {
+        @Override
+        public void onFix(Location location, long arrivalNanos) {
+//            onLocationChangedAsync(location);
+            onLocationChangedAllApp(location, arrivalNanos);
+        }
+    };
 
     /**
-     * LocationManager定位监听
+     * The recording thread, processing the fixes of the ring in batches.
      */
-    private LocationListener locationListener = new LocationListener() {
-        @Override
-        public void onProviderDisabled(String provider) {
-            // Do nothing
-        }
+    private final class RecordingWorker extends Thread {
 
-        @Override
-        public void onProviderEnabled(String provider) {
-            // Do nothing
+        RecordingWorker() {
+            super("TrackRecordingWorker");
         }
 
         @Override
-        public void onStatusChanged(String provider, int status, Bundle extras) {
-            // Do nothing
+        public void run() {
+            while (true) {
+                try {
+                    fixRing.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    RING_BATCH_SIZE.record(fixRing.drain(fixSink));
+                } catch (RuntimeException e) {
+                    // Already logged, keep recording the next fixes
+                }
+                if (fixRing.size() == 0) {
+                    releaseBatchWakeLock();
+                }
+            }
         }
+    }
 
-        @Override
-        public void onLocationChanged(final Location location) {
-            locationHandle(location);
-        }
-    };
 
-    private TimerTask checkLocationListener = new TimerTask() {
+    private final Runnable checkLocationListener = new Runnable() {
         @Override
         public void run() {
             if (isRecording() && !isPaused()) {
-                Timber.e("重新注册定位 TimerTask每分钟重新定位一次 checkLocationListener");
+                if (batchedRecording && batchedLocationSource.isBatched()) {
+                    // 重新注册会丢弃未送达的批次，批量模式下不重新注册
+                    return;
+                }
+                Timber.e("重新注册定位 定时任务每分钟重新定位一次 checkLocationListener");
                 registerLocationListener();
             }
         }
@@ -407,13 +582,36 @@ public class TrackRecordingService extends Service {
 
         // 利用ContentProvider将经纬度写入到db文件
         myTracksProviderUtils = MyTracksProviderUtils.Factory.get(this);
+        sensorRecorder = new SensorRecorder(myTracksProviderUtils);
         // 定位管理
         myTracksLocationManager = new MyTracksLocationManager(this);
+        locationArbiter = new LocationArbiter(handler, new LocationArbiter.Callback() {
+            @Override
+            public void onLocationChanged(Location location) {
+                locationHandle(location);
+            }
+        }, LocationArbiter.DEFAULT_WINDOW, RecordingHooks.getClock());
+        clock = RecordingHooks.getClock();
+        batchedLocationSource = new SystemLocationSource(myTracksLocationManager, handler.getLooper(),
+                BATCH_MAX_UPDATE_DELAY);
+        pipelineObserver = RecordingHooks.getPipelineObserver();
+        if (RecordingHooks.getLocationSource() != null) {
+            // 回放时只用注入的定位源
+            locationSources.add(RecordingHooks.getLocationSource());
+        } else {
+            locationSources.add(new SignalManagerLocationSource());
+        }
         voiceExecutor = new PeriodicTaskExecutor(this,
                 new AnnouncementPeriodicTaskFactory());
         splitExecutor = new PeriodicTaskExecutor(this,
                 new SplitPeriodicTaskFactory());
-        executorService = Executors.newSingleThreadExecutor();
+        recordingWorker = new RecordingWorker();
+        recordingWorker.start();
+        scheduler = new CoalescingScheduler("TrackRecordingScheduler", CoalescingScheduler.DEFAULT_TOLERANCE);
+        telemetryUplink = new TelemetryUplink(scheduler, new File(getFilesDir(), TELEMETRY_DIRECTORY));
+        trackSyncEngine = new TrackSyncEngine(this, myTracksProviderUtils, scheduler);
+        heatmapEngine = HeatmapEngine.get(this);
+        DatabaseMaintenanceJobService.schedule(this);
         // 保存轨迹记录配置的SharedPreferences
         sharedPreferences = getSharedPreferences(Constant.SETTINGS_NAME, Context.MODE_PRIVATE);
         sharedPreferences.registerOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
@@ -429,7 +627,7 @@ public class TrackRecordingService extends Service {
         sharedPreferenceChangeListener.onSharedPreferenceChanged(sharedPreferences, null);
 
         // 定位每一分钟重新注册一次的任务，这里先不要
-        timer.schedule(checkLocationListener, 0, ONE_MINUTE);
+        checkLocationListenerTask = scheduler.scheduleAtFixedRate(checkLocationListener, 0, ONE_MINUTE);
 
         /*
          * Try to restart the previous recording track in case the service has
@@ -447,6 +645,10 @@ public class TrackRecordingService extends Service {
 //            showNotification();
 //        }
 
+        // 进程被杀后，先把日志中未写入数据库的点补上
+        journalDirectory = new File(getFilesDir(), "journal");
+        recoverJournals();
+
         for (String appId : appIds) {
             long recordingTrackId = trackIds.get(appId);
             Track track = myTracksProviderUtils.getTrack(recordingTrackId);
@@ -498,23 +700,63 @@ public class TrackRecordingService extends Service {
         return binder;
     }
 
+    /**
+     * Prints the recording state and the metrics, for
+     * "adb shell dumpsys activity service TrackRecordingService".
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Recording apps: " + appIds);
+        writer.println("Polling interval: " + currentRecordingInterval + " ms");
+        if (locationArbiter != null) {
+            writer.println("Arbiter delivered: " + locationArbiter.getDeliveredCount()
+                    + ", dropped: " + locationArbiter.getDroppedCount());
+        }
+        writer.println("Fix ring pending: " + fixRing.size() + ", dropped: " + fixRing.getDroppedCount()
+                + ", coalesced: " + fixRing.getCoalescedCount());
+        MetricsRegistry.get().dump(writer);
+        EVENT_LOG.dump(writer);
+    }
+
+    /**
+     * Gets a snapshot of the metrics, see {@link MetricsRegistry#snapshot()},
+     * with the arbiter counts and the recording state.
+     */
+    private Bundle getMetrics() {
+        Bundle metrics = MetricsRegistry.get().snapshot();
+        if (locationArbiter != null) {
+            metrics.putLong("location.arbiter.delivered", locationArbiter.getDeliveredCount());
+            metrics.putLong("location.arbiter.dropped", locationArbiter.getDroppedCount());
+        }
+        metrics.putLong("location.ring.dropped", fixRing.getDroppedCount());
+        metrics.putLong("location.ring.coalesced", fixRing.getCoalescedCount());
+        metrics.putLong("location.polling_interval", currentRecordingInterval);
+        metrics.putInt("telemetry.backlog", telemetryUplink.getBacklog());
+        metrics.putLong("telemetry.frames.dropped", telemetryUplink.getDroppedCount());
+        metrics.putBoolean("telemetry.connected", telemetryUplink.isConnected());
+        metrics.putInt("service.recording_apps", appIds.size());
+        return metrics;
+    }
+
     @Override
     public void onDestroy() {
+        for (Long trackId : new ArrayList<>(journals.keySet())) {
+            releaseJournal(trackId);
+        }
+        sensorRecorder.stopAllTracks();
+
         // onDestroy方法调用时，一定要保证所有的轨迹已经结束，客户端来控制
         if (appIds.size() == 0) {
             showNotification();
 
-            checkLocationListener.cancel();
-            checkLocationListener = null;
-
-            timer.cancel();
-            timer.purge();
+            checkLocationListenerTask.cancel();
+            checkLocationListenerTask = null;
 
             sharedPreferences
                     .unregisterOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
 
             unregisterLocationListener();
-
+            stopMotionAwarePolicy();
 
             try {
                 voiceExecutor.shutdown();
@@ -542,13 +784,17 @@ public class TrackRecordingService extends Service {
 
             // This should be the next to last operation
             releaseWakeLock();
-            stopHeartbeatTask(true);
+            releaseBatchWakeLock();
+            telemetryUplink.close();
+            trackSyncEngine.shutdown();
 
             /*
-             * Shutdown the executor service last to avoid sending events to a dead
-             * executor.
+             * Stop the recording worker last to avoid sending events to a dead
+             * worker.
              */
-            executorService.shutdown();
+            recordingWorker.interrupt();
+            recordingWorker = null;
+            scheduler.shutdown();
         }
 
         enableTrackRecordingService(getApplicationContext(), false);
@@ -559,6 +805,13 @@ public class TrackRecordingService extends Service {
         Timber.e("Track Recoding Service onDestroy()");
     }
 
+    /**
+     * Gets the scheduler of the periodic tasks.
+     */
+    public CoalescingScheduler getScheduler() {
+        return scheduler;
+    }
+
     /**
      * Returns true if the service is recording.
      */
@@ -566,6 +819,21 @@ public class TrackRecordingService extends Service {
         return recordingTrackId != PreferencesUtils.RECORDING_TRACK_ID_DEFAULT;
     }
 
+    /**
+     * Returns true if a track is recording and not paused, for any app.
+     */
+    private boolean isRecordingAnyApp() {
+        if (isRecording() && !isPaused()) {
+            return true;
+        }
+        for (String appId : appIds) {
+            if (isRecording(appId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public boolean isRecording(String appId) {
         return trackIds.get(appId) != null
                 && trackIds.get(appId) != PreferencesUtils.RECORDING_TRACK_ID_DEFAULT
@@ -639,7 +907,7 @@ public class TrackRecordingService extends Service {
         String description;
         String icon;
         if (isStatistics) {
-            long now = System.currentTimeMillis();
+            long now = clock.currentTimeMillis();
             markerTripStatisticsUpdater.updateTime(now);
             tripStatistics = markerTripStatisticsUpdater.getTripStatistics();
             markerTripStatisticsUpdater = new TripStatisticsUpdater(now);
@@ -756,7 +1024,7 @@ public class TrackRecordingService extends Service {
         }
         long stopTime = track.getTripStatistics().getStopTime();
         return stopTime > 0
-                && (System.currentTimeMillis() - stopTime) <= autoResumeTrackTimeout
+                && (clock.currentTimeMillis() - stopTime) <= autoResumeTrackTimeout
                 * ONE_MINUTE;
     }
 
@@ -771,7 +1039,9 @@ public class TrackRecordingService extends Service {
         if (isRecording(appId)) {
             return -1L;
         }
-        long now = System.currentTimeMillis();
+        // 正在进行的整库VACUUM会让写入一直等待，先取消
+        myTracksProviderUtils.cancelDatabaseMaintenance();
+        long now = clock.currentTimeMillis();
         trackTripStatisticsUpdater = new TripStatisticsUpdater(now);
         markerTripStatisticsUpdater = new TripStatisticsUpdater(now);
 
@@ -791,6 +1061,7 @@ public class TrackRecordingService extends Service {
             trackIds.put(appId, trackId);
             trackPauseds.put(appId, false);  // 暂停状态更新为false
         }
+        trackSyncEngine.setRecording(trackId, true);
 
         // Update shared preferences
         updateRecordingState(appId, trackId, false);
@@ -876,6 +1147,17 @@ public class TrackRecordingService extends Service {
                             markerTripStatisticsUpdater.addLocation(location,
                                     minRecordingDistance);
                         }
+                        // 停留点再加上结束时间
+                        if (location instanceof MyTracksLocation
+                                && ((MyTracksLocation) location).hasDwell()) {
+                            Location dwellEnd = ((MyTracksLocation) location).createDwellEndLocation();
+                            trackTripStatisticsUpdater.addLocation(dwellEnd,
+                                    minRecordingDistance);
+                            if (dwellEnd.getTime() > markerStartTime) {
+                                markerTripStatisticsUpdater.addLocation(dwellEnd,
+                                        minRecordingDistance);
+                            }
+                        }
                     } while (cursor.moveToPrevious());
                 }
             }
@@ -915,7 +1197,7 @@ public class TrackRecordingService extends Service {
             Location resume = new Location(LocationManager.GPS_PROVIDER);
             resume.setLongitude(0);
             resume.setLatitude(RESUME_LATITUDE);
-            resume.setTime(System.currentTimeMillis());
+            resume.setTime(clock.currentTimeMillis());
             insertLocation(track, resume, null);
         }
 
@@ -934,7 +1216,7 @@ public class TrackRecordingService extends Service {
             Location resume = new Location(LocationManager.GPS_PROVIDER);
             resume.setLongitude(0);
             resume.setLatitude(RESUME_LATITUDE);
-            resume.setTime(System.currentTimeMillis());
+            resume.setTime(clock.currentTimeMillis());
             insertLocation(track, resume, null);
         }
 
@@ -952,12 +1234,14 @@ public class TrackRecordingService extends Service {
      */
     private void startRecording(boolean trackStarted) {
         acquireWakeLock();
-        startHeartbeatTask();
+        telemetryUplink.start();
 
         // Update instance variables
         sensorManager = SensorManagerFactory.getSystemSensorManager(this);
+        startSensorRecording(recordingTrackId);
         lastLocation = null;
         currentSegmentHasLocation = false;
+        resetMotionAwarePolicy();
 
         // Register notifications
         // if current is commer track, so use gps
@@ -980,12 +1264,14 @@ public class TrackRecordingService extends Service {
 
     private void startRecording(boolean trackStarted, String appId) {
         acquireWakeLock();
-        startHeartbeatTask();
+        telemetryUplink.start();
 
         // Update instance variables
         sensorManager = SensorManagerFactory.getSystemSensorManager(this);
+        startSensorRecording(trackIds.get(appId));
         lastLocation = null;
         currentSegmentHasLocation = false;
+        resetMotionAwarePolicy();
 
         // Register notifications
         // if current is commer track, so use gps
@@ -1028,6 +1314,7 @@ public class TrackRecordingService extends Service {
         if (track != null && !paused) {
             insertLocation(track, lastLocation,
                     getLastValidTrackPointInCurrentSegment(trackId));
+            flushJournal(track);
             updateRecordingTrack(track,
                     myTracksProviderUtils.getLastTrackPointId(trackId), false);
         }
@@ -1060,6 +1347,7 @@ public class TrackRecordingService extends Service {
         if (track != null && !paused) {
             insertLocation(track, lastLocation,
                     getLastValidTrackPointInCurrentSegment(trackId));
+            flushJournal(track);
             updateRecordingTrack(track,
                     myTracksProviderUtils.getLastTrackPointId(trackId), false);
         }
@@ -1080,6 +1368,13 @@ public class TrackRecordingService extends Service {
         if (!currentSegmentHasLocation) {
             return null;
         }
+        PointJournal journal = journals.get(trackId);
+        if (journal != null) {
+            Location location = journal.getLastValidPending();
+            if (location != null) {
+                return location;
+            }
+        }
         return myTracksProviderUtils.getLastValidTrackPoint(trackId);
     }
 
@@ -1106,7 +1401,7 @@ public class TrackRecordingService extends Service {
             Location pause = new Location(LocationManager.GPS_PROVIDER);
             pause.setLongitude(0);
             pause.setLatitude(PAUSE_LATITUDE);
-            pause.setTime(System.currentTimeMillis());
+            pause.setTime(clock.currentTimeMillis());
             insertLocation(track, pause, null);
         }
 
@@ -1128,7 +1423,7 @@ public class TrackRecordingService extends Service {
             Location pause = new Location(LocationManager.GPS_PROVIDER);
             pause.setLongitude(0);
             pause.setLatitude(PAUSE_LATITUDE);
-            pause.setTime(System.currentTimeMillis());
+            pause.setTime(clock.currentTimeMillis());
             insertLocation(track, pause, null);
         }
 
@@ -1148,6 +1443,27 @@ public class TrackRecordingService extends Service {
         Timber.e("endRecording() params{trackStopped = %b, trackId = %d, appId = %s}",
                 trackStopped, trackId, appId);
 
+        if (!TextUtils.isEmpty(appId)) {
+            // 暂停后重新开始滤波
+            locationFilters.remove(appId);
+        }
+        releaseJournal(trackId);
+        dwellCounters.remove(trackId);
+        sensorRecorder.stopTrack(trackId);
+        telemetryUplink.endTrack(trackId);
+        if (trackStopped) {
+            // 结束后最后一个点的停留不再变化，只上传水位之后的新轨迹点
+            trackSyncEngine.setRecording(trackId, false);
+            trackSyncEngine.requestSync(trackId);
+            // 结束的轨迹计入按日、周、月的汇总
+            Track track = myTracksProviderUtils.getTrack(trackId);
+            if (track != null) {
+                myTracksProviderUtils.updateRollups(track.appId, track.getTripStatistics().getStartTime());
+            }
+            if (heatmapEngine != null) {
+                heatmapEngine.addTrack(trackId);
+            }
+        }
         if (trackStopped && !TextUtils.isEmpty(appId)) { // 结束轨迹
             appIds.remove(appId);
             trackIds.remove(appId);
@@ -1179,7 +1495,8 @@ public class TrackRecordingService extends Service {
                             : R.string.track_paused_broadcast_action, trackId);
 
             releaseWakeLock();
-            stopHeartbeatTask(true);
+            releaseBatchWakeLock();
+            telemetryUplink.stop();
         }
     }
 
@@ -1217,31 +1534,35 @@ public class TrackRecordingService extends Service {
     private void onLocationChangedAsync(Location location) {
         try {
             if (!isRecording() || isPaused()) {
-                Log.w(TAG,
-                        "Ignore onLocationChangedAsync. Not recording or paused.");
+                EVENT_LOG.log(EventLog.FIX_NOT_RECORDING, LEGACY_TAG);
                 return;
             }
 
             Track track = myTracksProviderUtils.getTrack(recordingTrackId);
             if (track == null) {
-                Log.w(TAG, "Ignore onLocationChangedAsync. No track.");
+                EVENT_LOG.log(EventLog.FIX_NO_TRACK, LEGACY_TAG, recordingTrackId);
                 return;
             }
 
             if (!LocationUtils.isValidLocation(location)) {
-                Log.w(TAG,
-                        "Ignore onLocationChangedAsync. location is invalid.");
+                EVENT_LOG.log(EventLog.FIX_INVALID, LEGACY_TAG, null, 0L, location.getLatitude(),
+                        location.getLongitude(), 0.0);
                 return;
             }
 
             if (location.getAccuracy() > minRequiredAccuracy) {
-                Log.d(TAG, "Ignore onLocationChangedAsync. Poor accuracy.");
+                EVENT_LOG.log(EventLog.FIX_POOR_ACCURACY, LEGACY_TAG, null, minRequiredAccuracy, 0.0, 0.0,
+                        location.getAccuracy());
                 return;
             }
 
+            if (locationListenerPolicy instanceof MotionAwareLocationListenerPolicy) {
+                ((MotionAwareLocationListenerPolicy) locationListenerPolicy).onLocation(location);
+            }
+
             // Fix for phones that do not set the time field
             if (location.getTime() == 0L) {
-                location.setTime(System.currentTimeMillis());
+                location.setTime(clock.currentTimeMillis());
             }
 
             Location lastValidTrackPoint = getLastValidTrackPointInCurrentSegment(track
@@ -1252,8 +1573,7 @@ public class TrackRecordingService extends Service {
                 idleTime = location.getTime() - lastValidTrackPoint.getTime();
             }
             locationListenerPolicy.updateIdleTime(idleTime);
-            if (currentRecordingInterval != locationListenerPolicy
-                    .getDesiredPollingInterval()) {
+            if (isPollingIntervalChanged()) {
                 registerLocationListener();
             }
 
@@ -1280,18 +1600,23 @@ public class TrackRecordingService extends Service {
                 return;
             }
 
-            Log.i("track_point", "lat = " + location.getLatitude() + " lon = "
-                    + location.getLongitude());
             double distanceToLastTrackLocation = location
                     .distanceTo(lastValidTrackPoint);
-            Log.i("track_point", "distanceToLastTrackLocation = "
-                    + distanceToLastTrackLocation);
-            if (distanceToLastTrackLocation < minRecordingDistance
+            EVENT_LOG.log(EventLog.FIX_DISTANCE, LEGACY_TAG, location.getProvider(), 0L, location.getLatitude(),
+                    location.getLongitude(), distanceToLastTrackLocation);
+            if (sensorDataSet == null && isDwell(lastValidTrackPoint, location)) {
+                // Stationary, extend the dwell of the last track point
+                countDwellFix(track.id, lastValidTrackPoint);
+                if (location.getTime() - MyTracksLocation.getEndTime(lastValidTrackPoint) >= DWELL_UPDATE_INTERVAL) {
+                    extendDwell(track, lastValidTrackPoint, location);
+                }
+            } else if (distanceToLastTrackLocation < minRecordingDistance
                     && sensorDataSet == null) {
-                Log.d(TAG,
-                        "Not recording location due to min recording distance.");
+                EVENT_LOG.log(EventLog.FIX_TOO_CLOSE, LEGACY_TAG, null, minRecordingDistance, 0.0, 0.0,
+                        distanceToLastTrackLocation);
             } else if (distanceToLastTrackLocation > maxRecordingDistance) {
-                Log.i("track_point", "has go to insert = " + true);
+                EVENT_LOG.log(EventLog.FIX_TOO_FAR, LEGACY_TAG, null, maxRecordingDistance, 0.0, 0.0,
+                        distanceToLastTrackLocation);
                 insertLocation(track, lastLocation, lastValidTrackPoint);
                 Location pause = new Location(LocationManager.GPS_PROVIDER);
                 pause.setLongitude(0);
@@ -1319,38 +1644,58 @@ public class TrackRecordingService extends Service {
         }
     }
 
-    private void onLocationChangedAllApp(Location location) {
+    private void onLocationChangedAllApp(Location newLocation, long arrivalNanos) {
         try {
+            // 运动状态每个定位点只更新一次，与app数量无关
+            if (locationListenerPolicy instanceof MotionAwareLocationListenerPolicy
+                    && LocationUtils.isValidLocation(newLocation)
+                    && newLocation.getAccuracy() <= minRequiredAccuracy) {
+                ((MotionAwareLocationListenerPolicy) locationListenerPolicy).onLocation(newLocation);
+            }
             for (String appId : appIds) {
+                // 每个app单独处理，平滑和传感器数据不影响其他app
+                Location location = newLocation;
+
                 // 如果处于暂停或者就没有开始记录，继续下一个
                 if (!isRecording(appId)) {
-                    Timber.e("%s 未开始或暂停轨迹记录，不保存定位点", appId);
+                    EVENT_LOG.log(EventLog.FIX_NOT_RECORDING, appId);
+                    REJECTED_NOT_RECORDING.increment();
                     continue;
                 }
 
                 // 如果没有轨迹对象，继续下一个
-                Track track = myTracksProviderUtils.getTrack(trackIds.get(appId));
+                long trackId = trackIds.get(appId);
+                Track track = myTracksProviderUtils.getTrack(trackId);
                 if (track == null) {
-                    Timber.e("%s 数据库未找到轨迹对象，不保存定位点", appId);
+                    EVENT_LOG.log(EventLog.FIX_NO_TRACK, appId, trackId);
                     continue;
                 }
 
                 // 如果定位位置无效，继续下一个
                 if (!LocationUtils.isValidLocation(location)) {
-                    Timber.e("%s 定位点无效，不保存定位点", appId);
+                    EVENT_LOG.log(EventLog.FIX_INVALID, appId, null, 0L, location.getLatitude(),
+                            location.getLongitude(), 0.0);
+                    REJECTED_INVALID.increment();
                     continue;
                 }
 
                 // 如果定位精度不符合条件，继续下一个
                 if (location.getAccuracy() > minRequiredAccuracy) {
-                    Timber.e("%s 定位精度 %f > 最小精度 %d，不保存定位点", appId,
-                            location.getAccuracy(), minRequiredAccuracy);
+                    EVENT_LOG.log(EventLog.FIX_POOR_ACCURACY, appId, null, minRequiredAccuracy, 0.0, 0.0,
+                            location.getAccuracy());
+                    REJECTED_ACCURACY.increment();
                     return;
                 }
 
                 // Fix for phones that do not set the time field
                 if (location.getTime() == 0L) {
-                    location.setTime(System.currentTimeMillis());
+                    location.setTime(clock.currentTimeMillis());
+                }
+
+                // 卡尔曼滤波平滑定位点，滤波器的副本复用，原始定位留给其他app
+                KalmanLocationFilter locationFilter = getLocationFilter(appId, track);
+                if (locationFilter != null) {
+                    location = locationFilter.filterCopy(location);
                 }
 
                 Location lastValidTrackPoint = getLastValidTrackPointInCurrentSegment(track.id);
@@ -1358,13 +1703,12 @@ public class TrackRecordingService extends Service {
                 if (lastValidTrackPoint != null
                         && location.getTime() > lastValidTrackPoint.getTime()) {
                     idleTime = location.getTime() - lastValidTrackPoint.getTime();
-                    Timber.e("轨迹空闲间隔时间 = %d, 最后有效轨迹点(%f, %f)",
-                            idleTime, lastValidTrackPoint.getLatitude(), lastValidTrackPoint.getLongitude());
+                    EVENT_LOG.log(EventLog.FIX_IDLE, appId, null, idleTime, lastValidTrackPoint.getLatitude(),
+                            lastValidTrackPoint.getLongitude(), 0.0);
                 }
                 locationListenerPolicy.updateIdleTime(idleTime);
-                if (currentRecordingInterval != locationListenerPolicy
-                        .getDesiredPollingInterval()) {
-                    Timber.e("重新注册定位 onLocationChangedAllApp currentRecordingInterval不等于一个值");
+                if (isPollingIntervalChanged()) {
+                    EVENT_LOG.log(EventLog.POLLING_CHANGED, null, locationListenerPolicy.getDesiredPollingInterval());
                     registerLocationListener();
                 }
 
@@ -1374,10 +1718,11 @@ public class TrackRecordingService extends Service {
                 }
 
                 // Always insert the first segment location //第一次插入一个点时会调用。
-                Timber.e("%s 是否有当前片段，currentSegmentHasLocation = %b",
-                        appId, currentSegmentHasLocation);
                 if (!currentSegmentHasLocation) {
+                    EVENT_LOG.log(EventLog.FIX_FIRST_IN_SEGMENT, appId, null, 0L, location.getLatitude(),
+                            location.getLongitude(), 0.0);
                     insertLocation(track, location, null);
+                    COMMIT_LATENCY.recordSince(arrivalNanos);
                     currentSegmentHasLocation = true;
                     lastLocation = location;
                     return;
@@ -1390,8 +1735,9 @@ public class TrackRecordingService extends Service {
                      * location. Just insert the current location.
                      */
                     insertLocation(track, location, null);
+                    COMMIT_LATENCY.recordSince(arrivalNanos);
                     lastLocation = location;
-                    Timber.e("lastValidTrackPoint无效，已经将当前点放入轨迹");
+                    EVENT_LOG.log(EventLog.FIX_NO_LAST_VALID, appId);
                     return;
                 }
 
@@ -1406,7 +1752,7 @@ public class TrackRecordingService extends Service {
                     int errorCode = ((AMapLocation) location).getErrorCode();
                     if (errorCode != 0) {
                         String error = ((AMapLocation) location).getLocationDetail();
-                        Timber.e("高德定位错误: %s", error);
+                        EVENT_LOG.log(EventLog.AMAP_ERROR, appId, error, errorCode, 0.0, 0.0, 0.0);
                     }
 
                     Location androidLocation = new Location(provider);
@@ -1417,14 +1763,24 @@ public class TrackRecordingService extends Service {
                 } else {
                     distanceToLastTrackLocation = location.distanceTo(lastValidTrackPoint);
                 }
-                Timber.i("%s 定位点信息，provider = %s, lat = %f， lon = %f, 距上次定位点距离 = %f",
-                        appId, location.getProvider(), location.getLatitude(),
+                EVENT_LOG.log(EventLog.FIX_DISTANCE, appId, location.getProvider(), 0L, location.getLatitude(),
                         location.getLongitude(), distanceToLastTrackLocation);
-                if (distanceToLastTrackLocation < minRecordingDistance
+                if (sensorDataSet == null && isDwell(lastValidTrackPoint, location)) {
+                    // 静止不动，延长最后一个点的停留时间，离开时由lastLocation补齐结束时间
+                    countDwellFix(track.id, lastValidTrackPoint);
+                    if (location.getTime() - MyTracksLocation.getEndTime(lastValidTrackPoint) >= DWELL_UPDATE_INTERVAL) {
+                        extendDwell(track, lastValidTrackPoint, location);
+                        COMMIT_LATENCY.recordSince(arrivalNanos);
+                    }
+                    DWELL_FIXES.increment();
+                } else if (distanceToLastTrackLocation < minRecordingDistance
                         && sensorDataSet == null) {
-                    Timber.e("%s 距离小于 %d，不保存定位点", appId, minRecordingDistance);
+                    EVENT_LOG.log(EventLog.FIX_TOO_CLOSE, appId, null, minRecordingDistance, 0.0, 0.0,
+                            distanceToLastTrackLocation);
+                    REJECTED_DISTANCE.increment();
                 } else if (distanceToLastTrackLocation > maxRecordingDistance) {
-                    Timber.e("%s 距离大于 %d，保存定位点", appId, maxRecordingDistance);
+                    EVENT_LOG.log(EventLog.FIX_TOO_FAR, appId, null, maxRecordingDistance, 0.0, 0.0,
+                            distanceToLastTrackLocation);
                     insertLocation(track, lastLocation, lastValidTrackPoint);
                     Location pause = new Location(LocationManager.GPS_PROVIDER);
                     pause.setLongitude(0);
@@ -1433,6 +1789,7 @@ public class TrackRecordingService extends Service {
                     insertLocation(track, pause, null);
 
                     insertLocation(track, location, null);
+                    COMMIT_LATENCY.recordSince(arrivalNanos);
                 } else {
                     /*
                      * (distanceToLastTrackLocation >= minRecordingDistance ||
@@ -1441,6 +1798,7 @@ public class TrackRecordingService extends Service {
                      */
                     insertLocation(track, lastLocation, lastValidTrackPoint);
                     insertLocation(track, location, null);
+                    COMMIT_LATENCY.recordSince(arrivalNanos);
                 }
                 lastLocation = location;
             }
@@ -1453,6 +1811,124 @@ public class TrackRecordingService extends Service {
         }
     }
 
+    /**
+     * Returns true if a location is stationary at the last valid track point:
+     * within the min recording distance, or within its accuracy up to
+     * {@link #MAX_DWELL_RADIUS}, and not moving.
+     *
+     * @param lastValidTrackPoint the last valid track point, can be null
+     * @param location            the location
+     */
+    private boolean isDwell(Location lastValidTrackPoint, Location location) {
+        if (!(lastValidTrackPoint instanceof MyTracksLocation)
+                || !LocationUtils.isValidLocation(lastValidTrackPoint)
+                || !LocationUtils.isValidLocation(location)
+                || location.getTime() <= MyTracksLocation.getEndTime(lastValidTrackPoint)) {
+            return false;
+        }
+        if (location instanceof MyTracksLocation
+                && ((MyTracksLocation) location).hasSensorData()) {
+            return false;
+        }
+        if (location.hasSpeed() && location.getSpeed() >= DWELL_MAX_SPEED) {
+            return false;
+        }
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : 0f;
+        double radius = Math.max(minRecordingDistance, Math.min(accuracy, MAX_DWELL_RADIUS));
+        return lastValidTrackPoint.distanceTo(location) <= radius;
+    }
+
+    /**
+     * Counts a stationary fix in the dwell of the last valid track point. A
+     * new dwell starts from the count already in its row.
+     *
+     * @param trackId             the track id
+     * @param lastValidTrackPoint the last valid track point
+     */
+    private void countDwellFix(long trackId, Location lastValidTrackPoint) {
+        DwellCounter counter = dwellCounters.get(trackId);
+        if (counter == null) {
+            counter = new DwellCounter();
+            dwellCounters.put(trackId, counter);
+        }
+        if (counter.time != lastValidTrackPoint.getTime()) {
+            counter.time = lastValidTrackPoint.getTime();
+            counter.count = Math.max(((MyTracksLocation) lastValidTrackPoint).getDwellCount(), 1);
+        }
+        counter.count++;
+    }
+
+    /**
+     * Gets the number of fixes in the dwell of a track point with a new
+     * stationary fix: the counted fixes if any, else the count in its row
+     * plus one.
+     *
+     * @param trackId the track id
+     * @param dwell   the track point
+     */
+    private int getDwellCount(long trackId, MyTracksLocation dwell) {
+        int rowCount = Math.max(dwell.getDwellCount(), 1);
+        DwellCounter counter = dwellCounters.get(trackId);
+        if (counter != null && counter.time == dwell.getTime()) {
+            return Math.max(counter.count, rowCount);
+        }
+        return rowCount + 1;
+    }
+
+    /**
+     * Extends the dwell of the last valid track point to a location time.
+     *
+     * @param track               the track
+     * @param lastValidTrackPoint the last valid track point
+     * @param location            the stationary location
+     */
+    private void extendDwell(Track track, Location lastValidTrackPoint, Location location) {
+        MyTracksLocation dwell = (MyTracksLocation) lastValidTrackPoint;
+        int dwellCount = getDwellCount(track.id, dwell);
+        // A pending last valid track point keeps its dwell in the journal,
+        // committed with the batch
+        PointJournal journal = journals.get(track.id);
+        boolean journaled = false;
+        if (journal != null && journal.getPendingValidCount() != 0) {
+            journaled = journal.setLastDwell(location.getTime(), dwellCount);
+            if (!journaled) {
+                // Full, the dwell goes on the database row
+                if (!flushJournal(track)) {
+                    return;
+                }
+                lastValidTrackPoint = myTracksProviderUtils.getLastValidTrackPoint(track.id);
+                if (!(lastValidTrackPoint instanceof MyTracksLocation)) {
+                    return;
+                }
+                dwell = (MyTracksLocation) lastValidTrackPoint;
+            }
+        }
+        try {
+            if (!journaled) {
+                myTracksProviderUtils.updateLastValidTrackPointDwell(track.id, location.getTime(), dwellCount);
+            }
+            dwell.setDwell(location.getTime(), dwellCount);
+
+            // Statistics see the dwell end, same as when read back
+            Location dwellEnd = dwell.createDwellEndLocation();
+            trackTripStatisticsUpdater.addLocation(dwellEnd, minRecordingDistance);
+            markerTripStatisticsUpdater.addLocation(dwellEnd, minRecordingDistance);
+            if (!journaled) {
+                updateRecordingTrack(track, -1L, false);
+            }
+            if (pipelineObserver != null) {
+                pipelineObserver.onLocationCommitted(track, location);
+            }
+            telemetryUplink.offer(track, location);
+            // The track row is updated when the journal commits, same limits as an append
+            if (journaled && SystemClock.elapsedRealtime() - journal.getFirstPendingTime() >= JOURNAL_MAX_AGE) {
+                flushJournal(track);
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "SQLiteException", e);
+        }
+    }
+
     /**
      * Inserts a location.
      *
@@ -1468,9 +1944,27 @@ public class TrackRecordingService extends Service {
         }
         // Do not insert if inserted already
         if (lastValidTrackPoint != null
-                && lastValidTrackPoint.getTime() == location.getTime()) {
-            Log.w(TAG,
-                    "Ignore insertLocation. location time same as last valid track point time.");
+                && (lastValidTrackPoint.getTime() == location.getTime()
+                || MyTracksLocation.getEndTime(lastValidTrackPoint) == location.getTime())) {
+            EVENT_LOG.log(EventLog.FIX_DUPLICATE, null, location.getTime());
+            return;
+        }
+        // Fold a fix close to the last track point into its dwell
+        if (isDwell(lastValidTrackPoint, location)) {
+            extendDwell(track, lastValidTrackPoint, location);
+            return;
+        }
+
+        PointJournal journal = getJournal(track.id);
+        if (journal != null && !journal.append(location)) {
+            // 日志满了，先写入数据库
+            flushJournal(track);
+            if (!journal.append(location)) {
+                journal = null;
+            }
+        }
+        if (journal != null) {
+            appendedLocation(track, journal, location);
             return;
         }
 
@@ -1484,6 +1978,10 @@ public class TrackRecordingService extends Service {
                     minRecordingDistance);
             updateRecordingTrack(track, trackPointId,
                     LocationUtils.isValidLocation(location));
+            if (pipelineObserver != null) {
+                pipelineObserver.onLocationCommitted(track, location);
+            }
+            telemetryUplink.offer(track, location);
         } catch (SQLiteException e) {
             /*
              * Insert failed, most likely because of SqlLite error code 5
@@ -1498,6 +1996,188 @@ public class TrackRecordingService extends Service {
                 track.id);
     }
 
+    /*
+     * Updates the statistics for a location appended to the point journal,
+     * committing the journal when its batch is full or old enough. The track
+     * row is updated at the commit.
+     */
+    private void appendedLocation(Track track, PointJournal journal, Location location) {
+        JOURNAL_APPENDS.increment();
+        trackTripStatisticsUpdater.addLocation(location, minRecordingDistance);
+        markerTripStatisticsUpdater.addLocation(location, minRecordingDistance);
+        if (pipelineObserver != null) {
+            pipelineObserver.onLocationCommitted(track, location);
+        }
+        telemetryUplink.offer(track, location);
+        if (journal.getPendingCount() >= JOURNAL_BATCH_SIZE
+                || SystemClock.elapsedRealtime() - journal.getFirstPendingTime() >= JOURNAL_MAX_AGE) {
+            flushJournal(track);
+        }
+        voiceExecutor.update();
+        splitExecutor.update();
+        sendTrackBroadcast(R.string.track_update_broadcast_action,
+                track.id);
+    }
+
+    /**
+     * Gets the point journal of a track, opening it if needed. Returns null if
+     * not available, the points are then inserted directly.
+     *
+     * @param trackId the track id
+     */
+    private PointJournal getJournal(long trackId) {
+        if (journalDirectory == null) {
+            return null;
+        }
+        PointJournal journal = journals.get(trackId);
+        if (journal != null) {
+            return journal;
+        }
+        try {
+            journal = PointJournal.open(journalDirectory, trackId);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to open the point journal of track " + trackId, e);
+            return null;
+        }
+        PointJournal existing = journals.putIfAbsent(trackId, journal);
+        if (existing != null) {
+            journal.close();
+            return existing;
+        }
+        return journal;
+    }
+
+    /**
+     * Commits the pending points of the journal of a track to the database.
+     * Returns false if they could not be inserted, they stay pending.
+     *
+     * @param track the track, updated with the new point count, stop id and
+     *              statistics
+     */
+    private boolean flushJournal(Track track) {
+        PointJournal journal = journals.get(track.id);
+        return journal == null || commitJournal(journal, track, true);
+    }
+
+    private boolean commitJournal(PointJournal journal, Track track, boolean updateStatistics) {
+        // 同一日志只能有一个线程提交，否则点会重复插入
+        synchronized (journal) {
+            Location[] locations = journal.getPending();
+            if (locations.length == 0) {
+                return true;
+            }
+            long startNanos = System.nanoTime();
+            int validCount = journal.getPendingValidCount();
+            try {
+                myTracksProviderUtils.bulkInsertTrackPoint(locations, locations.length, track.id);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "SQLiteException", e);
+                return false;
+            }
+            journal.commit(locations.length);
+
+            track.numberOfPoints = track.numberOfPoints + validCount;
+            track.stopId = myTracksProviderUtils.getLastTrackPointId(track.id);
+            if (track.startId < 0) {
+                track.startId = myTracksProviderUtils.getFirstTrackPointId(track.id);
+            }
+            if (updateStatistics && trackTripStatisticsUpdater != null) {
+                trackTripStatisticsUpdater.updateTime(clock.currentTimeMillis());
+                track.setTripStatistics(trackTripStatisticsUpdater.getTripStatistics());
+            }
+            myTracksProviderUtils.updateTrack(track);
+            JOURNAL_COMMITTED.add(locations.length);
+            JOURNAL_COMMIT_LATENCY.recordSince(startNanos);
+            return true;
+        }
+    }
+
+    /**
+     * Commits and deletes the point journal of a track, at a pause or an end.
+     * If the commit fails, the journal is flushed to the storage and kept for
+     * the next recovery.
+     *
+     * @param trackId the track id
+     */
+    private void releaseJournal(long trackId) {
+        PointJournal journal = journals.remove(trackId);
+        if (journal == null) {
+            return;
+        }
+        Track track = myTracksProviderUtils.getTrack(trackId);
+        if (track == null || commitJournal(journal, track, true)) {
+            journal.delete();
+        } else {
+            journal.force();
+            journal.close();
+        }
+    }
+
+    /*
+     * Inserts the points left in the journals by a killed process. The points
+     * of a journal are committed as one batch, so either all or none of them
+     * are in the database already.
+     */
+    private void recoverJournals() {
+        for (long trackId : PointJournal.getTrackIds(journalDirectory)) {
+            PointJournal journal;
+            try {
+                journal = PointJournal.open(journalDirectory, trackId);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to open the point journal of track " + trackId, e);
+                continue;
+            }
+            Track track = myTracksProviderUtils.getTrack(trackId);
+            if (track == null) {
+                journal.delete();
+                continue;
+            }
+            journal.commit(getCommittedCount(journal.getPending(), trackId));
+            int count = journal.getPendingCount();
+            // The statistics are rebuilt from the points when the track restarts
+            if (commitJournal(journal, track, false)) {
+                Log.i(TAG, "Recovered " + count + " points of track " + trackId);
+                journal.delete();
+            } else {
+                journal.close();
+            }
+        }
+    }
+
+    /*
+     * Gets the number of pending points already in the database, up to the
+     * last track point of the track.
+     */
+    private int getCommittedCount(Location[] locations, long trackId) {
+        Location lastTrackPoint = null;
+        Cursor cursor = null;
+        try {
+            cursor = myTracksProviderUtils.getTrackPointCursor(trackId, -1L, 1, true);
+            if (cursor != null && cursor.moveToFirst()) {
+                lastTrackPoint = myTracksProviderUtils.createTrackPoint(cursor);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "RuntimeException", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (lastTrackPoint == null) {
+            return 0;
+        }
+        for (int i = locations.length - 1; i >= 0; i--) {
+            Location location = locations[i];
+            // The database keeps the coordinates as E6 integers
+            if (location.getTime() == lastTrackPoint.getTime()
+                    && (int) (location.getLatitude() * 1E6) == (int) (lastTrackPoint.getLatitude() * 1E6)
+                    && (int) (location.getLongitude() * 1E6) == (int) (lastTrackPoint.getLongitude() * 1E6)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
     private void updateRecordingTrack(Track track, long trackPointId,
                                       boolean isTrackPointNewAndValid) {
         if (trackPointId >= 0) {
@@ -1510,19 +2190,36 @@ public class TrackRecordingService extends Service {
             track.numberOfPoints = (track.numberOfPoints + 1);
         }
 
-        trackTripStatisticsUpdater.updateTime(System.currentTimeMillis());
+        trackTripStatisticsUpdater.updateTime(clock.currentTimeMillis());
         track.setTripStatistics(trackTripStatisticsUpdater.getTripStatistics());
         myTracksProviderUtils.updateTrack(track);
     }
 
+    /**
+     * Gets the sensor data set to attach to a track point. Null while the
+     * sensor recorder gets the samples, they are in the sensor blocks table.
+     */
     private SensorDataSet getSensorDataSet() {
         if (sensorManager == null || !sensorManager.isEnabled()
-                || !sensorManager.isSensorDataSetValid()) {
+                || !sensorManager.isSensorDataSetValid() || sensorRecorder.isActive()) {
             return null;
         }
         return sensorManager.getSensorDataSet();
     }
 
+    /**
+     * Starts recording the samples of the sensor to a track.
+     *
+     * @param trackId the track id
+     */
+    private void startSensorRecording(Long trackId) {
+        if (sensorManager == null || trackId == null || trackId == -1L) {
+            return;
+        }
+        sensorManager.setSensorDataSetListener(sensorRecorder);
+        sensorRecorder.startTrack(trackId);
+    }
+
     /**
      * Registers the location listener.
      */
@@ -1539,15 +2236,40 @@ public class TrackRecordingService extends Service {
                     Timber.e("注册定位时 myTracksLocationManager is null");
                     return;
                 }
+                if (locationListenerPolicy instanceof MotionAwareLocationListenerPolicy
+                        && ((MotionAwareLocationListenerPolicy) locationListenerPolicy).isSuspended()) {
+                    // 静止状态下暂停定位，等待显著运动传感器唤醒
+                    currentRecordingInterval = 0L;
+                    Timber.e("静止中，暂停定位监听");
+                    return;
+                }
                 try {
                     long interval = locationListenerPolicy
                             .getDesiredPollingInterval();
-//                    myTracksLocationManager.requestLocationUpdates(
-//                            LocationManager.GPS_PROVIDER, interval,
-//                            locationListenerPolicy.getMinDistance(),
-//                            locationListener, context.getMainLooper());
-
-                    SignalManager1.getInstance().registerLocationChangedObserver(locationObeserver);
+                    if (batchedRecording) {
+                        batchedLocationSource.start(batchListener, interval,
+                                locationListenerPolicy.getMinDistance());
+                        if (batchedLocationSource.isBatched()) {
+                            // 批量模式下只在每批处理期间持有唤醒锁
+                            releaseWakeLock();
+                            currentRecordingInterval = interval;
+                            Timber.e("注册批量定位 interval: %d, maxUpdateDelay: %d",
+                                    interval, BATCH_MAX_UPDATE_DELAY);
+                            return;
+                        }
+                        // Not supported by the device, record per fix
+                        batchedLocationSource.stop();
+                        acquireWakeLock();
+                    }
+                    boolean motionAware = locationListenerPolicy instanceof MotionAwareLocationListenerPolicy;
+                    for (LocationSource locationSource : locationSources) {
+                        if (locationSource instanceof SignalManagerLocationSource) {
+                            // 只有运动感知策略按间隔节流，其他策略保持SignalManager原有频率
+                            ((SignalManagerLocationSource) locationSource).setThrottled(motionAware);
+                        }
+                        locationSource.start(locationArbiter, interval,
+                                locationListenerPolicy.getMinDistance());
+                    }
 
                     currentRecordingInterval = interval;
 
@@ -1561,6 +2283,61 @@ public class TrackRecordingService extends Service {
         });
     }
 
+    /**
+     * Gets the location filter of an app, creating it for a new session.
+     * Returns null if smoothing is off.
+     *
+     * @param appId the app id
+     * @param track the recording track of the app
+     */
+    private KalmanLocationFilter getLocationFilter(String appId, Track track) {
+        if (!smoothingFilter) {
+            return null;
+        }
+        KalmanLocationFilter locationFilter = locationFilters.get(appId);
+        if (locationFilter == null) {
+            locationFilter = new KalmanLocationFilter(
+                    KalmanLocationFilter.ActivityType.fromCategory(track.category));
+            locationFilters.put(appId, locationFilter);
+        }
+        return locationFilter;
+    }
+
+    /**
+     * Returns true if the location listener should be registered again with the
+     * desired polling interval of the policy.
+     */
+    private boolean isPollingIntervalChanged() {
+        long desiredInterval = locationListenerPolicy.getDesiredPollingInterval();
+        if (locationListenerPolicy instanceof MotionAwareLocationListenerPolicy) {
+            MotionAwareLocationListenerPolicy policy = (MotionAwareLocationListenerPolicy) locationListenerPolicy;
+            if (policy.isSuspended()) {
+                return currentRecordingInterval != 0L;
+            }
+            return policy.isMaterialChange(currentRecordingInterval, desiredInterval);
+        }
+        return currentRecordingInterval != desiredInterval;
+    }
+
+    /**
+     * Resets the motion state of the current policy, if any, so a started or
+     * resumed track polls at the min interval.
+     */
+    private void resetMotionAwarePolicy() {
+        if (locationListenerPolicy instanceof MotionAwareLocationListenerPolicy) {
+            ((MotionAwareLocationListenerPolicy) locationListenerPolicy).reset();
+        }
+    }
+
+    /**
+     * Stops the motion detection of the current policy, if any.
+     */
+    private void stopMotionAwarePolicy() {
+        if (locationListenerPolicy instanceof MotionAwareLocationListenerPolicy) {
+            ((MotionAwareLocationListenerPolicy) locationListenerPolicy).stop();
+        }
+    }
+
     /**
      * Unregisters the location manager.
      */
@@ -1570,8 +2347,11 @@ public class TrackRecordingService extends Service {
             Timber.e("取消注册定位时 myTracksLocationManager is null");
             return;
         }
-//        myTracksLocationManager.removeUpdates(locationListener);
-        SignalManager1.getInstance().removeLocationChangedObserver(locationObeserver);
+        for (LocationSource locationSource : locationSources) {
+            locationSource.stop();
+        }
+        batchedLocationSource.stop();
+        locationArbiter.reset();
     }
 
     /**
@@ -1613,6 +2393,38 @@ public class TrackRecordingService extends Service {
         }
     }
 
+    /**
+     * Acquires the wake lock of a location batch, released when the batch is
+     * recorded or after {@link #BATCH_WAKE_LOCK_TIMEOUT}.
+     */
+    private void acquireBatchWakeLock() {
+        try {
+            if (batchWakeLock == null) {
+                PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+                if (powerManager == null) {
+                    Log.e(TAG, "powerManager is null.");
+                    return;
+                }
+                batchWakeLock = powerManager.newWakeLock(
+                        PowerManager.PARTIAL_WAKE_LOCK, TAG + ":batch");
+                batchWakeLock.setReferenceCounted(false);
+            }
+            batchWakeLock.acquire(BATCH_WAKE_LOCK_TIMEOUT);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Caught unexpected exception", e);
+        }
+    }
+
+    /**
+     * Releases the wake lock of a location batch.
+     */
+    private void releaseBatchWakeLock() {
+        WakeLock lock = batchWakeLock;
+        if (lock != null && lock.isHeld()) {
+            lock.release();
+        }
+    }
+
     /**
      * Shows the notification.
      */
@@ -1723,10 +2535,12 @@ public class TrackRecordingService extends Service {
         Intent intent = new Intent().setAction(getString(actionId)).putExtra(
                 getString(R.string.track_id_broadcast_extra), trackId);
         sendBroadcast(intent, getString(R.string.permission_notification_value));
+        BROADCASTS.increment();
         if (PreferencesUtils.getBoolean(this, R.string.allow_access_key,
                 PreferencesUtils.ALLOW_ACCESS_DEFAULT)) {
             sendBroadcast(intent,
                     getString(R.string.broadcast_notifications_permission));
+            BROADCASTS.increment();
         }
     }
 
@@ -1917,7 +2731,7 @@ public class TrackRecordingService extends Service {
                 return 0;
             }
             if (!trackRecordingService.isPaused()) {
-                updater.updateTime(System.currentTimeMillis());
+                updater.updateTime(trackRecordingService.clock.currentTimeMillis());
             }
             return updater.getTripStatistics().getTotalTime();
         }
@@ -1927,7 +2741,8 @@ public class TrackRecordingService extends Service {
             if (!canAccess()) {
                 return;
             }
-            trackRecordingService.locationListener.onLocationChanged(location);
+            // 外部插入的点不经过仲裁
+            trackRecordingService.locationHandle(location);
         }
 
         @Override
@@ -1957,6 +2772,14 @@ public class TrackRecordingService extends Service {
                     .toByteArray();
         }
 
+        @Override
+        public Bundle getMetrics() {
+            if (!canAccess()) {
+                return new Bundle();
+            }
+            return trackRecordingService.getMetrics();
+        }
+
         @Override
         public int getSensorState() {
             if (!canAccess()) {
@@ -2021,80 +2844,12 @@ public class TrackRecordingService extends Service {
         context.getPackageManager().setComponentEnabledSetting(serviceComp, newState, PackageManager.DONT_KILL_APP);
     }
 
-
-    /*********** 心跳长链接 START ***********/
-    private WebSocket webSocket;
-    private static final int CONNECTION_TIMEOUT = 20 * 1000; // 20 secs in ms
-    private boolean isManualCloseWebSocket = false;
-    private Runnable heartbeatTask = new Runnable() {
-        @Override
-        public void run() {
-            //新建client
-            OkHttpClient client = new OkHttpClient.Builder()
-                    .connectTimeout(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS)
-                    .build();
-            //构造request对象
-            Request request = new Request.Builder()
-                    .url("ws://114.116.142.50:6010")
-//                    .url("ws://echo.websocket.org")
-                    .build();
-            //建立连接
-            client.newWebSocket(request, new WebSocketListener() {
-                @Override
-                public void onOpen(WebSocket webSocket, Response response) {
-                    super.onOpen(webSocket, response);
-                    Timber.d("WebSocket 打开成功：%s", response.toString());
-                    TrackRecordingService.this.webSocket = webSocket;
-                    handler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (!isManualCloseWebSocket) {
-                                startHeartbeatTask(); // 长链接销毁30秒后重新创建
-                            }
-                        }
-                    }, 5 * 60 * 1000);// 长链接建立5分钟后销毁
-                }
-
-                @Override
-                public void onFailure(WebSocket webSocket, Throwable t, Response response) {
-                    super.onFailure(webSocket, t, response);
-                    Timber.d("WebSocket 打开失败：%s", t.getMessage());
-                    if (!isManualCloseWebSocket) {
-                        startHeartbeatTask(); // 如果打开WebSocket失败，30秒后重连
-                    }
-                }
-
-                @Override
-                public void onMessage(WebSocket webSocket, String text) {
-                    super.onMessage(webSocket, text);
-                    Timber.d("WebSocket 接收消息：%s", text);
-                }
-
-                @Override
-                public void onClosed(WebSocket webSocket, int code, String reason) {
-                    super.onClosed(webSocket, code, reason);
-                    Timber.d("WebSocket 关闭成功，code = %d，reason = %s", code, reason);
-                    if (!isManualCloseWebSocket) {
-                        startHeartbeatTask(); // 如果打开WebSocket失败，30秒后重连
-                    }
-                }
-            });
-        }
-    };
-
-    private void startHeartbeatTask() {
-        stopHeartbeatTask(false);
-        handler.postDelayed(heartbeatTask, 30 * 1000);
-    }
-
-    private void stopHeartbeatTask(boolean isManualCloseWebSocket) {
-        TrackRecordingService.this.isManualCloseWebSocket = isManualCloseWebSocket;
-        handler.removeCallbacks(heartbeatTask);
-        if (webSocket != null) {
-            webSocket.close(3954, "长链接5分钟一次的断开，30秒后再开启");
-            webSocket.cancel();
-        }
+    /**
+     * The fixes of the open dwell of a track.
+     */
+    private static class DwellCounter {
+        // The time of the dwell track point
+        long time;
+        int count;
     }
-    /*********** 心跳长链接 END ***********/
-
 }
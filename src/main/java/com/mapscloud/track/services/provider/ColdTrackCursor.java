@@ -0,0 +1,188 @@
+package com.mapscloud.track.services.provider;
+
+import android.database.AbstractCursor;
+
+import com.mapscloud.track.services.content.TrackPointsColumns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A read only cursor over the track points of a cold track file, see
+ * {@link ColdTrackStore}, with the columns of
+ * {@link TrackPointsColumns#COLUMNS}. The values are read from the mapped
+ * file as the cursor moves, nothing is copied but the sensor blobs.
+ */
+class ColdTrackCursor extends AbstractCursor {
+
+    private static final int ID = 0;
+    private static final int TRACKID = 1;
+    private static final int LONGITUDE = 2;
+    private static final int LATITUDE = 3;
+    private static final int TIME = 4;
+    private static final int ALTITUDE = 5;
+    private static final int ACCURACY = 6;
+    private static final int SPEED = 7;
+    private static final int BEARING = 8;
+    private static final int SENSOR = 9;
+    private static final int DWELL_END_TIME = 10;
+    private static final int DWELL_COUNT = 11;
+
+    private final ByteBuffer buffer;
+    private final long trackId;
+    private final int first;
+    private final int count;
+    private final boolean descending;
+
+    /**
+     * Constructor.
+     *
+     * @param buffer     the mapped file
+     * @param trackId    the track id
+     * @param first      the index of the first record
+     * @param count      the number of records
+     * @param descending true to go down from the first record
+     */
+    ColdTrackCursor(ByteBuffer buffer, long trackId, int first, int count, boolean descending) {
+        this.buffer = buffer;
+        this.trackId = trackId;
+        this.first = first;
+        this.count = count;
+        this.descending = descending;
+    }
+
+    @Override
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return TrackPointsColumns.COLUMNS;
+    }
+
+    @Override
+    public String getString(int column) {
+        if (isNull(column)) {
+            return null;
+        }
+        switch (column) {
+            case ALTITUDE:
+            case ACCURACY:
+            case SPEED:
+            case BEARING:
+                return String.valueOf(getDouble(column));
+            case SENSOR:
+                return new String(getBlob(column));
+            default:
+                return String.valueOf(getLong(column));
+        }
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        int offset = getRecordOffset();
+        switch (column) {
+            case ID:
+                return buffer.getLong(offset + ColdTrackStore.ID_OFFSET);
+            case TRACKID:
+                return trackId;
+            case LONGITUDE:
+                return buffer.getInt(offset + ColdTrackStore.LONGITUDE_OFFSET);
+            case LATITUDE:
+                return buffer.getInt(offset + ColdTrackStore.LATITUDE_OFFSET);
+            case TIME:
+                return buffer.getLong(offset + ColdTrackStore.TIME_OFFSET);
+            case DWELL_END_TIME:
+                return buffer.getLong(offset + ColdTrackStore.DWELL_END_TIME_OFFSET);
+            case DWELL_COUNT:
+                return buffer.getInt(offset + ColdTrackStore.DWELL_COUNT_OFFSET);
+            case SENSOR:
+                throw new IllegalArgumentException("Sensor is a blob");
+            default:
+                return (long) getDouble(column);
+        }
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return (float) getDouble(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        int offset = getRecordOffset();
+        switch (column) {
+            case ALTITUDE:
+                return buffer.getDouble(offset + ColdTrackStore.ALTITUDE_OFFSET);
+            case ACCURACY:
+                return buffer.getFloat(offset + ColdTrackStore.ACCURACY_OFFSET);
+            case SPEED:
+                return buffer.getFloat(offset + ColdTrackStore.SPEED_OFFSET);
+            case BEARING:
+                return buffer.getFloat(offset + ColdTrackStore.BEARING_OFFSET);
+            default:
+                return getLong(column);
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        if (column != SENSOR) {
+            throw new IllegalArgumentException("Not a blob column: " + column);
+        }
+        if (isNull(column)) {
+            return null;
+        }
+        int offset = getRecordOffset();
+        int blobOffset = ColdTrackStore.getBlobsOffset(buffer) + buffer.getInt(offset + ColdTrackStore.SENSOR_OFFSET);
+        byte[] blob = new byte[buffer.getInt(offset + ColdTrackStore.SENSOR_LENGTH_OFFSET)];
+        for (int i = 0; i < blob.length; i++) {
+            blob[i] = buffer.get(blobOffset + i);
+        }
+        return blob;
+    }
+
+    @Override
+    public int getType(int column) {
+        if (isNull(column)) {
+            return FIELD_TYPE_NULL;
+        }
+        switch (column) {
+            case ALTITUDE:
+            case ACCURACY:
+            case SPEED:
+            case BEARING:
+                return FIELD_TYPE_FLOAT;
+            case SENSOR:
+                return FIELD_TYPE_BLOB;
+            default:
+                return FIELD_TYPE_INTEGER;
+        }
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        if (column == ID || column == TRACKID) {
+            return false;
+        }
+        return (buffer.getInt(getRecordOffset() + ColdTrackStore.NULLS_OFFSET) & (1 << column)) != 0;
+    }
+
+    private int getRecordOffset() {
+        int position = getPosition();
+        if (position < 0 || position >= count) {
+            throw new IllegalStateException("Cursor position " + position + " out of 0-" + count);
+        }
+        return ColdTrackStore.getRecordOffset(descending ? first - position : first + position);
+    }
+}
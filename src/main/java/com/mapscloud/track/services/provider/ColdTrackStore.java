@@ -0,0 +1,376 @@
+package com.mapscloud.track.services.provider;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import com.mapscloud.track.services.content.TrackPointsColumns;
+import com.mapscloud.track.services.content.TracksColumns;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The cold tier of the track points: the points of the old tracks, moved
+ * out of app.db into one file per track, read through memory mapped I/O.
+ * <p>
+ * A file is a header, the magic {@link #MAGIC}, the version, the track id
+ * and the point count, then one fixed size record per point in id order,
+ * then the sensor blobs. A record holds the columns of
+ * {@link TrackPointsColumns} and a bit per null column, so a point is found
+ * by a binary search on the ids and read in place by a
+ * {@link ColdTrackCursor}. Files are written to a temporary file then
+ * renamed. A track is cold once its {@link TracksColumns#TIER} says so, set
+ * in the transaction which deletes its points from app.db. Thread safe.
+ */
+class ColdTrackStore {
+
+    private static final String TAG = ColdTrackStore.class.getSimpleName();
+
+    static final int MAGIC = 0x4d54434b;
+    static final int VERSION = 1;
+
+    private static final String SUFFIX = ".trk";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // magic, version, track id, count
+    static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+    private static final int COUNT_OFFSET = 16;
+
+    static final int ID_OFFSET = 0;
+    static final int TIME_OFFSET = 8;
+    static final int DWELL_END_TIME_OFFSET = 16;
+    static final int ALTITUDE_OFFSET = 24;
+    static final int LATITUDE_OFFSET = 32;
+    static final int LONGITUDE_OFFSET = 36;
+    static final int ACCURACY_OFFSET = 40;
+    static final int SPEED_OFFSET = 44;
+    static final int BEARING_OFFSET = 48;
+    static final int DWELL_COUNT_OFFSET = 52;
+    static final int NULLS_OFFSET = 56;
+    static final int SENSOR_OFFSET = 60;
+    static final int SENSOR_LENGTH_OFFSET = 64;
+    static final int RECORD_SIZE = 68;
+
+    // 映射的文件数，映射在缓存淘汰后由 GC 释放
+    private static final int MAX_MAPPED_FILES = 8;
+
+    private static ColdTrackStore instance;
+
+    private final File directory;
+
+    private final Map<Long, MappedByteBuffer> mappedFiles = new LinkedHashMap<Long, MappedByteBuffer>(
+            MAX_MAPPED_FILES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, MappedByteBuffer> eldest) {
+            return size() > MAX_MAPPED_FILES;
+        }
+    };
+
+    /**
+     * Gets the store of a directory, shared.
+     *
+     * @param directory the directory
+     */
+    static synchronized ColdTrackStore get(File directory) {
+        if (instance == null || !instance.directory.equals(directory)) {
+            instance = new ColdTrackStore(directory);
+        }
+        return instance;
+    }
+
+    private ColdTrackStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Lists the ids of the tracks with a cold file. Reads the directory, only
+     * for upgrading a database from before {@link TracksColumns#TIER}.
+     */
+    Set<Long> listTrackIds() {
+        Set<Long> trackIds = new HashSet<Long>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SUFFIX)) {
+                    try {
+                        trackIds.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Unexpected cold track file " + name);
+                    }
+                }
+            }
+        }
+        return trackIds;
+    }
+
+    /**
+     * Gets the id of the last valid track point of a cold track, -1 if none
+     * or if the track file can't be read.
+     *
+     * @param trackId     the track id
+     * @param maxLatitude the maximum latitude of a valid point
+     */
+    long getLastValidTrackPointId(long trackId, int maxLatitude) {
+        ByteBuffer buffer = map(trackId);
+        if (buffer == null) {
+            return -1L;
+        }
+        for (int i = getCount(buffer) - 1; i >= 0; i--) {
+            int offset = getRecordOffset(i);
+            if (buffer.getInt(offset + LATITUDE_OFFSET) <= maxLatitude) {
+                return buffer.getLong(offset + ID_OFFSET);
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Gets a cursor of the track points, like
+     * {@link MyTracksProviderUtils#getTrackPointCursor(long, long, int, boolean)}.
+     *
+     * @param trackId           the track id
+     * @param startTrackPointId the starting track point id, -1 for the first
+     *                          or the last
+     * @param maxLocations      the maximum number of points, -1 for no limit
+     * @param descending        true to sort by descending id
+     * @return the cursor, null if the track file can't be read
+     */
+    Cursor query(long trackId, long startTrackPointId, int maxLocations, boolean descending) {
+        ByteBuffer buffer = map(trackId);
+        if (buffer == null) {
+            return null;
+        }
+        int count = getCount(buffer);
+        int first;
+        int available;
+        if (descending) {
+            first = startTrackPointId < 0 ? count - 1 : upperBound(buffer, startTrackPointId) - 1;
+            available = first + 1;
+        } else {
+            first = startTrackPointId < 0 ? 0 : lowerBound(buffer, startTrackPointId);
+            available = count - first;
+        }
+        return new ColdTrackCursor(buffer, trackId, first,
+                maxLocations >= 0 ? Math.min(maxLocations, available) : available, descending);
+    }
+
+    /**
+     * Gets a cursor of the track points with ids from minTrackPointId to
+     * maxTrackPointId, ascending.
+     *
+     * @param trackId         the track id
+     * @param minTrackPointId the minimum track point id
+     * @param maxTrackPointId the maximum track point id
+     * @return the cursor, null if the track file can't be read
+     */
+    Cursor query(long trackId, long minTrackPointId, long maxTrackPointId) {
+        ByteBuffer buffer = map(trackId);
+        if (buffer == null) {
+            return null;
+        }
+        int first = lowerBound(buffer, minTrackPointId);
+        int end = upperBound(buffer, maxTrackPointId);
+        return new ColdTrackCursor(buffer, trackId, first, Math.max(0, end - first), false);
+    }
+
+    /**
+     * Writes the points of a track to its cold file. The caller then deletes
+     * the points from the database.
+     *
+     * @param trackId the track id
+     * @param cursor  the points, all the {@link TrackPointsColumns#COLUMNS},
+     *                by ascending id
+     * @return the number of points written
+     */
+    int write(long trackId, Cursor cursor) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        int[] indexes = new int[TrackPointsColumns.COLUMNS.length];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = cursor.getColumnIndexOrThrow(TrackPointsColumns.COLUMNS[i]);
+        }
+        File temp = new File(directory, trackId + TEMP_SUFFIX);
+        ByteArrayOutputStream blobs = new ByteArrayOutputStream();
+        int count = 0;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(trackId);
+            out.writeInt(0);
+            long lastId = Long.MIN_VALUE;
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(indexes[0]);
+                if (id <= lastId) {
+                    throw new IOException("Track points not sorted by id");
+                }
+                lastId = id;
+                int nulls = 0;
+                for (int i = 2; i < indexes.length; i++) {
+                    if (cursor.isNull(indexes[i])) {
+                        nulls |= 1 << i;
+                    }
+                }
+                out.writeLong(id);
+                out.writeLong(cursor.getLong(indexes[4]));
+                out.writeLong(cursor.getLong(indexes[10]));
+                out.writeDouble(cursor.getDouble(indexes[5]));
+                out.writeInt(cursor.getInt(indexes[3]));
+                out.writeInt(cursor.getInt(indexes[2]));
+                out.writeFloat(cursor.getFloat(indexes[6]));
+                out.writeFloat(cursor.getFloat(indexes[7]));
+                out.writeFloat(cursor.getFloat(indexes[8]));
+                out.writeInt(cursor.getInt(indexes[11]));
+                out.writeInt(nulls);
+                byte[] sensor = cursor.isNull(indexes[9]) ? null : cursor.getBlob(indexes[9]);
+                out.writeInt(blobs.size());
+                out.writeInt(sensor != null ? sensor.length : 0);
+                if (sensor != null) {
+                    blobs.write(sensor);
+                }
+                count++;
+            }
+            blobs.writeTo(out);
+        } finally {
+            out.close();
+        }
+        RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.seek(COUNT_OFFSET);
+            file.writeInt(count);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(getFile(trackId))) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the cold file of a track, if any.
+     *
+     * @param trackId the track id
+     */
+    synchronized void delete(long trackId) {
+        mappedFiles.remove(trackId);
+        File file = getFile(trackId);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    /**
+     * Deletes all the cold files.
+     */
+    synchronized void deleteAll() {
+        mappedFiles.clear();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    static int getRecordOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    static int getBlobsOffset(ByteBuffer buffer) {
+        return getRecordOffset(getCount(buffer));
+    }
+
+    private static int getCount(ByteBuffer buffer) {
+        return buffer.getInt(COUNT_OFFSET);
+    }
+
+    /*
+     * Gets the mapped file of a track, validated, null if it can't be read.
+     * A duplicate, its position is the cursor's own.
+     */
+    private synchronized ByteBuffer map(long trackId) {
+        MappedByteBuffer buffer = mappedFiles.get(trackId);
+        if (buffer == null) {
+            File file = getFile(trackId);
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(file, "r");
+                buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                        randomAccessFile.length());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to map " + file, e);
+                return null;
+            } finally {
+                if (randomAccessFile != null) {
+                    try {
+                        randomAccessFile.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Unable to close " + file, e);
+                    }
+                }
+            }
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION
+                    || buffer.getLong(8) != trackId
+                    || (long) getRecordOffset(0) + (long) getCount(buffer) * RECORD_SIZE > buffer.capacity()) {
+                Log.e(TAG, "Invalid cold track file " + file);
+                return null;
+            }
+            mappedFiles.put(trackId, buffer);
+        }
+        return buffer.duplicate();
+    }
+
+    /*
+     * The index of the first record with an id >= trackPointId.
+     */
+    private static int lowerBound(ByteBuffer buffer, long trackPointId) {
+        int low = 0;
+        int high = getCount(buffer);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(getRecordOffset(middle) + ID_OFFSET) < trackPointId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * The index of the first record with an id > trackPointId.
+     */
+    private static int upperBound(ByteBuffer buffer, long trackPointId) {
+        int low = 0;
+        int high = getCount(buffer);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(getRecordOffset(middle) + ID_OFFSET) <= trackPointId) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private File getFile(long trackId) {
+        return new File(directory, trackId + SUFFIX);
+    }
+}
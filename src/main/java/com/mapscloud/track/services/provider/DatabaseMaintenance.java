@@ -0,0 +1,183 @@
+package com.mapscloud.track.services.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.mapscloud.track.services.metrics.Counter;
+import com.mapscloud.track.services.metrics.Histogram;
+import com.mapscloud.track.services.metrics.MetricsRegistry;
+
+import java.io.File;
+
+/**
+ * Reclaims the space of the deleted rows of app.db and refreshes the query
+ * planner statistics, run by {@link DatabaseMaintenanceJobService} while the
+ * device is idle and charging.
+ * <p>
+ * The database is switched once to incremental auto vacuum, which needs a
+ * full VACUUM, skipped while a track is recording. The full VACUUM is
+ * cancelled when a recording starts during it, rolled back and retried by
+ * the next run. After that, each run frees at most its page budget of free
+ * pages, in steps of {@link #STEP_PAGES} pages, each its own write, so the
+ * recording writer never waits for more than one step. Then runs ANALYZE.
+ * <p>
+ * Driven through {@link MyTracksProvider#call(String, String, android.os.Bundle)},
+ * the keys of the returned bundles are the KEY constants.
+ */
+public class DatabaseMaintenance {
+
+    private static final String TAG = DatabaseMaintenance.class.getSimpleName();
+
+    // The default page budget of a run, 8 MB with the 4 KB pages
+    public static final int DEFAULT_MAX_PAGES = 2048;
+
+    // The pages freed per write
+    static final int STEP_PAGES = 128;
+
+    // PRAGMA auto_vacuum
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    public static final String KEY_FILE_SIZE = "fileSize";
+    public static final String KEY_PAGE_SIZE = "pageSize";
+    public static final String KEY_PAGE_COUNT = "pageCount";
+    public static final String KEY_FREE_PAGES = "freePages";
+    public static final String KEY_FREE_BYTES = "freeBytes";
+    public static final String KEY_AUTO_VACUUM = "autoVacuum";
+    public static final String KEY_PAGES_FREED = "pagesFreed";
+    public static final String KEY_CONVERTED = "converted";
+    public static final String KEY_DURATION = "duration";
+    public static final String KEY_LAST_RUN_TIME = "lastRunTime";
+
+    private static final Counter PAGES_FREED = MetricsRegistry.get().counter("database.maintenance.pages_freed");
+    private static final Histogram DURATION = MetricsRegistry.get().histogram("database.maintenance.latency");
+
+    private DatabaseMaintenance() {
+    }
+
+    /**
+     * Runs the maintenance.
+     *
+     * @param db        the database
+     * @param file      the database file
+     * @param maxPages  the maximum number of pages to free
+     * @param recording true if a track is recording, to skip the full vacuum
+     * @param signal    cancels the run, stops the full vacuum or the next step
+     * @return the stats, see {@link #getStats(SQLiteDatabase, File)}, with
+     * {@link #KEY_PAGES_FREED}, {@link #KEY_CONVERTED} and
+     * {@link #KEY_DURATION}
+     */
+    static Bundle run(SQLiteDatabase db, File file, int maxPages, boolean recording, CancellationSignal signal) {
+        if (maxPages < 0) {
+            throw new IllegalArgumentException("Invalid page budget: " + maxPages);
+        }
+        long startNanos = System.nanoTime();
+        long start = SystemClock.elapsedRealtime();
+        boolean converted = false;
+        int pagesFreed = 0;
+        try {
+            if (getPragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+                if (!recording) {
+                    // 切换到增量模式需要一次完整的 VACUUM
+                    Log.i(TAG, "Switching to incremental auto vacuum");
+                    db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                    execute(db, "VACUUM", signal);
+                    converted = true;
+                }
+            } else {
+                while (pagesFreed < maxPages && !signal.isCanceled()) {
+                    long freePages = getPragma(db, "freelist_count");
+                    if (freePages <= 0) {
+                        break;
+                    }
+                    int pages = (int) Math.min(Math.min(freePages, STEP_PAGES), maxPages - pagesFreed);
+                    incrementalVacuum(db, pages);
+                    pagesFreed += pages;
+                }
+            }
+            if (!signal.isCanceled()) {
+                db.execSQL("ANALYZE");
+            }
+        } catch (OperationCanceledException e) {
+            // 记录开始，VACUUM 回滚，下次再转换
+            Log.i(TAG, "Database maintenance cancelled");
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Database maintenance failed", e);
+        }
+        PAGES_FREED.add(pagesFreed);
+        DURATION.recordSince(startNanos);
+
+        Bundle stats = getStats(db, file);
+        stats.putInt(KEY_PAGES_FREED, pagesFreed);
+        stats.putBoolean(KEY_CONVERTED, converted);
+        stats.putLong(KEY_DURATION, SystemClock.elapsedRealtime() - start);
+        Log.i(TAG, "Database maintenance freed " + pagesFreed + " pages in "
+                + stats.getLong(KEY_DURATION) + " ms, " + stats.getLong(KEY_FREE_PAGES) + " free pages left");
+        return stats;
+    }
+
+    /**
+     * Gets the database size and free pages.
+     *
+     * @param db   the database
+     * @param file the database file
+     */
+    static Bundle getStats(SQLiteDatabase db, File file) {
+        Bundle stats = new Bundle();
+        stats.putLong(KEY_FILE_SIZE, file.length());
+        try {
+            long pageSize = getPragma(db, "page_size");
+            long freePages = getPragma(db, "freelist_count");
+            stats.putLong(KEY_PAGE_SIZE, pageSize);
+            stats.putLong(KEY_PAGE_COUNT, getPragma(db, "page_count"));
+            stats.putLong(KEY_FREE_PAGES, freePages);
+            stats.putLong(KEY_FREE_BYTES, freePages * pageSize);
+            stats.putLong(KEY_AUTO_VACUUM, getPragma(db, "auto_vacuum"));
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to read the database stats", e);
+        }
+        return stats;
+    }
+
+    /*
+     * Runs a statement as a query, so it can be cancelled: the cancellation
+     * interrupts it, a VACUUM is rolled back.
+     */
+    private static void execute(SQLiteDatabase db, String sql, CancellationSignal signal) {
+        Cursor cursor = db.rawQuery(sql, null, signal);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Frees pages. The pragma frees one page per step, so the cursor is read
+     * to the end, execSQL would only free the first one.
+     */
+    private static void incrementalVacuum(SQLiteDatabase db, int pages) {
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + pages + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                // Each row is a freed page
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long getPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1L;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.mapscloud.track.services.provider;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.util.Log;
+
+import com.mapscloud.track.R;
+import com.mapscloud.track.services.heatmap.HeatmapEngine;
+import com.mapscloud.track.services.utils.PreferencesUtils;
+
+import java.util.Set;
+
+/**
+ * Runs the {@link DatabaseMaintenance} of app.db once a day, when the device
+ * is idle and charging, through the provider. First moves the tracks older
+ * than the cold storage age to the cold tier, so their pages are freed by
+ * the same run, then adds the tracks missing from the {@link HeatmapEngine}
+ * tiles and removes the deleted ones.
+ * <p>
+ * When the system stops the job, the running step is cancelled, the next
+ * steps are skipped and the job is rescheduled. A step failing is logged,
+ * the next steps still run.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class DatabaseMaintenanceJobService extends JobService {
+
+    private static final String TAG = DatabaseMaintenanceJobService.class.getSimpleName();
+
+    // 与使用轨迹服务的app的其他任务区分
+    private static final int JOB_ID = 0x7472616b;
+
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final long PERIOD = DAY;
+
+    // Set by onStopJob, checked between the steps
+    private volatile boolean stopped;
+    private volatile CancellationSignal signal;
+
+    /**
+     * Schedules the maintenance, if not already scheduled.
+     *
+     * @param context the context
+     */
+    public static void schedule(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return;
+        }
+        for (JobInfo jobInfo : jobScheduler.getAllPendingJobs()) {
+            if (jobInfo.getId() == JOB_ID) {
+                return;
+            }
+        }
+        JobInfo jobInfo = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, DatabaseMaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(PERIOD)
+                .build();
+        if (jobScheduler.schedule(jobInfo) != JobScheduler.RESULT_SUCCESS) {
+            Log.w(TAG, "Unable to schedule the database maintenance");
+        }
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        stopped = false;
+        final CancellationSignal signal = new CancellationSignal();
+        this.signal = signal;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Context context = DatabaseMaintenanceJobService.this;
+                MyTracksProviderUtils myTracksProviderUtils = MyTracksProviderUtils.Factory.get(context);
+                // 所有app在记录或暂停的轨迹
+                Set<Long> recordingTrackIds = PreferencesUtils.getRecordingTrackIds(context);
+                // 0 不归档
+                int coldStorageAge = PreferencesUtils.getInt(context, R.string.cold_storage_age_key,
+                        PreferencesUtils.COLD_STORAGE_AGE_DEFAULT);
+                if (coldStorageAge > 0 && !stopped) {
+                    try {
+                        int archived = myTracksProviderUtils.archiveColdTracks(
+                                System.currentTimeMillis() - coldStorageAge * DAY, recordingTrackIds, signal);
+                        Log.i(TAG, "Archived " + archived + " cold tracks");
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Unable to archive the cold tracks", e);
+                    }
+                }
+                if (!stopped) {
+                    try {
+                        myTracksProviderUtils.runDatabaseMaintenance(DatabaseMaintenance.DEFAULT_MAX_PAGES);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Unable to run the database maintenance", e);
+                    }
+                }
+                if (!stopped) {
+                    try {
+                        // 补上热力图漏掉的轨迹、去掉已删除的轨迹，在热力图自己的线程
+                        HeatmapEngine.get(context).update(recordingTrackIds);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Unable to update the heatmap", e);
+                    }
+                }
+                // 被停止时系统不再等待 jobFinished
+                if (!stopped) {
+                    jobFinished(params, false);
+                }
+            }
+        }, "DatabaseMaintenance");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        stopped = true;
+        CancellationSignal signal = this.signal;
+        if (signal != null) {
+            signal.cancel();
+        }
+        // 打断正在运行的 VACUUM 或空闲页回收，在后台线程，不阻塞主线程
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MyTracksProviderUtils.Factory.get(DatabaseMaintenanceJobService.this).cancelDatabaseMaintenance();
+            }
+        }, "DatabaseMaintenanceCancel").start();
+        // 重新调度，下次从头再来
+        return true;
+    }
+}
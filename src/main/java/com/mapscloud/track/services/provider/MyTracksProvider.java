@@ -18,9 +18,12 @@ package com.mapscloud.track.services.provider;
 
 import android.annotation.SuppressLint;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -31,21 +34,35 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Environment;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.dtt.app.logging.LogUtils;
 import com.mapscloud.track.R;
+import com.mapscloud.track.services.content.RollupsColumns;
+import com.mapscloud.track.services.content.SensorBlocksColumns;
 import com.mapscloud.track.services.content.TrackPointsColumns;
 import com.mapscloud.track.services.content.TracksColumns;
+import com.mapscloud.track.services.metrics.Counter;
+import com.mapscloud.track.services.metrics.Histogram;
+import com.mapscloud.track.services.metrics.MetricsRegistry;
 import com.mapscloud.track.services.tracks.WaypointsColumns;
 import com.mapscloud.track.services.utils.Constant;
 import com.mapscloud.track.services.utils.PreferencesUtils;
 
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
 
 /**
  * A {@link ContentProvider} that handles access to track points, tracks, and
@@ -58,11 +75,81 @@ public class MyTracksProvider extends ContentProvider {
     private static final String TAG = MyTracksProvider.class.getSimpleName();
 
     // 轨迹记录的数据库版本
-    private static final int TRACK_RECORD_DATABASE_VERSION = 2;
+    private static final int TRACK_RECORD_DATABASE_VERSION = 6;
     public static final String DRIVE_ID_TRACKS_QUERY = TracksColumns.DRIVEID + " IS NOT NULL AND "
             + TracksColumns.DRIVEID + "!=''";
 
-    private File sdcardDir;
+    /**
+     * {@link #call(String, String, Bundle)} method enabling or disabling the
+     * profiling, with the {@link #EXTRA_ENABLED} and {@link #EXTRA_THRESHOLD}
+     * extras. Persisted across restarts.
+     */
+    public static final String METHOD_SET_PROFILING = "setProfiling";
+
+    /**
+     * {@link #call(String, String, Bundle)} method getting the profiling
+     * stats and slow operations, see {@link ProviderProfiler}.
+     */
+    public static final String METHOD_GET_PROFILING = "getProfiling";
+
+    /**
+     * {@link #call(String, String, Bundle)} method clearing the profiling
+     * stats and slow operations.
+     */
+    public static final String METHOD_RESET_PROFILING = "resetProfiling";
+
+    /**
+     * {@link #call(String, String, Bundle)} method running the
+     * {@link DatabaseMaintenance}, with the {@link #EXTRA_MAX_PAGES} extra.
+     */
+    public static final String METHOD_RUN_MAINTENANCE = "runMaintenance";
+
+    /**
+     * {@link #call(String, String, Bundle)} method getting the database size
+     * and free pages, see {@link DatabaseMaintenance}.
+     */
+    public static final String METHOD_GET_DATABASE_STATS = "getDatabaseStats";
+
+    /**
+     * {@link #call(String, String, Bundle)} method cancelling the running
+     * {@link DatabaseMaintenance}, called when a recording starts. A
+     * maintenance starting within {@link #RECORDING_START_GRACE} skips the
+     * full VACUUM too, the recording may not be saved in the preferences yet.
+     */
+    public static final String METHOD_CANCEL_MAINTENANCE = "cancelMaintenance";
+
+    /**
+     * {@link #call(String, String, Bundle)} method summing again the
+     * {@link RollupsColumns} periods of track start times, with the
+     * {@link #EXTRA_APP_ID} and {@link #EXTRA_START_TIMES} extras.
+     */
+    public static final String METHOD_UPDATE_ROLLUPS = "updateRollups";
+
+    /**
+     * {@link #call(String, String, Bundle)} method building all the
+     * {@link RollupsColumns} rows again from the tracks.
+     */
+    public static final String METHOD_REBUILD_ROLLUPS = "rebuildRollups";
+
+    public static final String EXTRA_ENABLED = "enabled";
+
+    // The slow operation threshold in milliseconds
+    public static final String EXTRA_THRESHOLD = "threshold";
+
+    // The maximum number of pages the maintenance frees
+    public static final String EXTRA_MAX_PAGES = "maxPages";
+
+    public static final String EXTRA_APP_ID = "appId";
+
+    // The start times of the tracks, a long array
+    public static final String EXTRA_START_TIMES = "startTimes";
+
+    // 大批量删除分批进行，每批一个事务，记录轨迹的写入不用等待整个删除
+    private static final int DELETE_CHUNK_ROWS = 2000;
+
+    // After a recording start, the time the maintenance treats it as recording
+    static final long RECORDING_START_GRACE = 60 * 1000L;
+
     private static File databaseFile;
 
     /**
@@ -72,22 +159,44 @@ public class MyTracksProvider extends ContentProvider {
      */
 
     enum UrlType {
-        TRACKPOINTS, TRACKPOINTS_ID, TRACKS, TRACKS_ID, WAYPOINTS, WAYPOINTS_ID
+        TRACKPOINTS, TRACKPOINTS_ID, TRACKS, TRACKS_ID, WAYPOINTS, WAYPOINTS_ID, SENSORBLOCKS, SENSORBLOCKS_ID,
+        ROLLUPS
     }
 
     //    private final UriMatcher     uriMatcher;
     private UriMatcher uriMatcher;
     private SQLiteDatabase db;
 
+    // 每种url每种操作的耗时
+    private static final Histogram[] QUERY_LATENCY = createLatencies("query");
+    private static final Histogram[] INSERT_LATENCY = createLatencies("insert");
+    private static final Histogram[] BULK_INSERT_LATENCY = createLatencies("bulk_insert");
+    private static final Histogram[] UPDATE_LATENCY = createLatencies("update");
+    private static final Histogram[] DELETE_LATENCY = createLatencies("delete");
+    private static final Counter NOTIFICATIONS = MetricsRegistry.get().counter("provider.notify");
+    private static final Counter COALESCED_NOTIFICATIONS = MetricsRegistry.get().counter(
+            "provider.notify.coalesced");
+
+    private final ProviderProfiler profiler = new ProviderProfiler();
+
+    // 正在运行的维护，记录开始时取消
+    private final Object maintenanceLock = new Object();
+    private CancellationSignal maintenanceSignal;
+    private long recordingStartTime = -RECORDING_START_GRACE;
+
+    // applyBatch 期间推迟的通知，批量结束后每个url只通知一次
+    private final ThreadLocal<Set<Uri>> pendingNotifications = new ThreadLocal<Set<Uri>>();
+
     // yml 为了可以传网络库，抽取使用包名的变量在下面
     private String authority = "";
     public static Uri TRACKS_CONTENT_URI;
     public static Uri TRACKPOINTS_CONTENT_URI;
     public static Uri WAYPOINTS_CONTENT_URI;
+    public static Uri SENSORBLOCKS_CONTENT_URI;
+    public static Uri ROLLUPS_CONTENT_URI;
 
     public MyTracksProvider() {
-        sdcardDir = Environment.getExternalStorageDirectory();
-        databaseFile = new File(sdcardDir, "mapplus/app/app.db");
+        databaseFile = getDatabaseFile();
 
         // yml 添加mapplus/app/app.db不存在时创建文件
         try {
@@ -117,6 +226,17 @@ public class MyTracksProvider extends ContentProvider {
 //        Log.e(TAG, "Provider 构造方法 创建UriMatcher完毕");
     }
 
+    /**
+     * Gets the database file, mapplus/app/app.db on the external storage,
+     * shared by the apps. The files kept next to the database, like the cold
+     * tracks, are resolved from its parent.
+     */
+    // 多个应用共用此路径，暂不迁移到应用私有目录
+    @SuppressWarnings("deprecation")
+    public static File getDatabaseFile() {
+        return new File(Environment.getExternalStorageDirectory(), "mapplus/app/app.db");
+    }
+
     @Override
     public boolean onCreate() {
         return onCreate(getContext());
@@ -141,11 +261,14 @@ public class MyTracksProvider extends ContentProvider {
         try {
             PackageInfo pInfo = pManager.getPackageInfo(pName, PackageManager.GET_PROVIDERS);
             ProviderInfo[] providers = pInfo.providers;
-            for (ProviderInfo provider : providers) {
-                Log.e(TAG, "name is " + provider.name);
-                Log.e(TAG, "authority is " + provider.authority);
-                if (MyTracksProvider.class.getName().equals(provider.name)) {
-                    authority = provider.authority;
+            // 没有声明provider的包（如测试环境）使用默认的authority
+            if (providers != null) {
+                for (ProviderInfo provider : providers) {
+                    Log.e(TAG, "name is " + provider.name);
+                    Log.e(TAG, "authority is " + provider.authority);
+                    if (MyTracksProvider.class.getName().equals(provider.name)) {
+                        authority = provider.authority;
+                    }
                 }
             }
         } catch (PackageManager.NameNotFoundException e) {
@@ -163,11 +286,20 @@ public class MyTracksProvider extends ContentProvider {
         uriMatcher.addURI(authority, TracksColumns.TABLE_NAME + "/#", UrlType.TRACKS_ID.ordinal());
         uriMatcher.addURI(authority, WaypointsColumns.TABLE_NAME, UrlType.WAYPOINTS.ordinal());
         uriMatcher.addURI(authority, WaypointsColumns.TABLE_NAME + "/#", UrlType.WAYPOINTS_ID.ordinal());
+        uriMatcher.addURI(authority, SensorBlocksColumns.TABLE_NAME, UrlType.SENSORBLOCKS.ordinal());
+        uriMatcher.addURI(authority, SensorBlocksColumns.TABLE_NAME + "/#", UrlType.SENSORBLOCKS_ID.ordinal());
+        uriMatcher.addURI(authority, RollupsColumns.TABLE_NAME, UrlType.ROLLUPS.ordinal());
         Log.e(TAG, "Provider onCreate方法 创建UriMatcher完毕");
 
         TRACKS_CONTENT_URI = Uri.parse("content://" + authority + "/tracks");
         TRACKPOINTS_CONTENT_URI = Uri.parse("content://" + authority + "/trackpoints");
         WAYPOINTS_CONTENT_URI = Uri.parse("content://" + authority + "/waypoints");
+        SENSORBLOCKS_CONTENT_URI = Uri.parse("content://" + authority + "/sensorblocks");
+        ROLLUPS_CONTENT_URI = Uri.parse("content://" + authority + "/rollups");
+
+        profiler.setEnabled(PreferencesUtils.getBoolean(context, R.string.provider_profiling_key,
+                PreferencesUtils.PROVIDER_PROFILING_DEFAULT), PreferencesUtils.getInt(context,
+                R.string.slow_query_threshold_key, PreferencesUtils.SLOW_QUERY_THRESHOLD_DEFAULT));
 
         return checkDBNotNull();
     }
@@ -177,19 +309,30 @@ public class MyTracksProvider extends ContentProvider {
         if (!canAccess()) {
             return 0;
         }
+        long startNanos = System.nanoTime();
+        UrlType urlType = getUrlType(url);
         String table;
-        boolean shouldVacuum = false;
-        switch (getUrlType(url)) {
+        boolean chunked = false;
+        switch (urlType) {
             case TRACKPOINTS:
                 table = TrackPointsColumns.TABLE_NAME;
+                chunked = true;
                 break;
             case TRACKS:
                 table = TracksColumns.TABLE_NAME;
-                shouldVacuum = true;
                 break;
             case WAYPOINTS:
                 table = WaypointsColumns.TABLE_NAME;
                 break;
+            case SENSORBLOCKS:
+                table = SensorBlocksColumns.TABLE_NAME;
+                chunked = true;
+                break;
+            case SENSORBLOCKS_ID:
+                table = SensorBlocksColumns.TABLE_NAME;
+                String idWhere = SensorBlocksColumns._ID + "=" + url.getPathSegments().get(1);
+                where = TextUtils.isEmpty(where) ? idWhere : idWhere + " AND (" + where + ")";
+                break;
             default:
                 throw new IllegalArgumentException("Unknown URL " + url);
         }
@@ -210,15 +353,19 @@ public class MyTracksProvider extends ContentProvider {
 
         boolean dbNotNull = checkDBNotNull(); // 检测SQLiteDatabase对象db是否为空
         if (dbNotNull) {
-            try {
-                db.beginTransaction();
-                count = db.delete(table, where, selectionArgs);
-                db.setTransactionSuccessful();
-            } finally {
-                db.endTransaction();
+            if (chunked) {
+                count = deleteInChunks(table, where, selectionArgs);
+            } else {
+                try {
+                    db.beginTransaction();
+                    count = db.delete(table, where, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
             }
 
-            getContext().getContentResolver().notifyChange(url, null, false);
+            notifyChange(url);
 
             if (driveSync && table.equals(TracksColumns.TABLE_NAME)) {
                 String driveDeletedList = PreferencesUtils.getString(getContext(), R.string.drive_deleted_list_key,
@@ -231,17 +378,43 @@ public class MyTracksProvider extends ContentProvider {
                 PreferencesUtils.setString(getContext(), R.string.drive_deleted_list_key, driveDeletedList);
             }
 
-            if (shouldVacuum) {
-                // If a potentially large amount of data was deleted, reclaim its
-                // space.
-                Log.i(TAG, "Vacuuming the database.");
-                db.execSQL("VACUUM");
-            }
-
+        }
+        DELETE_LATENCY[urlType.ordinal()].recordSince(startNanos);
+        if (profiler.isEnabled()) {
+            profiler.record(db, "delete", urlType, getCallingPackageOrNull(), startNanos, count,
+                    getPlanSql(table, where), selectionArgs);
         }
         return count;
     }
 
+    /**
+     * Deletes rows {@link #DELETE_CHUNK_ROWS} at a time, one transaction per
+     * chunk. The freed pages are reclaimed later by the
+     * {@link DatabaseMaintenance}.
+     *
+     * @param table         the table
+     * @param where         the selection
+     * @param selectionArgs the selection arguments
+     * @return the number of rows deleted
+     */
+    private int deleteInChunks(String table, String where, String[] selectionArgs) {
+        String chunkWhere = BaseColumns._ID + " IN (SELECT " + BaseColumns._ID + " FROM " + table
+                + (TextUtils.isEmpty(where) ? "" : " WHERE " + where) + " LIMIT " + DELETE_CHUNK_ROWS + ")";
+        int count = 0;
+        int deleted;
+        do {
+            try {
+                db.beginTransaction();
+                deleted = db.delete(table, chunkWhere, selectionArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            count += deleted;
+        } while (deleted == DELETE_CHUNK_ROWS);
+        return count;
+    }
+
     @Override
     public String getType(Uri url) {
         if (!canAccess()) {
@@ -260,6 +433,12 @@ public class MyTracksProvider extends ContentProvider {
                 return WaypointsColumns.CONTENT_TYPE;
             case WAYPOINTS_ID:
                 return WaypointsColumns.CONTENT_ITEMTYPE;
+            case SENSORBLOCKS:
+                return SensorBlocksColumns.CONTENT_TYPE;
+            case SENSORBLOCKS_ID:
+                return SensorBlocksColumns.CONTENT_ITEMTYPE;
+            case ROLLUPS:
+                return RollupsColumns.CONTENT_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URL " + url);
         }
@@ -276,6 +455,8 @@ public class MyTracksProvider extends ContentProvider {
         if (initialValues == null) {
             initialValues = new ContentValues();
         }
+        long startNanos = System.nanoTime();
+        UrlType urlType = getUrlType(url);
         Uri result = null;
         boolean dbNotNull = checkDBNotNull();  // 检测SQLiteDatabase对象db是否为空
         if (dbNotNull) {
@@ -283,15 +464,20 @@ public class MyTracksProvider extends ContentProvider {
                 boolean dbIsOpen = dbNotNull && db.isOpen();
                 Log.i("insert_track", "insert_track_url_in_provider = begin is db null = " + !dbNotNull + " is writeable = " + dbIsOpen);
                 db.beginTransaction();
-                result = insertContentValues(url, getUrlType(url), initialValues);
+                result = insertContentValues(url, urlType, initialValues);
                 db.setTransactionSuccessful();
                 Log.i("insert_track", "insert_track_url_in_provider = end " + result.toString());
             } finally {
                 db.endTransaction();
             }
-            getContext().getContentResolver().notifyChange(url, null, false);
+            notifyChange(url);
             Log.i("insert_track", "insert_track_url_in_provider = " + result.toString());
         }
+        INSERT_LATENCY[urlType.ordinal()].recordSince(startNanos);
+        if (profiler.isEnabled()) {
+            profiler.record(db, "insert", urlType, getCallingPackageOrNull(), startNanos, result != null ? 1 : 0,
+                    null, null);
+        }
         return result;
     }
 
@@ -300,6 +486,8 @@ public class MyTracksProvider extends ContentProvider {
         if (!canAccess()) {
             return 0;
         }
+        long startNanos = System.nanoTime();
+        UrlType urlType = getUrlType(url);
         int numInserted = 0;
         boolean dbNotNull = checkDBNotNull();  // 检测SQLiteDatabase对象db是否为空
         if (dbNotNull) {
@@ -308,7 +496,6 @@ public class MyTracksProvider extends ContentProvider {
                 // batch
                 db.beginTransaction();
 
-                UrlType urlType = getUrlType(url);
                 for (numInserted = 0; numInserted < valuesBulk.length; numInserted++) {
                     ContentValues contentValues = valuesBulk[numInserted];
                     if (contentValues == null) {
@@ -320,19 +507,56 @@ public class MyTracksProvider extends ContentProvider {
             } finally {
                 db.endTransaction();
             }
-            getContext().getContentResolver().notifyChange(url, null, false);
+            notifyChange(url);
+        }
+        BULK_INSERT_LATENCY[urlType.ordinal()].recordSince(startNanos);
+        if (profiler.isEnabled()) {
+            profiler.record(db, "bulkInsert", urlType, getCallingPackageOrNull(), startNanos, numInserted, null,
+                    null);
         }
         return numInserted;
     }
 
+    /**
+     * Applies the operations in a single transaction. Change notifications are
+     * deferred until the batch is done and sent once per url.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        if (!canAccess() || !checkDBNotNull()) {
+            return new ContentProviderResult[0];
+        }
+        Set<Uri> notifications = new LinkedHashSet<Uri>();
+        pendingNotifications.set(notifications);
+        ContentProviderResult[] results;
+        try {
+            db.beginTransaction();
+            try {
+                results = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            pendingNotifications.remove();
+        }
+        for (Uri uri : notifications) {
+            notifyChange(uri);
+        }
+        return results;
+    }
+
     @Override
     public Cursor query(Uri url, String[] projection, String selection, String[] selectionArgs, String sort) {
         if (!canAccess()) {
             return null;
         }
+        long startNanos = System.nanoTime();
+        UrlType urlType = getUrlType(url);
         SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
         String sortOrder = null;
-        switch (getUrlType(url)) {
+        switch (urlType) {
             case TRACKPOINTS:
                 queryBuilder.setTables(TrackPointsColumns.TABLE_NAME);
                 sortOrder = sort != null ? sort : TrackPointsColumns.DEFAULT_SORT_ORDER;
@@ -357,6 +581,18 @@ public class MyTracksProvider extends ContentProvider {
                 queryBuilder.setTables(WaypointsColumns.TABLE_NAME);
                 queryBuilder.appendWhere("_id=" + url.getPathSegments().get(1));
                 break;
+            case SENSORBLOCKS:
+                queryBuilder.setTables(SensorBlocksColumns.TABLE_NAME);
+                sortOrder = sort != null ? sort : SensorBlocksColumns.DEFAULT_SORT_ORDER;
+                break;
+            case SENSORBLOCKS_ID:
+                queryBuilder.setTables(SensorBlocksColumns.TABLE_NAME);
+                queryBuilder.appendWhere("_id=" + url.getPathSegments().get(1));
+                break;
+            case ROLLUPS:
+                queryBuilder.setTables(RollupsColumns.TABLE_NAME);
+                sortOrder = sort != null ? sort : RollupsColumns.DEFAULT_SORT_ORDER;
+                break;
             default:
                 throw new IllegalArgumentException("Unknown url " + url);
         }
@@ -364,6 +600,13 @@ public class MyTracksProvider extends ContentProvider {
         if (dbNotNull) {
             Cursor cursor = queryBuilder.query(db, projection, selection, selectionArgs, null, null, sortOrder);
             cursor.setNotificationUri(getContext().getContentResolver(), url);
+            // 游标是惰性的，getCount 才真正执行查询，总在这里执行，计时都包含查询本身
+            int rows = cursor.getCount();
+            QUERY_LATENCY[urlType.ordinal()].recordSince(startNanos);
+            if (profiler.isEnabled()) {
+                profiler.record(db, "query", urlType, getCallingPackageOrNull(), startNanos, rows,
+                        queryBuilder.buildQuery(projection, selection, null, null, sortOrder, null), selectionArgs);
+            }
             return cursor;
         } else {
             return null;
@@ -375,9 +618,11 @@ public class MyTracksProvider extends ContentProvider {
         if (!canAccess()) {
             return 0;
         }
+        long startNanos = System.nanoTime();
+        UrlType urlType = getUrlType(url);
         String table;
         String whereClause;
-        switch (getUrlType(url)) {
+        switch (urlType) {
             case TRACKPOINTS:
                 table = TrackPointsColumns.TABLE_NAME;
                 whereClause = where;
@@ -411,6 +656,17 @@ public class MyTracksProvider extends ContentProvider {
                     whereClause += " AND (" + where + ")";
                 }
                 break;
+            case SENSORBLOCKS:
+                table = SensorBlocksColumns.TABLE_NAME;
+                whereClause = where;
+                break;
+            case SENSORBLOCKS_ID:
+                table = SensorBlocksColumns.TABLE_NAME;
+                whereClause = SensorBlocksColumns._ID + "=" + url.getPathSegments().get(1);
+                if (!TextUtils.isEmpty(where)) {
+                    whereClause += " AND (" + where + ")";
+                }
+                break;
             default:
                 throw new IllegalArgumentException("Unknown url " + url);
         }
@@ -424,11 +680,145 @@ public class MyTracksProvider extends ContentProvider {
             } finally {
                 db.endTransaction();
             }
-            getContext().getContentResolver().notifyChange(url, null, false);
+            notifyChange(url);
+        }
+        UPDATE_LATENCY[urlType.ordinal()].recordSince(startNanos);
+        if (profiler.isEnabled()) {
+            profiler.record(db, "update", urlType, getCallingPackageOrNull(), startNanos, count,
+                    getPlanSql(table, whereClause), selectionArgs);
         }
         return count;
     }
 
+    /**
+     * Handles the profiling methods, see {@link #METHOD_SET_PROFILING},
+     * {@link #METHOD_GET_PROFILING} and {@link #METHOD_RESET_PROFILING}, and
+     * the maintenance methods, see {@link #METHOD_RUN_MAINTENANCE},
+     * {@link #METHOD_CANCEL_MAINTENANCE} and
+     * {@link #METHOD_GET_DATABASE_STATS}, and the rollups methods, see
+     * {@link #METHOD_UPDATE_ROLLUPS} and {@link #METHOD_REBUILD_ROLLUPS}.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!canAccess()) {
+            return null;
+        }
+        if (METHOD_SET_PROFILING.equals(method)) {
+            Context context = getContext();
+            boolean enabled = extras != null && extras.getBoolean(EXTRA_ENABLED, false);
+            int threshold = extras != null ? extras.getInt(EXTRA_THRESHOLD, PreferencesUtils.getInt(context,
+                    R.string.slow_query_threshold_key, PreferencesUtils.SLOW_QUERY_THRESHOLD_DEFAULT))
+                    : PreferencesUtils.SLOW_QUERY_THRESHOLD_DEFAULT;
+            profiler.setEnabled(enabled, threshold);
+            PreferencesUtils.setBoolean(context, R.string.provider_profiling_key, enabled);
+            PreferencesUtils.setInt(context, R.string.slow_query_threshold_key, threshold);
+            Log.i(TAG, "Profiling " + (enabled ? "enabled, threshold " + threshold + " ms" : "disabled"));
+            return null;
+        }
+        if (METHOD_GET_PROFILING.equals(method)) {
+            return profiler.toBundle();
+        }
+        if (METHOD_RESET_PROFILING.equals(method)) {
+            profiler.reset();
+            return null;
+        }
+        if (METHOD_RUN_MAINTENANCE.equals(method)) {
+            if (!checkDBNotNull()) {
+                return null;
+            }
+            Context context = getContext();
+            int maxPages = extras != null ? extras.getInt(EXTRA_MAX_PAGES, DatabaseMaintenance.DEFAULT_MAX_PAGES)
+                    : DatabaseMaintenance.DEFAULT_MAX_PAGES;
+            CancellationSignal signal = new CancellationSignal();
+            boolean recording;
+            synchronized (maintenanceLock) {
+                maintenanceSignal = signal;
+                recording = SystemClock.elapsedRealtime() - recordingStartTime < RECORDING_START_GRACE;
+            }
+            // 任一app在记录或暂停都不做整库VACUUM
+            recording |= !PreferencesUtils.getRecordingTrackIds(context).isEmpty();
+            Bundle stats;
+            try {
+                stats = DatabaseMaintenance.run(db, databaseFile, maxPages, recording, signal);
+            } finally {
+                synchronized (maintenanceLock) {
+                    if (maintenanceSignal == signal) {
+                        maintenanceSignal = null;
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            PreferencesUtils.setLong(context, R.string.database_maintenance_time_key, now);
+            stats.putLong(DatabaseMaintenance.KEY_LAST_RUN_TIME, now);
+            return stats;
+        }
+        if (METHOD_CANCEL_MAINTENANCE.equals(method)) {
+            synchronized (maintenanceLock) {
+                recordingStartTime = SystemClock.elapsedRealtime();
+                if (maintenanceSignal != null) {
+                    maintenanceSignal.cancel();
+                }
+            }
+            return null;
+        }
+        if (METHOD_GET_DATABASE_STATS.equals(method)) {
+            if (!checkDBNotNull()) {
+                return null;
+            }
+            Bundle stats = DatabaseMaintenance.getStats(db, databaseFile);
+            stats.putLong(DatabaseMaintenance.KEY_LAST_RUN_TIME,
+                    PreferencesUtils.getLong(getContext(), R.string.database_maintenance_time_key));
+            return stats;
+        }
+        if (METHOD_UPDATE_ROLLUPS.equals(method) || METHOD_REBUILD_ROLLUPS.equals(method)) {
+            if (!checkDBNotNull()) {
+                return null;
+            }
+            long[] startTimes = extras != null ? extras.getLongArray(EXTRA_START_TIMES) : null;
+            if (METHOD_UPDATE_ROLLUPS.equals(method) && startTimes == null) {
+                throw new IllegalArgumentException("No start times");
+            }
+            try {
+                db.beginTransaction();
+                if (startTimes != null) {
+                    String appId = extras.getString(EXTRA_APP_ID);
+                    for (long startTime : startTimes) {
+                        Rollups.update(db, appId, startTime);
+                    }
+                } else {
+                    Rollups.rebuild(db);
+                }
+                db.setTransactionSuccessful();
+            } catch (SQLiteException e) {
+                Log.e(TAG, "Unable to update the rollups", e);
+            } finally {
+                db.endTransaction();
+            }
+            notifyChange(ROLLUPS_CONTENT_URI);
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Gets the package of the calling app, null if unknown.
+     */
+    private String getCallingPackageOrNull() {
+        try {
+            return getCallingPackage();
+        } catch (SecurityException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets a select scanning the same rows as an update or a delete, for
+     * EXPLAIN QUERY PLAN.
+     */
+    private static String getPlanSql(String table, String where) {
+        return "SELECT rowid FROM " + table + (TextUtils.isEmpty(where) ? "" : " WHERE " + where);
+    }
+
     /**
      * Returns true if the caller can access the content provider.
      */
@@ -442,6 +832,47 @@ public class MyTracksProvider extends ContentProvider {
         return true;
     }
 
+    /**
+     * Notifies observers of a change, or defers it if inside
+     * {@link #applyBatch(ArrayList)}.
+     *
+     * @param url the url
+     */
+    private void notifyChange(Uri url) {
+        Set<Uri> notifications = pendingNotifications.get();
+        if (notifications != null) {
+            if (!notifications.add(url)) {
+                COALESCED_NOTIFICATIONS.increment();
+            }
+            return;
+        }
+        getContext().getContentResolver().notifyChange(url, null, false);
+        NOTIFICATIONS.increment();
+    }
+
+    /**
+     * Prints the database state and the metrics, for
+     * "adb shell dumpsys activity provider MyTracksProvider".
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Database: " + databaseFile + ", " + databaseFile.length() + " bytes");
+        if (db != null && db.isOpen()) {
+            writer.println("Database version: " + db.getVersion());
+        }
+        MetricsRegistry.get().dump(writer);
+    }
+
+    private static Histogram[] createLatencies(String operation) {
+        UrlType[] urlTypes = UrlType.values();
+        Histogram[] histograms = new Histogram[urlTypes.length];
+        for (int i = 0; i < urlTypes.length; i++) {
+            histograms[i] = MetricsRegistry.get().histogram("provider." + operation + "."
+                    + urlTypes[i].name().toLowerCase(Locale.US) + ".latency");
+        }
+        return histograms;
+    }
+
     /**
      * Gets the {@link UrlType} for a url.
      *
@@ -466,6 +897,8 @@ public class MyTracksProvider extends ContentProvider {
                 return insertTrack(url, contentValues);
             case WAYPOINTS:
                 return insertWaypoint(url, contentValues);
+            case SENSORBLOCKS:
+                return insertSensorBlock(url, contentValues);
             default:
                 throw new IllegalArgumentException("Unknown url " + url);
         }
@@ -530,6 +963,26 @@ public class MyTracksProvider extends ContentProvider {
         throw new SQLException("Failed to insert a waypoint " + url);
     }
 
+    /**
+     * Inserts a sensor block.
+     *
+     * @param url    the content url
+     * @param values the content values
+     */
+    private Uri insertSensorBlock(Uri url, ContentValues values) {
+        boolean hasTrackId = values.containsKey(SensorBlocksColumns.TRACKID);
+        boolean hasType = values.containsKey(SensorBlocksColumns.TYPE);
+        boolean hasStartTime = values.containsKey(SensorBlocksColumns.STARTTIME);
+        if (!hasTrackId || !hasType || !hasStartTime) {
+            throw new IllegalArgumentException("Track id, type, and start time values are required.");
+        }
+        long rowId = db.insert(SensorBlocksColumns.TABLE_NAME, SensorBlocksColumns._ID, values);
+        if (rowId >= 0) {
+            return ContentUris.appendId(MyTracksProvider.SENSORBLOCKS_CONTENT_URI.buildUpon(), rowId).build();
+        }
+        throw new SQLiteException("Failed to insert a sensor block " + url);
+    }
+
     /**
      * Gets a list of dirve ids.
      *
@@ -581,16 +1034,57 @@ public class MyTracksProvider extends ContentProvider {
                 db = SQLiteDatabase.openDatabase(databaseFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
                 if (db != null) {
                     LogUtils.e(Constant.TAG, "当前数据库版本 checkDBNotNull 开始 = " + db.getVersion());
+                    // 新建的数据库直接用增量回收，已有的数据库由维护任务转换
+                    db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
                     db.execSQL(TrackPointsColumns.CREATE_TABLE);
                     db.execSQL(TracksColumns.CREATE_TABLE);
                     db.execSQL(WaypointsColumns.CREATE_TABLE);
-                    if (TRACK_RECORD_DATABASE_VERSION > db.getVersion()) {
+                    db.execSQL(SensorBlocksColumns.CREATE_TABLE);
+                    db.execSQL(SensorBlocksColumns.CREATE_TIME_INDEX);
+                    db.execSQL(RollupsColumns.CREATE_TABLE);
+                    db.execSQL(RollupsColumns.CREATE_PERIOD_INDEX);
+                    int version = db.getVersion();
+                    if (TRACK_RECORD_DATABASE_VERSION > version) {
                         db.beginTransaction();
                         try {
-                            db.setTransactionSuccessful();
-                            db.execSQL(TracksColumns.ADD_APP_ID_COLUMN);
-                            db.execSQL(TracksColumns.ADD_APP_NAME_COLUMN);
+                            // 新建的表已经包含所有列，只给旧表加列
+                            if (version < 2) {
+                                addColumnIfMissing(TracksColumns.TABLE_NAME, TracksColumns.COLUMN_APP_ID,
+                                        TracksColumns.ADD_APP_ID_COLUMN);
+                                addColumnIfMissing(TracksColumns.TABLE_NAME, TracksColumns.COLUMN_APP_NAME,
+                                        TracksColumns.ADD_APP_NAME_COLUMN);
+                            }
+                            if (version < 3) {
+                                addColumnIfMissing(TrackPointsColumns.TABLE_NAME, TrackPointsColumns.DWELL_END_TIME,
+                                        TrackPointsColumns.ADD_DWELL_END_TIME_COLUMN);
+                                addColumnIfMissing(TrackPointsColumns.TABLE_NAME, TrackPointsColumns.DWELL_COUNT,
+                                        TrackPointsColumns.ADD_DWELL_COUNT_COLUMN);
+                            }
+                            if (version < 4) {
+                                addColumnIfMissing(TracksColumns.TABLE_NAME, TracksColumns.SYNC_POINT_ID,
+                                        TracksColumns.ADD_SYNC_POINT_ID_COLUMN);
+                                addColumnIfMissing(TracksColumns.TABLE_NAME, TracksColumns.SYNC_MODIFIED_TIME,
+                                        TracksColumns.ADD_SYNC_MODIFIED_TIME_COLUMN);
+                                addColumnIfMissing(TracksColumns.TABLE_NAME, TracksColumns.SYNC_WAYPOINT_TIME,
+                                        TracksColumns.ADD_SYNC_WAYPOINT_TIME_COLUMN);
+                                addColumnIfMissing(WaypointsColumns.TABLE_NAME, WaypointsColumns.MODIFIEDTIME,
+                                        WaypointsColumns.ADD_MODIFIED_TIME_COLUMN);
+                            }
+                            if (version < 5) {
+                                // app_id 列在版本2才加，索引建在加列之后
+                                db.execSQL(TracksColumns.CREATE_APP_ID_START_TIME_INDEX);
+                                Rollups.rebuild(db);
+                            }
+                            if (version < 6) {
+                                addColumnIfMissing(TracksColumns.TABLE_NAME, TracksColumns.TIER,
+                                        TracksColumns.ADD_TIER_COLUMN);
+                                addColumnIfMissing(TracksColumns.TABLE_NAME, TracksColumns.COLD_LAST_POINT_ID,
+                                        TracksColumns.ADD_COLD_LAST_POINT_ID_COLUMN);
+                                db.execSQL(TracksColumns.CREATE_COLD_LAST_POINT_ID_INDEX);
+                                markColdTracks();
+                            }
                             db.setVersion(TRACK_RECORD_DATABASE_VERSION);
+                            db.setTransactionSuccessful();
                         } catch (Exception e) {
                             e.printStackTrace();
                             throw new IOException(e.getLocalizedMessage());
@@ -616,4 +1110,46 @@ public class MyTracksProvider extends ContentProvider {
         return db != null;
     }
 
+    /**
+     * Marks the tracks archived before {@link TracksColumns#TIER}, the tracks
+     * with a cold file, as cold. Points left in the database by an archiving
+     * interrupted after its file was written are deleted, like reads ignored
+     * them.
+     */
+    private void markColdTracks() {
+        ColdTrackStore coldTrackStore = ColdTrackStore.get(
+                new File(databaseFile.getParentFile(), MyTracksProviderUtilsImpl.COLD_DIRECTORY));
+        for (long trackId : coldTrackStore.listTrackIds()) {
+            String[] whereArgs = new String[]{Long.toString(trackId)};
+            ContentValues values = new ContentValues();
+            values.put(TracksColumns.TIER, TracksColumns.TIER_COLD);
+            values.put(TracksColumns.COLD_LAST_POINT_ID,
+                    coldTrackStore.getLastValidTrackPointId(trackId, MyTracksProviderUtilsImpl.MAX_LATITUDE));
+            if (db.update(TracksColumns.TABLE_NAME, values, TracksColumns._ID + "=?", whereArgs) == 1) {
+                db.delete(TrackPointsColumns.TABLE_NAME, TrackPointsColumns.TRACKID + "=?", whereArgs);
+            } else {
+                coldTrackStore.delete(trackId);
+            }
+        }
+    }
+
+    /**
+     * Adds a column to a table if the table doesn't have it yet.
+     *
+     * @param table    the table
+     * @param column   the column
+     * @param alterSql the ALTER TABLE statement adding the column
+     */
+    private void addColumnIfMissing(String table, String column, String alterSql) {
+        Cursor cursor = db.rawQuery("SELECT * FROM " + table + " LIMIT 0", null);
+        try {
+            if (cursor.getColumnIndex(column) != -1) {
+                return;
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL(alterSql);
+    }
+
 }
\ No newline at end of file
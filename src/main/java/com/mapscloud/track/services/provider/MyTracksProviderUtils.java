@@ -22,8 +22,13 @@ import android.database.Cursor;
 import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 
 import com.mapscloud.track.services.content.DescriptionGenerator;
+import com.mapscloud.track.services.content.Rollup;
+import com.mapscloud.track.services.content.RollupsColumns;
+import com.mapscloud.track.services.content.SensorSeries;
 import com.mapscloud.track.services.content.Track;
 import com.mapscloud.track.services.model.MyTracksLocation;
 import com.mapscloud.track.services.model.Waypoint;
@@ -31,6 +36,7 @@ import com.mapscloud.track.services.model.Waypoint.WaypointType;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * yml标记，不应该让InfoRecorder直接使用，要做封装
@@ -144,6 +150,17 @@ public interface MyTracksProviderUtils {
      */
     void updateTrack(Track track);
 
+    /**
+     * Updates multiple tracks in a single transaction, then the rollups of
+     * their start times.
+     * <p>
+     * Note: This doesn't update any track points.
+     * 
+     * @param tracks
+     *            the tracks
+     */
+    void updateTracks(List<Track> tracks);
+
     /**
      * Creates a waypoint from a cursor.
      * 
@@ -308,6 +325,20 @@ public interface MyTracksProviderUtils {
      */
     Location getLastValidTrackPoint();
 
+    /**
+     * Extends the last valid location of a track into a dwell, a stationary
+     * run collapsed into one track point.
+     * 
+     * @param trackId
+     *            the track id
+     * @param dwellEndTime
+     *            the time of the last fix of the dwell
+     * @param dwellCount
+     *            the number of fixes in the dwell
+     * @return the number of track points updated
+     */
+    int updateLastValidTrackPointDwell(long trackId, long dwellEndTime, int dwellCount);
+
     /**
      * Creates a location cursor. The caller owns the returned cursor and is
      * responsible for closing it.
@@ -324,6 +355,20 @@ public interface MyTracksProviderUtils {
      */
     Cursor getTrackPointCursor(long trackId, long startTrackPointId, int maxLocations, boolean descending);
 
+    /**
+     * Creates a location cursor over the track points of a track whose ids are
+     * in [minTrackPointId, maxTrackPointId], sorted by id. The caller owns the
+     * returned cursor and is responsible for closing it.
+     * 
+     * @param trackId
+     *            the track id
+     * @param minTrackPointId
+     *            the minimum track point id, inclusive
+     * @param maxTrackPointId
+     *            the maximum track point id, inclusive
+     */
+    Cursor getTrackPointCursor(long trackId, long minTrackPointId, long maxTrackPointId);
+
     /**
      * Creates a new read-only iterator over a given track's points. It provides
      * a lightweight way of iterating over long tracks without failing due to
@@ -332,8 +377,10 @@ public interface MyTracksProviderUtils {
      * {@link UnsupportedOperationException}. Each call to
      * {@link LocationIterator#next()} may advance to the next DB record, and if
      * so, the iterator calls {@link LocationFactory#createLocation()} and
-     * populates it with information retrieved from the record. When done with
-     * iteration, {@link LocationIterator#close()} must be called.
+     * populates it with information retrieved from the record. A dwell record
+     * is returned twice, at its start time and at its dwell end time, so
+     * consumers see the correct timing. When done with iteration,
+     * {@link LocationIterator#close()} must be called.
      * 
      * @param trackId
      *            the track id
@@ -362,6 +409,132 @@ public interface MyTracksProviderUtils {
     void updateUploadInfo(Context context, ContentValues values,
                           String whereClause, String[] whereArgs);
 
+    /**
+     * Gets the database size and free pages. See
+     * {@link MyTracksProvider#METHOD_GET_DATABASE_STATS}.
+     * 
+     * @return the stats, with the {@link DatabaseMaintenance} keys, null if
+     *         the database is not available
+     */
+    Bundle getDatabaseStats();
+
+    /**
+     * Reclaims the free pages of the database, at most maxPages, and refreshes
+     * the query planner statistics. Blocking, not to be called on the main
+     * thread. See {@link MyTracksProvider#METHOD_RUN_MAINTENANCE}.
+     * 
+     * @param maxPages
+     *            the maximum number of pages to free
+     * @return the stats, with the {@link DatabaseMaintenance} keys, null if
+     *         the database is not available
+     */
+    Bundle runDatabaseMaintenance(int maxPages);
+
+    /**
+     * Cancels the running database maintenance, to be called when a recording
+     * starts, so its writes don't wait for a full vacuum. See
+     * {@link MyTracksProvider#METHOD_CANCEL_MAINTENANCE}.
+     */
+    void cancelDatabaseMaintenance();
+
+    /**
+     * Moves the track points of the tracks stopped before stopTime out of the
+     * database, to the memory mapped cold track files. The other methods read
+     * the track points from either tier. Blocking, not to be called on the
+     * main thread.
+     * 
+     * @param stopTime
+     *            the stop time, tracks stopped before are archived
+     * @param recordingTrackIds
+     *            the ids of the recording tracks, never archived
+     * @param signal
+     *            stops the archiving before the next track once cancelled, can
+     *            be null
+     * @return the number of tracks archived
+     */
+    int archiveColdTracks(long stopTime, Set<Long> recordingTrackIds, CancellationSignal signal);
+
+    /**
+     * Sums again the rollups of the day, the week and the month of a track
+     * start time, for an app. To be called when a track ends, is edited or is
+     * deleted, done by the methods of this class editing or deleting tracks.
+     * See {@link MyTracksProvider#METHOD_UPDATE_ROLLUPS}.
+     * 
+     * @param appId
+     *            the app id, null for the tracks without
+     * @param startTime
+     *            the start time of the track
+     */
+    void updateRollups(String appId, long startTime);
+
+    /**
+     * Builds all the rollups again from the tracks. The periods are local
+     * days, weeks and months, to be called when the time zone changes, done
+     * by {@link TimeZoneChangedReceiver}. See
+     * {@link MyTracksProvider#METHOD_REBUILD_ROLLUPS}.
+     */
+    void rebuildRollups();
+
+    /**
+     * Gets the rollups of the periods starting from startTime to endTime,
+     * ascending, without the periods without tracks.
+     * 
+     * @param appId
+     *            the app id, null for all the apps
+     * @param period
+     *            the period, {@link RollupsColumns#PERIOD_DAY},
+     *            {@link RollupsColumns#PERIOD_WEEK} or
+     *            {@link RollupsColumns#PERIOD_MONTH}
+     * @param startTime
+     *            the start time, inclusive
+     * @param endTime
+     *            the end time, exclusive
+     */
+    List<Rollup> getRollups(String appId, int period, long startTime, long endTime);
+
+    /**
+     * Gets the totals of the tracks started from startTime to endTime, by
+     * whole days, summed from the day rollups.
+     * 
+     * @param appId
+     *            the app id, null for all the apps
+     * @param startTime
+     *            the start time, inclusive
+     * @param endTime
+     *            the end time, exclusive
+     */
+    Rollup getRollupSummary(String appId, long startTime, long endTime);
+
+    /**
+     * Inserts a block of sensor samples.
+     * 
+     * @param trackId
+     *            the track id
+     * @param type
+     *            the sensor type, like {@link SensorSeries#HEART_RATE}
+     * @param series
+     *            the samples, not empty
+     * @return the content provider URI of the inserted block
+     */
+    Uri insertSensorBlock(long trackId, int type, SensorSeries series);
+
+    /**
+     * Gets the sensor samples of a track in a time range. To align them to
+     * track points, pass the time range of the points and look up each point
+     * with {@link SensorSeries#getValueAt(long, long)}.
+     * 
+     * @param trackId
+     *            the track id
+     * @param type
+     *            the sensor type, like {@link SensorSeries#HEART_RATE}
+     * @param startTime
+     *            the start time, inclusive
+     * @param endTime
+     *            the end time, inclusive
+     * @return the samples ordered by time, empty if none
+     */
+    SensorSeries getSensorSeries(long trackId, int type, long startTime, long endTime);
+
     /**
      * A lightweight wrapper around the original {@link Cursor} with a method to
      * clean up.
@@ -16,19 +16,26 @@
 
 package com.mapscloud.track.services.provider;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.location.Location;
 import android.net.Uri;
-import android.os.Environment;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.RemoteException;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.google.protobuf.InvalidProtocolBufferException;
 import com.mapscloud.track.services.content.DescriptionGenerator;
+import com.mapscloud.track.services.content.Rollup;
+import com.mapscloud.track.services.content.RollupsColumns;
+import com.mapscloud.track.services.content.SensorBlocksColumns;
+import com.mapscloud.track.services.content.SensorSeries;
 import com.mapscloud.track.services.content.Track;
 import com.mapscloud.track.services.content.TrackPointsColumns;
 import com.mapscloud.track.services.content.TracksColumns;
@@ -37,15 +44,19 @@ import com.mapscloud.track.services.content.TripStatisticsUpdater;
 import com.mapscloud.track.services.model.MyTracksLocation;
 import com.mapscloud.track.services.model.Waypoint;
 import com.mapscloud.track.services.model.Waypoint.WaypointType;
-import com.mapscloud.track.services.tracks.Sensor;
+import com.mapscloud.track.services.tracks.SensorFrame;
+import com.mapscloud.track.services.tracks.SensorFrameCodec;
 import com.mapscloud.track.services.tracks.WaypointsColumns;
 import com.mapscloud.track.services.utils.LocationUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * {@link MyTracksProviderUtils} implementation.
@@ -56,21 +67,31 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
 
     private static final String TAG = MyTracksProviderUtilsImpl.class.getSimpleName();
 
-    private static final int MAX_LATITUDE = 90000000;
+    static final int MAX_LATITUDE = 90000000;
+
+    // 冷轨迹文件目录，与 app.db 同目录
+    static final String COLD_DIRECTORY = "cold";
 
     private final ContentResolver contentResolver;
+    private final ColdTrackStore  coldTrackStore;
     private       int             defaultCursorBatchSize = 2000;
 
     public MyTracksProviderUtilsImpl(ContentResolver contentResolver) {
         this.contentResolver = contentResolver;
+        this.coldTrackStore = ColdTrackStore.get(
+                new File(MyTracksProvider.getDatabaseFile().getParentFile(), COLD_DIRECTORY));
     }
 
     @Override
     public void clearTrack(long trackId) {
+        Track oldTrack = getTrack(trackId);
         deleteTrackPointsAndWaypoints(trackId);
         Track track = new Track();
         track.id = (trackId);
         updateTrack(track);
+        if (oldTrack != null) {
+            updateRollups(oldTrack.appId, oldTrack.getTripStatistics().getStartTime());
+        }
     }
 
     @Override
@@ -228,8 +249,10 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
     public void deleteAllTracks() {
         contentResolver.delete(MyTracksProvider.TRACKPOINTS_CONTENT_URI, null, null);
         contentResolver.delete(MyTracksProvider.WAYPOINTS_CONTENT_URI, null, null);
-        // Delete tracks last since it triggers a database vaccum call
+        contentResolver.delete(MyTracksProvider.SENSORBLOCKS_CONTENT_URI, null, null);
+        coldTrackStore.deleteAll();
         contentResolver.delete(MyTracksProvider.TRACKS_CONTENT_URI, null, null);
+        rebuildRollups();
     }
 
     @Override
@@ -237,15 +260,14 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         Track track = getTrack(trackId);
         if (track != null) {
             deleteTrackPointsAndWaypoints(trackId);
-
-            // Delete track last since it triggers a database vaccum call
             contentResolver.delete(MyTracksProvider.TRACKS_CONTENT_URI, TracksColumns._ID + "=?",
                     new String[]{Long.toString(trackId)});
+            updateRollups(track.appId, track.getTripStatistics().getStartTime());
         }
     }
 
     /**
-     * Deletes track points and waypoints of a track. Assumes
+     * Deletes track points, waypoints and sensor blocks of a track. Assumes
      * {@link TracksColumns#STARTID}, {@link TracksColumns#STOPID}, and
      * {@link TracksColumns#NUMPOINTS} will be updated by the caller.
      *
@@ -259,6 +281,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
             contentResolver.delete(MyTracksProvider.TRACKPOINTS_CONTENT_URI, where, selectionArgs);
             contentResolver.delete(MyTracksProvider.WAYPOINTS_CONTENT_URI, WaypointsColumns.TRACKID + "=?",
                     new String[]{Long.toString(trackId)});
+            contentResolver.delete(MyTracksProvider.SENSORBLOCKS_CONTENT_URI, SensorBlocksColumns.TRACKID + "=?",
+                    new String[]{Long.toString(trackId)});
+            clearColdTrack(trackId);
         }
     }
 
@@ -426,6 +451,48 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
                 new String[]{Long.toString(track.id)});
     }
 
+    @Override
+    public void updateTracks(List<Track> tracks) {
+        if (tracks.isEmpty()) {
+            return;
+        }
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(tracks.size());
+        for (Track track : tracks) {
+            operations.add(ContentProviderOperation.newUpdate(MyTracksProvider.TRACKS_CONTENT_URI)
+                    .withValues(createContentValues(track))
+                    .withSelection(TracksColumns._ID + "=?", new String[]{Long.toString(track.id)})
+                    .build());
+        }
+        try {
+            contentResolver.applyBatch(MyTracksProvider.TRACKS_CONTENT_URI.getAuthority(), operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to update tracks.", e);
+            return;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Unable to update tracks.", e);
+            return;
+        }
+        // 按app合并开始时间，每个app一次调用
+        Map<String, List<Long>> startTimes = new LinkedHashMap<String, List<Long>>();
+        for (Track track : tracks) {
+            String appId = track.appId != null ? track.appId : "";
+            List<Long> appStartTimes = startTimes.get(appId);
+            if (appStartTimes == null) {
+                appStartTimes = new ArrayList<Long>();
+                startTimes.put(appId, appStartTimes);
+            }
+            appStartTimes.add(track.getTripStatistics().getStartTime());
+        }
+        for (Map.Entry<String, List<Long>> entry : startTimes.entrySet()) {
+            List<Long> appStartTimes = entry.getValue();
+            long[] values = new long[appStartTimes.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = appStartTimes.get(i);
+            }
+            updateRollups(entry.getKey(), values);
+        }
+    }
+
     private ContentValues createContentValues(Track track) {
         ContentValues  values         = new ContentValues();
         TripStatistics tripStatistics = track.getTripStatistics();
@@ -466,6 +533,8 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         values.put(TracksColumns.TABLEID, track.tableId);
         values.put(TracksColumns.ICON, track.icon);
         values.put(TracksColumns.DRIVEID, track.driveId);
+        // 修改时间晚于同步水位的轨迹，同步时上传元数据
+        track.modifiedTime = System.currentTimeMillis();
         values.put(TracksColumns.MODIFIEDTIME, track.modifiedTime);
         values.put(TracksColumns.SHAREDWITHME, track.sharedWithMe);
         values.put(TracksColumns.SHAREDOWNER, track.sharedOwner);
@@ -807,6 +876,7 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
 
         values.put(WaypointsColumns.IDINRECORDTABLE, waypoint.recordMediaId);
         values.put(WaypointsColumns.RECORD_MEDIA_TYPE, waypoint.recordMediaType);
+        values.put(WaypointsColumns.MODIFIEDTIME, System.currentTimeMillis());
 
         Location location = waypoint.location;
         if (location != null) {
@@ -915,6 +985,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         if (trackId < 0) {
             return -1L;
         }
+        if (isColdTrack(trackId)) {
+            return getColdTrackPointId(trackId, false);
+        }
         Cursor cursor = null;
         try {
             String selection = TrackPointsColumns._ID + "=(select min(" + TrackPointsColumns._ID + ") from "
@@ -938,6 +1011,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         if (trackId < 0) {
             return -1L;
         }
+        if (isColdTrack(trackId)) {
+            return getColdTrackPointId(trackId, true);
+        }
         Cursor cursor = null;
         try {
             String selection = TrackPointsColumns._ID + "=(select max(" + TrackPointsColumns._ID + ") from "
@@ -961,6 +1037,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         if (trackId < 0) {
             return null;
         }
+        if (isColdTrack(trackId)) {
+            return getColdValidTrackPoint(trackId, false);
+        }
         String selection = TrackPointsColumns._ID + "=(select min(" + TrackPointsColumns._ID + ") from "
                 + TrackPointsColumns.TABLE_NAME + " WHERE " + TrackPointsColumns.TRACKID + "=? AND "
                 + TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE + ")";
@@ -973,6 +1052,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         if (trackId < 0) {
             return null;
         }
+        if (isColdTrack(trackId)) {
+            return getColdValidTrackPoint(trackId, true);
+        }
         String selection = TrackPointsColumns._ID + "=(select max(" + TrackPointsColumns._ID + ") from "
                 + TrackPointsColumns.TABLE_NAME + " WHERE " + TrackPointsColumns.TRACKID + "=? AND "
                 + TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE + ")";
@@ -984,7 +1066,55 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
     public Location getLastValidTrackPoint() {
         String selection = TrackPointsColumns._ID + "=(select max(" + TrackPointsColumns._ID + ") from "
                 + TrackPointsColumns.TABLE_NAME + " WHERE " + TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE + ")";
-        return findTrackPointBy(selection, null);
+        // 冷轨迹的点已移出 trackpoints 表，与轨迹表记下的最大冷轨迹有效点比较
+        long coldTrackId = -1L;
+        long coldTrackPointId = -1L;
+        Cursor cursor = null;
+        try {
+            cursor = getTrackCursor(new String[]{TracksColumns._ID, TracksColumns.COLD_LAST_POINT_ID},
+                    TracksColumns.COLD_LAST_POINT_ID + ">=0", null,
+                    TracksColumns.COLD_LAST_POINT_ID + " DESC LIMIT 1");
+            if (cursor != null && cursor.moveToFirst()) {
+                coldTrackId = cursor.getLong(cursor.getColumnIndexOrThrow(TracksColumns._ID));
+                coldTrackPointId = cursor.getLong(cursor.getColumnIndexOrThrow(TracksColumns.COLD_LAST_POINT_ID));
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (coldTrackId == -1L) {
+            return findTrackPointBy(selection, null);
+        }
+        cursor = null;
+        try {
+            cursor = getTrackPointCursor(new String[]{TrackPointsColumns._ID}, selection, null,
+                    TrackPointsColumns._ID);
+            if (cursor != null && cursor.moveToFirst()
+                    && cursor.getLong(cursor.getColumnIndexOrThrow(TrackPointsColumns._ID)) > coldTrackPointId) {
+                return findTrackPointBy(selection, null);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return getColdValidTrackPoint(coldTrackId, true);
+    }
+
+    @Override
+    public int updateLastValidTrackPointDwell(long trackId, long dwellEndTime, int dwellCount) {
+        if (trackId < 0) {
+            return 0;
+        }
+        String selection = TrackPointsColumns._ID + "=(select max(" + TrackPointsColumns._ID + ") from "
+                + TrackPointsColumns.TABLE_NAME + " WHERE " + TrackPointsColumns.TRACKID + "=? AND "
+                + TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE + ")";
+        String[] selectionArgs = new String[]{Long.toString(trackId)};
+        ContentValues values = new ContentValues();
+        values.put(TrackPointsColumns.DWELL_END_TIME, dwellEndTime);
+        values.put(TrackPointsColumns.DWELL_COUNT, dwellCount);
+        return contentResolver.update(MyTracksProvider.TRACKPOINTS_CONTENT_URI, values, selection, selectionArgs);
     }
 
     @Override
@@ -992,6 +1122,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         if (trackId < 0) {
             return null;
         }
+        if (isColdTrack(trackId)) {
+            return coldTrackStore.query(trackId, startTrackPointId, maxLocations, descending);
+        }
 
         String   selection;
         String[] selectionArgs;
@@ -1014,6 +1147,21 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         return getTrackPointCursor(null, selection, selectionArgs, sortOrder);
     }
 
+    @Override
+    public Cursor getTrackPointCursor(long trackId, long minTrackPointId, long maxTrackPointId) {
+        if (trackId < 0) {
+            return null;
+        }
+        if (isColdTrack(trackId)) {
+            return coldTrackStore.query(trackId, minTrackPointId, maxTrackPointId);
+        }
+        String selection = TrackPointsColumns.TRACKID + "=? AND " + TrackPointsColumns._ID + ">=? AND "
+                + TrackPointsColumns._ID + "<=?";
+        String[] selectionArgs = new String[]{Long.toString(trackId), Long.toString(minTrackPointId),
+                Long.toString(maxTrackPointId)};
+        return getTrackPointCursor(null, selection, selectionArgs, TrackPointsColumns._ID);
+    }
+
     @Override
     public LocationIterator getTrackPointLocationIterator(final long trackId, final long startTrackPointId,
                                                           final boolean descending, final LocationFactory locationFactory) {
@@ -1022,6 +1170,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         }
         return new LocationIterator() {
             private long lastTrackPointId = -1L;
+            // The second copy of a dwell record, still to return
+            private boolean dwellPending = false;
+            private long dwellPendingTime;
             private Cursor cursor = getCursor(startTrackPointId);
             private final CachedTrackPointsIndexes indexes = cursor != null ? new CachedTrackPointsIndexes(cursor)
                     : null;
@@ -1058,6 +1209,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
                 if (cursor == null) {
                     return false;
                 }
+                if (dwellPending) {
+                    return true;
+                }
                 if (cursor.isAfterLast()) {
                     return false;
                 }
@@ -1075,14 +1229,35 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
                 if (cursor == null) {
                     throw new NoSuchElementException();
                 }
+                Location location;
+                if (dwellPending) {
+                    // Same record, still under the cursor
+                    dwellPending = false;
+                    location = locationFactory.createLocation();
+                    fillTrackPoint(cursor, indexes, location);
+                    location.setTime(dwellPendingTime);
+                    if (location instanceof MyTracksLocation) {
+                        ((MyTracksLocation) location).setDwell(0L, 0);
+                    }
+                    return location;
+                }
                 if (!cursor.moveToNext()) {
                     if (!advanceCursorToNextBatch() || !cursor.moveToNext()) {
                         throw new NoSuchElementException();
                     }
                 }
                 lastTrackPointId = cursor.getLong(indexes.idIndex);
-                Location location = locationFactory.createLocation();
+                location = locationFactory.createLocation();
                 fillTrackPoint(cursor, indexes, location);
+
+                long startTime = location.getTime();
+                long dwellEndTime = getDwellEndTime(cursor, indexes);
+                if (dwellEndTime > startTime) {
+                    // Start then end, or end then start when descending
+                    dwellPending = true;
+                    dwellPendingTime = descending ? startTime : dwellEndTime;
+                    location.setTime(descending ? dwellEndTime : startTime);
+                }
                 return location;
             }
 
@@ -1106,6 +1281,61 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         return contentResolver.insert(MyTracksProvider.TRACKPOINTS_CONTENT_URI, createContentValues(location, trackId));
     }
 
+    @Override
+    public Uri insertSensorBlock(long trackId, int type, SensorSeries series) {
+        if (series.size() == 0) {
+            throw new IllegalArgumentException("Empty sensor series");
+        }
+        ContentValues values = new ContentValues();
+        values.put(SensorBlocksColumns.TRACKID, trackId);
+        values.put(SensorBlocksColumns.TYPE, type);
+        values.put(SensorBlocksColumns.STARTTIME, series.getStartTime());
+        values.put(SensorBlocksColumns.ENDTIME, series.getEndTime());
+        values.put(SensorBlocksColumns.COUNT, series.size());
+        values.put(SensorBlocksColumns.DATA, series.encode());
+        return contentResolver.insert(MyTracksProvider.SENSORBLOCKS_CONTENT_URI, values);
+    }
+
+    @Override
+    public SensorSeries getSensorSeries(long trackId, int type, long startTime, long endTime) {
+        SensorSeries series = new SensorSeries();
+        if (trackId < 0 || endTime < startTime) {
+            return series;
+        }
+        // 块按开始时间有序且不重叠，与范围相交的块
+        String selection = SensorBlocksColumns.TRACKID + "=? AND " + SensorBlocksColumns.TYPE + "=? AND "
+                + SensorBlocksColumns.STARTTIME + "<=? AND " + SensorBlocksColumns.ENDTIME + ">=?";
+        String[] selectionArgs = new String[]{Long.toString(trackId), Integer.toString(type),
+                Long.toString(endTime), Long.toString(startTime)};
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(MyTracksProvider.SENSORBLOCKS_CONTENT_URI,
+                    new String[]{SensorBlocksColumns.DATA}, selection, selectionArgs,
+                    SensorBlocksColumns.STARTTIME);
+            if (cursor != null) {
+                int dataIndex = cursor.getColumnIndexOrThrow(SensorBlocksColumns.DATA);
+                while (cursor.moveToNext()) {
+                    byte[] data = cursor.getBlob(dataIndex);
+                    if (data == null) {
+                        continue;
+                    }
+                    try {
+                        series.addAll(SensorSeries.decode(data), startTime, endTime);
+                    } catch (IllegalArgumentException e) {
+                        Log.e(TAG, "Unable to decode a sensor block of track " + trackId, e);
+                    }
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to get the sensor series of track " + trackId, e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return series;
+    }
+
     /**
      * Creates the {@link ContentValues} for a {@link Location}.
      *
@@ -1139,8 +1369,13 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
 
         if (location instanceof MyTracksLocation) {
             MyTracksLocation myTracksLocation = (MyTracksLocation) location;
-            if (myTracksLocation.getSensorDataSet() != null) {
-                values.put(TrackPointsColumns.SENSOR, myTracksLocation.getSensorDataSet().toByteArray());
+            SensorFrame sensorFrame = myTracksLocation.getSensorFrame();
+            if (sensorFrame != null) {
+                values.put(TrackPointsColumns.SENSOR, SensorFrameCodec.encode(sensorFrame));
+            }
+            if (myTracksLocation.hasDwell()) {
+                values.put(TrackPointsColumns.DWELL_END_TIME, myTracksLocation.getDwellEndTime());
+                values.put(TrackPointsColumns.DWELL_COUNT, myTracksLocation.getDwellCount());
             }
         }
         return values;
@@ -1179,12 +1414,104 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         }
         if (location instanceof MyTracksLocation && !cursor.isNull(indexes.sensorIndex)) {
             MyTracksLocation myTracksLocation = (MyTracksLocation) location;
-            try {
-                myTracksLocation.setSensorDataSet(Sensor.SensorDataSet.parseFrom(cursor.getBlob(indexes.sensorIndex)));
-            } catch (InvalidProtocolBufferException e) {
-                Log.w(TAG, "Failed to parse sensor data.", e);
+            byte[] sensorData = cursor.getBlob(indexes.sensorIndex);
+            if (!myTracksLocation.readSensorData(sensorData, 0, sensorData.length)) {
+                Log.w(TAG, "Failed to parse sensor data.");
             }
         }
+        if (location instanceof MyTracksLocation) {
+            int dwellCount = indexes.dwellCountIndex != -1 && !cursor.isNull(indexes.dwellCountIndex)
+                    ? cursor.getInt(indexes.dwellCountIndex) : 0;
+            ((MyTracksLocation) location).setDwell(getDwellEndTime(cursor, indexes), dwellCount);
+        }
+    }
+
+    /**
+     * Gets the dwell end time of a track point, 0 if not a dwell.
+     *
+     * @param cursor  the cursor pointing to a location
+     * @param indexes the cached track points indexes
+     */
+    private static long getDwellEndTime(Cursor cursor, CachedTrackPointsIndexes indexes) {
+        if (indexes.dwellEndTimeIndex == -1 || cursor.isNull(indexes.dwellEndTimeIndex)) {
+            return 0L;
+        }
+        return cursor.getLong(indexes.dwellEndTimeIndex);
+    }
+
+    /**
+     * Gets the first or the last track point id of a cold track.
+     *
+     * @param trackId the track id
+     * @param last    true for the last
+     */
+    private long getColdTrackPointId(long trackId, boolean last) {
+        Cursor cursor = coldTrackStore.query(trackId, -1L, 1, last);
+        if (cursor == null) {
+            return -1L;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(cursor.getColumnIndexOrThrow(TrackPointsColumns._ID)) : -1L;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns true if the points of a track are in the cold tier.
+     *
+     * @param trackId the track id
+     */
+    private boolean isColdTrack(long trackId) {
+        Cursor cursor = null;
+        try {
+            cursor = getTrackCursor(new String[]{TracksColumns.TIER}, TracksColumns._ID + "=?",
+                    new String[]{Long.toString(trackId)}, null);
+            return cursor != null && cursor.moveToFirst() && cursor.getInt(0) == TracksColumns.TIER_COLD;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Moves a cold track back to the hot tier, its points are rewritten to
+     * the database by the caller.
+     *
+     * @param trackId the track id
+     */
+    private void clearColdTrack(long trackId) {
+        ContentValues values = new ContentValues();
+        values.put(TracksColumns.TIER, TracksColumns.TIER_HOT);
+        values.put(TracksColumns.COLD_LAST_POINT_ID, -1L);
+        contentResolver.update(MyTracksProvider.TRACKS_CONTENT_URI, values, TracksColumns._ID + "=? AND "
+                + TracksColumns.TIER + "=" + TracksColumns.TIER_COLD, new String[]{Long.toString(trackId)});
+        coldTrackStore.delete(trackId);
+    }
+
+    /**
+     * Gets the first or the last valid track point of a cold track.
+     *
+     * @param trackId the track id
+     * @param last    true for the last
+     */
+    private Location getColdValidTrackPoint(long trackId, boolean last) {
+        Cursor cursor = coldTrackStore.query(trackId, -1L, -1, last);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            int latitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.LATITUDE);
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(latitudeIndex) <= MAX_LATITUDE) {
+                    return createTrackPoint(cursor);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
     }
 
     private Location findTrackPointBy(String selection, String[] selectionArgs) {
@@ -1235,6 +1562,8 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         public final int speedIndex;
         public final int bearingIndex;
         public final int sensorIndex;
+        public final int dwellEndTimeIndex;
+        public final int dwellCountIndex;
 
         public CachedTrackPointsIndexes(Cursor cursor) {
             idIndex = cursor.getColumnIndex(TrackPointsColumns._ID);
@@ -1246,6 +1575,9 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
             speedIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.SPEED);
             bearingIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.BEARING);
             sensorIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.SENSOR);
+            // Optional, not in projections predating dwells
+            dwellEndTimeIndex = cursor.getColumnIndex(TrackPointsColumns.DWELL_END_TIME);
+            dwellCountIndex = cursor.getColumnIndex(TrackPointsColumns.DWELL_COUNT);
         }
     }
 
@@ -1265,6 +1597,8 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
             String   where         = TrackPointsColumns._ID + ">=? AND " + TrackPointsColumns._ID + "<=?";
             String[] selectionArgs = new String[]{Long.toString(track.startId), Long.toString(track.stopId)};
             contentResolver.delete(MyTracksProvider.TRACKPOINTS_CONTENT_URI, where, selectionArgs);
+            // 重写后的轨迹点回到数据库
+            clearColdTrack(trackId);
         }
 
         track.name = name;
@@ -1281,6 +1615,7 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         }
 
         updateTrack(track);
+        updateRollups(track.appId, track.getTripStatistics().getStartTime());
     }
 
     private void updateRecordingTrack(Track track, long trackPointId, boolean isTrackPointNewAndValid, TripStatisticsUpdater trackTripStatisticsUpdater) {
@@ -1351,6 +1686,184 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
         contentResolver.update(MyTracksProvider.TRACKS_CONTENT_URI, values, whereClause, whereArgs);
     }
 
+    @Override
+    public Bundle getDatabaseStats() {
+        return contentResolver.call(MyTracksProvider.TRACKS_CONTENT_URI,
+                MyTracksProvider.METHOD_GET_DATABASE_STATS, null, null);
+    }
+
+    @Override
+    public int archiveColdTracks(long stopTime, Set<Long> recordingTrackIds, CancellationSignal signal) {
+        int archived = 0;
+        String selection = TracksColumns.STOPTIME + ">0 AND " + TracksColumns.STOPTIME + "<? AND "
+                + TracksColumns.TIER + "=" + TracksColumns.TIER_HOT;
+        String[] selectionArgs = new String[]{Long.toString(stopTime)};
+        for (Track track : getTracks(selection, selectionArgs)) {
+            if (signal != null && signal.isCanceled()) {
+                break;
+            }
+            if (recordingTrackIds.contains(track.id)) {
+                continue;
+            }
+            if (archiveColdTrack(track.id)) {
+                archived++;
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Moves the track points of a track to its cold file, then deletes them
+     * from the database. Returns true if successful.
+     *
+     * @param trackId the track id
+     */
+    private boolean archiveColdTrack(long trackId) {
+        String[] selectionArgs = new String[]{Long.toString(trackId)};
+        Cursor cursor = getTrackPointCursor(null, TrackPointsColumns.TRACKID + "=?", selectionArgs,
+                TrackPointsColumns._ID);
+        if (cursor == null) {
+            return false;
+        }
+        int count;
+        try {
+            if (cursor.getCount() == 0) {
+                return false;
+            }
+            count = coldTrackStore.write(trackId, cursor);
+            if (count != cursor.getCount()) {
+                Log.e(TAG, "Cold track " + trackId + " has " + count + " of " + cursor.getCount() + " points");
+                coldTrackStore.delete(trackId);
+                return false;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to archive track " + trackId, e);
+            return false;
+        } finally {
+            cursor.close();
+        }
+        // 文件已落盘，删点和标记冷轨迹在同一个事务里，此后读取都走冷文件
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(2);
+        operations.add(ContentProviderOperation.newDelete(MyTracksProvider.TRACKPOINTS_CONTENT_URI)
+                .withSelection(TrackPointsColumns.TRACKID + "=?", selectionArgs)
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(MyTracksProvider.TRACKS_CONTENT_URI)
+                .withValue(TracksColumns.TIER, TracksColumns.TIER_COLD)
+                .withValue(TracksColumns.COLD_LAST_POINT_ID,
+                        coldTrackStore.getLastValidTrackPointId(trackId, MAX_LATITUDE))
+                .withSelection(TracksColumns._ID + "=?", selectionArgs)
+                .build());
+        try {
+            contentResolver.applyBatch(MyTracksProvider.TRACKS_CONTENT_URI.getAuthority(), operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to archive track " + trackId, e);
+            coldTrackStore.delete(trackId);
+            return false;
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Unable to archive track " + trackId, e);
+            coldTrackStore.delete(trackId);
+            return false;
+        }
+        Log.i(TAG, "Archived " + count + " points of track " + trackId);
+        return true;
+    }
+
+    @Override
+    public void updateRollups(String appId, long startTime) {
+        updateRollups(appId, new long[]{startTime});
+    }
+
+    private void updateRollups(String appId, long[] startTimes) {
+        Bundle extras = new Bundle();
+        extras.putString(MyTracksProvider.EXTRA_APP_ID, appId);
+        extras.putLongArray(MyTracksProvider.EXTRA_START_TIMES, startTimes);
+        contentResolver.call(MyTracksProvider.TRACKS_CONTENT_URI, MyTracksProvider.METHOD_UPDATE_ROLLUPS, null,
+                extras);
+    }
+
+    @Override
+    public void rebuildRollups() {
+        contentResolver.call(MyTracksProvider.TRACKS_CONTENT_URI, MyTracksProvider.METHOD_REBUILD_ROLLUPS, null,
+                null);
+    }
+
+    @Override
+    public List<Rollup> getRollups(String appId, int period, long startTime, long endTime) {
+        String selection = RollupsColumns.PERIOD + "=? AND " + RollupsColumns.PERIODSTART + ">=? AND "
+                + RollupsColumns.PERIODSTART + "<?";
+        String[] selectionArgs;
+        if (appId != null) {
+            selection += " AND " + RollupsColumns.APPID + "=?";
+            selectionArgs = new String[]{Integer.toString(period), Long.toString(startTime), Long.toString(endTime),
+                    appId};
+        } else {
+            selectionArgs = new String[]{Integer.toString(period), Long.toString(startTime), Long.toString(endTime)};
+        }
+        // 不限定app时，同一周期各app的汇总相加
+        Map<Long, Rollup> rollups = new LinkedHashMap<Long, Rollup>();
+        Cursor cursor = null;
+        try {
+            cursor = contentResolver.query(MyTracksProvider.ROLLUPS_CONTENT_URI, null, selection, selectionArgs,
+                    RollupsColumns.PERIODSTART);
+            if (cursor != null) {
+                int periodStartIndex = cursor.getColumnIndexOrThrow(RollupsColumns.PERIODSTART);
+                int trackCountIndex = cursor.getColumnIndexOrThrow(RollupsColumns.TRACKCOUNT);
+                int totalDistanceIndex = cursor.getColumnIndexOrThrow(RollupsColumns.TOTALDISTANCE);
+                int totalTimeIndex = cursor.getColumnIndexOrThrow(RollupsColumns.TOTALTIME);
+                int movingTimeIndex = cursor.getColumnIndexOrThrow(RollupsColumns.MOVINGTIME);
+                int elevationGainIndex = cursor.getColumnIndexOrThrow(RollupsColumns.ELEVATIONGAIN);
+                while (cursor.moveToNext()) {
+                    long periodStart = cursor.getLong(periodStartIndex);
+                    Rollup rollup = rollups.get(periodStart);
+                    if (rollup == null) {
+                        rollup = new Rollup();
+                        rollup.appId = appId;
+                        rollup.period = period;
+                        rollup.startTime = periodStart;
+                        rollups.put(periodStart, rollup);
+                    }
+                    rollup.trackCount += cursor.getInt(trackCountIndex);
+                    rollup.totalDistance += cursor.getDouble(totalDistanceIndex);
+                    rollup.totalTime += cursor.getLong(totalTimeIndex);
+                    rollup.movingTime += cursor.getLong(movingTimeIndex);
+                    rollup.elevationGain += cursor.getDouble(elevationGainIndex);
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Unable to query the rollups", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return new ArrayList<Rollup>(rollups.values());
+    }
+
+    @Override
+    public Rollup getRollupSummary(String appId, long startTime, long endTime) {
+        Rollup summary = new Rollup();
+        summary.appId = appId;
+        summary.startTime = startTime;
+        for (Rollup rollup : getRollups(appId, RollupsColumns.PERIOD_DAY, startTime, endTime)) {
+            summary.add(rollup);
+        }
+        return summary;
+    }
+
+    @Override
+    public Bundle runDatabaseMaintenance(int maxPages) {
+        Bundle extras = new Bundle();
+        extras.putInt(MyTracksProvider.EXTRA_MAX_PAGES, maxPages);
+        return contentResolver.call(MyTracksProvider.TRACKS_CONTENT_URI,
+                MyTracksProvider.METHOD_RUN_MAINTENANCE, null, extras);
+    }
+
+    @Override
+    public void cancelDatabaseMaintenance() {
+        contentResolver.call(MyTracksProvider.TRACKS_CONTENT_URI,
+                MyTracksProvider.METHOD_CANCEL_MAINTENANCE, null, null);
+    }
+
 
     /**
      * 检测mapplus/app/app.db文件是否为空，如果为空重新创建
@@ -1358,8 +1871,7 @@ public class MyTracksProviderUtilsImpl implements MyTracksProviderUtils {
      * @return
      */
     private boolean checkDBNotNull() {
-        File sdcardDir = Environment.getExternalStorageDirectory();
-        File databaseFile = new File(sdcardDir, "mapplus/app/app.db");
+        File databaseFile = MyTracksProvider.getDatabaseFile();
         if (!databaseFile.exists()) {
             try {
                 // yml 这里可能因为mapplus/app/app.db文件不存在，先保证文件存在
@@ -0,0 +1,264 @@
+package com.mapscloud.track.services.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Opt-in profiling of the {@link MyTracksProvider} operations, to find the
+ * client apps running expensive scans on app.db.
+ * <p>
+ * When enabled, each operation is counted per url type and calling package,
+ * with its latency and row count. Operations slower than the threshold are
+ * logged with their query plan (EXPLAIN QUERY PLAN) and kept in a bounded
+ * ring of the most recent ones. Disabled, {@link #isEnabled()} is the only
+ * cost. Thread safe.
+ * <p>
+ * Driven through {@link MyTracksProvider#call(String, String, Bundle)}, the
+ * keys of the returned bundles are the KEY constants.
+ */
+public class ProviderProfiler {
+
+    private static final String TAG = ProviderProfiler.class.getSimpleName();
+
+    // The number of slow operations kept
+    private static final int SLOW_OPERATION_CAPACITY = 64;
+
+    // 上限，防止调用方拼接不同的包名撑大统计表
+    private static final int MAX_STATS = 256;
+
+    public static final String KEY_STATS = "stats";
+    public static final String KEY_SLOW_OPERATIONS = "slowOperations";
+    public static final String KEY_OPERATION = "operation";
+    public static final String KEY_URI = "uri";
+    public static final String KEY_CALLING_PACKAGE = "callingPackage";
+    public static final String KEY_COUNT = "count";
+    public static final String KEY_ROWS = "rows";
+    public static final String KEY_TOTAL_NANOS = "totalNanos";
+    public static final String KEY_MAX_NANOS = "maxNanos";
+    public static final String KEY_TIME = "time";
+    public static final String KEY_NANOS = "nanos";
+    public static final String KEY_SQL = "sql";
+    public static final String KEY_PLAN = "plan";
+
+    private volatile boolean enabled;
+    private volatile long thresholdNanos;
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+    private final SlowOperation[] slowOperations = new SlowOperation[SLOW_OPERATION_CAPACITY];
+    private int slowOperationCount;
+
+    /**
+     * Enables or disables the profiling.
+     *
+     * @param enabled     true to enable
+     * @param thresholdMs the slow operation threshold in milliseconds
+     */
+    void setEnabled(boolean enabled, long thresholdMs) {
+        if (thresholdMs < 0) {
+            throw new IllegalArgumentException("Invalid threshold: " + thresholdMs);
+        }
+        this.thresholdNanos = thresholdMs * 1000000L;
+        this.enabled = enabled;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Records a finished operation.
+     *
+     * @param db             the database, to explain a slow operation
+     * @param operation      the operation, like "query"
+     * @param urlType        the url type
+     * @param callingPackage the calling package, can be null
+     * @param startNanos     the {@link System#nanoTime()} at the start
+     * @param rows           the rows returned or changed
+     * @param sql            a select with the same plan as the operation, null
+     *                       if not worth explaining
+     * @param selectionArgs  the arguments of the sql
+     */
+    void record(SQLiteDatabase db, String operation, MyTracksProvider.UrlType urlType, String callingPackage,
+                long startNanos, int rows, String sql, String[] selectionArgs) {
+        long nanos = System.nanoTime() - startNanos;
+        String caller = callingPackage != null ? callingPackage : "local";
+        String key = operation + " " + urlType + " " + caller;
+        Stats stat = stats.get(key);
+        if (stat == null) {
+            if (stats.size() >= MAX_STATS) {
+                return;
+            }
+            Stats created = new Stats(operation, urlType, caller);
+            stat = stats.putIfAbsent(key, created);
+            if (stat == null) {
+                stat = created;
+            }
+        }
+        stat.add(nanos, rows);
+
+        if (nanos < thresholdNanos) {
+            return;
+        }
+        String plan = sql != null ? explain(db, sql, selectionArgs) : null;
+        Log.w(TAG, "Slow " + operation + " on " + urlType + " from " + caller + ": " + nanos / 1000000L
+                + " ms, " + rows + " rows, " + sql + (plan != null ? "\n" + plan : ""));
+        SlowOperation slowOperation = new SlowOperation(System.currentTimeMillis(), operation, urlType, caller,
+                nanos, rows, sql, plan);
+        synchronized (slowOperations) {
+            slowOperations[slowOperationCount % SLOW_OPERATION_CAPACITY] = slowOperation;
+            slowOperationCount++;
+        }
+    }
+
+    /**
+     * Gets the stats, an ArrayList of bundles under {@link #KEY_STATS}, and
+     * the slow operations, most recent first, under
+     * {@link #KEY_SLOW_OPERATIONS}.
+     */
+    Bundle toBundle() {
+        ArrayList<Bundle> statList = new ArrayList<Bundle>(stats.size());
+        for (Stats stat : stats.values()) {
+            statList.add(stat.toBundle());
+        }
+        ArrayList<Bundle> slowList = new ArrayList<Bundle>();
+        synchronized (slowOperations) {
+            int size = Math.min(slowOperationCount, SLOW_OPERATION_CAPACITY);
+            for (int i = 1; i <= size; i++) {
+                slowList.add(slowOperations[(slowOperationCount - i) % SLOW_OPERATION_CAPACITY].toBundle());
+            }
+        }
+        Bundle bundle = new Bundle();
+        bundle.putParcelableArrayList(KEY_STATS, statList);
+        bundle.putParcelableArrayList(KEY_SLOW_OPERATIONS, slowList);
+        return bundle;
+    }
+
+    /**
+     * Clears the stats and the slow operations.
+     */
+    void reset() {
+        stats.clear();
+        synchronized (slowOperations) {
+            for (int i = 0; i < SLOW_OPERATION_CAPACITY; i++) {
+                slowOperations[i] = null;
+            }
+            slowOperationCount = 0;
+        }
+    }
+
+    /*
+     * Gets the query plan, one line per step.
+     */
+    private static String explain(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        if (db == null || !db.isOpen()) {
+            return null;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+            int detailIndex = cursor.getColumnIndex("detail");
+            if (detailIndex == -1) {
+                return null;
+            }
+            StringBuilder builder = new StringBuilder();
+            while (cursor.moveToNext()) {
+                if (builder.length() > 0) {
+                    builder.append('\n');
+                }
+                builder.append(cursor.getString(detailIndex));
+            }
+            return builder.toString();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to explain " + sql, e);
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * The stats of one operation, url type and calling package.
+     */
+    private static class Stats {
+        private final String operation;
+        private final MyTracksProvider.UrlType urlType;
+        private final String callingPackage;
+        private long count;
+        private long rows;
+        private long totalNanos;
+        private long maxNanos;
+
+        Stats(String operation, MyTracksProvider.UrlType urlType, String callingPackage) {
+            this.operation = operation;
+            this.urlType = urlType;
+            this.callingPackage = callingPackage;
+        }
+
+        synchronized void add(long nanos, int rowCount) {
+            count++;
+            rows += Math.max(rowCount, 0);
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        synchronized Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putString(KEY_OPERATION, operation);
+            bundle.putString(KEY_URI, urlType.name());
+            bundle.putString(KEY_CALLING_PACKAGE, callingPackage);
+            bundle.putLong(KEY_COUNT, count);
+            bundle.putLong(KEY_ROWS, rows);
+            bundle.putLong(KEY_TOTAL_NANOS, totalNanos);
+            bundle.putLong(KEY_MAX_NANOS, maxNanos);
+            return bundle;
+        }
+    }
+
+    /**
+     * A slow operation.
+     */
+    private static class SlowOperation {
+        private final long time;
+        private final String operation;
+        private final MyTracksProvider.UrlType urlType;
+        private final String callingPackage;
+        private final long nanos;
+        private final int rows;
+        private final String sql;
+        private final String plan;
+
+        SlowOperation(long time, String operation, MyTracksProvider.UrlType urlType, String callingPackage,
+                      long nanos, int rows, String sql, String plan) {
+            this.time = time;
+            this.operation = operation;
+            this.urlType = urlType;
+            this.callingPackage = callingPackage;
+            this.nanos = nanos;
+            this.rows = rows;
+            this.sql = sql;
+            this.plan = plan;
+        }
+
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putLong(KEY_TIME, time);
+            bundle.putString(KEY_OPERATION, operation);
+            bundle.putString(KEY_URI, urlType.name());
+            bundle.putString(KEY_CALLING_PACKAGE, callingPackage);
+            bundle.putLong(KEY_NANOS, nanos);
+            bundle.putInt(KEY_ROWS, rows);
+            bundle.putString(KEY_SQL, sql);
+            bundle.putString(KEY_PLAN, plan);
+            return bundle;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.mapscloud.track.services.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.mapscloud.track.services.content.RollupsColumns;
+import com.mapscloud.track.services.content.TracksColumns;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maintains the rollups table, see {@link RollupsColumns}, from the tracks
+ * table.
+ * <p>
+ * When a track ends, is imported, is edited or rebuilt, or is deleted, the
+ * day, the week and the month of its start time are summed again from the
+ * tracks of its app, a range of the app id and start time index, so the
+ * rollups never drift from the tracks. Driven through
+ * {@link MyTracksProvider#call(String, String, android.os.Bundle)}.
+ * <p>
+ * The periods are local time, so all the rollups are built again when the
+ * time zone changes, see {@link TimeZoneChangedReceiver}, not to mix the
+ * periods of two zones.
+ */
+class Rollups {
+
+    private static final String TAG = Rollups.class.getSimpleName();
+
+    private static final int[] PERIODS = {RollupsColumns.PERIOD_DAY, RollupsColumns.PERIOD_WEEK,
+            RollupsColumns.PERIOD_MONTH};
+
+    private static final String SUMS = "COUNT(*), SUM(" + TracksColumns.TOTALDISTANCE + "), SUM("
+            + TracksColumns.TOTALTIME + "), SUM(" + TracksColumns.MOVINGTIME + "), SUM("
+            + TracksColumns.ELEVATIONGAIN + ")";
+
+    private Rollups() {
+    }
+
+    /**
+     * Sums again the periods of a start time, for an app.
+     *
+     * @param db        the database
+     * @param appId     the app id, null or empty for the tracks without
+     * @param startTime the start time of a track
+     */
+    static void update(SQLiteDatabase db, String appId, long startTime) {
+        if (startTime <= 0) {
+            return;
+        }
+        String rollupAppId = appId != null ? appId : "";
+        String appSelection;
+        String[] selectionArgs;
+        if (TextUtils.isEmpty(appId)) {
+            appSelection = "(" + TracksColumns.COLUMN_APP_ID + " IS NULL OR " + TracksColumns.COLUMN_APP_ID + "='')";
+            selectionArgs = new String[2];
+        } else {
+            appSelection = TracksColumns.COLUMN_APP_ID + "=?";
+            selectionArgs = new String[]{appId, null, null};
+        }
+        String sql = "SELECT " + SUMS + " FROM " + TracksColumns.TABLE_NAME + " WHERE " + appSelection + " AND "
+                + TracksColumns.STARTTIME + ">=? AND " + TracksColumns.STARTTIME + "<?";
+        for (int period : PERIODS) {
+            long[] range = getPeriod(period, startTime);
+            selectionArgs[selectionArgs.length - 2] = Long.toString(range[0]);
+            selectionArgs[selectionArgs.length - 1] = Long.toString(range[1]);
+            Cursor cursor = db.rawQuery(sql, selectionArgs);
+            try {
+                if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+                    ContentValues values = new ContentValues();
+                    values.put(RollupsColumns.APPID, rollupAppId);
+                    values.put(RollupsColumns.PERIOD, period);
+                    values.put(RollupsColumns.PERIODSTART, range[0]);
+                    values.put(RollupsColumns.TRACKCOUNT, cursor.getInt(0));
+                    values.put(RollupsColumns.TOTALDISTANCE, cursor.getDouble(1));
+                    values.put(RollupsColumns.TOTALTIME, cursor.getLong(2));
+                    values.put(RollupsColumns.MOVINGTIME, cursor.getLong(3));
+                    values.put(RollupsColumns.ELEVATIONGAIN, cursor.getDouble(4));
+                    db.insertWithOnConflict(RollupsColumns.TABLE_NAME, null, values,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                } else {
+                    db.delete(RollupsColumns.TABLE_NAME, RollupsColumns.APPID + "=? AND " + RollupsColumns.PERIOD
+                                    + "=? AND " + RollupsColumns.PERIODSTART + "=?",
+                            new String[]{rollupAppId, Integer.toString(period), Long.toString(range[0])});
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Builds the rollups again from all the tracks, in one scan. For the
+     * upgrade of the database and after deleting all the tracks.
+     *
+     * @param db the database
+     */
+    static void rebuild(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        Map<String, ContentValues> rollups = new HashMap<String, ContentValues>();
+        Cursor cursor = db.query(TracksColumns.TABLE_NAME, new String[]{TracksColumns.COLUMN_APP_ID,
+                TracksColumns.STARTTIME, TracksColumns.TOTALDISTANCE, TracksColumns.TOTALTIME,
+                TracksColumns.MOVINGTIME, TracksColumns.ELEVATIONGAIN}, TracksColumns.STARTTIME + ">0", null, null,
+                null, null);
+        try {
+            while (cursor.moveToNext()) {
+                String appId = cursor.isNull(0) ? "" : cursor.getString(0);
+                long startTime = cursor.getLong(1);
+                for (int period : PERIODS) {
+                    long periodStart = getPeriod(period, startTime)[0];
+                    String key = appId + '\n' + period + '\n' + periodStart;
+                    ContentValues values = rollups.get(key);
+                    if (values == null) {
+                        values = new ContentValues();
+                        values.put(RollupsColumns.APPID, appId);
+                        values.put(RollupsColumns.PERIOD, period);
+                        values.put(RollupsColumns.PERIODSTART, periodStart);
+                        values.put(RollupsColumns.TRACKCOUNT, 0);
+                        values.put(RollupsColumns.TOTALDISTANCE, 0d);
+                        values.put(RollupsColumns.TOTALTIME, 0L);
+                        values.put(RollupsColumns.MOVINGTIME, 0L);
+                        values.put(RollupsColumns.ELEVATIONGAIN, 0d);
+                        rollups.put(key, values);
+                    }
+                    values.put(RollupsColumns.TRACKCOUNT, values.getAsInteger(RollupsColumns.TRACKCOUNT) + 1);
+                    values.put(RollupsColumns.TOTALDISTANCE,
+                            values.getAsDouble(RollupsColumns.TOTALDISTANCE) + cursor.getDouble(2));
+                    values.put(RollupsColumns.TOTALTIME,
+                            values.getAsLong(RollupsColumns.TOTALTIME) + cursor.getLong(3));
+                    values.put(RollupsColumns.MOVINGTIME,
+                            values.getAsLong(RollupsColumns.MOVINGTIME) + cursor.getLong(4));
+                    values.put(RollupsColumns.ELEVATIONGAIN,
+                            values.getAsDouble(RollupsColumns.ELEVATIONGAIN) + cursor.getDouble(5));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        db.delete(RollupsColumns.TABLE_NAME, null, null);
+        for (ContentValues values : rollups.values()) {
+            db.insert(RollupsColumns.TABLE_NAME, null, values);
+        }
+        Log.i(TAG, "Rebuilt " + rollups.size() + " rollups in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Gets the start and the end of the period of a time, local time. Weeks
+     * start on the first day of the week of the locale.
+     *
+     * @param period the period
+     * @param time   the time
+     */
+    static long[] getPeriod(int period, long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        int field;
+        switch (period) {
+            case RollupsColumns.PERIOD_DAY:
+                field = Calendar.DAY_OF_MONTH;
+                break;
+            case RollupsColumns.PERIOD_WEEK:
+                int days = (calendar.get(Calendar.DAY_OF_WEEK) - calendar.getFirstDayOfWeek() + 7) % 7;
+                calendar.add(Calendar.DAY_OF_MONTH, -days);
+                field = Calendar.WEEK_OF_YEAR;
+                break;
+            case RollupsColumns.PERIOD_MONTH:
+                calendar.set(Calendar.DAY_OF_MONTH, 1);
+                field = Calendar.MONTH;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown period " + period);
+        }
+        long start = calendar.getTimeInMillis();
+        calendar.add(field, 1);
+        return new long[]{start, calendar.getTimeInMillis()};
+    }
+}
@@ -0,0 +1,38 @@
+package com.mapscloud.track.services.provider;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+/**
+ * Builds the rollups again when the time zone changes, their periods are
+ * local days, weeks and months, see {@link Rollups}. The time zone broadcast
+ * is delivered to the manifest receivers even when the app is not running.
+ */
+public class TimeZoneChangedReceiver extends BroadcastReceiver {
+
+    private static final String TAG = TimeZoneChangedReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (!Intent.ACTION_TIMEZONE_CHANGED.equals(intent.getAction())) {
+            return;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        final PendingResult pendingResult = goAsync();
+        // 重建要扫描整个轨迹表，不在主线程
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    MyTracksProviderUtils.Factory.get(applicationContext).rebuildRollups();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to rebuild the rollups", e);
+                } finally {
+                    pendingResult.finish();
+                }
+            }
+        }, "RollupsRebuild").start();
+    }
+}
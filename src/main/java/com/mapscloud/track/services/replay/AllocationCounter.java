@@ -0,0 +1,75 @@
+package com.mapscloud.track.services.replay;
+
+import android.os.Debug;
+
+import java.lang.reflect.Method;
+
+/**
+ * Counts the bytes allocated by the process during a replay.
+ * <p>
+ * On a JVM, Robolectric included, the HotSpot thread MXBean gives the bytes
+ * allocated by all the live threads, looked up by reflection since
+ * java.lang.management is not on Android. On a device the
+ * {@link Debug} allocation counters are used instead, they slow the process
+ * down while counting. Returns -1 when neither is available.
+ */
+class AllocationCounter {
+
+    private Object threadMXBean;
+    private Method getAllThreadIds;
+    private Method getThreadAllocatedBytes;
+    private boolean debugCounting;
+    private long startBytes;
+
+    @SuppressWarnings("deprecation")
+    void start() {
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            threadMXBean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            getAllThreadIds = beanClass.getMethod("getAllThreadIds");
+            getThreadAllocatedBytes = beanClass.getMethod("getThreadAllocatedBytes", long[].class);
+            startBytes = getJvmAllocatedBytes();
+            return;
+        } catch (Exception e) {
+            // Not a HotSpot JVM
+            threadMXBean = null;
+        }
+        Debug.resetGlobalAllocSize();
+        Debug.startAllocCounting();
+        debugCounting = true;
+    }
+
+    /**
+     * Stops counting and returns the bytes allocated since {@link #start()}.
+     * Threads ended during the replay are not counted on a JVM.
+     */
+    @SuppressWarnings("deprecation")
+    long stop() {
+        if (threadMXBean != null) {
+            try {
+                return getJvmAllocatedBytes() - startBytes;
+            } catch (Exception e) {
+                return -1L;
+            }
+        }
+        if (debugCounting) {
+            Debug.stopAllocCounting();
+            debugCounting = false;
+            return Debug.getGlobalAllocSize();
+        }
+        return -1L;
+    }
+
+    private long getJvmAllocatedBytes() throws Exception {
+        long[] ids = (long[]) getAllThreadIds.invoke(threadMXBean);
+        long[] bytes = (long[]) getThreadAllocatedBytes.invoke(threadMXBean, (Object) ids);
+        long total = 0L;
+        for (long value : bytes) {
+            if (value > 0) {
+                total += value;
+            }
+        }
+        return total;
+    }
+}
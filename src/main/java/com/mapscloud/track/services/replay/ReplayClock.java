@@ -0,0 +1,83 @@
+package com.mapscloud.track.services.replay;
+
+import com.mapscloud.track.services.utils.Clock;
+
+/**
+ * The clock of a replay. Starts at the first fix time of the trace and runs
+ * either at a speedup of the real time, or, with a speedup of 0, steps to each
+ * fix as it is emitted, as fast as the pipeline takes them.
+ */
+public class ReplayClock implements Clock {
+
+    private final double speedup;
+    private volatile long startTime;
+    private volatile long startNanos;
+    private volatile long steppedTime;
+
+    /**
+     * Constructor.
+     *
+     * @param speedup the real time multiplier, 0 to step from fix to fix
+     */
+    public ReplayClock(double speedup) {
+        if (speedup < 0 || Double.isNaN(speedup) || Double.isInfinite(speedup)) {
+            throw new IllegalArgumentException("Invalid speedup: " + speedup);
+        }
+        this.speedup = speedup;
+    }
+
+    /**
+     * Starts the clock.
+     *
+     * @param time the time to start at, usually the first fix time
+     */
+    public void start(long time) {
+        startTime = time;
+        steppedTime = time;
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns true if the clock steps from fix to fix.
+     */
+    public boolean isStepped() {
+        return speedup == 0;
+    }
+
+    /**
+     * Moves a stepped clock to a fix time. Never moves backwards.
+     */
+    void stepTo(long time) {
+        if (time > steppedTime) {
+            steppedTime = time;
+        }
+    }
+
+    /**
+     * Gets the real time in milliseconds until the clock reaches a time, 0 if
+     * already reached or stepped.
+     */
+    long getDelay(long time) {
+        if (isStepped()) {
+            return 0L;
+        }
+        long delta = time - currentTimeMillis();
+        return delta <= 0 ? 0L : (long) Math.ceil(delta / speedup);
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        if (isStepped()) {
+            return steppedTime;
+        }
+        return startTime + (long) ((System.nanoTime() - startNanos) / 1000000.0 * speedup);
+    }
+
+    /*
+     * The replay time, the fixes emitted carry the same time base.
+     */
+    @Override
+    public long elapsedRealtimeNanos() {
+        return currentTimeMillis() * 1000000L;
+    }
+}
@@ -0,0 +1,166 @@
+package com.mapscloud.track.services.replay;
+
+import android.location.Location;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.model.ITrackRecordingService;
+import com.mapscloud.track.services.model.RecordingHooks;
+import com.mapscloud.track.services.provider.MyTracksProvider;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replays a {@link ReplayTrace} through the real recording pipeline (arbiter,
+ * smoothing, dwell detection, statistics and database writes) and measures
+ * it, to catch throughput and latency regressions before release.
+ * <p>
+ * Usage, on a device or under Robolectric:
+ * <pre>
+ * ReplayHarness harness = new ReplayHarness(ReplayTrace.synthetic(start, 10000, 1000, 1), 0, 4);
+ * harness.prepare();
+ * // create or bind the TrackRecordingService
+ * ReplayReport report = harness.run(service, 60000);
+ * </pre>
+ * {@link #prepare()} must be called before the service is created, the
+ * service reads the clock and the location source in its onCreate. Each of
+ * the N apps records its own track from the same fixes.
+ */
+public class ReplayHarness {
+
+    private static final String TAG = ReplayHarness.class.getSimpleName();
+
+    public static final String APP_ID_PREFIX = "replay.app";
+
+    // The pipeline is idle after this long without a commit, in milliseconds
+    private static final long IDLE_TIME = 2000L;
+
+    private final ReplayTrace trace;
+    private final ReplayClock clock;
+    private final ReplayLocationSource source;
+    private final int appCount;
+    private final long[] latencies;
+    private final AtomicInteger latencyCount = new AtomicInteger();
+    private volatile long lastCommitNanos;
+
+    private final RecordingHooks.PipelineObserver observer = new RecordingHooks.PipelineObserver() {
+        @Override
+        public void onLocationCommitted(Track track, Location location) {
+            long now = System.nanoTime();
+            lastCommitNanos = now;
+            long emitNanos = source.getEmitNanos(location.getTime());
+            if (emitNanos < 0) {
+                return;
+            }
+            int index = latencyCount.getAndIncrement();
+            if (index < latencies.length) {
+                latencies[index] = now - emitNanos;
+            } else {
+                latencyCount.decrementAndGet();
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param trace    the trace
+     * @param speedup  the real time multiplier, 0 to replay as fast as the
+     *                 pipeline takes the fixes
+     * @param appCount the number of apps recording at the same time
+     */
+    public ReplayHarness(ReplayTrace trace, double speedup, int appCount) {
+        if (appCount < 1) {
+            throw new IllegalArgumentException("Invalid app count: " + appCount);
+        }
+        this.trace = trace;
+        this.appCount = appCount;
+        clock = new ReplayClock(speedup);
+        source = new ReplayLocationSource(trace, clock);
+        latencies = new long[trace.size() * appCount];
+    }
+
+    /**
+     * Installs the replay clock and location source. Call before the
+     * recording service is created.
+     */
+    public void prepare() {
+        clock.start(trace.getStartTime());
+        RecordingHooks.install(clock, source, observer);
+    }
+
+    /**
+     * Records the trace for each app, waits until the pipeline is idle, ends
+     * the tracks and removes the hooks. Measures the growth of the database
+     * of {@link MyTracksProvider}.
+     *
+     * @param service the recording service, created after {@link #prepare()}
+     * @param timeout the max real time of the replay in milliseconds
+     */
+    public ReplayReport run(ITrackRecordingService service, long timeout)
+            throws RemoteException, InterruptedException {
+        return run(service, timeout, MyTracksProvider.getDatabaseFile());
+    }
+
+    /**
+     * Records the trace for each app, waits until the pipeline is idle, ends
+     * the tracks and removes the hooks.
+     *
+     * @param service      the recording service, created after {@link #prepare()}
+     * @param timeout      the max real time of the replay in milliseconds
+     * @param databaseFile the database to measure the growth of, null not to
+     *                     measure it
+     */
+    public ReplayReport run(ITrackRecordingService service, long timeout, File databaseFile)
+            throws RemoteException, InterruptedException {
+        long databaseBytes = getDatabaseSize(databaseFile);
+        AllocationCounter allocationCounter = new AllocationCounter();
+        long deadline = System.currentTimeMillis() + timeout;
+        try {
+            allocationCounter.start();
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < appCount; i++) {
+                service.startNewTrackWithAppInfo(APP_ID_PREFIX + i, "Replay " + i);
+            }
+            source.replay();
+            if (!source.await(timeout)) {
+                Log.w(TAG, "Replay timed out after " + source.getEmittedCount() + " fixes");
+                source.cancel();
+            }
+            lastCommitNanos = System.nanoTime();
+            while (System.currentTimeMillis() < deadline
+                    && System.nanoTime() - lastCommitNanos < IDLE_TIME * 1000000L) {
+                Thread.sleep(50);
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+            for (int i = 0; i < appCount; i++) {
+                service.endCurrentTrackWithAppId(APP_ID_PREFIX + i);
+            }
+            long allocatedBytes = allocationCounter.stop();
+            if (databaseBytes != -1L) {
+                databaseBytes = getDatabaseSize(databaseFile) - databaseBytes;
+            }
+            ReplayReport report = new ReplayReport(appCount, source.getEmittedCount(), elapsedNanos, latencies,
+                    Math.min(latencyCount.get(), latencies.length), databaseBytes, allocatedBytes);
+            Log.i(TAG, report.toString());
+            return report;
+        } finally {
+            source.cancel();
+            RecordingHooks.clear();
+        }
+    }
+
+    /*
+     * The size of the database with its write ahead log and journal, -1 if
+     * missing.
+     */
+    private static long getDatabaseSize(File databaseFile) {
+        if (databaseFile == null || !databaseFile.exists()) {
+            return -1L;
+        }
+        String path = databaseFile.getPath();
+        return databaseFile.length() + new File(path + "-wal").length() + new File(path + "-journal").length();
+    }
+}
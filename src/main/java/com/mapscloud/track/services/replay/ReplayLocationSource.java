@@ -0,0 +1,142 @@
+package com.mapscloud.track.services.replay;
+
+import android.location.Location;
+import android.os.Build;
+import android.util.Log;
+
+import com.mapscloud.track.services.location.LocationSource;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link LocationSource} emitting the fixes of a {@link ReplayTrace} on its
+ * own thread, each one when the {@link ReplayClock} reaches its time.
+ * <p>
+ * The source is started by the harness, not by the recording service: the
+ * service only swaps the listener when it registers and unregisters, so its
+ * interval changes do not restart the replay. The real time each fix is
+ * emitted at is kept to measure the pipeline latency.
+ */
+public class ReplayLocationSource implements LocationSource {
+
+    private static final String TAG = ReplayLocationSource.class.getSimpleName();
+
+    private final ReplayTrace trace;
+    private final ReplayClock clock;
+    private final long[] emitNanos;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile Listener listener;
+    private volatile Thread thread;
+    private volatile int emittedCount;
+
+    public ReplayLocationSource(ReplayTrace trace, ReplayClock clock) {
+        this.trace = trace;
+        this.clock = clock;
+        emitNanos = new long[trace.size()];
+        Arrays.fill(emitNanos, -1L);
+    }
+
+    @Override
+    public String getName() {
+        return "replay";
+    }
+
+    /*
+     * Only sets the listener, see replay() to start emitting.
+     */
+    @Override
+    public void start(Listener listener, long interval, float minDistance) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void stop() {
+        listener = null;
+    }
+
+    /**
+     * Starts the clock and emitting the fixes. Fixes emitted while the service
+     * has no listener registered are lost, like with a real provider.
+     */
+    public synchronized void replay() {
+        if (thread != null) {
+            throw new IllegalStateException("Already replaying");
+        }
+        clock.start(trace.getStartTime());
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                emitAll();
+            }
+        }, "ReplayLocationSource");
+        thread.start();
+    }
+
+    /**
+     * Stops emitting.
+     */
+    public synchronized void cancel() {
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Waits until all the fixes are emitted or the replay is cancelled.
+     *
+     * @param timeout the timeout in milliseconds
+     * @return true if done
+     */
+    public boolean await(long timeout) throws InterruptedException {
+        return done.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the number of fixes emitted.
+     */
+    public int getEmittedCount() {
+        return emittedCount;
+    }
+
+    /**
+     * Gets the {@link System#nanoTime()} a fix was emitted at, or -1 if not
+     * emitted.
+     *
+     * @param time the fix time
+     */
+    public long getEmitNanos(long time) {
+        int index = trace.indexOf(time);
+        return index == -1 ? -1L : emitNanos[index];
+    }
+
+    private void emitAll() {
+        try {
+            for (int i = 0; i < trace.size(); i++) {
+                Location location = trace.get(i);
+                long delay = clock.getDelay(location.getTime());
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                if (clock.isStepped()) {
+                    clock.stepTo(location.getTime());
+                }
+                Listener current = listener;
+                if (current != null) {
+                    emitNanos[i] = System.nanoTime();
+                    Location copy = new Location(location);
+                    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                        copy.setElapsedRealtimeNanos(clock.elapsedRealtimeNanos());
+                    }
+                    current.onLocationChanged(this, copy);
+                }
+                emittedCount = i + 1;
+            }
+        } catch (InterruptedException e) {
+            Log.i(TAG, "Replay cancelled after " + emittedCount + " fixes");
+        } finally {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.mapscloud.track.services.replay;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The results of a replay. Latencies are from a fix leaving the
+ * {@link ReplayLocationSource} to its track point being committed, once per
+ * recording app.
+ */
+public class ReplayReport {
+
+    public final int appCount;
+    public final int emittedCount;
+    public final int committedCount;
+    public final long elapsedNanos;
+    public final long latencyP50Nanos;
+    public final long latencyP90Nanos;
+    public final long latencyP99Nanos;
+    public final long latencyMaxNanos;
+
+    /**
+     * The growth of the database files, -1 if unknown.
+     */
+    public final long databaseBytes;
+
+    /**
+     * The bytes allocated during the replay, -1 if unknown.
+     */
+    public final long allocatedBytes;
+
+    ReplayReport(int appCount, int emittedCount, long elapsedNanos, long[] latencies, int latencyCount,
+                 long databaseBytes, long allocatedBytes) {
+        this.appCount = appCount;
+        this.emittedCount = emittedCount;
+        this.committedCount = latencyCount;
+        this.elapsedNanos = elapsedNanos;
+        Arrays.sort(latencies, 0, latencyCount);
+        latencyP50Nanos = percentile(latencies, latencyCount, 50);
+        latencyP90Nanos = percentile(latencies, latencyCount, 90);
+        latencyP99Nanos = percentile(latencies, latencyCount, 99);
+        latencyMaxNanos = latencyCount == 0 ? 0L : latencies[latencyCount - 1];
+        this.databaseBytes = databaseBytes;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    /**
+     * Gets the committed track points per second, all apps together.
+     */
+    public double getPointsPerSecond() {
+        return elapsedNanos == 0 ? 0 : committedCount * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "apps=%d emitted=%d committed=%d points/s=%.1f latency p50=%.2fms p90=%.2fms p99=%.2fms "
+                        + "max=%.2fms db=%dB alloc=%dB",
+                appCount, emittedCount, committedCount, getPointsPerSecond(), latencyP50Nanos / 1e6,
+                latencyP90Nanos / 1e6, latencyP99Nanos / 1e6, latencyMaxNanos / 1e6, databaseBytes,
+                allocatedBytes);
+    }
+
+    // Nearest rank percentile of the sorted values
+    private static long percentile(long[] sorted, int count, int percent) {
+        if (count == 0) {
+            return 0L;
+        }
+        int rank = (int) Math.ceil(percent / 100.0 * count);
+        return sorted[Math.max(rank, 1) - 1];
+    }
+}
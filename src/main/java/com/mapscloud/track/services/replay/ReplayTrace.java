@@ -0,0 +1,242 @@
+package com.mapscloud.track.services.replay;
+
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Xml;
+
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils.LocationIterator;
+import com.mapscloud.track.services.utils.LocationUtils;
+import com.mapscloud.track.services.utils.StringUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An immutable sequence of fixes to replay, ordered by strictly increasing
+ * time. Pause and resume separators and invalid fixes are left out.
+ * <p>
+ * Fixes without an accuracy get {@link #DEFAULT_ACCURACY} and all fixes are
+ * from the gps provider, so the {@link com.mapscloud.track.services.location.LocationArbiter}
+ * delivers them at once instead of waiting for its window to close.
+ */
+public class ReplayTrace {
+
+    public static final float DEFAULT_ACCURACY = 5f;
+
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final Location[] locations;
+    private final long[] times;
+
+    private ReplayTrace(List<Location> list) {
+        locations = list.toArray(new Location[list.size()]);
+        times = new long[locations.length];
+        for (int i = 0; i < locations.length; i++) {
+            times[i] = locations[i].getTime();
+        }
+    }
+
+    /**
+     * Creates a trace from the track points of a recorded track.
+     *
+     * @param myTracksProviderUtils the provider utils
+     * @param trackId               the track id
+     */
+    public static ReplayTrace fromTrack(MyTracksProviderUtils myTracksProviderUtils, long trackId) {
+        List<Location> list = new ArrayList<Location>();
+        LocationIterator iterator = null;
+        try {
+            iterator = myTracksProviderUtils.getTrackPointLocationIterator(trackId, -1L, false,
+                    MyTracksProviderUtils.DEFAULT_LOCATION_FACTORY);
+            while (iterator.hasNext()) {
+                add(list, iterator.next());
+            }
+        } finally {
+            if (iterator != null) {
+                iterator.close();
+            }
+        }
+        return new ReplayTrace(list);
+    }
+
+    /**
+     * Creates a trace from the trkpt and rtept of a GPX file. Points without a
+     * time are skipped. Closes the input stream.
+     *
+     * @param inputStream the input stream
+     */
+    public static ReplayTrace fromGpx(InputStream inputStream) throws IOException {
+        List<Location> list = new ArrayList<Location>();
+        try {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new BufferedInputStream(inputStream, INPUT_BUFFER_SIZE), null);
+            Location point = null;
+            for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+                if (event == XmlPullParser.START_TAG) {
+                    String name = localName(parser.getName());
+                    if (name.equals("trkpt") || name.equals("rtept")) {
+                        point = new Location(LocationManager.GPS_PROVIDER);
+                        point.setLatitude(parseDouble(parser.getAttributeValue(null, "lat")));
+                        point.setLongitude(parseDouble(parser.getAttributeValue(null, "lon")));
+                    } else if (point != null && name.equals("ele")) {
+                        double elevation = parseDouble(parser.nextText());
+                        if (!Double.isNaN(elevation)) {
+                            point.setAltitude(elevation);
+                        }
+                    } else if (point != null && name.equals("time")) {
+                        point.setTime(StringUtils.getTime(parser.nextText().trim()));
+                    }
+                } else if (event == XmlPullParser.END_TAG && point != null) {
+                    String name = localName(parser.getName());
+                    if (name.equals("trkpt") || name.equals("rtept")) {
+                        if (point.getTime() > 0L) {
+                            add(list, point);
+                        }
+                        point = null;
+                    }
+                }
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Unable to parse GPX: " + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unable to parse GPX: " + e.getMessage());
+        } finally {
+            inputStream.close();
+        }
+        return new ReplayTrace(list);
+    }
+
+    /**
+     * Creates a synthetic trace, a random walk at walking to running speed
+     * with a few stops, so the dwell and motion code paths are exercised too.
+     * The same seed gives the same trace.
+     *
+     * @param startTime the first fix time
+     * @param count     the number of fixes
+     * @param interval  the interval between fixes in milliseconds
+     * @param seed      the random seed
+     */
+    public static ReplayTrace synthetic(long startTime, int count, long interval, long seed) {
+        if (count < 0 || interval <= 0) {
+            throw new IllegalArgumentException("Invalid count or interval: " + count + ", " + interval);
+        }
+        Random random = new Random(seed);
+        List<Location> list = new ArrayList<Location>(count);
+        double latitude = 39.9;
+        double longitude = 116.4;
+        double bearing = random.nextDouble() * 360;
+        double altitude = 50;
+        int stopRemaining = 0;
+        for (int i = 0; i < count; i++) {
+            double speed;
+            if (stopRemaining > 0) {
+                stopRemaining--;
+                speed = 0;
+            } else {
+                // 平均每 300 个点停一次，每次停 1 到 3 分钟
+                if (random.nextInt(300) == 0) {
+                    stopRemaining = (int) ((60 + random.nextInt(120)) * 1000L / interval);
+                }
+                speed = 1.2 + random.nextDouble() * 2.0;
+                bearing = (bearing + random.nextGaussian() * 10 + 360) % 360;
+            }
+            double distance = speed * interval / 1000.0;
+            latitude += distance * Math.cos(Math.toRadians(bearing)) / 111320.0;
+            longitude += distance * Math.sin(Math.toRadians(bearing))
+                    / (111320.0 * Math.cos(Math.toRadians(latitude)));
+            altitude += random.nextGaussian() * 0.3;
+
+            Location location = new Location(LocationManager.GPS_PROVIDER);
+            // Noise of a few meters, like a real fix
+            location.setLatitude(latitude + random.nextGaussian() * 2 / 111320.0);
+            location.setLongitude(longitude + random.nextGaussian() * 2 / 111320.0);
+            location.setAltitude(altitude);
+            location.setSpeed((float) speed);
+            location.setBearing((float) bearing);
+            location.setAccuracy(DEFAULT_ACCURACY);
+            location.setTime(startTime + i * interval);
+            list.add(location);
+        }
+        return new ReplayTrace(list);
+    }
+
+    /**
+     * Gets the number of fixes.
+     */
+    public int size() {
+        return locations.length;
+    }
+
+    /**
+     * Gets a fix. Do not modify it, the source emits copies.
+     */
+    public Location get(int index) {
+        return locations[index];
+    }
+
+    /**
+     * Gets the first fix time, 0 if empty.
+     */
+    public long getStartTime() {
+        return times.length == 0 ? 0L : times[0];
+    }
+
+    /**
+     * Gets the index of the fix with a time, or -1.
+     */
+    public int indexOf(long time) {
+        int low = 0;
+        int high = times.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else if (times[mid] > time) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static void add(List<Location> list, Location location) {
+        if (!LocationUtils.isValidLocation(location)) {
+            return;
+        }
+        // Times must be increasing, the recording service drops the others anyway
+        if (!list.isEmpty() && location.getTime() <= list.get(list.size() - 1).getTime()) {
+            return;
+        }
+        Location copy = new Location(location);
+        copy.setProvider(LocationManager.GPS_PROVIDER);
+        if (!copy.hasAccuracy()) {
+            copy.setAccuracy(DEFAULT_ACCURACY);
+        }
+        list.add(copy);
+    }
+
+    private static String localName(String name) {
+        int colon = name.indexOf(':');
+        return colon == -1 ? name : name.substring(colon + 1);
+    }
+
+    private static double parseDouble(String value) {
+        if (value == null || value.trim().length() == 0) {
+            return Double.NaN;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+}
@@ -0,0 +1,603 @@
+package com.mapscloud.track.services.sync;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.mapscloud.track.services.basic.BasicRecordBean;
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.content.TrackPointsColumns;
+import com.mapscloud.track.services.content.TracksColumns;
+import com.mapscloud.track.services.content.TripStatistics;
+import com.mapscloud.track.services.metrics.Counter;
+import com.mapscloud.track.services.metrics.MetricsRegistry;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.tracks.WaypointsColumns;
+import com.mapscloud.track.services.utils.CoalescingScheduler;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Uploads the tracks incrementally to a sync server.
+ * <p>
+ * Each track keeps watermarks in the tracks table:
+ * {@link TracksColumns#SYNC_POINT_ID}, the largest track point id the server
+ * acknowledged, {@link TracksColumns#SYNC_MODIFIED_TIME}, the modified time of
+ * the last uploaded metadata, and {@link TracksColumns#SYNC_WAYPOINT_TIME},
+ * the largest uploaded waypoint modified time. A sync only uploads the points
+ * after the point watermark, in gzipped chunks of {@link #CHUNK_POINTS}
+ * points, and the metadata and waypoints modified since their watermark.
+ * <p>
+ * The watermark is saved after each acknowledged chunk, so an interrupted
+ * sync resumes at the first chunk not acknowledged. The requests, with
+ * gzipped JSON bodies:
+ * <ul>
+ * <li>POST {endpoint}/tracks, the metadata of a new track, answers
+ * {"id": server id}, saved in {@link TracksColumns#COLUMN_SERVERDBID}</li>
+ * <li>POST {endpoint}/tracks/{id}/points, {"from": watermark, "points":
+ * [[id, time, latE6, lonE6, altitude, accuracy, speed, bearing, dwell end
+ * time, dwell count], ...]}, answers {"watermark": largest point id stored}.
+ * The server stores points by id, so a chunk sent twice is harmless</li>
+ * <li>POST {endpoint}/tracks/{id}/waypoints, {"waypoints": [...]}</li>
+ * <li>PUT {endpoint}/tracks/{id}, the metadata</li>
+ * </ul>
+ * Syncs run one at a time on a worker thread. A failed sync is retried with
+ * an exponential backoff. A track is not synced while recording, see
+ * {@link #setRecording(long, boolean)}: the dwell of its last point is still
+ * updated in place, after the point watermark. Only https:// endpoints are
+ * accepted.
+ */
+public class TrackSyncEngine {
+
+    private static final String TAG = TrackSyncEngine.class.getSimpleName();
+
+    static final int CHUNK_POINTS = 1000;
+
+    private static final long MIN_RETRY_DELAY = 60 * 1000L;
+    private static final long MAX_RETRY_DELAY = 60 * 60 * 1000L;
+    private static final long TIMEOUT = 30 * 1000L;
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Counter POINTS = MetricsRegistry.get().counter("sync.points");
+    private static final Counter BYTES = MetricsRegistry.get().counter("sync.bytes");
+    private static final Counter CHUNKS = MetricsRegistry.get().counter("sync.chunks");
+    private static final Counter FAILURES = MetricsRegistry.get().counter("sync.failures");
+
+    private static final String SECURE_SCHEME = "https://";
+
+    private static OkHttpClient sharedClient;
+
+    private final Context context;
+    private final OkHttpClient client;
+    private final MyTracksProviderUtils myTracksProviderUtils;
+    private final CoalescingScheduler scheduler;
+    private final ExecutorService executor;
+
+    private volatile String endpoint;
+    // 失败轨迹的重试任务和下次重试间隔
+    private final Map<Long, CoalescingScheduler.ScheduledTask> retryTasks
+            = new HashMap<Long, CoalescingScheduler.ScheduledTask>();
+    private final Map<Long, Long> retryDelays = new HashMap<Long, Long>();
+    // 正在记录（含暂停）的轨迹，结束后再同步
+    private final Set<Long> recordingTrackIds = new HashSet<Long>();
+
+    /**
+     * Constructor.
+     *
+     * @param context               the context
+     * @param myTracksProviderUtils the provider utils
+     * @param scheduler             the scheduler of the retries
+     */
+    public TrackSyncEngine(Context context, MyTracksProviderUtils myTracksProviderUtils,
+                           CoalescingScheduler scheduler) {
+        this(context, myTracksProviderUtils, scheduler, getClient());
+    }
+
+    TrackSyncEngine(Context context, MyTracksProviderUtils myTracksProviderUtils,
+                    CoalescingScheduler scheduler, OkHttpClient client) {
+        this.context = context;
+        this.client = client;
+        this.myTracksProviderUtils = myTracksProviderUtils;
+        this.scheduler = scheduler;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "TrackSync");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sets the endpoint. Only https:// is accepted, the tracks are not sent
+     * in clear: any other endpoint disables the sync.
+     *
+     * @param endpoint the https:// base url, empty to disable the sync
+     */
+    public void setEndpoint(String endpoint) {
+        if (!TextUtils.isEmpty(endpoint)
+                && !endpoint.regionMatches(true, 0, SECURE_SCHEME, 0, SECURE_SCHEME.length())) {
+            Log.e(TAG, "Sync disabled, not a https:// endpoint: " + endpoint);
+            endpoint = null;
+        }
+        this.endpoint = endpoint != null && endpoint.endsWith("/")
+                ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+    }
+
+    /**
+     * Sets whether a track is recording, paused included. A recording track
+     * is synced once stopped.
+     *
+     * @param trackId   the track id
+     * @param recording true if recording
+     */
+    public void setRecording(long trackId, boolean recording) {
+        synchronized (recordingTrackIds) {
+            if (recording) {
+                recordingTrackIds.add(trackId);
+            } else {
+                recordingTrackIds.remove(trackId);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return !TextUtils.isEmpty(endpoint);
+    }
+
+    /**
+     * Requests a sync of a track, on the worker thread.
+     *
+     * @param trackId the track id
+     */
+    public void requestSync(final long trackId) {
+        if (!isEnabled() || executor.isShutdown()) {
+            return;
+        }
+        synchronized (retryTasks) {
+            scheduler.cancel(retryTasks.remove(trackId));
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (syncTrack(trackId)) {
+                    synchronized (retryTasks) {
+                        retryDelays.remove(trackId);
+                    }
+                } else {
+                    scheduleRetry(trackId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Requests a sync of all the tracks with changes not uploaded yet.
+     */
+    public void requestSyncAll() {
+        if (!isEnabled() || executor.isShutdown()) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (long trackId : getChangedTrackIds()) {
+                    requestSync(trackId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the syncs. The queued syncs are dropped, a sync in progress is
+     * interrupted and resumes from its watermark next time.
+     */
+    public void shutdown() {
+        synchronized (retryTasks) {
+            for (CoalescingScheduler.ScheduledTask task : retryTasks.values()) {
+                scheduler.cancel(task);
+            }
+            retryTasks.clear();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Syncs a track, blocking.
+     *
+     * @param trackId the track id
+     * @return true if the track is fully uploaded, or recording and left for
+     * the sync at its end
+     */
+    public boolean syncTrack(long trackId) {
+        String base = endpoint;
+        if (TextUtils.isEmpty(base)) {
+            return false;
+        }
+        synchronized (recordingTrackIds) {
+            if (recordingTrackIds.contains(trackId)) {
+                return true;
+            }
+        }
+        Track track = myTracksProviderUtils.getTrack(trackId);
+        long[] watermarks = getWatermarks(trackId);
+        if (track == null || watermarks == null) {
+            return true;
+        }
+        // 先读修改时间，同步期间的修改留给下次同步
+        long modifiedTime = track.modifiedTime;
+        setUploadState(trackId, BasicRecordBean.US_UPLOADING);
+        try {
+            long serverId = track.serverDbId;
+            if (serverId <= 0) {
+                JSONObject response = post(base + "/tracks", getMetadata(track).toString());
+                serverId = response.getLong("id");
+                ContentValues values = new ContentValues();
+                values.put(TracksColumns.COLUMN_SERVERDBID, serverId);
+                values.put(TracksColumns.SYNC_MODIFIED_TIME, modifiedTime);
+                updateTrackColumns(trackId, values);
+                watermarks[1] = modifiedTime;
+            }
+            String trackUrl = base + "/tracks/" + serverId;
+            uploadPoints(trackId, trackUrl, watermarks[0]);
+            uploadWaypoints(trackId, trackUrl, watermarks[2]);
+            if (modifiedTime > watermarks[1]) {
+                put(trackUrl, getMetadata(track).toString());
+                ContentValues values = new ContentValues();
+                values.put(TracksColumns.SYNC_MODIFIED_TIME, modifiedTime);
+                updateTrackColumns(trackId, values);
+            }
+            setUploadState(trackId, BasicRecordBean.US_COMPLETED);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to sync track " + trackId, e);
+        } catch (JSONException e) {
+            Log.w(TAG, "Invalid sync response for track " + trackId, e);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to read track " + trackId, e);
+        }
+        FAILURES.increment();
+        setUploadState(trackId, BasicRecordBean.US_PENDING);
+        return false;
+    }
+
+    /*
+     * Uploads the points after the watermark, one chunk at a time.
+     */
+    private void uploadPoints(long trackId, String trackUrl, long watermark) throws IOException, JSONException {
+        while (true) {
+            StringBuilder body = new StringBuilder(CHUNK_POINTS * 64);
+            body.append("{\"from\":").append(watermark).append(",\"points\":[");
+            int count = 0;
+            long lastId = watermark;
+            Cursor cursor = myTracksProviderUtils.getTrackPointCursor(trackId, watermark + 1, CHUNK_POINTS, false);
+            if (cursor == null) {
+                return;
+            }
+            try {
+                int idIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns._ID);
+                int timeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.TIME);
+                int latitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.LATITUDE);
+                int longitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.LONGITUDE);
+                int altitudeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.ALTITUDE);
+                int accuracyIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.ACCURACY);
+                int speedIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.SPEED);
+                int bearingIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.BEARING);
+                int dwellEndTimeIndex = cursor.getColumnIndex(TrackPointsColumns.DWELL_END_TIME);
+                int dwellCountIndex = cursor.getColumnIndex(TrackPointsColumns.DWELL_COUNT);
+                while (cursor.moveToNext()) {
+                    if (count > 0) {
+                        body.append(',');
+                    }
+                    lastId = cursor.getLong(idIndex);
+                    body.append('[').append(lastId);
+                    appendLong(body, cursor, timeIndex);
+                    appendLong(body, cursor, latitudeIndex);
+                    appendLong(body, cursor, longitudeIndex);
+                    appendDouble(body, cursor, altitudeIndex);
+                    appendDouble(body, cursor, accuracyIndex);
+                    appendDouble(body, cursor, speedIndex);
+                    appendDouble(body, cursor, bearingIndex);
+                    appendLong(body, cursor, dwellEndTimeIndex);
+                    appendLong(body, cursor, dwellCountIndex);
+                    body.append(']');
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (count == 0) {
+                return;
+            }
+            body.append("]}");
+
+            JSONObject response = post(trackUrl + "/points", body.toString());
+            long acknowledged = response.getLong("watermark");
+            if (acknowledged <= watermark) {
+                throw new IOException("Points " + (watermark + 1) + "-" + lastId + " not acknowledged");
+            }
+            watermark = acknowledged;
+            ContentValues values = new ContentValues();
+            values.put(TracksColumns.SYNC_POINT_ID, watermark);
+            updateTrackColumns(trackId, values);
+            POINTS.add(count);
+            CHUNKS.increment();
+            if (count < CHUNK_POINTS) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * Uploads the waypoints modified after the watermark.
+     */
+    private void uploadWaypoints(long trackId, String trackUrl, long watermark) throws IOException, JSONException {
+        String selection = WaypointsColumns.TRACKID + "=? AND IFNULL(" + WaypointsColumns.MODIFIEDTIME + ",0)>?";
+        String[] selectionArgs = new String[]{Long.toString(trackId), Long.toString(watermark)};
+        Cursor cursor = myTracksProviderUtils.getWaypointCursor(selection, selectionArgs,
+                WaypointsColumns.MODIFIEDTIME, -1);
+        if (cursor == null) {
+            return;
+        }
+        StringBuilder body = new StringBuilder("{\"waypoints\":[");
+        long lastModifiedTime = watermark;
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            String[] columns = new String[]{WaypointsColumns._ID, WaypointsColumns.NAME,
+                    WaypointsColumns.DESCRIPTION, WaypointsColumns.CATEGORY, WaypointsColumns.ICON,
+                    WaypointsColumns.TYPE, WaypointsColumns.STARTID, WaypointsColumns.STOPID,
+                    WaypointsColumns.LATITUDE, WaypointsColumns.LONGITUDE, WaypointsColumns.TIME,
+                    WaypointsColumns.ALTITUDE, WaypointsColumns.MODIFIEDTIME};
+            do {
+                JSONObject waypoint = new JSONObject();
+                for (String column : columns) {
+                    int index = cursor.getColumnIndex(column);
+                    if (index < 0 || cursor.isNull(index)) {
+                        continue;
+                    }
+                    switch (cursor.getType(index)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            waypoint.put(column, cursor.getLong(index));
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            waypoint.put(column, cursor.getDouble(index));
+                            break;
+                        default:
+                            waypoint.put(column, cursor.getString(index));
+                            break;
+                    }
+                }
+                if (!cursor.isFirst()) {
+                    body.append(',');
+                }
+                body.append(waypoint.toString());
+                lastModifiedTime = Math.max(lastModifiedTime,
+                        waypoint.optLong(WaypointsColumns.MODIFIEDTIME, 0L));
+            } while (cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+        body.append("]}");
+        post(trackUrl + "/waypoints", body.toString());
+        ContentValues values = new ContentValues();
+        values.put(TracksColumns.SYNC_WAYPOINT_TIME, lastModifiedTime);
+        updateTrackColumns(trackId, values);
+    }
+
+    private static JSONObject getMetadata(Track track) throws JSONException {
+        TripStatistics tripStatistics = track.getTripStatistics();
+        JSONObject metadata = new JSONObject();
+        metadata.put("localId", track.id);
+        metadata.put("appId", track.appId);
+        metadata.put("appName", track.appName);
+        metadata.put("name", track.name);
+        metadata.put("description", track.description);
+        metadata.put("category", track.category);
+        metadata.put("icon", track.icon);
+        metadata.put("trackType", track.trackType);
+        metadata.put("numPoints", track.numberOfPoints);
+        metadata.put("startTime", tripStatistics.getStartTime());
+        metadata.put("stopTime", tripStatistics.getStopTime());
+        metadata.put("totalDistance", tripStatistics.getTotalDistance());
+        metadata.put("totalTime", tripStatistics.getTotalTime());
+        metadata.put("movingTime", tripStatistics.getMovingTime());
+        metadata.put("modifiedTime", track.modifiedTime);
+        return metadata;
+    }
+
+    /*
+     * Gets the point, metadata and waypoint watermarks of a track, null if
+     * the track doesn't exist.
+     */
+    private long[] getWatermarks(long trackId) {
+        Cursor cursor = myTracksProviderUtils.getTrackCursor(TracksColumns._ID + "=?",
+                new String[]{Long.toString(trackId)}, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new long[]{
+                    getLong(cursor, TracksColumns.SYNC_POINT_ID),
+                    getLong(cursor, TracksColumns.SYNC_MODIFIED_TIME),
+                    getLong(cursor, TracksColumns.SYNC_WAYPOINT_TIME)};
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<Long> getChangedTrackIds() {
+        List<Long> trackIds = new ArrayList<Long>();
+        String selection = "IFNULL(" + TracksColumns.MODIFIEDTIME + ",0)>IFNULL(" + TracksColumns.SYNC_MODIFIED_TIME
+                + ",-1) OR IFNULL(" + TracksColumns.SYNC_POINT_ID + ",-1)<" + TracksColumns.STOPID;
+        Cursor cursor = null;
+        try {
+            cursor = myTracksProviderUtils.getTrackCursor(selection, null, TracksColumns._ID);
+            if (cursor != null) {
+                int idIndex = cursor.getColumnIndexOrThrow(TracksColumns._ID);
+                while (cursor.moveToNext()) {
+                    trackIds.add(cursor.getLong(idIndex));
+                }
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Unable to query the changed tracks", e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return trackIds;
+    }
+
+    /**
+     * Gets the delay of the scheduled retry of a track, 0 if none.
+     *
+     * @param trackId the track id
+     */
+    @VisibleForTesting
+    long getRetryDelay(long trackId) {
+        synchronized (retryTasks) {
+            Long delay = retryDelays.get(trackId);
+            return delay != null ? delay : 0L;
+        }
+    }
+
+    private void scheduleRetry(final long trackId) {
+        synchronized (retryTasks) {
+            if (executor.isShutdown()) {
+                return;
+            }
+            Long delay = retryDelays.get(trackId);
+            delay = delay == null ? MIN_RETRY_DELAY : Math.min(delay * 2, MAX_RETRY_DELAY);
+            retryDelays.put(trackId, delay);
+            retryTasks.put(trackId, scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    requestSync(trackId);
+                }
+            }, delay));
+        }
+    }
+
+    private void setUploadState(long trackId, int uploadState) {
+        ContentValues values = new ContentValues();
+        values.put(TracksColumns.COLUMN_UPLOAD_STATE, uploadState);
+        updateTrackColumns(trackId, values);
+    }
+
+    /*
+     * Updates sync columns, leaving the modified time unchanged.
+     */
+    private void updateTrackColumns(long trackId, ContentValues values) {
+        myTracksProviderUtils.updateUploadInfo(context, values, TracksColumns._ID + "=?",
+                new String[]{Long.toString(trackId)});
+    }
+
+    private JSONObject post(String url, String json) throws IOException, JSONException {
+        return execute(new Request.Builder().url(url).post(gzip(json)));
+    }
+
+    private JSONObject put(String url, String json) throws IOException, JSONException {
+        return execute(new Request.Builder().url(url).put(gzip(json)));
+    }
+
+    private JSONObject execute(Request.Builder builder) throws IOException, JSONException {
+        Request request;
+        try {
+            request = builder.header("Content-Encoding", "gzip").build();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid sync endpoint " + endpoint, e);
+        }
+        Response response = client.newCall(request).execute();
+        try {
+            if (!response.isSuccessful()) {
+                throw new IOException("Sync request " + request.url() + " failed: " + response.code());
+            }
+            String body = response.body() != null ? response.body().string() : "";
+            return body.isEmpty() ? new JSONObject() : new JSONObject(body);
+        } finally {
+            response.close();
+        }
+    }
+
+    private static RequestBody gzip(String json) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length() / 4 + 64);
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        try {
+            out.write(json.getBytes(UTF_8));
+        } finally {
+            out.close();
+        }
+        BYTES.add(bytes.size());
+        return RequestBody.create(JSON, bytes.toByteArray());
+    }
+
+    private static void appendLong(StringBuilder builder, Cursor cursor, int index) {
+        builder.append(',');
+        if (index < 0 || cursor.isNull(index)) {
+            builder.append("null");
+        } else {
+            builder.append(cursor.getLong(index));
+        }
+    }
+
+    private static void appendDouble(StringBuilder builder, Cursor cursor, int index) {
+        builder.append(',');
+        if (index < 0 || cursor.isNull(index)) {
+            builder.append("null");
+        } else {
+            // float 列，按 float 输出避免多余的位数
+            builder.append(cursor.getFloat(index));
+        }
+    }
+
+    private static long getLong(Cursor cursor, String column) {
+        int index = cursor.getColumnIndex(column);
+        return index < 0 || cursor.isNull(index) ? -1L : cursor.getLong(index);
+    }
+
+    private static synchronized OkHttpClient getClient() {
+        if (sharedClient == null) {
+            sharedClient = new OkHttpClient.Builder()
+                    .connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                    .readTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                    .writeTimeout(TIMEOUT, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        return sharedClient;
+    }
+}
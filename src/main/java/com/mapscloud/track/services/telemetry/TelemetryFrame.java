@@ -0,0 +1,211 @@
+package com.mapscloud.track.services.telemetry;
+
+import android.location.Location;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * A batch of the points of one track, encoded into a compact binary frame
+ * for the telemetry uplink. Reused from batch to batch.
+ * <p>
+ * A frame is a 3 byte header, the magic {@link #MAGIC}, the version and the
+ * flags, then a varint sequence number and the body, zlib deflated when the
+ * flags have {@link #FLAG_DEFLATED}. The body is the app id (varint length
+ * then UTF-8), the track id and the point count as varints, then per point a
+ * byte of field bits and zigzag varints: the time in milliseconds, the
+ * latitude and longitude in E6, each as a delta from the previous point,
+ * then the altitude in decimeters, the speed in cm/s, the bearing in tenths
+ * of a degree and the accuracy in decimeters when their bit is set. Not
+ * thread safe.
+ */
+class TelemetryFrame {
+
+    static final byte MAGIC = 0x54;
+    static final byte VERSION = 1;
+    static final int FLAG_DEFLATED = 1;
+
+    static final int HAS_ALTITUDE = 1;
+    static final int HAS_SPEED = 2;
+    static final int HAS_BEARING = 4;
+    static final int HAS_ACCURACY = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Worst case bytes of a point: field bits, 3 deltas of 10 bytes, 4 fields of 5 bytes
+    private static final int MAX_POINT_SIZE = 1 + 3 * 10 + 4 * 5;
+
+    private final String appId;
+    private final long trackId;
+
+    private final long[] times;
+    private final int[] latitudes;
+    private final int[] longitudes;
+    private final int[] altitudes;
+    private final int[] speeds;
+    private final int[] bearings;
+    private final int[] accuracies;
+    private final byte[] fields;
+    private int size;
+
+    // android.os.SystemClock.elapsedRealtime() of the first point
+    private long firstPointTime;
+
+    // Encoding buffers, reused
+    private byte[] body = new byte[256];
+    private byte[] output = new byte[256];
+
+    /**
+     * Constructor.
+     *
+     * @param appId    the app id of the track, can be null
+     * @param trackId  the track id
+     * @param capacity the maximum number of points
+     */
+    TelemetryFrame(String appId, long trackId, int capacity) {
+        this.appId = appId;
+        this.trackId = trackId;
+        times = new long[capacity];
+        latitudes = new int[capacity];
+        longitudes = new int[capacity];
+        altitudes = new int[capacity];
+        speeds = new int[capacity];
+        bearings = new int[capacity];
+        accuracies = new int[capacity];
+        fields = new byte[capacity];
+    }
+
+    /**
+     * Adds a point.
+     *
+     * @param location the point
+     * @param now      the {@link android.os.SystemClock#elapsedRealtime()}
+     * @return false if full
+     */
+    boolean add(Location location, long now) {
+        if (size == times.length) {
+            return false;
+        }
+        if (size == 0) {
+            firstPointTime = now;
+        }
+        times[size] = location.getTime();
+        latitudes[size] = (int) Math.round(location.getLatitude() * 1E6);
+        longitudes[size] = (int) Math.round(location.getLongitude() * 1E6);
+        int bits = 0;
+        if (location.hasAltitude()) {
+            bits |= HAS_ALTITUDE;
+            altitudes[size] = (int) Math.round(location.getAltitude() * 10);
+        }
+        if (location.hasSpeed()) {
+            bits |= HAS_SPEED;
+            speeds[size] = Math.round(location.getSpeed() * 100);
+        }
+        if (location.hasBearing()) {
+            bits |= HAS_BEARING;
+            bearings[size] = Math.round(location.getBearing() * 10);
+        }
+        if (location.hasAccuracy()) {
+            bits |= HAS_ACCURACY;
+            accuracies[size] = Math.round(location.getAccuracy() * 10);
+        }
+        fields[size] = (byte) bits;
+        size++;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == times.length;
+    }
+
+    long getFirstPointTime() {
+        return firstPointTime;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    /**
+     * Encodes the points.
+     *
+     * @param sequence the frame sequence number
+     * @param deflater the deflater, null to not deflate
+     */
+    byte[] encode(long sequence, Deflater deflater) {
+        byte[] appIdBytes = appId != null ? appId.getBytes(UTF_8) : new byte[0];
+        body = ensureCapacity(body, 3 * 10 + appIdBytes.length + size * MAX_POINT_SIZE);
+        int position = writeVarint(body, 0, appIdBytes.length);
+        System.arraycopy(appIdBytes, 0, body, position, appIdBytes.length);
+        position += appIdBytes.length;
+        position = writeVarint(body, position, trackId);
+        position = writeVarint(body, position, size);
+        long lastTime = 0L;
+        int lastLatitude = 0;
+        int lastLongitude = 0;
+        for (int i = 0; i < size; i++) {
+            int bits = fields[i];
+            body[position++] = (byte) bits;
+            position = writeVarint(body, position, zigzag(times[i] - lastTime));
+            position = writeVarint(body, position, zigzag((long) latitudes[i] - lastLatitude));
+            position = writeVarint(body, position, zigzag((long) longitudes[i] - lastLongitude));
+            lastTime = times[i];
+            lastLatitude = latitudes[i];
+            lastLongitude = longitudes[i];
+            if ((bits & HAS_ALTITUDE) != 0) {
+                position = writeVarint(body, position, zigzag(altitudes[i]));
+            }
+            if ((bits & HAS_SPEED) != 0) {
+                position = writeVarint(body, position, zigzag(speeds[i]));
+            }
+            if ((bits & HAS_BEARING) != 0) {
+                position = writeVarint(body, position, zigzag(bearings[i]));
+            }
+            if ((bits & HAS_ACCURACY) != 0) {
+                position = writeVarint(body, position, zigzag(accuracies[i]));
+            }
+        }
+
+        output = ensureCapacity(output, 3 + 10 + position);
+        output[0] = MAGIC;
+        output[1] = VERSION;
+        output[2] = (byte) (deflater != null ? FLAG_DEFLATED : 0);
+        int length = writeVarint(output, 3, sequence);
+        if (deflater == null) {
+            System.arraycopy(body, 0, output, length, position);
+            return Arrays.copyOf(output, length + position);
+        }
+        deflater.reset();
+        deflater.setInput(body, 0, position);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (length == output.length) {
+                output = Arrays.copyOf(output, output.length * 2);
+            }
+            length += deflater.deflate(output, length, output.length - length);
+        }
+        return Arrays.copyOf(output, length);
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int capacity) {
+        return buffer.length >= capacity ? buffer : new byte[Math.max(capacity, buffer.length * 2)];
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+}
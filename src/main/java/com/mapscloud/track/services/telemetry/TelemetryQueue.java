@@ -0,0 +1,205 @@
+package com.mapscloud.track.services.telemetry;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The offline queue of the telemetry uplink, the frames not sent yet kept
+ * on disk, one file per frame, oldest first.
+ * <p>
+ * Bounded in bytes, the oldest frames are dropped when full. A frame is
+ * written to a temporary file then renamed, so a crash never leaves a
+ * partial frame. The other files of the directory are left alone. Thread
+ * safe, the files are written and synced outside the lock, so
+ * {@link #isEmpty()}, {@link #size()} and the counters never wait for the
+ * disk.
+ */
+class TelemetryQueue {
+
+    private static final String TAG = TelemetryQueue.class.getSimpleName();
+
+    private static final String SUFFIX = ".frame";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxBytes;
+
+    // 文件序号 -> 文件大小
+    private final TreeMap<Long, Long> frames = new TreeMap<Long, Long>();
+    // Written under the lock, read without it
+    private volatile int count;
+    private volatile long bytes;
+    private volatile long droppedCount;
+    private long nextId;
+
+    /**
+     * Constructor. Loads the frames left by a previous run.
+     *
+     * @param directory the directory
+     * @param maxBytes  the maximum total size of the frames
+     */
+    TelemetryQueue(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create " + directory);
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // 写了一半的文件
+                file.delete();
+                continue;
+            }
+            if (!name.endsWith(SUFFIX)) {
+                continue;
+            }
+            try {
+                long id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                frames.put(id, file.length());
+                bytes += file.length();
+                nextId = Math.max(nextId, id + 1);
+            } catch (NumberFormatException e) {
+                file.delete();
+            }
+        }
+        count = frames.size();
+        if (!frames.isEmpty()) {
+            Log.i(TAG, frames.size() + " telemetry frames queued, " + bytes + " bytes");
+        }
+    }
+
+    /**
+     * Adds a frame, dropping the oldest ones if full. The frame is written
+     * outside the lock.
+     *
+     * @param frame the frame
+     * @return false if the frame could not be written
+     */
+    boolean add(byte[] frame) {
+        long id;
+        synchronized (this) {
+            if (frame.length > maxBytes) {
+                droppedCount++;
+                return false;
+            }
+            while (bytes + frame.length > maxBytes && !frames.isEmpty()) {
+                droppedCount++;
+                remove();
+            }
+            id = nextId++;
+        }
+        File temp = new File(directory, id + TEMP_SUFFIX);
+        boolean written = false;
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(frame);
+            out.getFD().sync();
+            written = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write a telemetry frame", e);
+        } finally {
+            close(out);
+        }
+        if (written && !temp.renameTo(getFile(id))) {
+            written = false;
+        }
+        synchronized (this) {
+            if (!written) {
+                temp.delete();
+                droppedCount++;
+                return false;
+            }
+            frames.put(id, (long) frame.length);
+            bytes += frame.length;
+            count = frames.size();
+            return true;
+        }
+    }
+
+    /**
+     * Gets the oldest frame, null if empty. Unreadable frames are dropped.
+     */
+    synchronized byte[] peek() {
+        while (!frames.isEmpty()) {
+            Map.Entry<Long, Long> entry = frames.firstEntry();
+            byte[] frame = new byte[(int) (long) entry.getValue()];
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(getFile(entry.getKey()));
+                int offset = 0;
+                while (offset < frame.length) {
+                    int count = in.read(frame, offset, frame.length - offset);
+                    if (count < 0) {
+                        throw new IOException("Truncated telemetry frame " + entry.getKey());
+                    }
+                    offset += count;
+                }
+                return frame;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read a telemetry frame", e);
+                droppedCount++;
+                remove();
+            } finally {
+                close(in);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes the oldest frame.
+     */
+    synchronized void remove() {
+        Map.Entry<Long, Long> entry = frames.pollFirstEntry();
+        if (entry == null) {
+            return;
+        }
+        bytes -= entry.getValue();
+        count = frames.size();
+        getFile(entry.getKey()).delete();
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private File getFile(long id) {
+        return new File(directory, id + SUFFIX);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close", e);
+        }
+    }
+}
@@ -0,0 +1,641 @@
+package com.mapscloud.track.services.telemetry;
+
+import android.location.Location;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.metrics.Counter;
+import com.mapscloud.track.services.metrics.MetricsRegistry;
+import com.mapscloud.track.services.utils.CoalescingScheduler;
+import com.mapscloud.track.services.utils.LocationUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+/**
+ * Streams the recorded points to a WebSocket endpoint, for the live fleet
+ * positions. Disabled until an endpoint is set, only wss:// endpoints are
+ * accepted, see {@link #setEndpoint(String)}.
+ * <p>
+ * The points of each track are batched into a {@link TelemetryFrame}, sent
+ * as one binary message when it has {@link #BATCH_SIZE} points or its first
+ * point is {@link #BATCH_MAX_AGE} old. Frames wait in a bounded memory queue
+ * while the socket is down or its send queue is over
+ * {@link #MAX_SOCKET_QUEUE_BYTES}, then spill to a {@link TelemetryQueue} on
+ * disk, which is sent first once connected again, and kept across restarts.
+ * The offline queue is written and read on its own thread, never on the
+ * recording thread nor under the lock of the uplink.
+ * <p>
+ * The sequence numbers keep increasing across restarts: they are reserved
+ * by blocks of {@link #SEQUENCE_BLOCK}, the end of the reserved block kept
+ * in a file next to the offline queue. A restart skips the rest of the
+ * block, the server sees a gap, never a repeated number. The next block is
+ * reserved by the disk thread once half of the current one is used, a frame
+ * numbered past the reserved block is neither sent nor spilled until its
+ * block is reserved.
+ * <p>
+ * One {@link OkHttpClient} is shared, its pings keep the socket alive.
+ * Reconnects back off exponentially with jitter, from {@link #MIN_BACKOFF} to
+ * {@link #MAX_BACKOFF}. A frame handed to the socket is sent at most once,
+ * the server can detect the frames lost with a failed socket from the
+ * sequence numbers. Timers run on the service scheduler. Thread safe.
+ */
+public class TelemetryUplink {
+
+    private static final String TAG = TelemetryUplink.class.getSimpleName();
+
+    static final int BATCH_SIZE = 50;
+    static final long BATCH_MAX_AGE = 10 * 1000L;
+    static final long MIN_BACKOFF = 1000L;
+    static final long MAX_BACKOFF = 5 * 60 * 1000L;
+    static final long MAX_SOCKET_QUEUE_BYTES = 64 * 1024;
+    static final long SEQUENCE_BLOCK = 1024;
+    static final String SEQUENCE_FILE = "sequence";
+
+    private static final String SECURE_SCHEME = "wss://";
+
+    private static final int MAX_MEMORY_BYTES = 128 * 1024;
+    private static final long MAX_DISK_BYTES = 4 * 1024 * 1024;
+    private static final long CONNECTION_TIMEOUT = 20 * 1000L;
+    private static final long PING_INTERVAL = 30 * 1000L;
+    // 发送队列满时，稍后再发
+    private static final long DRAIN_DELAY = 1000L;
+
+    private static final int NORMAL_CLOSURE = 1000;
+
+    private static final Counter POINTS = MetricsRegistry.get().counter("telemetry.points");
+    private static final Counter FRAMES_SENT = MetricsRegistry.get().counter("telemetry.frames.sent");
+    private static final Counter FRAMES_SPILLED = MetricsRegistry.get().counter("telemetry.frames.spilled");
+    private static final Counter RECONNECTS = MetricsRegistry.get().counter("telemetry.reconnects");
+
+    private static OkHttpClient sharedClient;
+
+    private final CoalescingScheduler scheduler;
+    private final OkHttpClient client;
+    private final TelemetryQueue diskQueue;
+    private final File sequenceFile;
+    // 离线队列的读写都在这个线程
+    private final ExecutorService diskExecutor;
+    private final ArrayDeque<byte[]> memoryQueue = new ArrayDeque<byte[]>();
+    // Frames moved out of memory, waiting for the disk thread, oldest first
+    private final ArrayDeque<byte[]> spillQueue = new ArrayDeque<byte[]>();
+    private final Map<Long, TelemetryFrame> frames = new HashMap<Long, TelemetryFrame>();
+    private final Random random = new Random();
+
+    private Deflater deflater;
+    private String endpoint;
+    private boolean started;
+    private int memoryBytes;
+    private long sequence;
+    // The end of the sequence numbers reserved on disk, and whether the next block is being reserved
+    private long reservedSequence;
+    private boolean reserving;
+    private boolean diskTaskQueued;
+
+    private WebSocket webSocket;
+    private boolean connected;
+    // 每次连接加一，旧连接的回调被忽略
+    private int generation;
+    private long backoff = MIN_BACKOFF;
+
+    private CoalescingScheduler.ScheduledTask flushTask;
+    private CoalescingScheduler.ScheduledTask reconnectTask;
+    private CoalescingScheduler.ScheduledTask drainTask;
+
+    private final Runnable flushOldFrames = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TelemetryUplink.this) {
+                long now = SystemClock.elapsedRealtime();
+                for (TelemetryFrame frame : frames.values()) {
+                    if (frame.size() > 0 && now - frame.getFirstPointTime() >= BATCH_MAX_AGE) {
+                        seal(frame);
+                    }
+                }
+                send();
+            }
+        }
+    };
+
+    private final Runnable reconnect = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TelemetryUplink.this) {
+                reconnectTask = null;
+                RECONNECTS.increment();
+                connect();
+            }
+        }
+    };
+
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TelemetryUplink.this) {
+                drainTask = null;
+                send();
+            }
+        }
+    };
+
+    /*
+     * Spills the frames moved out of memory to the offline queue, then sends
+     * the offline frames while connected. Runs on the disk thread.
+     */
+    private final Runnable spillAndSend = new Runnable() {
+        @Override
+        public void run() {
+            boolean reserved;
+            synchronized (TelemetryUplink.this) {
+                reserved = sequence <= reservedSequence;
+            }
+            if (!reserved) {
+                // The spilled frames outlive the process, reserve their numbers first
+                reserve.run();
+            }
+            while (true) {
+                byte[] bytes;
+                synchronized (TelemetryUplink.this) {
+                    bytes = spillQueue.peekFirst();
+                }
+                if (bytes == null) {
+                    break;
+                }
+                diskQueue.add(bytes);
+                FRAMES_SPILLED.increment();
+                synchronized (TelemetryUplink.this) {
+                    spillQueue.pollFirst();
+                }
+            }
+            while (true) {
+                synchronized (TelemetryUplink.this) {
+                    if (!connected || webSocket.queueSize() >= MAX_SOCKET_QUEUE_BYTES) {
+                        break;
+                    }
+                }
+                byte[] bytes = diskQueue.peek();
+                if (bytes == null) {
+                    break;
+                }
+                synchronized (TelemetryUplink.this) {
+                    if (!connected || !webSocket.send(ByteString.of(bytes))) {
+                        break;
+                    }
+                }
+                diskQueue.remove();
+                FRAMES_SENT.increment();
+            }
+            synchronized (TelemetryUplink.this) {
+                diskTaskQueued = false;
+                if (!spillQueue.isEmpty()) {
+                    runDiskTask();
+                } else if (diskQueue.isEmpty()) {
+                    send();
+                } else {
+                    // 发送队列满或连接断开，稍后或重连后再发
+                    scheduleDrain();
+                }
+            }
+        }
+    };
+
+    /*
+     * Reserves the next block of sequence numbers, then sends the frames
+     * waiting for it. Runs on the disk thread.
+     */
+    private final Runnable reserve = new Runnable() {
+        @Override
+        public void run() {
+            long limit;
+            synchronized (TelemetryUplink.this) {
+                limit = sequence + SEQUENCE_BLOCK;
+            }
+            // 写失败只记日志，不能让上传一直等待
+            writeSequence(sequenceFile, limit);
+            synchronized (TelemetryUplink.this) {
+                reserving = false;
+                reservedSequence = Math.max(reservedSequence, limit);
+                send();
+            }
+        }
+    };
+
+    /**
+     * Constructor.
+     *
+     * @param scheduler the scheduler of the timers
+     * @param directory the directory of the offline queue
+     */
+    public TelemetryUplink(CoalescingScheduler scheduler, File directory) {
+        this(scheduler, directory, getClient());
+    }
+
+    TelemetryUplink(CoalescingScheduler scheduler, File directory, OkHttpClient client) {
+        this.scheduler = scheduler;
+        this.client = client;
+        diskQueue = new TelemetryQueue(directory, MAX_DISK_BYTES);
+        sequenceFile = new File(directory, SEQUENCE_FILE);
+        // 从上次预留的块之后开始，第一块由磁盘线程预留
+        sequence = readSequence(sequenceFile);
+        reservedSequence = sequence;
+        diskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "TelemetryQueue");
+            }
+        });
+        reserving = true;
+        execute(reserve);
+    }
+
+    /**
+     * Sets the endpoint, reconnecting if changed. Only wss:// is accepted,
+     * the points are not sent in clear: any other endpoint disables the
+     * uplink.
+     *
+     * @param endpoint the wss:// url, empty to disable the uplink
+     */
+    public synchronized void setEndpoint(String endpoint) {
+        if (!TextUtils.isEmpty(endpoint)
+                && !endpoint.regionMatches(true, 0, SECURE_SCHEME, 0, SECURE_SCHEME.length())) {
+            Log.e(TAG, "Telemetry disabled, not a wss:// endpoint: " + endpoint);
+            endpoint = null;
+        }
+        if (TextUtils.equals(this.endpoint, endpoint)) {
+            return;
+        }
+        this.endpoint = endpoint;
+        disconnect();
+        backoff = MIN_BACKOFF;
+        connect();
+    }
+
+    /**
+     * Enables or disables the deflate of the frames.
+     *
+     * @param enabled true to deflate
+     */
+    public synchronized void setDeflate(boolean enabled) {
+        if (enabled && deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        } else if (!enabled && deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    /**
+     * Starts the uplink, while recording.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        flushTask = scheduler.scheduleAtFixedRate(flushOldFrames, BATCH_MAX_AGE, BATCH_MAX_AGE);
+        connect();
+    }
+
+    /**
+     * Stops the uplink. The points not sent yet are kept in the offline
+     * queue, written in the background.
+     */
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        for (TelemetryFrame frame : frames.values()) {
+            if (frame.size() > 0) {
+                seal(frame);
+            }
+        }
+        frames.clear();
+        send();
+        while (!memoryQueue.isEmpty()) {
+            spill();
+        }
+        runDiskTask();
+        scheduler.cancel(flushTask);
+        flushTask = null;
+        disconnect();
+    }
+
+    /**
+     * Stops the uplink and releases its resources. The frames being spilled
+     * are still written.
+     */
+    public synchronized void close() {
+        stop();
+        setDeflate(false);
+        diskExecutor.shutdown();
+    }
+
+    /**
+     * Adds a recorded point.
+     *
+     * @param track    the track
+     * @param location the point
+     */
+    public synchronized void offer(Track track, Location location) {
+        if (!started || TextUtils.isEmpty(endpoint) || !LocationUtils.isValidLocation(location)) {
+            return;
+        }
+        TelemetryFrame frame = frames.get(track.id);
+        if (frame == null) {
+            frame = new TelemetryFrame(track.appId, track.id, BATCH_SIZE);
+            frames.put(track.id, frame);
+        }
+        frame.add(location, SystemClock.elapsedRealtime());
+        POINTS.increment();
+        if (frame.isFull()) {
+            seal(frame);
+            send();
+        }
+    }
+
+    /**
+     * Removes the batch of a track, once the track is stopped. Its points
+     * are sent.
+     *
+     * @param trackId the track id
+     */
+    public synchronized void endTrack(long trackId) {
+        TelemetryFrame frame = frames.remove(trackId);
+        if (frame != null && frame.size() > 0) {
+            seal(frame);
+            send();
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Gets the number of frames not sent yet, in memory and on disk.
+     */
+    public synchronized int getBacklog() {
+        return memoryQueue.size() + spillQueue.size() + diskQueue.size();
+    }
+
+    public long getDroppedCount() {
+        return diskQueue.getDroppedCount();
+    }
+
+    /*
+     * Encodes a batch into a frame and queues it.
+     */
+    private void seal(TelemetryFrame frame) {
+        byte[] bytes = frame.encode(sequence++, deflater);
+        frame.clear();
+        if (!reserving && reservedSequence - sequence <= SEQUENCE_BLOCK / 2) {
+            reserving = true;
+            execute(reserve);
+        }
+        memoryQueue.addLast(bytes);
+        memoryBytes += bytes.length;
+        while (memoryBytes > MAX_MEMORY_BYTES) {
+            spill();
+        }
+        if (!spillQueue.isEmpty()) {
+            runDiskTask();
+        }
+    }
+
+    /*
+     * Moves the oldest frame in memory to the spill queue, written to the
+     * offline queue by the disk thread.
+     */
+    private void spill() {
+        byte[] bytes = memoryQueue.pollFirst();
+        if (bytes == null) {
+            return;
+        }
+        memoryBytes -= bytes.length;
+        spillQueue.addLast(bytes);
+    }
+
+    /*
+     * Sends the queued frames, the offline ones first, while the socket
+     * queue has room. The offline frames are sent by the disk thread, the
+     * frames in memory wait for them.
+     */
+    private void send() {
+        if (!connected) {
+            return;
+        }
+        if (!spillQueue.isEmpty() || !diskQueue.isEmpty()) {
+            runDiskTask();
+            return;
+        }
+        // The frames in memory are the last ones sealed, the numbers past
+        // the reserved block wait for the disk thread
+        while (!memoryQueue.isEmpty() && sequence - memoryQueue.size() < reservedSequence
+                && webSocket.queueSize() < MAX_SOCKET_QUEUE_BYTES) {
+            if (!webSocket.send(ByteString.of(memoryQueue.peekFirst()))) {
+                break;
+            }
+            memoryBytes -= memoryQueue.pollFirst().length;
+            FRAMES_SENT.increment();
+        }
+        if (!memoryQueue.isEmpty() && sequence - memoryQueue.size() < reservedSequence) {
+            scheduleDrain();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (connected && drainTask == null) {
+            drainTask = scheduler.schedule(drain, DRAIN_DELAY);
+        }
+    }
+
+    private void runDiskTask() {
+        if (!diskTaskQueued) {
+            diskTaskQueued = true;
+            if (!execute(spillAndSend)) {
+                diskTaskQueued = false;
+            }
+        }
+    }
+
+    /*
+     * Runs a task on the disk thread, false once closed.
+     */
+    private boolean execute(Runnable task) {
+        if (diskExecutor.isShutdown()) {
+            return false;
+        }
+        diskExecutor.execute(task);
+        return true;
+    }
+
+    private void connect() {
+        if (!started || TextUtils.isEmpty(endpoint) || webSocket != null || reconnectTask != null) {
+            return;
+        }
+        Request request;
+        try {
+            request = new Request.Builder().url(endpoint).build();
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Invalid telemetry endpoint " + endpoint, e);
+            return;
+        }
+        final int connection = ++generation;
+        webSocket = client.newWebSocket(request, new WebSocketListener() {
+            @Override
+            public void onOpen(WebSocket socket, Response response) {
+                synchronized (TelemetryUplink.this) {
+                    if (connection != generation) {
+                        socket.close(NORMAL_CLOSURE, null);
+                        return;
+                    }
+                    Log.d(TAG, "Connected to " + endpoint);
+                    connected = true;
+                    backoff = MIN_BACKOFF;
+                    send();
+                }
+            }
+
+            @Override
+            public void onMessage(WebSocket socket, String text) {
+                Log.d(TAG, "Message: " + text);
+            }
+
+            @Override
+            public void onClosing(WebSocket socket, int code, String reason) {
+                socket.close(NORMAL_CLOSURE, null);
+            }
+
+            @Override
+            public void onClosed(WebSocket socket, int code, String reason) {
+                disconnected(connection, "closed " + code + " " + reason);
+            }
+
+            @Override
+            public void onFailure(WebSocket socket, Throwable t, Response response) {
+                disconnected(connection, String.valueOf(t));
+            }
+        });
+    }
+
+    private synchronized void disconnected(int connection, String reason) {
+        if (connection != generation) {
+            return;
+        }
+        Log.d(TAG, "Disconnected from " + endpoint + ": " + reason);
+        webSocket = null;
+        connected = false;
+        scheduler.cancel(drainTask);
+        drainTask = null;
+        if (started && !TextUtils.isEmpty(endpoint)) {
+            // 指数退避，加随机抖动避免所有设备同时重连
+            long delay = backoff + (long) (random.nextDouble() * backoff / 2);
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            reconnectTask = scheduler.schedule(reconnect, delay);
+        }
+    }
+
+    private void disconnect() {
+        generation++;
+        if (webSocket != null) {
+            webSocket.close(NORMAL_CLOSURE, null);
+            webSocket = null;
+        }
+        connected = false;
+        scheduler.cancel(reconnectTask);
+        reconnectTask = null;
+        scheduler.cancel(drainTask);
+        drainTask = null;
+    }
+
+    private static synchronized OkHttpClient getClient() {
+        if (sharedClient == null) {
+            sharedClient = new OkHttpClient.Builder()
+                    .connectTimeout(CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .pingInterval(PING_INTERVAL, TimeUnit.MILLISECONDS)
+                    .build();
+        }
+        return sharedClient;
+    }
+
+    /*
+     * Reads the end of the sequence numbers reserved by the previous run, 0
+     * if none.
+     */
+    private static long readSequence(File file) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            return in.readLong();
+        } catch (FileNotFoundException e) {
+            return 0;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file, e);
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close " + file, e);
+                }
+            }
+        }
+    }
+
+    /*
+     * Writes the end of the reserved sequence numbers, to a temporary file
+     * then renamed.
+     */
+    private static void writeSequence(File file, long limit) {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeLong(limit);
+            data.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write " + temp, e);
+            temp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to close " + temp, e);
+                }
+            }
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Unable to rename " + temp);
+            temp.delete();
+        }
+    }
+}
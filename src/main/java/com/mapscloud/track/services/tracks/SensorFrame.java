@@ -0,0 +1,226 @@
+package com.mapscloud.track.services.tracks;
+
+import com.mapscloud.track.services.tracks.Sensor.SensorData;
+import com.mapscloud.track.services.tracks.Sensor.SensorDataSet;
+import com.mapscloud.track.services.tracks.Sensor.SensorState;
+
+/**
+ * A mutable, reusable holder of the content of a {@link SensorDataSet}.
+ * <p>
+ * Encoded and decoded by {@link SensorFrameCodec} with the wire format of
+ * {@link SensorDataSet}, so a frame can be decoded again and again into the
+ * same instance, without building a message per read. Not thread safe.
+ */
+public final class SensorFrame {
+
+    // Sensors, their field number in SensorDataSet is the sensor + 2
+    public static final int HEART_RATE = 0;
+    public static final int CADENCE = 1;
+    public static final int POWER = 2;
+    public static final int BATTERY_LEVEL = 3;
+
+    static final int SENSOR_COUNT = 4;
+
+    private boolean hasCreationTime;
+    private long creationTime;
+
+    private final boolean[] hasSensors = new boolean[SENSOR_COUNT];
+    // The SensorState numbers
+    private final int[] states = new int[SENSOR_COUNT];
+    private final boolean[] hasValues = new boolean[SENSOR_COUNT];
+    private final int[] values = new int[SENSOR_COUNT];
+
+    // The decoding position of SensorFrameCodec
+    final int[] position = new int[1];
+
+    /**
+     * Clears all the fields.
+     */
+    public void clear() {
+        hasCreationTime = false;
+        creationTime = 0L;
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            clearSensor(i);
+        }
+    }
+
+    public boolean hasCreationTime() {
+        return hasCreationTime;
+    }
+
+    public long getCreationTime() {
+        return creationTime;
+    }
+
+    public void setCreationTime(long creationTime) {
+        this.creationTime = creationTime;
+        hasCreationTime = true;
+    }
+
+    /**
+     * Returns true if the frame has a sensor, like {@link #HEART_RATE}.
+     *
+     * @param sensor the sensor
+     */
+    public boolean hasSensor(int sensor) {
+        return hasSensors[checkSensor(sensor)];
+    }
+
+    /**
+     * Gets the state of a sensor, null if the frame doesn't have it.
+     *
+     * @param sensor the sensor
+     */
+    public SensorState getState(int sensor) {
+        return hasSensors[checkSensor(sensor)] ? SensorState.valueOf(states[sensor]) : null;
+    }
+
+    public boolean hasValue(int sensor) {
+        return hasSensors[checkSensor(sensor)] && hasValues[sensor];
+    }
+
+    public int getValue(int sensor) {
+        return values[checkSensor(sensor)];
+    }
+
+    /**
+     * Sets a sensor with a value.
+     *
+     * @param sensor the sensor
+     * @param state  the state
+     * @param value  the value
+     */
+    public void setSensor(int sensor, SensorState state, int value) {
+        setSensor(sensor, state);
+        hasValues[sensor] = true;
+        values[sensor] = value;
+    }
+
+    /**
+     * Sets a sensor without a value.
+     *
+     * @param sensor the sensor
+     * @param state  the state
+     */
+    public void setSensor(int sensor, SensorState state) {
+        if (state == null) {
+            throw new IllegalArgumentException("State is required");
+        }
+        checkSensor(sensor);
+        hasSensors[sensor] = true;
+        states[sensor] = state.getNumber();
+        hasValues[sensor] = false;
+        values[sensor] = 0;
+    }
+
+    public void clearSensor(int sensor) {
+        checkSensor(sensor);
+        hasSensors[sensor] = false;
+        states[sensor] = 0;
+        hasValues[sensor] = false;
+        values[sensor] = 0;
+    }
+
+    /**
+     * Copies another frame.
+     *
+     * @param frame the frame
+     */
+    public void copyFrom(SensorFrame frame) {
+        hasCreationTime = frame.hasCreationTime;
+        creationTime = frame.creationTime;
+        for (int i = 0; i < SENSOR_COUNT; i++) {
+            hasSensors[i] = frame.hasSensors[i];
+            states[i] = frame.states[i];
+            hasValues[i] = frame.hasValues[i];
+            values[i] = frame.values[i];
+        }
+    }
+
+    /**
+     * Copies a sensor data set.
+     *
+     * @param sensorDataSet the sensor data set
+     */
+    public void copyFrom(SensorDataSet sensorDataSet) {
+        clear();
+        if (sensorDataSet.hasCreationTime()) {
+            setCreationTime(sensorDataSet.getCreationTime());
+        }
+        if (sensorDataSet.hasHeartRate()) {
+            copyFrom(HEART_RATE, sensorDataSet.getHeartRate());
+        }
+        if (sensorDataSet.hasCadence()) {
+            copyFrom(CADENCE, sensorDataSet.getCadence());
+        }
+        if (sensorDataSet.hasPower()) {
+            copyFrom(POWER, sensorDataSet.getPower());
+        }
+        if (sensorDataSet.hasBatteryLevel()) {
+            copyFrom(BATTERY_LEVEL, sensorDataSet.getBatteryLevel());
+        }
+    }
+
+    /**
+     * Creates a {@link SensorDataSet}, for the callers of the generated
+     * message API.
+     */
+    public SensorDataSet toSensorDataSet() {
+        SensorDataSet.Builder builder = SensorDataSet.newBuilder();
+        if (hasCreationTime) {
+            builder.setCreationTime(creationTime);
+        }
+        if (hasSensors[HEART_RATE]) {
+            builder.setHeartRate(toSensorData(HEART_RATE));
+        }
+        if (hasSensors[CADENCE]) {
+            builder.setCadence(toSensorData(CADENCE));
+        }
+        if (hasSensors[POWER]) {
+            builder.setPower(toSensorData(POWER));
+        }
+        if (hasSensors[BATTERY_LEVEL]) {
+            builder.setBatteryLevel(toSensorData(BATTERY_LEVEL));
+        }
+        return builder.build();
+    }
+
+    /*
+     * Sets a sensor from the raw fields, for the codec. A state of 0 is no
+     * state, such a frame is not a valid sensor data set.
+     */
+    void setSensorRaw(int sensor, int state, boolean hasValue, int value) {
+        hasSensors[sensor] = true;
+        states[sensor] = state;
+        hasValues[sensor] = hasValue;
+        values[sensor] = hasValue ? value : 0;
+    }
+
+    int getStateNumber(int sensor) {
+        return states[sensor];
+    }
+
+    private void copyFrom(int sensor, SensorData sensorData) {
+        setSensorRaw(sensor, sensorData.hasState() ? sensorData.getState().getNumber() : 0,
+                sensorData.hasValue(), sensorData.getValue());
+    }
+
+    private SensorData toSensorData(int sensor) {
+        SensorData.Builder builder = SensorData.newBuilder();
+        SensorState state = SensorState.valueOf(states[sensor]);
+        if (state != null) {
+            builder.setState(state);
+        }
+        if (hasValues[sensor]) {
+            builder.setValue(values[sensor]);
+        }
+        return builder.build();
+    }
+
+    private static int checkSensor(int sensor) {
+        if (sensor < 0 || sensor >= SENSOR_COUNT) {
+            throw new IllegalArgumentException("Invalid sensor: " + sensor);
+        }
+        return sensor;
+    }
+}
@@ -0,0 +1,268 @@
+package com.mapscloud.track.services.tracks;
+
+import com.mapscloud.track.services.tracks.Sensor.SensorDataSet;
+import com.mapscloud.track.services.tracks.Sensor.SensorState;
+
+/**
+ * Encodes and decodes a {@link SensorFrame} with the protobuf wire format of
+ * {@link SensorDataSet}, without allocating.
+ * <p>
+ * Bytes encoded here parse with {@link SensorDataSet#parseFrom(byte[])}, and
+ * the BLOBs written by {@link SensorDataSet#toByteArray()} decode here, so
+ * stored track points and binder clients are unaffected. As with the
+ * generated parser, unknown fields are skipped and a sensor without a known
+ * state makes the whole frame invalid.
+ */
+public final class SensorFrameCodec {
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    private static final int CREATION_TIME_TAG = 1 << 3 | WIRETYPE_VARINT;
+    private static final int STATE_TAG = 1 << 3 | WIRETYPE_VARINT;
+    private static final int VALUE_TAG = 2 << 3 | WIRETYPE_VARINT;
+
+    // The field number of the first sensor in SensorDataSet
+    private static final int FIRST_SENSOR_FIELD = 2;
+
+    private SensorFrameCodec() {
+    }
+
+    /**
+     * Gets the size of a frame once encoded.
+     *
+     * @param frame the frame
+     */
+    public static int getEncodedSize(SensorFrame frame) {
+        int size = 0;
+        if (frame.hasCreationTime()) {
+            size += 1 + varintSize(frame.getCreationTime());
+        }
+        for (int sensor = 0; sensor < SensorFrame.SENSOR_COUNT; sensor++) {
+            if (frame.hasSensor(sensor)) {
+                int sensorSize = getSensorSize(frame, sensor);
+                size += 1 + varintSize(sensorSize) + sensorSize;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Encodes a frame into a buffer.
+     *
+     * @param frame  the frame
+     * @param buffer the buffer, with at least {@link #getEncodedSize} bytes
+     *               from the offset
+     * @param offset the offset
+     * @return the offset after the encoded frame
+     */
+    public static int encode(SensorFrame frame, byte[] buffer, int offset) {
+        if (offset < 0 || buffer.length - offset < getEncodedSize(frame)) {
+            throw new IllegalArgumentException("Buffer too small for the sensor frame");
+        }
+        int position = offset;
+        if (frame.hasCreationTime()) {
+            buffer[position++] = CREATION_TIME_TAG;
+            position = writeVarint(buffer, position, frame.getCreationTime());
+        }
+        for (int sensor = 0; sensor < SensorFrame.SENSOR_COUNT; sensor++) {
+            if (!frame.hasSensor(sensor)) {
+                continue;
+            }
+            buffer[position++] = (byte) ((FIRST_SENSOR_FIELD + sensor) << 3 | WIRETYPE_LENGTH_DELIMITED);
+            position = writeVarint(buffer, position, getSensorSize(frame, sensor));
+            buffer[position++] = STATE_TAG;
+            position = writeVarint(buffer, position, frame.getStateNumber(sensor));
+            if (frame.hasValue(sensor)) {
+                buffer[position++] = VALUE_TAG;
+                // int32 负数按 64 位符号扩展编码，与生成代码一致
+                position = writeVarint(buffer, position, frame.getValue(sensor));
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Encodes a frame into a new array.
+     *
+     * @param frame the frame
+     */
+    public static byte[] encode(SensorFrame frame) {
+        byte[] buffer = new byte[getEncodedSize(frame)];
+        encode(frame, buffer, 0);
+        return buffer;
+    }
+
+    /**
+     * Decodes a frame.
+     *
+     * @param data   the encoded bytes
+     * @param offset the offset of the frame
+     * @param length the length of the frame
+     * @param frame  the frame to decode into, cleared first
+     * @return true if decoded, false if the bytes are not a valid sensor data
+     * set. The frame is then cleared.
+     */
+    public static boolean decode(byte[] data, int offset, int length, SensorFrame frame) {
+        frame.clear();
+        if (offset < 0 || length < 0 || data.length - offset < length) {
+            return false;
+        }
+        // 解码位置放在 frame 里，解码不分配对象
+        int[] position = frame.position;
+        position[0] = offset;
+        int end = offset + length;
+        boolean valid = true;
+        while (valid && position[0] < end) {
+            long tag = readVarint(data, position, end);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) tag & 7;
+            if (position[0] < 0 || field == 0) {
+                valid = false;
+            } else if (field == 1 && wireType == WIRETYPE_VARINT) {
+                long creationTime = readVarint(data, position, end);
+                valid = position[0] >= 0;
+                frame.setCreationTime(creationTime);
+            } else if (field >= FIRST_SENSOR_FIELD && field < FIRST_SENSOR_FIELD + SensorFrame.SENSOR_COUNT
+                    && wireType == WIRETYPE_LENGTH_DELIMITED) {
+                long sensorLength = readVarint(data, position, end);
+                // 生成代码对超出末尾的长度不报错，读到末尾为止
+                valid = position[0] >= 0 && sensorLength >= 0
+                        && decodeSensor(data, position, (int) Math.min(position[0] + sensorLength, end), frame,
+                        field - FIRST_SENSOR_FIELD);
+            } else {
+                valid = skipField(data, position, end, wireType);
+            }
+        }
+        if (!valid || position[0] != end) {
+            frame.clear();
+            return false;
+        }
+        // 必填的 state 缺失或未知时，生成代码的 parseFrom 抛异常
+        for (int sensor = 0; sensor < SensorFrame.SENSOR_COUNT; sensor++) {
+            if (frame.hasSensor(sensor) && SensorState.valueOf(frame.getStateNumber(sensor)) == null) {
+                frame.clear();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Decodes a SensorData message, merging into a sensor already read like
+     * the generated parser does for a message field read twice.
+     */
+    private static boolean decodeSensor(byte[] data, int[] position, int end, SensorFrame frame, int sensor) {
+        boolean merge = frame.hasSensor(sensor);
+        int state = merge ? frame.getStateNumber(sensor) : 0;
+        boolean hasValue = merge && frame.hasValue(sensor);
+        int value = merge ? frame.getValue(sensor) : 0;
+        while (position[0] < end) {
+            long tag = readVarint(data, position, end);
+            int field = (int) (tag >>> 3);
+            int wireType = (int) tag & 7;
+            if (position[0] < 0 || field == 0) {
+                return false;
+            }
+            if ((field == 1 || field == 2) && wireType == WIRETYPE_VARINT) {
+                long raw = readVarint(data, position, end);
+                if (position[0] < 0) {
+                    return false;
+                }
+                if (field == 1) {
+                    // 未知的枚举值被生成代码忽略
+                    if (SensorState.valueOf((int) raw) != null) {
+                        state = (int) raw;
+                    }
+                } else {
+                    hasValue = true;
+                    value = (int) raw;
+                }
+            } else if (!skipField(data, position, end, wireType)) {
+                return false;
+            }
+        }
+        if (position[0] != end) {
+            return false;
+        }
+        frame.setSensorRaw(sensor, state, hasValue, value);
+        return true;
+    }
+
+    private static boolean skipField(byte[] data, int[] position, int end, int wireType) {
+        switch (wireType) {
+            case WIRETYPE_VARINT:
+                readVarint(data, position, end);
+                return position[0] >= 0;
+            case WIRETYPE_FIXED64:
+                position[0] += 8;
+                return position[0] <= end;
+            case WIRETYPE_LENGTH_DELIMITED:
+                long length = readVarint(data, position, end);
+                if (position[0] < 0 || length < 0 || length > end - position[0]) {
+                    return false;
+                }
+                position[0] += (int) length;
+                return true;
+            case WIRETYPE_FIXED32:
+                position[0] += 4;
+                return position[0] <= end;
+            default:
+                // Groups are not used by sensor.proto
+                return false;
+        }
+    }
+
+    private static int getSensorSize(SensorFrame frame, int sensor) {
+        int size = 1 + varintSize(frame.getStateNumber(sensor));
+        if (frame.hasValue(sensor)) {
+            size += 1 + varintSize(frame.getValue(sensor));
+        }
+        return size;
+    }
+
+    /*
+     * The size of a varint, an int is sign extended to 64 bits.
+     */
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /*
+     * Reads a varint. On a truncated or malformed varint, sets the position
+     * to -1 and returns -1.
+     */
+    private static long readVarint(byte[] data, int[] position, int end) {
+        long value = 0L;
+        int index = position[0];
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (index >= end) {
+                break;
+            }
+            byte b = data[index++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                position[0] = index;
+                return value;
+            }
+        }
+        position[0] = -1;
+        return -1L;
+    }
+}
@@ -36,7 +36,22 @@ public abstract class SensorManager {
     private static final long MAX_SENSOR_STATE_AGE = 20000;
     private static final int RETRY_PERIOD = 20000;
 
+    /**
+     * Receives each sensor data set as it arrives.
+     */
+    public interface SensorDataSetListener {
+
+        /**
+         * Called on the sensor thread, at the native rate of the sensor.
+         * 
+         * @param sensorDataSet
+         *            the sensor data set
+         */
+        void onSensorDataSet(SensorDataSet sensorDataSet);
+    }
+
     private SensorState sensorState = SensorState.NONE;
+    private volatile SensorDataSetListener sensorDataSetListener;
     private long sensorStateTimestamp = System.currentTimeMillis();
 
     /**
@@ -84,6 +99,31 @@ public abstract class SensorManager {
      */
     public abstract SensorDataSet getSensorDataSet();
 
+    /**
+     * Sets the listener of the sensor data sets.
+     * 
+     * @param listener
+     *            the listener, null to remove
+     */
+    public void setSensorDataSetListener(SensorDataSetListener listener) {
+        sensorDataSetListener = listener;
+    }
+
+    /**
+     * Notifies the listener of a new sensor data set. Subclasses call it each
+     * time the sensor reports, not only when {@link #getSensorDataSet()} is
+     * polled.
+     * 
+     * @param sensorDataSet
+     *            the sensor data set
+     */
+    protected void notifySensorDataSet(SensorDataSet sensorDataSet) {
+        SensorDataSetListener listener = sensorDataSetListener;
+        if (listener != null && sensorDataSet != null) {
+            listener.onSensorDataSet(sensorDataSet);
+        }
+    }
+
     /**
      * Starts the sensor.
      */
@@ -0,0 +1,151 @@
+package com.mapscloud.track.services.tracks;
+
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.mapscloud.track.services.content.SensorSeries;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.tracks.Sensor.SensorData;
+import com.mapscloud.track.services.tracks.Sensor.SensorDataSet;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Records the sensor data sets at the native rate of the sensor into the
+ * sensor blocks table, one {@link SensorSeries} per sensor type.
+ * <p>
+ * Samples are buffered and written as a block every
+ * {@link #MAX_BLOCK_SAMPLES} samples or {@link #MAX_BLOCK_DURATION}, and
+ * when a track stops. With several tracks recording, each gets the samples.
+ * Thread safe.
+ */
+public class SensorRecorder implements SensorManager.SensorDataSetListener {
+
+    private static final String TAG = SensorRecorder.class.getSimpleName();
+
+    static final int MAX_BLOCK_SAMPLES = 256;
+    static final long MAX_BLOCK_DURATION = 60 * 1000L;
+
+    // 超过该时间没有样本，认为传感器不在推送，由轨迹点记录传感器数据
+    private static final long MAX_SAMPLE_AGE = 5000L;
+
+    private static final int[] TYPES = {SensorSeries.HEART_RATE, SensorSeries.CADENCE, SensorSeries.POWER,
+            SensorSeries.BATTERY};
+
+    private final MyTracksProviderUtils myTracksProviderUtils;
+    private final SensorSeries[] buffers = new SensorSeries[TYPES.length];
+    private final Set<Long> trackIds = new LinkedHashSet<Long>();
+
+    private long lastCreationTime = -1L;
+    private long lastSampleTime = -1L;
+
+    public SensorRecorder(MyTracksProviderUtils myTracksProviderUtils) {
+        this.myTracksProviderUtils = myTracksProviderUtils;
+        for (int i = 0; i < TYPES.length; i++) {
+            buffers[i] = new SensorSeries(MAX_BLOCK_SAMPLES);
+        }
+    }
+
+    /**
+     * Starts recording the samples to a track.
+     *
+     * @param trackId the track id
+     */
+    public synchronized void startTrack(long trackId) {
+        if (!trackIds.contains(trackId)) {
+            // 之前的样本属于已有轨迹
+            flush();
+            trackIds.add(trackId);
+        }
+    }
+
+    /**
+     * Stops recording the samples to a track, writing the buffered ones.
+     *
+     * @param trackId the track id
+     */
+    public synchronized void stopTrack(long trackId) {
+        if (trackIds.contains(trackId)) {
+            flush();
+            trackIds.remove(trackId);
+        }
+    }
+
+    /**
+     * Stops recording the samples to all the tracks, writing the buffered
+     * ones.
+     */
+    public synchronized void stopAllTracks() {
+        flush();
+        trackIds.clear();
+    }
+
+    /**
+     * Returns true if samples are being recorded, so the track points need
+     * not carry a sensor data set.
+     */
+    public synchronized boolean isActive() {
+        return !trackIds.isEmpty() && lastSampleTime != -1L
+                && System.currentTimeMillis() - lastSampleTime < MAX_SAMPLE_AGE;
+    }
+
+    @Override
+    public synchronized void onSensorDataSet(SensorDataSet sensorDataSet) {
+        if (trackIds.isEmpty()) {
+            return;
+        }
+        long time = sensorDataSet.getCreationTime();
+        // getSensorDataSet 轮询和推送可能重复同一个数据集
+        if (time <= lastCreationTime) {
+            return;
+        }
+        lastCreationTime = time;
+        lastSampleTime = System.currentTimeMillis();
+        if (sensorDataSet.hasHeartRate()) {
+            add(0, time, sensorDataSet.getHeartRate());
+        }
+        if (sensorDataSet.hasCadence()) {
+            add(1, time, sensorDataSet.getCadence());
+        }
+        if (sensorDataSet.hasPower()) {
+            add(2, time, sensorDataSet.getPower());
+        }
+        if (sensorDataSet.hasBatteryLevel()) {
+            add(3, time, sensorDataSet.getBatteryLevel());
+        }
+        for (SensorSeries buffer : buffers) {
+            if (buffer.size() >= MAX_BLOCK_SAMPLES
+                    || (buffer.size() > 0 && time - buffer.getStartTime() >= MAX_BLOCK_DURATION)) {
+                flush();
+                break;
+            }
+        }
+    }
+
+    private void add(int index, long time, SensorData sensorData) {
+        if (sensorData.hasValue()) {
+            buffers[index].add(time, sensorData.getValue());
+        }
+    }
+
+    /*
+     * Writes the buffered samples of each type as a block of each track.
+     */
+    private void flush() {
+        for (int i = 0; i < TYPES.length; i++) {
+            SensorSeries buffer = buffers[i];
+            if (buffer.size() == 0) {
+                continue;
+            }
+            for (long trackId : trackIds) {
+                try {
+                    myTracksProviderUtils.insertSensorBlock(trackId, TYPES[i], buffer);
+                } catch (SQLiteException e) {
+                    Log.e(TAG, "Unable to insert a sensor block of track " + trackId, e);
+                }
+            }
+            buffer.clear();
+        }
+    }
+}
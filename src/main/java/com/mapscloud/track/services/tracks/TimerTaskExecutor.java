@@ -18,13 +18,11 @@ package com.mapscloud.track.services.tracks;
 
 import com.mapscloud.track.services.content.TripStatistics;
 import com.mapscloud.track.services.model.TrackRecordingService;
-
-import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
+import com.mapscloud.track.services.utils.CoalescingScheduler;
 
 /**
- * This class will periodically perform a task.
+ * This class will periodically perform a task, on the scheduler of the
+ * {@link TrackRecordingService}.
  * 
  * @author Sandor Dornbush
  */
@@ -34,10 +32,15 @@ public class TimerTaskExecutor {
     private final TrackRecordingService trackRecordingService;
 
     /**
-     * A timer to schedule the announcements. This is non-null if the task is in
-     * started (scheduled) state.
+     * The scheduled announcements. This is non-null if the task is in started
+     * (scheduled) state.
      */
-    private Timer timer;
+    private CoalescingScheduler.ScheduledTask scheduledTask;
+
+    /**
+     * True if the task is started, even when no interval is scheduled.
+     */
+    private boolean started;
 
     public TimerTaskExecutor(PeriodicTask periodicTask, TrackRecordingService trackRecordingService) {
         this.periodicTask = periodicTask;
@@ -60,43 +63,41 @@ public class TimerTaskExecutor {
             return;
         }
 
-        if (timer != null) {
-            timer.cancel();
-            timer.purge();
+        if (started) {
+            if (scheduledTask != null) {
+                scheduledTask.cancel();
+                scheduledTask = null;
+            }
         } else {
             // First start, or we were previously shut down.
             periodicTask.start();
+            started = true;
         }
 
-        timer = new Timer();
         if (interval <= 0) {
             return;
         }
 
-        long next = System.currentTimeMillis() + interval - (tripStatistics.getTotalTime() % interval);
-        timer.scheduleAtFixedRate(new PeriodicTimerTask(), new Date(next), interval);
+        long delay = interval - (tripStatistics.getTotalTime() % interval);
+        scheduledTask = trackRecordingService.getScheduler().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                periodicTask.run(trackRecordingService);
+            }
+        }, delay, interval);
     }
 
     /**
      * Shuts down.
      */
     public void shutdown() {
-        if (timer != null) {
-            timer.cancel();
-            timer.purge();
-            timer = null;
+        if (started) {
+            if (scheduledTask != null) {
+                scheduledTask.cancel();
+                scheduledTask = null;
+            }
+            started = false;
             periodicTask.shutdown();
         }
     }
-
-    /**
-     * The timer task to announce the trip status.
-     */
-    private class PeriodicTimerTask extends TimerTask {
-
-        @Override
-        public void run() {
-            periodicTask.run(trackRecordingService);
-        }
-    }
 }
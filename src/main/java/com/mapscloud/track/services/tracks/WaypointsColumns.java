@@ -82,6 +82,7 @@ public interface WaypointsColumns extends BaseColumns {
 
     String IDINRECORDTABLE   = "record_table_id";
     String RECORD_MEDIA_TYPE = "record_media_type";
+    String MODIFIEDTIME      = "modifiedtime"; // modified time, for the sync
 
     String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" + _ID
             + " INTEGER PRIMARY KEY AUTOINCREMENT, " + NAME + " STRING, " + DESCRIPTION + " STRING, " + CATEGORY
@@ -92,7 +93,7 @@ public interface WaypointsColumns extends BaseColumns {
             + TOTALTIME + " INTEGER, " + MOVINGTIME + " INTEGER, " + AVGSPEED + " FLOAT, " + AVGMOVINGSPEED
             + " FLOAT, " + MAXSPEED + " FLOAT, " + MINELEVATION + " FLOAT, " + MAXELEVATION + " FLOAT, "
             + ELEVATIONGAIN + " FLOAT, " + MINGRADE + " FLOAT, " + MAXGRADE + " FLOAT, " + IDINRECORDTABLE + " LONG, "
-            + RECORD_MEDIA_TYPE + " INTEGER" + ");";
+            + RECORD_MEDIA_TYPE + " INTEGER, " + MODIFIEDTIME + " INTEGER" + ");";
 
     String[] COLUMNS = {_ID, NAME, DESCRIPTION, CATEGORY, ICON, TRACKID, TYPE, LENGTH, DURATION,
             STARTTIME, STARTID, STOPID, LONGITUDE, LATITUDE, TIME, ALTITUDE, ACCURACY, SPEED, BEARING, TOTALDISTANCE,
@@ -131,4 +132,7 @@ public interface WaypointsColumns extends BaseColumns {
             FLOAT_TYPE_ID, // max grade
             LONG_TYPE_ID // way point in record table
     };
+
+    String ADD_MODIFIED_TIME_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + MODIFIEDTIME + " INTEGER;";
 }
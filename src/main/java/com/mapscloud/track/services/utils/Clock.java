@@ -0,0 +1,38 @@
+package com.mapscloud.track.services.utils;
+
+import android.os.SystemClock;
+
+/**
+ * A source of the wall clock time and of the monotonic elapsed realtime, so
+ * the recording pipeline can run on a simulated time, for example when
+ * replaying a trace faster than real time.
+ */
+public interface Clock {
+
+    /**
+     * The system clock.
+     */
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtime() * 1000000L;
+        }
+    };
+
+    /**
+     * Gets the current time in milliseconds since the epoch.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Gets the time since boot in nanoseconds, the time base of
+     * {@link android.location.Location#getElapsedRealtimeNanos()}. Not
+     * affected by the wall clock changes.
+     */
+    long elapsedRealtimeNanos();
+}
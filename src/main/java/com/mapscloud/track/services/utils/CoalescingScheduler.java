@@ -0,0 +1,263 @@
+package com.mapscloud.track.services.utils;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.PriorityQueue;
+
+/**
+ * Runs the one shot and periodic tasks of the recording service on a single
+ * thread, coalescing their wakeups.
+ * <p>
+ * A task may run up to the tolerance after its deadline. The scheduler wakes
+ * at the earliest latest time of the queued tasks and runs every task due by
+ * then, so tasks with close deadlines share one wakeup. Periodic tasks run
+ * at a fixed rate from their first deadline, a late run does not shift the
+ * next ones.
+ * <p>
+ * The scheduler thread does not wake the device. In alarm aligned mode, the
+ * wakeups are also set as {@link AlarmManager} window alarms, which the system
+ * batches with the alarms of other apps and delivers in the doze maintenance
+ * windows. Requires API 24, ignored before. Tasks run on the scheduler thread
+ * and must not block it. Thread safe.
+ */
+public class CoalescingScheduler {
+
+    private static final String TAG = CoalescingScheduler.class.getSimpleName();
+
+    public static final long DEFAULT_TOLERANCE = 5 * 1000L;
+
+    /**
+     * A scheduled task.
+     */
+    public final class ScheduledTask implements Comparable<ScheduledTask> {
+        private final Runnable runnable;
+        private final long period;
+        // In SystemClock.elapsedRealtime()
+        private long deadline;
+        private boolean cancelled;
+
+        private ScheduledTask(Runnable runnable, long deadline, long period) {
+            this.runnable = runnable;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /**
+         * Cancels the task. A running task completes.
+         */
+        public void cancel() {
+            CoalescingScheduler.this.cancel(this);
+        }
+
+        @Override
+        public int compareTo(ScheduledTask another) {
+            return deadline < another.deadline ? -1 : (deadline == another.deadline ? 0 : 1);
+        }
+    }
+
+    private final String name;
+    private final long tolerance;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final PriorityQueue<ScheduledTask> queue = new PriorityQueue<ScheduledTask>();
+
+    // The armed wakeup, in SystemClock.elapsedRealtime(), 0 if none
+    private long wakeupTime;
+    private AlarmManager alarmManager;
+    private Object alarmListener;
+    private boolean shutdown;
+
+    private final Runnable wakeup = new Runnable() {
+        @Override
+        public void run() {
+            runDueTasks();
+        }
+    };
+
+    /**
+     * Constructor. Starts the scheduler thread.
+     *
+     * @param name      the thread name
+     * @param tolerance how late a task may run to share a wakeup, in
+     *                  milliseconds
+     */
+    public CoalescingScheduler(String name, long tolerance) {
+        if (tolerance < 0) {
+            throw new IllegalArgumentException("Invalid tolerance: " + tolerance);
+        }
+        this.name = name;
+        this.tolerance = tolerance;
+        thread = new HandlerThread(name);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Schedules a task to run once.
+     *
+     * @param runnable the task
+     * @param delay    the delay in milliseconds
+     */
+    public ScheduledTask schedule(Runnable runnable, long delay) {
+        return add(runnable, delay, 0L);
+    }
+
+    /**
+     * Schedules a task to run at a fixed rate.
+     *
+     * @param runnable     the task
+     * @param initialDelay the delay of the first run in milliseconds
+     * @param period       the period in milliseconds
+     */
+    public ScheduledTask scheduleAtFixedRate(Runnable runnable, long initialDelay, long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Invalid period: " + period);
+        }
+        return add(runnable, initialDelay, period);
+    }
+
+    /**
+     * Cancels a task.
+     *
+     * @param task the task, can be null
+     */
+    public synchronized void cancel(ScheduledTask task) {
+        if (task == null || task.cancelled) {
+            return;
+        }
+        task.cancelled = true;
+        queue.remove(task);
+        arm();
+    }
+
+    /**
+     * Enables or disables the alarm aligned mode.
+     *
+     * @param context the context, to get the alarm manager
+     * @param enabled true to wake the device with window alarms
+     */
+    public synchronized void setAlarmAligned(Context context, boolean enabled) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return;
+        }
+        if (enabled == (alarmManager != null)) {
+            return;
+        }
+        cancelAlarm();
+        if (enabled) {
+            alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+            alarmListener = new AlarmManager.OnAlarmListener() {
+                @Override
+                public void onAlarm() {
+                    // Called on the scheduler thread, the alarm wake lock is held
+                    runDueTasks();
+                }
+            };
+        } else {
+            alarmManager = null;
+            alarmListener = null;
+        }
+        wakeupTime = 0L;
+        arm();
+    }
+
+    /**
+     * Cancels all the tasks and stops the scheduler thread.
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        for (ScheduledTask task : queue) {
+            task.cancelled = true;
+        }
+        queue.clear();
+        handler.removeCallbacks(wakeup);
+        cancelAlarm();
+        thread.quit();
+    }
+
+    private synchronized ScheduledTask add(Runnable runnable, long delay, long period) {
+        if (shutdown) {
+            throw new IllegalStateException(name + " is shut down");
+        }
+        ScheduledTask task = new ScheduledTask(runnable, SystemClock.elapsedRealtime() + Math.max(delay, 0L),
+                period);
+        queue.add(task);
+        arm();
+        return task;
+    }
+
+    /*
+     * Runs the tasks due, then arms the next wakeup. A task never runs before
+     * its deadline, the wakeup at the end of the tolerance already batches
+     * the tasks with close deadlines.
+     */
+    private void runDueTasks() {
+        while (true) {
+            ScheduledTask task;
+            synchronized (this) {
+                long now = SystemClock.elapsedRealtime();
+                task = queue.peek();
+                if (shutdown || task == null || task.deadline > now) {
+                    wakeupTime = 0L;
+                    arm();
+                    return;
+                }
+                queue.poll();
+                if (task.period > 0) {
+                    task.deadline += task.period;
+                    if (task.deadline <= now) {
+                        // Skip the runs missed while the device slept
+                        task.deadline += ((now - task.deadline) / task.period + 1) * task.period;
+                    }
+                    queue.add(task);
+                } else {
+                    task.cancelled = true;
+                }
+            }
+            try {
+                task.runnable.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, name + " task failed", e);
+            }
+        }
+    }
+
+    /*
+     * Arms the wakeup at the earliest latest time of the queued tasks, if
+     * earlier than the armed one.
+     */
+    private void arm() {
+        if (shutdown) {
+            return;
+        }
+        ScheduledTask first = queue.peek();
+        if (first == null) {
+            return;
+        }
+        long time = first.deadline + tolerance;
+        if (wakeupTime != 0L && wakeupTime <= time) {
+            return;
+        }
+        wakeupTime = time;
+        handler.removeCallbacks(wakeup);
+        handler.postAtTime(wakeup, SystemClock.uptimeMillis() + (time - SystemClock.elapsedRealtime()));
+        if (alarmManager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            AlarmManager.OnAlarmListener listener = (AlarmManager.OnAlarmListener) alarmListener;
+            alarmManager.cancel(listener);
+            alarmManager.setWindow(AlarmManager.ELAPSED_REALTIME_WAKEUP, first.deadline, tolerance, name,
+                    listener, handler);
+        }
+    }
+
+    private void cancelAlarm() {
+        if (alarmManager != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            alarmManager.cancel((AlarmManager.OnAlarmListener) alarmListener);
+        }
+    }
+}
@@ -21,7 +21,10 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 
+import com.mapscloud.track.R;
+
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -36,6 +39,7 @@ public class PreferencesUtils {
      * Preferences values. The defaults need to match the defaults in the xml
      * files.
      */
+    public static final boolean ALARM_ALIGNED_SCHEDULING_DEFAULT = false;
     public static final boolean ALLOW_ACCESS_DEFAULT = false;
     public static final int AUTO_RESUME_TRACK_CURRENT_RETRY_DEFAULT = 0;
 
@@ -44,6 +48,7 @@ public class PreferencesUtils {
     public static final int AUTO_RESUME_TRACK_TIMEOUT_DEFAULT = 10;
     public static final int AUTO_RESUME_TRACK_TIMEOUT_NEVER = 0;
 
+    public static final boolean BATCHED_RECORDING_DEFAULT = false;
     public static final String BLUETOOTH_SENSOR_DEFAULT = "";
     public static final boolean CHART_BY_DISTANCE_DEFAULT = true;
     public static final boolean CHART_SHOW_CADENCE_DEFAULT = true;
@@ -51,6 +56,7 @@ public class PreferencesUtils {
     public static final boolean CHART_SHOW_HEART_RATE_DEFAULT = true;
     public static final boolean CHART_SHOW_POWER_DEFAULT = true;
     public static final boolean CHART_SHOW_SPEED_DEFAULT = true;
+    public static final int COLD_STORAGE_AGE_DEFAULT = 180;
 
     public static final boolean CONFIRM_PLAY_EARTH_DEFAULT = true;
     public static final boolean CONFIRM_SHARE_DRIVE_DEFAULT = true;
@@ -63,6 +69,9 @@ public class PreferencesUtils {
     public static final long DRIVE_LARGEST_CHANGE_ID_DEFAULT = -1L;
     public static final boolean DRIVE_SYNC_DEFAULT = false;
 
+    // Value for fix_overflow_policy_key, a FixRing.OverflowPolicy name
+    public static final String FIX_OVERFLOW_POLICY_DEFAULT = "DROP_OLDEST";
+
     // Value for split_frequency_key and voice_frequency_key
     public static final int FREQUENCY_OFF = 0;
 
@@ -77,6 +86,7 @@ public class PreferencesUtils {
     // Values for min_recording_interval_key
     public static final int MIN_RECORDING_INTERVAL_ADAPT_ACCURACY = -1;
     public static final int MIN_RECORDING_INTERVAL_ADAPT_BATTERY_LIFE = -2;
+    public static final int MIN_RECORDING_INTERVAL_ADAPT_MOTION = -3;
     public static final int MIN_RECORDING_INTERVAL_DEFAULT = 0;
 
     // Values for min_required_accuracy
@@ -85,6 +95,7 @@ public class PreferencesUtils {
     public static final int MIN_REQUIRED_ACCURACY_POOR = 5000;
 
     public static final boolean PICK_EXISTING_MAP_DEFAULT = false;
+    public static final boolean PROVIDER_PROFILING_DEFAULT = false;
     public static final long RECORDING_TRACK_ID_DEFAULT = -1L;
     public static final boolean RECORDING_TRACK_PAUSED_DEFAULT = true;
     public static final boolean REPORT_SPEED_DEFAULT = true;
@@ -96,11 +107,17 @@ public class PreferencesUtils {
     public static final boolean SEND_TO_SPREADSHEETS_DEFAULT = false;
 
     public static final String SENSOR_TYPE_DEFAULT = "NONE";
+    // In milliseconds
+    public static final int SLOW_QUERY_THRESHOLD_DEFAULT = 100;
+    public static final boolean SMOOTHING_FILTER_DEFAULT = false;
     public static final int SPLIT_FREQUENCY_DEFAULT = 0;
     public static final boolean STATS_SHOW_COORDINATE_DEFAULT = false;
     public static final boolean STATS_SHOW_ELEVATION_DEFAULT = false;
     public static final boolean STATS_SHOW_GRADE_DEFAULT = false;
     public static final boolean STATS_SHOW_MOVING_TIME_DEFAULT = false;
+    public static final String SYNC_ENDPOINT_DEFAULT = "";
+    public static final boolean TELEMETRY_DEFLATE_DEFAULT = false;
+    public static final String TELEMETRY_ENDPOINT_DEFAULT = "";
     public static final String TRACK_COLOR_MODE_DEFAULT = "DYNAMIC";
     public static final int TRACK_COLOR_MODE_MEDIUM_DEFAULT = 15;
     public static final int TRACK_COLOR_MODE_PERCENTAGE_DEFAULT = 25;
@@ -264,6 +281,29 @@ public class PreferencesUtils {
         // ApiAdapterFactory.getApiAdapter().applyPreferenceChanges(editor);
     }
 
+    /**
+     * Gets the ids of the tracks being recorded, paused included, of all the
+     * apps. The service keeps the track of each app under appId +
+     * recording_track_id_key, the bare key is the track without app.
+     *
+     * @param context the context
+     */
+    public static Set<Long> getRecordingTrackIds(Context context) {
+        SharedPreferences sharedPreferences = context
+                .getSharedPreferences(Constant.SETTINGS_NAME, Context.MODE_PRIVATE);
+        String suffix = getKey(context, R.string.recording_track_id_key);
+        Set<Long> trackIds = new HashSet<>();
+        for (Map.Entry<String, ?> entry : sharedPreferences.getAll().entrySet()) {
+            if (entry.getKey().endsWith(suffix) && entry.getValue() instanceof Long) {
+                long trackId = (Long) entry.getValue();
+                if (trackId != RECORDING_TRACK_ID_DEFAULT) {
+                    trackIds.add(trackId);
+                }
+            }
+        }
+        return trackIds;
+    }
+
     /**
      * Gets a array string preference value.
      */
@@ -24,13 +24,7 @@ import android.text.format.DateUtils;
 import com.mapscloud.track.R;
 import com.mapscloud.track.services.tracks.UnitConversions;
 
-import java.text.ParsePosition;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.Locale;
-import java.util.TimeZone;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Various string manipulation methods.
@@ -40,14 +34,13 @@ import java.util.regex.Pattern;
  */
 public class StringUtils {
 
-    private static final SimpleDateFormat ISO_8601_DATE_TIME_FORMAT = new SimpleDateFormat(
-            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-    private static final SimpleDateFormat ISO_8601_BASE = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
-    private static final Pattern ISO_8601_EXTRAS = Pattern.compile("^(\\.\\d+)?(?:Z|([+-])(\\d{2}):(\\d{2}))?$");
-    static {
-        ISO_8601_DATE_TIME_FORMAT.setTimeZone(TimeZone.getTimeZone("UTC"));
-        ISO_8601_BASE.setTimeZone(TimeZone.getTimeZone("UTC"));
-    }
+    /**
+     * Length of a date time formatted by
+     * {@link #formatDateTimeIso8601(long, char[], int)}.
+     */
+    public static final int ISO_8601_DATE_TIME_LENGTH = 24;
+
+    private static final long MILLIS_PER_DAY = 24L * 60L * 60L * 1000L;
 
     private StringUtils() {
     }
@@ -73,7 +66,73 @@ public class StringUtils {
      *            the time in milliseconds
      */
     public static String formatDateTimeIso8601(long time) {
-        return ISO_8601_DATE_TIME_FORMAT.format(time);
+        char[] buffer = new char[ISO_8601_DATE_TIME_LENGTH];
+        formatDateTimeIso8601(time, buffer, 0);
+        return new String(buffer);
+    }
+
+    /**
+     * Formats the time as "yyyy-MM-ddTHH:mm:ss.SSSZ" in UTC time zone into a
+     * caller owned buffer. Does not allocate, and is safe to call from several
+     * threads as long as the buffers differ. Returns the number of chars
+     * written, always {@link #ISO_8601_DATE_TIME_LENGTH}.
+     * 
+     * @param time
+     *            the time in milliseconds, for years 0 to 9999
+     * @param buffer
+     *            the buffer
+     * @param offset
+     *            the offset in the buffer
+     */
+    public static int formatDateTimeIso8601(long time, char[] buffer, int offset) {
+        long days = time / MILLIS_PER_DAY;
+        long millisOfDay = time % MILLIS_PER_DAY;
+        if (millisOfDay < 0) {
+            days--;
+            millisOfDay += MILLIS_PER_DAY;
+        }
+
+        // Civil date from days since 1970-01-01, see
+        // http://howardhinnant.github.io/date_algorithms.html
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - era * 146097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+
+        int millis = (int) millisOfDay;
+        int i = offset;
+        i = writeDigits(year, 4, buffer, i);
+        buffer[i++] = '-';
+        i = writeDigits(month, 2, buffer, i);
+        buffer[i++] = '-';
+        i = writeDigits(day, 2, buffer, i);
+        buffer[i++] = 'T';
+        i = writeDigits(millis / 3600000, 2, buffer, i);
+        buffer[i++] = ':';
+        i = writeDigits(millis / 60000 % 60, 2, buffer, i);
+        buffer[i++] = ':';
+        i = writeDigits(millis / 1000 % 60, 2, buffer, i);
+        buffer[i++] = '.';
+        i = writeDigits(millis % 1000, 3, buffer, i);
+        buffer[i++] = 'Z';
+        return i - offset;
+    }
+
+    /**
+     * Writes a non negative value as a fixed number of digits, zero padded.
+     * Returns the next offset.
+     */
+    private static int writeDigits(int value, int digits, char[] buffer, int offset) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
     }
 
     /**
@@ -288,59 +347,80 @@ public class StringUtils {
 
     /**
      * Gets the time, in milliseconds, from an XML date time string as defined
-     * at http://www.w3.org/TR/xmlschema-2/#dateTime
+     * at http://www.w3.org/TR/xmlschema-2/#dateTime, in the form
+     * "yyyy-MM-ddTHH:mm:ss[.fraction][Z|+hh:mm|-hh:mm]". A missing time zone is
+     * taken as UTC. Parsed by hand without regular expressions or
+     * {@link java.text.SimpleDateFormat}, it is on the import hot path.
      * 
      * @param xmlDateTime
      *            the XML date time string
      */
     public static long getTime(String xmlDateTime) {
-        // Parse the date time base
-        ParsePosition position = new ParsePosition(0);
-        Date date = ISO_8601_BASE.parse(xmlDateTime, position);
-        if (date == null) {
-            throw new IllegalArgumentException("Invalid XML dateTime value: " + xmlDateTime + " (at position "
-                    + position.getErrorIndex() + ")");
+        int length = xmlDateTime.length();
+        if (length < 19 || xmlDateTime.charAt(4) != '-' || xmlDateTime.charAt(7) != '-'
+                || xmlDateTime.charAt(10) != 'T' || xmlDateTime.charAt(13) != ':'
+                || xmlDateTime.charAt(16) != ':') {
+            throw new IllegalArgumentException("Invalid XML dateTime value: " + xmlDateTime);
         }
-
-        // Parse the date time extras
-        Matcher matcher = ISO_8601_EXTRAS.matcher(xmlDateTime.substring(position.getIndex()));
-        if (!matcher.matches()) {
-            // This will match even an empty string as all groups are optional.
-            // Thus a
-            // non-match means invalid content.
+        int year = parseDigits(xmlDateTime, 0, 4);
+        int month = parseDigits(xmlDateTime, 5, 2);
+        int day = parseDigits(xmlDateTime, 8, 2);
+        int hour = parseDigits(xmlDateTime, 11, 2);
+        int minute = parseDigits(xmlDateTime, 14, 2);
+        int second = parseDigits(xmlDateTime, 17, 2);
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 24 || minute > 59 || second > 60) {
             throw new IllegalArgumentException("Invalid XML dateTime value: " + xmlDateTime);
         }
 
-        long time = date.getTime();
+        // Days since 1970-01-01, see
+        // http://howardhinnant.github.io/date_algorithms.html
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097 + dayOfEra - 719468;
+        long time = ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L;
 
-        // Account for fractional seconds
-        String fractional = matcher.group(1);
-        if (fractional != null) {
-            // Regex ensures fractional part is in (0,1)
-            float fractionalSeconds = Float.parseFloat(fractional);
-            long fractionalMillis = (long) (fractionalSeconds * 1000.0f);
-            time += fractionalMillis;
+        // Account for fractional seconds, truncated to milliseconds
+        int i = 19;
+        if (i < length && xmlDateTime.charAt(i) == '.') {
+            i++;
+            int start = i;
+            int millis = 0;
+            while (i < length && isDigit(xmlDateTime.charAt(i))) {
+                if (i - start < 3) {
+                    millis = millis * 10 + xmlDateTime.charAt(i) - '0';
+                }
+                i++;
+            }
+            if (i == start) {
+                throw new IllegalArgumentException("Invalid XML dateTime value: " + xmlDateTime);
+            }
+            for (int digits = i - start; digits < 3; digits++) {
+                millis *= 10;
+            }
+            time += millis;
         }
 
         // Account for timezones
-        String sign = matcher.group(2);
-        String offsetHoursStr = matcher.group(3);
-        String offsetMinsStr = matcher.group(4);
-        if (sign != null && offsetHoursStr != null && offsetMinsStr != null) {
-            // Regex ensures sign is + or -
-            boolean plusSign = sign.equals("+");
-            int offsetHours = Integer.parseInt(offsetHoursStr);
-            int offsetMins = Integer.parseInt(offsetMinsStr);
-
-            // Regex ensures values are >= 0
+        if (i < length) {
+            char sign = xmlDateTime.charAt(i);
+            if (sign == 'Z' && i + 1 == length) {
+                return time;
+            }
+            if ((sign != '+' && sign != '-') || i + 6 != length || xmlDateTime.charAt(i + 3) != ':') {
+                throw new IllegalArgumentException("Invalid XML dateTime value: " + xmlDateTime);
+            }
+            int offsetHours = parseDigits(xmlDateTime, i + 1, 2);
+            int offsetMins = parseDigits(xmlDateTime, i + 4, 2);
             if (offsetHours > 14 || offsetMins > 59) {
                 throw new IllegalArgumentException("Bad timezone: " + xmlDateTime);
             }
-
             long totalOffsetMillis = (offsetMins + offsetHours * 60L) * 60000L;
 
             // Convert to UTC
-            if (plusSign) {
+            if (sign == '+') {
                 time -= totalOffsetMillis;
             } else {
                 time += totalOffsetMillis;
@@ -349,6 +429,25 @@ public class StringUtils {
         return time;
     }
 
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Parses a fixed number of decimal digits.
+     */
+    private static int parseDigits(String text, int offset, int digits) {
+        int value = 0;
+        for (int i = offset; i < offset + digits; i++) {
+            char c = text.charAt(i);
+            if (!isDigit(c)) {
+                throw new IllegalArgumentException("Invalid XML dateTime value: " + text);
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
     /**
      * Gets the time as an array of three integers. Index 0 contains the number
      * of seconds, index 1 contains the number of minutes, and index 2 contains
@@ -0,0 +1,207 @@
+package com.mapscloud.track.services.model;
+
+import android.content.Intent;
+import android.database.Cursor;
+import android.location.Location;
+import android.location.LocationManager;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.content.TrackPointsColumns;
+import com.mapscloud.track.services.content.TracksColumns;
+import com.mapscloud.track.services.provider.MyTracksProvider;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.replay.ReplayClock;
+import com.mapscloud.track.services.replay.ReplayHarness;
+import com.mapscloud.track.services.replay.ReplayReport;
+import com.mapscloud.track.services.replay.ReplayTrace;
+import com.mapscloud.track.services.utils.Clock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests replaying a trace through the {@link RecordingHooks} with the
+ * {@link ReplayHarness}, into a {@link TrackRecordingService} bound like a
+ * client does and recording into {@link MyTracksProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RecordingHooksTest {
+
+    private static final long TIMEOUT = 30 * 1000L;
+    private static final int FIXTURE_SIZE = 30;
+
+    private MyTracksProviderUtils providerUtils;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(MyTracksProvider.class, MyTracksProviderUtils.AUTHORITY);
+        providerUtils = MyTracksProviderUtils.Factory.get(RuntimeEnvironment.application);
+    }
+
+    @After
+    public void tearDown() {
+        RecordingHooks.clear();
+    }
+
+    /**
+     * Tests reading the GPX fixture, the point without a time is left out.
+     */
+    @Test
+    public void testGpxFixture() throws IOException {
+        ReplayTrace trace = readFixture();
+
+        assertEquals(FIXTURE_SIZE, trace.size());
+        assertEquals(trace.get(0).getTime(), trace.getStartTime());
+        for (int i = 0; i < trace.size(); i++) {
+            Location location = trace.get(i);
+            assertEquals(LocationManager.GPS_PROVIDER, location.getProvider());
+            assertEquals(ReplayTrace.DEFAULT_ACCURACY, location.getAccuracy(), 0f);
+            assertEquals(trace.getStartTime() + i * 1000L, location.getTime());
+            assertEquals(i, trace.indexOf(location.getTime()));
+        }
+    }
+
+    /**
+     * Tests that a stepped replay records a track per app from the fixture,
+     * with the points at the fix times, reports the latency of each commit,
+     * then removes the hooks.
+     */
+    @Test
+    public void testSteppedReplay() throws Exception {
+        ReplayTrace trace = readFixture();
+        ReplayHarness harness = new ReplayHarness(trace, 0, 2);
+        harness.prepare();
+        assertTrue(RecordingHooks.getClock() instanceof ReplayClock);
+
+        ReplayReport report = replay(harness);
+
+        assertEquals(2, report.appCount);
+        assertEquals(FIXTURE_SIZE, report.emittedCount);
+        assertReport(report, FIXTURE_SIZE * 2);
+        for (int i = 0; i < 2; i++) {
+            assertTrack(trace, ReplayHarness.APP_ID_PREFIX + i);
+        }
+        assertSame(Clock.SYSTEM, RecordingHooks.getClock());
+        assertNull(RecordingHooks.getLocationSource());
+        assertNull(RecordingHooks.getPipelineObserver());
+    }
+
+    /**
+     * Tests a synthetic trace, the same seed gives the same fixes.
+     */
+    @Test
+    public void testSyntheticReplay() throws Exception {
+        long startTime = 1600000000000L;
+        ReplayTrace trace = ReplayTrace.synthetic(startTime, 200, 1000L, 1);
+        ReplayTrace same = ReplayTrace.synthetic(startTime, 200, 1000L, 1);
+        for (int i = 0; i < trace.size(); i++) {
+            assertEquals(trace.get(i).getTime(), same.get(i).getTime());
+            assertEquals(trace.get(i).getLatitude(), same.get(i).getLatitude(), 0.0);
+            assertEquals(trace.get(i).getLongitude(), same.get(i).getLongitude(), 0.0);
+        }
+
+        ReplayHarness harness = new ReplayHarness(trace, 0, 2);
+        harness.prepare();
+        ReplayReport report = replay(harness);
+
+        assertEquals(trace.size(), report.emittedCount);
+        assertReport(report, trace.size() * 2);
+        for (int i = 0; i < 2; i++) {
+            assertTrack(trace, ReplayHarness.APP_ID_PREFIX + i);
+        }
+    }
+
+    /**
+     * Tests a replay faster than real time, it takes at least the trace time
+     * divided by the speedup.
+     */
+    @Test
+    public void testSpeedup() throws Exception {
+        ReplayTrace trace = readFixture();
+        double speedup = 100;
+        ReplayHarness harness = new ReplayHarness(trace, speedup, 1);
+        harness.prepare();
+
+        ReplayReport report = replay(harness);
+
+        assertReport(report, FIXTURE_SIZE);
+        assertTrack(trace, ReplayHarness.APP_ID_PREFIX + 0);
+        long traceMillis = trace.get(trace.size() - 1).getTime() - trace.getStartTime();
+        assertTrue(report.elapsedNanos >= (long) (traceMillis / speedup) * 1000000L);
+    }
+
+    private ReplayTrace readFixture() throws IOException {
+        return ReplayTrace.fromGpx(getClass().getResourceAsStream("replay.gpx"));
+    }
+
+    /**
+     * Creates the service after the hooks are set, binds it and runs the
+     * replay through the binder.
+     */
+    private ReplayReport replay(ReplayHarness harness) throws Exception {
+        ServiceController<TrackRecordingService> controller =
+                Robolectric.buildService(TrackRecordingService.class).create();
+        try {
+            ITrackRecordingService service = ITrackRecordingService.Stub.asInterface(
+                    controller.get().onBind(new Intent()));
+            return harness.run(service, TIMEOUT);
+        } finally {
+            controller.destroy();
+        }
+    }
+
+    /*
+     * 停留的定位只延长上一个点，不会插入新的行，所以提交数不超过定位数
+     */
+    private static void assertReport(ReplayReport report, int maxCommitted) {
+        assertTrue(report.committedCount > 0);
+        assertTrue(report.committedCount <= maxCommitted);
+        assertTrue(report.latencyP50Nanos > 0);
+        assertTrue(report.latencyP50Nanos <= report.latencyMaxNanos);
+        assertTrue(report.databaseBytes >= 0);
+    }
+
+    /**
+     * Asserts that the app has one recorded track, which starts at the trace
+     * start and has its points at fix times in order.
+     */
+    private void assertTrack(ReplayTrace trace, String appId) {
+        List<Track> tracks = providerUtils.getTracks(TracksColumns.COLUMN_APP_ID + "=?", new String[]{appId});
+        assertEquals(1, tracks.size());
+
+        Cursor cursor = providerUtils.getTrackPointCursor(tracks.get(0).id, -1L, -1, false);
+        try {
+            int timeIndex = cursor.getColumnIndexOrThrow(TrackPointsColumns.TIME);
+            assertTrue(cursor.getCount() > 0);
+            assertTrue(cursor.getCount() <= trace.size());
+            long lastTime = -1L;
+            while (cursor.moveToNext()) {
+                long time = cursor.getLong(timeIndex);
+                if (lastTime == -1L) {
+                    assertEquals(trace.getStartTime(), time);
+                }
+                assertTrue(time > lastTime);
+                assertTrue(trace.indexOf(time) >= 0);
+                lastTime = time;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.mapscloud.track.services.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.location.Location;
+import android.location.LocationManager;
+import android.net.Uri;
+
+import com.mapscloud.track.services.basic.BasicRecordBean;
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.content.TracksColumns;
+import com.mapscloud.track.services.provider.MyTracksProvider;
+import com.mapscloud.track.services.provider.MyTracksProviderUtils;
+import com.mapscloud.track.services.utils.CoalescingScheduler;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link TrackSyncEngine} against a mock sync server over TLS, with the
+ * track and its sync columns in {@link MyTracksProvider}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TrackSyncEngineTest {
+
+    private static final long SERVER_ID = 42;
+    private static final long TIMEOUT = 10 * 1000L;
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private CoalescingScheduler scheduler;
+    private MyTracksProviderUtils providerUtils;
+    private long trackId;
+    private long firstPointId;
+    private TrackSyncEngine engine;
+
+    @Before
+    public void setUp() throws IOException {
+        HeldCertificate localhost = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("localhost")
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(localhost)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(localhost.certificate())
+                .build();
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.start();
+        client = new OkHttpClient.Builder()
+                .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager())
+                .build();
+        scheduler = new CoalescingScheduler("TrackSyncEngineTest", 0);
+        Robolectric.setupContentProvider(MyTracksProvider.class, MyTracksProviderUtils.AUTHORITY);
+        providerUtils = MyTracksProviderUtils.Factory.get(RuntimeEnvironment.application);
+        Track track = new Track();
+        track.appId = "test";
+        Uri uri = providerUtils.insertTrack(track);
+        trackId = Long.parseLong(uri.getLastPathSegment());
+        updateTrack(TracksColumns.MODIFIEDTIME, 1000L);
+        engine = new TrackSyncEngine(RuntimeEnvironment.application, providerUtils, scheduler, client);
+        engine.setEndpoint(server.url("/sync/").toString());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        engine.shutdown();
+        scheduler.shutdown();
+        server.shutdown();
+    }
+
+    /**
+     * Tests that a sync interrupted after a chunk resumes at the first chunk
+     * not acknowledged, from {@link TracksColumns#SYNC_POINT_ID}.
+     */
+    @Test
+    public void testResumeFromWatermark() throws Exception {
+        insertPoints(TrackSyncEngine.CHUNK_POINTS * 2 + 500);
+        long watermark = getPointId(TrackSyncEngine.CHUNK_POINTS);
+        server.enqueue(json("{\"id\":" + SERVER_ID + "}"));
+        server.enqueue(json("{\"watermark\":" + watermark + "}"));
+        server.enqueue(new MockResponse().setResponseCode(500));
+
+        assertFalse(engine.syncTrack(trackId));
+        assertEquals("/sync/tracks", takeRequest("POST").getPath());
+        JSONObject first = readBody(takeRequest("POST"));
+        assertEquals(-1, first.getLong("from"));
+        assertEquals(TrackSyncEngine.CHUNK_POINTS, first.getJSONArray("points").length());
+        assertEquals(watermark, readBody(takeRequest("POST")).getLong("from"));
+        assertEquals(Long.valueOf(SERVER_ID), getTrackColumn(TracksColumns.COLUMN_SERVERDBID));
+        assertEquals(Long.valueOf(watermark), getTrackColumn(TracksColumns.SYNC_POINT_ID));
+        assertEquals(Long.valueOf(BasicRecordBean.US_PENDING), getTrackColumn(TracksColumns.COLUMN_UPLOAD_STATE));
+
+        long lastPointId = getPointId(TrackSyncEngine.CHUNK_POINTS * 2 + 500);
+        server.enqueue(json("{\"watermark\":" + getPointId(TrackSyncEngine.CHUNK_POINTS * 2) + "}"));
+        server.enqueue(json("{\"watermark\":" + lastPointId + "}"));
+        assertTrue(engine.syncTrack(trackId));
+        RecordedRequest resumed = takeRequest("POST");
+        assertEquals("/sync/tracks/" + SERVER_ID + "/points", resumed.getPath());
+        JSONObject body = readBody(resumed);
+        assertEquals(watermark, body.getLong("from"));
+        JSONArray points = body.getJSONArray("points");
+        assertEquals(watermark + 1, points.getJSONArray(0).getLong(0));
+        assertEquals(500, readBody(takeRequest("POST")).getJSONArray("points").length());
+        assertNull(server.takeRequest(100, TimeUnit.MILLISECONDS));
+        assertEquals(Long.valueOf(lastPointId), getTrackColumn(TracksColumns.SYNC_POINT_ID));
+        assertEquals(Long.valueOf(BasicRecordBean.US_COMPLETED), getTrackColumn(TracksColumns.COLUMN_UPLOAD_STATE));
+    }
+
+    /**
+     * Tests that an http:// endpoint is refused, nothing is sent in clear.
+     */
+    @Test
+    public void testPlainEndpointRefused() throws Exception {
+        insertPoints(10);
+        engine.setEndpoint(server.url("/sync/").toString().replace("https://", "http://"));
+
+        assertFalse(engine.isEnabled());
+        assertFalse(engine.syncTrack(trackId));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    /**
+     * Tests that a recording track is left for the sync at its end, the
+     * dwell of its last point still changes after the watermark.
+     */
+    @Test
+    public void testRecordingTrackNotSynced() throws Exception {
+        insertPoints(10);
+        engine.setRecording(trackId, true);
+
+        assertTrue(engine.syncTrack(trackId));
+        assertEquals(0, server.getRequestCount());
+        assertNull(getTrackColumn(TracksColumns.SYNC_POINT_ID));
+
+        engine.setRecording(trackId, false);
+        server.enqueue(json("{\"id\":" + SERVER_ID + "}"));
+        server.enqueue(json("{\"watermark\":" + getPointId(10) + "}"));
+        assertTrue(engine.syncTrack(trackId));
+        assertEquals(Long.valueOf(getPointId(10)), getTrackColumn(TracksColumns.SYNC_POINT_ID));
+    }
+
+    /**
+     * Tests that a chunk the server doesn't acknowledge fails the sync and
+     * leaves the watermark.
+     */
+    @Test
+    public void testChunkNotAcknowledged() throws Exception {
+        insertPoints(20);
+        updateTrack(TracksColumns.COLUMN_SERVERDBID, SERVER_ID);
+        updateTrack(TracksColumns.SYNC_MODIFIED_TIME, 1000L);
+        updateTrack(TracksColumns.SYNC_POINT_ID, getPointId(10));
+        server.enqueue(json("{\"watermark\":" + getPointId(10) + "}"));
+
+        assertFalse(engine.syncTrack(trackId));
+        assertEquals(Long.valueOf(getPointId(10)), getTrackColumn(TracksColumns.SYNC_POINT_ID));
+    }
+
+    /**
+     * Tests that the retries of a failing track back off exponentially, and
+     * stop once synced.
+     */
+    @Test
+    public void testRetryBackoff() throws Exception {
+        insertPoints(10);
+        server.enqueue(new MockResponse().setResponseCode(503));
+        engine.requestSync(trackId);
+        awaitRetryDelay(60 * 1000L);
+        assertEquals(Long.valueOf(BasicRecordBean.US_PENDING), getTrackColumn(TracksColumns.COLUMN_UPLOAD_STATE));
+
+        server.enqueue(new MockResponse().setResponseCode(503));
+        engine.requestSync(trackId);
+        awaitRetryDelay(2 * 60 * 1000L);
+
+        server.enqueue(new MockResponse().setResponseCode(503));
+        engine.requestSync(trackId);
+        awaitRetryDelay(4 * 60 * 1000L);
+
+        server.enqueue(json("{\"id\":" + SERVER_ID + "}"));
+        server.enqueue(json("{\"watermark\":" + getPointId(10) + "}"));
+        engine.requestSync(trackId);
+        awaitRetryDelay(0L);
+        assertEquals(Long.valueOf(BasicRecordBean.US_COMPLETED), getTrackColumn(TracksColumns.COLUMN_UPLOAD_STATE));
+        assertEquals(Long.valueOf(getPointId(10)), getTrackColumn(TracksColumns.SYNC_POINT_ID));
+        assertEquals(5, server.getRequestCount());
+    }
+
+    /**
+     * Tests that the metadata modified during a sync is uploaded again by
+     * the next sync: {@link TracksColumns#SYNC_MODIFIED_TIME} keeps the
+     * modified time read when the sync started.
+     */
+    @Test
+    public void testModifiedDuringSync() throws Exception {
+        updateTrack(TracksColumns.COLUMN_SERVERDBID, SERVER_ID);
+        updateTrack(TracksColumns.SYNC_POINT_ID, 0L);
+        updateTrack(TracksColumns.SYNC_MODIFIED_TIME, 1000L);
+        updateTrack(TracksColumns.MODIFIEDTIME, 2000L);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if ("PUT".equals(request.getMethod())) {
+                    // 上传元数据期间轨迹被再次修改
+                    updateTrack(TracksColumns.MODIFIEDTIME, 3000L);
+                }
+                return json("{}");
+            }
+        });
+
+        assertTrue(engine.syncTrack(trackId));
+        RecordedRequest put = takeRequest("PUT");
+        assertEquals("/sync/tracks/" + SERVER_ID, put.getPath());
+        assertEquals(2000L, readBody(put).getLong("modifiedTime"));
+        assertEquals(Long.valueOf(2000L), getTrackColumn(TracksColumns.SYNC_MODIFIED_TIME));
+
+        assertTrue(engine.syncTrack(trackId));
+        assertEquals(3000L, readBody(takeRequest("PUT")).getLong("modifiedTime"));
+        assertEquals(Long.valueOf(3000L), getTrackColumn(TracksColumns.SYNC_MODIFIED_TIME));
+
+        assertTrue(engine.syncTrack(trackId));
+        assertNull(server.takeRequest(100, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Tests that a failed metadata upload keeps the previous
+     * {@link TracksColumns#SYNC_MODIFIED_TIME}, so it is retried.
+     */
+    @Test
+    public void testMetadataRejected() throws Exception {
+        updateTrack(TracksColumns.COLUMN_SERVERDBID, SERVER_ID);
+        updateTrack(TracksColumns.SYNC_POINT_ID, 0L);
+        updateTrack(TracksColumns.SYNC_MODIFIED_TIME, 1000L);
+        updateTrack(TracksColumns.MODIFIEDTIME, 2000L);
+        server.enqueue(new MockResponse().setResponseCode(409));
+
+        assertFalse(engine.syncTrack(trackId));
+        assertEquals("PUT", takeRequest("PUT").getMethod());
+        assertEquals(Long.valueOf(1000L), getTrackColumn(TracksColumns.SYNC_MODIFIED_TIME));
+        assertEquals(Long.valueOf(BasicRecordBean.US_PENDING), getTrackColumn(TracksColumns.COLUMN_UPLOAD_STATE));
+    }
+
+    /**
+     * Inserts the points of the track, a point per second.
+     */
+    private void insertPoints(int count) {
+        Location[] locations = new Location[count];
+        for (int i = 0; i < count; i++) {
+            Location location = new Location(LocationManager.GPS_PROVIDER);
+            location.setTime(1600000000000L + (i + 1) * 1000L);
+            location.setLatitude(39.9 + (i + 1) * 1e-6);
+            location.setLongitude(116.4 + (i + 1) * 1e-6);
+            location.setAltitude(50);
+            location.setAccuracy(5);
+            location.setSpeed(1.5f);
+            location.setBearing(90);
+            locations[i] = location;
+        }
+        providerUtils.bulkInsertTrackPoint(locations, count, trackId);
+        firstPointId = providerUtils.getFirstTrackPointId(trackId);
+    }
+
+    /**
+     * Gets the id of the nth point of the track, from 1.
+     */
+    private long getPointId(int n) {
+        return firstPointId + n - 1;
+    }
+
+    private void updateTrack(String column, long value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        providerUtils.updateUploadInfo(RuntimeEnvironment.application, values, TracksColumns._ID + "=?",
+                new String[]{Long.toString(trackId)});
+    }
+
+    /**
+     * Gets a column of the track row, null if null.
+     */
+    private Long getTrackColumn(String column) {
+        Cursor cursor = providerUtils.getTrackCursor(TracksColumns._ID + "=?",
+                new String[]{Long.toString(trackId)}, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            int index = cursor.getColumnIndexOrThrow(column);
+            return cursor.isNull(index) ? null : cursor.getLong(index);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private RecordedRequest takeRequest(String method) throws InterruptedException {
+        RecordedRequest request = server.takeRequest(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertEquals(method, request.getMethod());
+        return request;
+    }
+
+    private void awaitRetryDelay(long delay) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (engine.getRetryDelay(trackId) != delay) {
+            assertTrue("Retry delay " + engine.getRetryDelay(trackId), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static MockResponse json(String body) {
+        return new MockResponse().setHeader("Content-Type", "application/json").setBody(body);
+    }
+
+    private static JSONObject readBody(RecordedRequest request) throws IOException, JSONException {
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        InputStream in = new GZIPInputStream(request.getBody().inputStream());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int count; (count = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return new JSONObject(out.toString("UTF-8"));
+    }
+}
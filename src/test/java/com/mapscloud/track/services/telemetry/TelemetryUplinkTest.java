@@ -0,0 +1,360 @@
+package com.mapscloud.track.services.telemetry;
+
+import android.location.Location;
+
+import com.mapscloud.track.services.content.Track;
+import com.mapscloud.track.services.utils.CoalescingScheduler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import okhttp3.OkHttpClient;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link TelemetryUplink} against a mock WebSocket server over TLS.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class TelemetryUplinkTest {
+
+    private static final long TIMEOUT = 10 * 1000L;
+    private static final String APP_ID = "test";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final BlockingQueue<ByteString> messages = new LinkedBlockingQueue<ByteString>();
+    private final WebSocketListener serverListener = new WebSocketListener() {
+        @Override
+        public void onMessage(WebSocket webSocket, ByteString bytes) {
+            messages.add(bytes);
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(code, null);
+        }
+    };
+
+    private MockWebServer server;
+    private OkHttpClient client;
+    private CoalescingScheduler scheduler;
+
+    @Before
+    public void setUp() throws IOException {
+        HeldCertificate localhost = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("localhost")
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(localhost)
+                .build();
+        HandshakeCertificates clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(localhost.certificate())
+                .build();
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.start();
+        client = new OkHttpClient.Builder()
+                .sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager())
+                .build();
+        scheduler = new CoalescingScheduler("TelemetryUplinkTest", 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        scheduler.shutdown();
+        server.shutdown();
+    }
+
+    /**
+     * Tests that a ws:// endpoint is refused, nothing is sent in clear.
+     */
+    @Test
+    public void testPlainEndpointRefused() throws Exception {
+        MockWebServer plainServer = new MockWebServer();
+        plainServer.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
+        plainServer.start();
+        try {
+            TelemetryUplink uplink = new TelemetryUplink(scheduler, temporaryFolder.newFolder(), client);
+            uplink.setEndpoint("ws://localhost:" + plainServer.getPort() + "/");
+            uplink.start();
+            offer(uplink, createTrack(1), TelemetryUplink.BATCH_SIZE);
+
+            assertNull(plainServer.takeRequest(1, TimeUnit.SECONDS));
+            assertFalse(uplink.isConnected());
+            assertEquals(0, uplink.getBacklog());
+            uplink.close();
+        } finally {
+            plainServer.shutdown();
+        }
+    }
+
+    /**
+     * Tests that the endpoint is empty by default, the uplink sends nothing
+     * until one is set.
+     */
+    @Test
+    public void testDisabledByDefault() throws Exception {
+        TelemetryUplink uplink = new TelemetryUplink(scheduler, temporaryFolder.newFolder(), client);
+        uplink.start();
+        offer(uplink, createTrack(1), TelemetryUplink.BATCH_SIZE);
+
+        assertEquals(0, uplink.getBacklog());
+        assertEquals(0, server.getRequestCount());
+        uplink.close();
+    }
+
+    /**
+     * Tests that a full batch is sent as one frame, then the partial batch
+     * of an ended track.
+     */
+    @Test
+    public void testBatches() throws Exception {
+        server.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
+        TelemetryUplink uplink = new TelemetryUplink(scheduler, temporaryFolder.newFolder(), client);
+        uplink.setEndpoint(getEndpoint());
+        uplink.start();
+        awaitConnected(uplink);
+
+        Track track = createTrack(7);
+        offer(uplink, track, TelemetryUplink.BATCH_SIZE + 3);
+        Frame first = takeFrame();
+        assertEquals(0, first.sequence);
+        assertEquals(APP_ID, first.appId);
+        assertEquals(7, first.trackId);
+        assertEquals(TelemetryUplink.BATCH_SIZE, first.size);
+
+        uplink.endTrack(track.id);
+        Frame second = takeFrame();
+        assertEquals(1, second.sequence);
+        assertEquals(3, second.size);
+        assertEquals(0, uplink.getBacklog());
+        uplink.close();
+    }
+
+    /**
+     * Tests that the frames are deflated when enabled.
+     */
+    @Test
+    public void testDeflate() throws Exception {
+        server.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
+        TelemetryUplink uplink = new TelemetryUplink(scheduler, temporaryFolder.newFolder(), client);
+        uplink.setDeflate(true);
+        uplink.setEndpoint(getEndpoint());
+        uplink.start();
+        awaitConnected(uplink);
+
+        offer(uplink, createTrack(3), TelemetryUplink.BATCH_SIZE);
+        Frame frame = takeFrame();
+        assertTrue(frame.deflated);
+        assertEquals(3, frame.trackId);
+        assertEquals(TelemetryUplink.BATCH_SIZE, frame.size);
+        uplink.close();
+    }
+
+    /**
+     * Tests that the frames recorded offline are kept on disk, then sent
+     * first by the next run, whose sequence numbers continue after them.
+     */
+    @Test
+    public void testOfflineFramesAfterRestart() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        TelemetryUplink offline = new TelemetryUplink(scheduler, directory, client);
+        // 没有服务监听的端口，连接失败
+        offline.setEndpoint("wss://localhost:1/");
+        offline.start();
+        offer(offline, createTrack(1), TelemetryUplink.BATCH_SIZE * 2);
+        offline.close();
+        awaitFrameFiles(directory, 2);
+
+        server.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
+        TelemetryUplink uplink = new TelemetryUplink(scheduler, directory, client);
+        assertEquals(2, uplink.getBacklog());
+        uplink.setEndpoint(getEndpoint());
+        uplink.start();
+        awaitConnected(uplink);
+        offer(uplink, createTrack(2), TelemetryUplink.BATCH_SIZE);
+
+        Frame first = takeFrame();
+        Frame second = takeFrame();
+        Frame third = takeFrame();
+        assertEquals(1, first.trackId);
+        assertEquals(0, first.sequence);
+        assertEquals(1, second.trackId);
+        assertEquals(1, second.sequence);
+        assertEquals(2, third.trackId);
+        assertEquals(TelemetryUplink.SEQUENCE_BLOCK, third.sequence);
+        awaitBacklog(uplink, 0);
+        awaitFrameFiles(directory, 0);
+        uplink.close();
+    }
+
+    /**
+     * Tests that the sequence numbers never repeat across runs, after a run
+     * which used more than a block.
+     */
+    @Test
+    public void testSequenceAcrossRuns() throws Exception {
+        File directory = temporaryFolder.newFolder();
+        int frames = (int) TelemetryUplink.SEQUENCE_BLOCK + 10;
+        Track track = createTrack(1);
+        TelemetryUplink offline = new TelemetryUplink(scheduler, directory, client);
+        offline.setEndpoint("wss://localhost:1/");
+        offline.start();
+        for (int i = 0; i < frames; i++) {
+            offer(offline, track, 1);
+            offline.endTrack(track.id);
+        }
+        offline.close();
+        awaitFrameFiles(directory, frames);
+
+        server.enqueue(new MockResponse().withWebSocketUpgrade(serverListener));
+        TelemetryUplink uplink = new TelemetryUplink(scheduler, directory, client);
+        uplink.setEndpoint(getEndpoint());
+        uplink.start();
+        awaitConnected(uplink);
+        for (int i = 0; i < frames; i++) {
+            assertEquals(i, takeFrame().sequence);
+        }
+        offer(uplink, track, 1);
+        uplink.endTrack(track.id);
+        assertTrue(takeFrame().sequence >= frames);
+        uplink.close();
+    }
+
+    private String getEndpoint() {
+        return "wss://localhost:" + server.getPort() + "/";
+    }
+
+    private Frame takeFrame() throws InterruptedException, DataFormatException {
+        ByteString bytes = messages.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull("No frame received", bytes);
+        return new Frame(bytes.toByteArray());
+    }
+
+    private static Track createTrack(long id) {
+        Track track = new Track();
+        track.id = id;
+        track.appId = APP_ID;
+        return track;
+    }
+
+    private static void offer(TelemetryUplink uplink, Track track, int count) {
+        for (int i = 0; i < count; i++) {
+            Location location = new Location("gps");
+            location.setLatitude(39.9 + i * 0.0001);
+            location.setLongitude(116.4 + i * 0.0001);
+            location.setTime(1600000000000L + i * 1000L);
+            uplink.offer(track, location);
+        }
+    }
+
+    private static void awaitConnected(TelemetryUplink uplink) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!uplink.isConnected()) {
+            assertTrue("Not connected", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitBacklog(TelemetryUplink uplink, int backlog) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (uplink.getBacklog() != backlog) {
+            assertTrue("Backlog " + uplink.getBacklog(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void awaitFrameFiles(File directory, int count) throws InterruptedException {
+        FilenameFilter filter = new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".frame");
+            }
+        };
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (directory.list(filter).length != count) {
+            assertTrue("Frame files " + directory.list(filter).length, System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * The header and the first fields of a decoded frame.
+     */
+    private static class Frame {
+        final boolean deflated;
+        final long sequence;
+        final String appId;
+        final long trackId;
+        final long size;
+
+        private byte[] buffer;
+        private int position;
+
+        Frame(byte[] bytes) throws DataFormatException {
+            assertEquals(TelemetryFrame.MAGIC, bytes[0]);
+            assertEquals(TelemetryFrame.VERSION, bytes[1]);
+            deflated = (bytes[2] & TelemetryFrame.FLAG_DEFLATED) != 0;
+            buffer = bytes;
+            position = 3;
+            sequence = readVarint();
+            if (deflated) {
+                Inflater inflater = new Inflater();
+                inflater.setInput(bytes, position, bytes.length - position);
+                byte[] body = new byte[64 * 1024];
+                int length = inflater.inflate(body);
+                assertTrue(inflater.finished());
+                inflater.end();
+                buffer = new byte[length];
+                System.arraycopy(body, 0, buffer, 0, length);
+                position = 0;
+            }
+            int appIdLength = (int) readVarint();
+            appId = new String(buffer, position, appIdLength, Charset.forName("UTF-8"));
+            position += appIdLength;
+            trackId = readVarint();
+            size = readVarint();
+        }
+
+        private long readVarint() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package com.mapscloud.track.services.tracks;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.mapscloud.track.services.tracks.Sensor.SensorData;
+import com.mapscloud.track.services.tracks.Sensor.SensorDataSet;
+import com.mapscloud.track.services.tracks.Sensor.SensorState;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link SensorFrameCodec} against the generated {@link SensorDataSet}
+ * code of protobuf-java-2.3.0-lite.
+ */
+public class SensorFrameCodecTest {
+
+    private static final int SETS = 10000;
+
+    /**
+     * Tests that the generated bytes decode to the same content and encode
+     * back to the same bytes, which the generated code parses.
+     */
+    @Test
+    public void testRoundTrip() throws InvalidProtocolBufferException {
+        Random random = new Random(43);
+        SensorFrame frame = new SensorFrame();
+        for (int i = 0; i < SETS; i++) {
+            SensorDataSet sensorDataSet = createSensorDataSet(random);
+            byte[] bytes = sensorDataSet.toByteArray();
+
+            assertTrue(SensorFrameCodec.decode(bytes, 0, bytes.length, frame));
+            assertFrameEquals(sensorDataSet, frame);
+            assertEquals(sensorDataSet.getSerializedSize(), SensorFrameCodec.getEncodedSize(frame));
+
+            byte[] encoded = SensorFrameCodec.encode(frame);
+            assertArrayEquals(bytes, encoded);
+            assertArrayEquals(bytes, SensorDataSet.parseFrom(encoded).toByteArray());
+        }
+    }
+
+    /**
+     * Tests encoding at an offset and decoding a frame from the middle of a
+     * buffer.
+     */
+    @Test
+    public void testOffset() {
+        SensorFrame frame = new SensorFrame();
+        frame.setCreationTime(1234567890123L);
+        frame.setSensor(SensorFrame.HEART_RATE, SensorState.SENDING, 150);
+        frame.setSensor(SensorFrame.POWER, SensorState.CONNECTED, -20);
+        int size = SensorFrameCodec.getEncodedSize(frame);
+        byte[] buffer = new byte[size + 10];
+        assertEquals(5 + size, SensorFrameCodec.encode(frame, buffer, 5));
+
+        SensorFrame decoded = new SensorFrame();
+        assertTrue(SensorFrameCodec.decode(buffer, 5, size, decoded));
+        assertArrayEquals(SensorFrameCodec.encode(frame), SensorFrameCodec.encode(decoded));
+    }
+
+    /**
+     * Tests that a frame decoded again keeps nothing of the previous set.
+     */
+    @Test
+    public void testDecodeReusesFrame() {
+        SensorFrame frame = new SensorFrame();
+        byte[] full = SensorDataSet.newBuilder()
+                .setCreationTime(1000L)
+                .setHeartRate(createSensorData(SensorState.SENDING, 120))
+                .setCadence(createSensorData(SensorState.SENDING, 90))
+                .build().toByteArray();
+        byte[] partial = SensorDataSet.newBuilder()
+                .setPower(SensorData.newBuilder().setState(SensorState.CONNECTING))
+                .build().toByteArray();
+
+        assertTrue(SensorFrameCodec.decode(full, 0, full.length, frame));
+        assertTrue(SensorFrameCodec.decode(partial, 0, partial.length, frame));
+        assertFalse(frame.hasCreationTime());
+        assertFalse(frame.hasSensor(SensorFrame.HEART_RATE));
+        assertFalse(frame.hasSensor(SensorFrame.CADENCE));
+        assertTrue(frame.hasSensor(SensorFrame.POWER));
+        assertEquals(SensorState.CONNECTING, frame.getState(SensorFrame.POWER));
+        assertFalse(frame.hasValue(SensorFrame.POWER));
+    }
+
+    /**
+     * Tests that the unknown fields of a newer writer are skipped.
+     */
+    @Test
+    public void testUnknownFields() throws InvalidProtocolBufferException {
+        byte[] bytes = SensorDataSet.newBuilder()
+                .setCreationTime(5000L)
+                .setBatteryLevel(createSensorData(SensorState.CONNECTED, 80))
+                .build().toByteArray();
+        // Field 15 varint 300, field 16 length delimited "ab", field 17 fixed32
+        byte[] unknown = {(byte) 0x78, (byte) 0xac, 0x02, (byte) 0x82, 0x01, 0x02, 'a', 'b', (byte) 0x8d, 0x01,
+                1, 2, 3, 4};
+        byte[] extended = Arrays.copyOf(bytes, bytes.length + unknown.length);
+        System.arraycopy(unknown, 0, extended, bytes.length, unknown.length);
+
+        SensorDataSet sensorDataSet = SensorDataSet.parseFrom(extended);
+        SensorFrame frame = new SensorFrame();
+        assertTrue(SensorFrameCodec.decode(extended, 0, extended.length, frame));
+        assertFrameEquals(sensorDataSet, frame);
+        assertArrayEquals(bytes, SensorFrameCodec.encode(frame));
+    }
+
+    /**
+     * Tests that the codec accepts and rejects the same bytes as the
+     * generated parser: every truncation and every single bit flip of valid
+     * sets, and a sensor without its required state.
+     */
+    @Test
+    public void testSameVerdictAsGenerated() {
+        Random random = new Random(34);
+        SensorFrame frame = new SensorFrame();
+        for (int i = 0; i < 500; i++) {
+            byte[] bytes = createSensorDataSet(random).toByteArray();
+            for (int length = 0; length < bytes.length; length++) {
+                assertSameVerdict(Arrays.copyOf(bytes, length), frame);
+            }
+            for (int bit = 0; bit < bytes.length * 8; bit++) {
+                byte[] flipped = bytes.clone();
+                flipped[bit / 8] ^= 1 << (bit % 8);
+                assertSameVerdict(flipped, frame);
+            }
+        }
+        // Heart rate with a value and no state
+        assertSameVerdict(new byte[]{0x12, 0x02, 0x10, 0x05}, frame);
+    }
+
+    /**
+     * Compares the codec with the generated code on the same sets: the
+     * encoded sizes are equal, a codec decode allocates nothing where
+     * parseFrom builds a message graph, and the decode latencies are
+     * reported.
+     */
+    @Test
+    public void testSizeAndLatencyAgainstGenerated() throws InvalidProtocolBufferException {
+        Random random = new Random(4343);
+        byte[][] sets = new byte[1000][];
+        long generatedSize = 0L;
+        long codecSize = 0L;
+        SensorFrame frame = new SensorFrame();
+        for (int i = 0; i < sets.length; i++) {
+            SensorDataSet sensorDataSet = createSensorDataSet(random);
+            sets[i] = sensorDataSet.toByteArray();
+            frame.copyFrom(sensorDataSet);
+            generatedSize += sensorDataSet.getSerializedSize();
+            codecSize += SensorFrameCodec.getEncodedSize(frame);
+        }
+        assertEquals(generatedSize, codecSize);
+
+        // Warm up both before measuring
+        for (int i = 0; i < 20; i++) {
+            decodeAll(sets, frame);
+            parseAll(sets);
+        }
+        int rounds = 50;
+        long[] codec = measure(sets, frame, rounds, true);
+        long[] generated = measure(sets, frame, rounds, false);
+        long decodes = (long) rounds * sets.length;
+        System.out.println(String.format("SensorFrameCodec: %d bytes for %d sets, decode %.1f ns %s, parseFrom %.1f ns %s",
+                codecSize, sets.length, (double) codec[0] / decodes,
+                codec[1] < 0 ? "" : (double) codec[1] / decodes + " bytes",
+                (double) generated[0] / decodes,
+                generated[1] < 0 ? "" : (double) generated[1] / decodes + " bytes"));
+        if (codec[1] >= 0) {
+            // Less than a byte per decode, the measurement itself may allocate
+            assertTrue("codec allocated " + codec[1] + " bytes", codec[1] < decodes);
+            assertTrue(generated[1] > codec[1]);
+        }
+    }
+
+    /*
+     * Times rounds of decoding the sets. Returns the elapsed nanoseconds and
+     * the bytes allocated, -1 if the JVM can't measure them.
+     */
+    private static long[] measure(byte[][] sets, SensorFrame frame, int rounds, boolean codec)
+            throws InvalidProtocolBufferException {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threadMXBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemoryEnabled()
+                ? (com.sun.management.ThreadMXBean) threadMXBean : null;
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0L;
+        long start = System.nanoTime();
+        long checksum = 0L;
+        for (int round = 0; round < rounds; round++) {
+            checksum += codec ? decodeAll(sets, frame) : parseAll(sets);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocations != null ? allocations.getThreadAllocatedBytes(threadId) - allocatedBefore : -1L;
+        assertTrue(checksum != 0L);
+        return new long[]{elapsed, allocated};
+    }
+
+    private static long decodeAll(byte[][] sets, SensorFrame frame) {
+        long checksum = 0L;
+        for (byte[] bytes : sets) {
+            if (SensorFrameCodec.decode(bytes, 0, bytes.length, frame)) {
+                checksum += frame.getCreationTime() + frame.getValue(SensorFrame.HEART_RATE);
+            }
+        }
+        return checksum;
+    }
+
+    private static long parseAll(byte[][] sets) throws InvalidProtocolBufferException {
+        long checksum = 0L;
+        for (byte[] bytes : sets) {
+            SensorDataSet sensorDataSet = SensorDataSet.parseFrom(bytes);
+            checksum += sensorDataSet.getCreationTime() + sensorDataSet.getHeartRate().getValue();
+        }
+        return checksum;
+    }
+
+    private static void assertSameVerdict(byte[] bytes, SensorFrame frame) {
+        SensorDataSet sensorDataSet;
+        try {
+            sensorDataSet = SensorDataSet.parseFrom(bytes);
+        } catch (InvalidProtocolBufferException e) {
+            sensorDataSet = null;
+        }
+        boolean decoded = SensorFrameCodec.decode(bytes, 0, bytes.length, frame);
+        assertEquals(Arrays.toString(bytes), sensorDataSet != null, decoded);
+        if (decoded) {
+            assertFrameEquals(sensorDataSet, frame);
+        }
+    }
+
+    private static SensorDataSet createSensorDataSet(Random random) {
+        SensorDataSet.Builder builder = SensorDataSet.newBuilder();
+        if (random.nextBoolean()) {
+            builder.setCreationTime(random.nextBoolean() ? random.nextInt(1000) : Math.abs(random.nextLong()));
+        }
+        if (random.nextBoolean()) {
+            builder.setHeartRate(createSensorData(random));
+        }
+        if (random.nextBoolean()) {
+            builder.setCadence(createSensorData(random));
+        }
+        if (random.nextBoolean()) {
+            builder.setPower(createSensorData(random));
+        }
+        if (random.nextBoolean()) {
+            builder.setBatteryLevel(createSensorData(random));
+        }
+        return builder.build();
+    }
+
+    private static SensorData createSensorData(Random random) {
+        SensorState state = SensorState.values()[random.nextInt(SensorState.values().length)];
+        if (random.nextBoolean()) {
+            return SensorData.newBuilder().setState(state).build();
+        }
+        // 包括负数和多字节的 varint
+        int value = random.nextBoolean() ? random.nextInt(256) : random.nextInt();
+        return createSensorData(state, value);
+    }
+
+    private static SensorData createSensorData(SensorState state, int value) {
+        return SensorData.newBuilder().setState(state).setValue(value).build();
+    }
+
+    private static void assertFrameEquals(SensorDataSet expected, SensorFrame frame) {
+        assertEquals(expected.hasCreationTime(), frame.hasCreationTime());
+        assertEquals(expected.getCreationTime(), frame.getCreationTime());
+        assertSensorEquals(expected.hasHeartRate(), expected.getHeartRate(), frame, SensorFrame.HEART_RATE);
+        assertSensorEquals(expected.hasCadence(), expected.getCadence(), frame, SensorFrame.CADENCE);
+        assertSensorEquals(expected.hasPower(), expected.getPower(), frame, SensorFrame.POWER);
+        assertSensorEquals(expected.hasBatteryLevel(), expected.getBatteryLevel(), frame,
+                SensorFrame.BATTERY_LEVEL);
+    }
+
+    private static void assertSensorEquals(boolean has, SensorData expected, SensorFrame frame, int sensor) {
+        assertEquals(has, frame.hasSensor(sensor));
+        if (has) {
+            assertEquals(expected.getState(), frame.getState(sensor));
+            assertEquals(expected.hasValue(), frame.hasValue(sensor));
+            assertEquals(expected.getValue(), frame.getValue(sensor));
+        }
+    }
+}